@@ -27,6 +27,7 @@ import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.io.ConfigurationFile;
 import com.compomics.util.memory.MemoryConsumptionStatus;
 import eu.isas.peptideshaker.fileimport.FileImporter;
+import eu.isas.peptideshaker.fileimport.PsmImporter;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.messages.FeedBack;
 import com.compomics.util.preferences.FractionSettings;
@@ -58,6 +59,9 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class will be responsible for the identification import and the
@@ -92,6 +96,18 @@ public class PeptideShaker {
      * The id importer will import and process the identifications.
      */
     private FileImporter fileImporter = null;
+    /**
+     * The maximal number of identification files imported concurrently.
+     */
+    private int maxParallelIdFiles = FileImporter.DEFAULT_MAX_PARALLEL_ID_FILES;
+    /**
+     * The number of PSMs handed over to the import threads at once.
+     */
+    private int psmBatchSize = PsmImporter.DEFAULT_BATCH_SIZE;
+    /**
+     * The maximal number of PSM batches waiting to be imported.
+     */
+    private int psmQueueDepth = PsmImporter.DEFAULT_QUEUE_DEPTH;
     /**
      * The sequence factory.
      */
@@ -155,6 +171,11 @@ public class PeptideShaker {
      * Object used to monitor the duration of the project creation.
      */
     private Duration projectCreationDuration;
+    /**
+     * Lock used when adding spectrum matches to the peptide and protein
+     * matches.
+     */
+    private final Object buildPeptidesAndProteinsLock = new Object();
 
     /**
      * Empty constructor for instantiation purposes.
@@ -231,9 +252,72 @@ public class PeptideShaker {
         analysis.addIdentificationResults(IdentificationMethod.MS2_IDENTIFICATION, new Ms2Identification(getIdentificationReference()));
 
         fileImporter = new FileImporter(this, waitingHandler, analysis, shotgunProtocol, identificationParameters, metrics);
+        fileImporter.setMaxParallelIdFiles(maxParallelIdFiles);
+        fileImporter.setPsmBatchSize(psmBatchSize);
+        fileImporter.setPsmQueueDepth(psmQueueDepth);
         fileImporter.importFiles(idFiles, spectrumFiles, processingPreferences, spectrumCountingPreferences, projectDetails, backgroundThread);
     }
 
+    /**
+     * Returns the maximal number of identification files imported
+     * concurrently.
+     *
+     * @return the maximal number of identification files imported
+     * concurrently
+     */
+    public int getMaxParallelIdFiles() {
+        return maxParallelIdFiles;
+    }
+
+    /**
+     * Sets the maximal number of identification files imported concurrently.
+     * Set to one to import the files one after the other.
+     *
+     * @param maxParallelIdFiles the maximal number of identification files
+     * imported concurrently
+     */
+    public void setMaxParallelIdFiles(int maxParallelIdFiles) {
+        this.maxParallelIdFiles = maxParallelIdFiles;
+    }
+
+    /**
+     * Returns the number of PSMs handed over to the import threads at once.
+     *
+     * @return the number of PSMs handed over to the import threads at once
+     */
+    public int getPsmBatchSize() {
+        return psmBatchSize;
+    }
+
+    /**
+     * Sets the number of PSMs handed over to the import threads at once.
+     *
+     * @param psmBatchSize the number of PSMs handed over to the import
+     * threads at once
+     */
+    public void setPsmBatchSize(int psmBatchSize) {
+        this.psmBatchSize = psmBatchSize;
+    }
+
+    /**
+     * Returns the maximal number of PSM batches waiting to be imported.
+     *
+     * @return the maximal number of PSM batches waiting to be imported
+     */
+    public int getPsmQueueDepth() {
+        return psmQueueDepth;
+    }
+
+    /**
+     * Sets the maximal number of PSM batches waiting to be imported.
+     *
+     * @param psmQueueDepth the maximal number of PSM batches waiting to be
+     * imported
+     */
+    public void setPsmQueueDepth(int psmQueueDepth) {
+        this.psmQueueDepth = psmQueueDepth;
+    }
+
     /**
      * Returns the object cache.
      *
@@ -327,7 +411,7 @@ public class PeptideShaker {
         } else {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate assumptions probabilities.", true, true);
         }
-        attachAssumptionsProbabilities(inputMap, identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
+        attachAssumptionsProbabilities(inputMap, identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -335,7 +419,7 @@ public class PeptideShaker {
 
         waitingHandler.appendReport("Selecting best peptide per spectrum.", true, true);
         BestMatchSelection bestMatchSelection = new BestMatchSelection(identification, proteinCount, matchesValidator, metrics);
-        bestMatchSelection.selectBestHitAndFillPsmMap(inputMap, waitingHandler, shotgunProtocol, identificationParameters);
+        bestMatchSelection.selectBestHitAndFillPsmMap(inputMap, waitingHandler, exceptionHandler, shotgunProtocol, identificationParameters, processingPreferences);
         IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
         if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
             matchesValidator.getPsmMap().clean(idMatchValidationPreferences.getDefaultPsmFDR() / 100);
@@ -401,7 +485,7 @@ public class PeptideShaker {
             metrics.clearSpectrumKeys();
         }
         waitingHandler.appendReport("Saving probabilities, building peptides and proteins.", true, true);
-        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler); // @TODO: this is very slow if memory is full!!
+        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -410,7 +494,7 @@ public class PeptideShaker {
         ProteinInference proteinInference = new ProteinInference();
         if (identificationParameters.getProteinInferencePreferences().getSimplifyGroups()) {
             waitingHandler.appendReport("Simplifying protein groups.", true, true);
-            proteinInference.removeRedundantGroups(identification, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+            proteinInference.removeRedundantGroups(identification, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler, exceptionHandler, processingPreferences);
             waitingHandler.increasePrimaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
                 return;
@@ -418,7 +502,7 @@ public class PeptideShaker {
         }
 
         waitingHandler.appendReport("Generating peptide map.", true, true);
-        matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, identificationParameters);
+        matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
         if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
             matchesValidator.getPeptideMap().clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
         }
@@ -437,21 +521,21 @@ public class PeptideShaker {
         }
 
         waitingHandler.appendReport("Saving peptide probabilities.", true, true);
-        matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
+        matchesValidator.attachPeptideProbabilities(identification, waitingHandler, exceptionHandler, processingPreferences);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Generating protein map.", true, true);
-        matchesValidator.fillProteinMap(identification, waitingHandler);
+        matchesValidator.fillProteinMap(identification, waitingHandler, exceptionHandler, processingPreferences);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Resolving protein inference issues, inferring peptide and protein PI status.", true, true); // could be slow
-        proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler, exceptionHandler);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -468,7 +552,7 @@ public class PeptideShaker {
         }
 
         waitingHandler.appendReport("Saving protein probabilities.", true, true);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
+        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, exceptionHandler, identificationParameters.getFractionSettings(), processingPreferences);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -596,6 +680,7 @@ public class PeptideShaker {
      * @param identification the identification object containing the
      * identification matches
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for exceptions
      * @param processingPreferences the processing preferences
      * @param shotgunProtocol information on the protocol
      * @param identificationParameters the identification parameters
@@ -603,22 +688,22 @@ public class PeptideShaker {
      * @throws Exception exception thrown whenever it is attempted to attach
      * more than one identification per search engine per spectrum
      */
-    public void spectrumMapChanged(Identification identification, WaitingHandler waitingHandler, ProcessingPreferences processingPreferences,
+    public void spectrumMapChanged(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ProcessingPreferences processingPreferences,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters) throws Exception {
         PeptideSpecificMap peptideMap = new PeptideSpecificMap();
         ProteinMap proteinMap = new ProteinMap();
         matchesValidator.setPeptideMap(peptideMap);
         matchesValidator.setProteinMap(proteinMap);
-        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
-        matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, identificationParameters);
+        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
+        matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
         peptideMap.clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
         peptideMap.estimateProbabilities(waitingHandler);
-        matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
-        matchesValidator.fillProteinMap(identification, waitingHandler);
+        matchesValidator.attachPeptideProbabilities(identification, waitingHandler, exceptionHandler, processingPreferences);
+        matchesValidator.fillProteinMap(identification, waitingHandler, exceptionHandler, processingPreferences);
         proteinMap.estimateProbabilities(waitingHandler);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
+        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, exceptionHandler, identificationParameters.getFractionSettings(), processingPreferences);
         ProteinInference proteinInference = new ProteinInference();
-        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler, exceptionHandler);
     }
 
     /**
@@ -627,38 +712,42 @@ public class PeptideShaker {
      * @param identification the identification object containing the
      * identification matches
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for exceptions
+     * @param processingPreferences the processing preferences
      * @param shotgunProtocol information on the protocol
      * @param identificationParameters the identification parameters
      *
      * @throws Exception exception thrown whenever it is attempted to attach
      * more than one identification per search engine per spectrum
      */
-    public void peptideMapChanged(Identification identification, WaitingHandler waitingHandler,
+    public void peptideMapChanged(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ProcessingPreferences processingPreferences,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters) throws Exception {
         ProteinMap proteinMap = new ProteinMap();
         matchesValidator.setProteinMap(proteinMap);
-        matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
-        matchesValidator.fillProteinMap(identification, waitingHandler);
+        matchesValidator.attachPeptideProbabilities(identification, waitingHandler, exceptionHandler, processingPreferences);
+        matchesValidator.fillProteinMap(identification, waitingHandler, exceptionHandler, processingPreferences);
         proteinMap.estimateProbabilities(waitingHandler);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
+        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, exceptionHandler, identificationParameters.getFractionSettings(), processingPreferences);
         ProteinInference proteinInference = new ProteinInference();
-        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler, exceptionHandler);
     }
 
     /**
      * Processes the identifications if a change occurred in the protein map.
      *
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for exceptions
      * @param fractionSettings the fraction settings
+     * @param processingPreferences the processing preferences
      *
      * @throws SQLException thrown if an SQLException occurs
      * @throws IOException thrown if an IOException occurs
      * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
      */
-    public void proteinMapChanged(WaitingHandler waitingHandler, FractionSettings fractionSettings) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public void proteinMapChanged(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, FractionSettings fractionSettings, ProcessingPreferences processingPreferences) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, fractionSettings);
+        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, exceptionHandler, fractionSettings, processingPreferences);
     }
 
     /**
@@ -667,9 +756,12 @@ public class PeptideShaker {
      *
      * @param inputMap map of the input scores
      * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      */
-    private void attachAssumptionsProbabilities(InputMap inputMap, SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler) throws Exception {
+    private void attachAssumptionsProbabilities(InputMap inputMap, SequenceMatchingPreferences sequenceMatchingPreferences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws Exception {
 
         Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
 
@@ -679,139 +771,163 @@ public class PeptideShaker {
         }
 
         for (String spectrumFileName : identification.getSpectrumFiles()) {
+            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, null);
+            for (int i = 1; i <= processingPreferences.getnThreads() && (waitingHandler == null || !waitingHandler.isRunCanceled()); i++) {
+                AssumptionsProbabilitiesRunnable runnable = new AssumptionsProbabilitiesRunnable(psmIterator, identification, inputMap, sequenceMatchingPreferences, waitingHandler, exceptionHandler);
+                pool.submit(runnable);
+            }
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                return;
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("Attaching assumptions probabilities timed out. Please contact the developers.");
+            }
+        }
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, waitingHandler);
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+    }
 
-            while (psmIterator.hasNext()) {
+    /**
+     * Attaches the spectrum posterior error probabilities to the peptide
+     * assumptions of a spectrum match.
+     *
+     * @param identification the identification containing the match
+     * @param spectrumMatch the spectrum match of interest
+     * @param inputMap map of the input scores
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws IOException thrown if an IOException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     */
+    private void attachAssumptionsProbabilities(Identification identification, SpectrumMatch spectrumMatch, InputMap inputMap, SequenceMatchingPreferences sequenceMatchingPreferences)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = identification.getAssumptions(spectrumKey);
+        String spectrumKey = spectrumMatch.getKey();
+        HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = identification.getAssumptions(spectrumKey);
 
-                HashMap<Double, ArrayList<PSParameter>> pepToParameterMap = new HashMap<Double, ArrayList<PSParameter>>();
+        HashMap<Double, ArrayList<PSParameter>> pepToParameterMap = new HashMap<Double, ArrayList<PSParameter>>();
 
-                for (int searchEngine : assumptionsMap.keySet()) {
+        for (int searchEngine : assumptionsMap.keySet()) {
 
-                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> seMapping = assumptionsMap.get(searchEngine);
-                    ArrayList<Double> eValues = new ArrayList<Double>(seMapping.keySet());
-                    Collections.sort(eValues);
-                    double previousP = 0;
-                    ArrayList<PSParameter> previousAssumptionsParameters = new ArrayList<PSParameter>();
-                    SpectrumIdentificationAssumption previousAssumption = null;
+            HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> seMapping = assumptionsMap.get(searchEngine);
+            ArrayList<Double> eValues = new ArrayList<Double>(seMapping.keySet());
+            Collections.sort(eValues);
+            double previousP = 0;
+            ArrayList<PSParameter> previousAssumptionsParameters = new ArrayList<PSParameter>();
+            SpectrumIdentificationAssumption previousAssumption = null;
 
-                    for (double eValue : eValues) {
+            for (double eValue : eValues) {
 
-                        for (SpectrumIdentificationAssumption assumption : seMapping.get(eValue)) {
-                            PSParameter psParameter = new PSParameter();
-                            psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                            if (psParameter == null) {
-                                psParameter = new PSParameter();
-                            }
+                for (SpectrumIdentificationAssumption assumption : seMapping.get(eValue)) {
+                    PSParameter psParameter = new PSParameter();
+                    psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                    if (psParameter == null) {
+                        psParameter = new PSParameter();
+                    }
 
-                            if (sequenceFactory.concatenatedTargetDecoy()) {
+                    if (sequenceFactory.concatenatedTargetDecoy()) {
 
-                                double newP = inputMap.getProbability(searchEngine, eValue);
-                                double pep = previousP;
+                        double newP = inputMap.getProbability(searchEngine, eValue);
+                        double pep = previousP;
 
-                                if (newP > previousP) {
-                                    pep = newP;
-                                    previousP = newP;
-                                }
+                        if (newP > previousP) {
+                            pep = newP;
+                            previousP = newP;
+                        }
 
-                                psParameter.setSearchEngineProbability(pep);
+                        psParameter.setSearchEngineProbability(pep);
 
-                                ArrayList<PSParameter> pSParameters = pepToParameterMap.get(pep);
-                                if (pSParameters == null) {
-                                    pSParameters = new ArrayList<PSParameter>(1);
-                                    pepToParameterMap.put(pep, pSParameters);
+                        ArrayList<PSParameter> pSParameters = pepToParameterMap.get(pep);
+                        if (pSParameters == null) {
+                            pSParameters = new ArrayList<PSParameter>(1);
+                            pepToParameterMap.put(pep, pSParameters);
+                        }
+                        pSParameters.add(psParameter);
+
+                        if (previousAssumption != null) {
+                            boolean same = false;
+                            if ((assumption instanceof PeptideAssumption) && (previousAssumption instanceof PeptideAssumption)) {
+                                Peptide newPeptide = ((PeptideAssumption) assumption).getPeptide();
+                                Peptide previousPeptide = ((PeptideAssumption) previousAssumption).getPeptide();
+                                if (newPeptide.isSameSequenceAndModificationStatus(previousPeptide, sequenceMatchingPreferences)) {
+                                    same = true;
                                 }
-                                pSParameters.add(psParameter);
-
-                                if (previousAssumption != null) {
-                                    boolean same = false;
-                                    if ((assumption instanceof PeptideAssumption) && (previousAssumption instanceof PeptideAssumption)) {
-                                        Peptide newPeptide = ((PeptideAssumption) assumption).getPeptide();
-                                        Peptide previousPeptide = ((PeptideAssumption) previousAssumption).getPeptide();
-                                        if (newPeptide.isSameSequenceAndModificationStatus(previousPeptide, sequenceMatchingPreferences)) {
-                                            same = true;
-                                        }
-                                    } else if ((assumption instanceof TagAssumption) && (previousAssumption instanceof TagAssumption)) {
-                                        Tag newTag = ((TagAssumption) assumption).getTag();
-                                        Tag previousTag = ((TagAssumption) previousAssumption).getTag();
-                                        if (newTag.isSameSequenceAndModificationStatusAs(previousTag, sequenceMatchingPreferences)) {
-                                            same = true;
-                                        }
-                                    }
-
-                                    if (!same) {
-                                        for (PSParameter previousParameter : previousAssumptionsParameters) {
-                                            double deltaPEP = pep - previousParameter.getSearchEngineProbability();
-                                            previousParameter.setAlgorithmDeltaPEP(deltaPEP);
-                                        }
-                                        previousAssumptionsParameters.clear();
-                                    }
+                            } else if ((assumption instanceof TagAssumption) && (previousAssumption instanceof TagAssumption)) {
+                                Tag newTag = ((TagAssumption) assumption).getTag();
+                                Tag previousTag = ((TagAssumption) previousAssumption).getTag();
+                                if (newTag.isSameSequenceAndModificationStatusAs(previousTag, sequenceMatchingPreferences)) {
+                                    same = true;
                                 }
-                                previousAssumption = assumption;
-                                previousAssumptionsParameters.add(psParameter);
-
-                            } else {
-                                psParameter.setSearchEngineProbability(1.0);
                             }
 
-                            assumption.addUrParam(psParameter);
+                            if (!same) {
+                                for (PSParameter previousParameter : previousAssumptionsParameters) {
+                                    double deltaPEP = pep - previousParameter.getSearchEngineProbability();
+                                    previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+                                }
+                                previousAssumptionsParameters.clear();
+                            }
                         }
-                    }
+                        previousAssumption = assumption;
+                        previousAssumptionsParameters.add(psParameter);
 
-                    for (PSParameter previousParameter : previousAssumptionsParameters) {
-                        double deltaPEP = 1 - previousParameter.getSearchEngineProbability();
-                        previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+                    } else {
+                        psParameter.setSearchEngineProbability(1.0);
                     }
-                }
 
-                // Compute the delta pep score accross all search engines
-                Double previousPEP = null;
-                ArrayList<PSParameter> previousParameters = new ArrayList<PSParameter>();
-                ArrayList<Double> peps = new ArrayList<Double>(pepToParameterMap.keySet());
-                Collections.sort(peps);
-                for (double pep : peps) {
-                    if (previousPEP != null) {
-                        for (PSParameter previousParameter : previousParameters) {
-                            double delta = pep - previousPEP;
-                            previousParameter.setDeltaPEP(delta);
-                        }
-                    }
-                    previousParameters = pepToParameterMap.get(pep);
-                    previousPEP = pep;
-                }
-                for (PSParameter previousParameter : previousParameters) {
-                    double delta = 1 - previousParameter.getSearchEngineProbability();
-                    previousParameter.setDeltaPEP(delta);
+                    assumption.addUrParam(psParameter);
                 }
+            }
 
-                identification.updateAssumptions(spectrumKey, assumptionsMap);
+            for (PSParameter previousParameter : previousAssumptionsParameters) {
+                double deltaPEP = 1 - previousParameter.getSearchEngineProbability();
+                previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+            }
+        }
 
-                if (waitingHandler != null) {
-                    waitingHandler.increaseSecondaryProgressCounter();
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
+        // Compute the delta pep score accross all search engines
+        Double previousPEP = null;
+        ArrayList<PSParameter> previousParameters = new ArrayList<PSParameter>();
+        ArrayList<Double> peps = new ArrayList<Double>(pepToParameterMap.keySet());
+        Collections.sort(peps);
+        for (double pep : peps) {
+            if (previousPEP != null) {
+                for (PSParameter previousParameter : previousParameters) {
+                    double delta = pep - previousPEP;
+                    previousParameter.setDeltaPEP(delta);
                 }
             }
+            previousParameters = pepToParameterMap.get(pep);
+            previousPEP = pep;
         }
-
-        if (waitingHandler != null) {
-            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        for (PSParameter previousParameter : previousParameters) {
+            double delta = 1 - previousParameter.getSearchEngineProbability();
+            previousParameter.setDeltaPEP(delta);
         }
+
+        identification.updateAssumptions(spectrumKey, assumptionsMap);
     }
 
     /**
      * Attaches the spectrum posterior error probabilities to the spectrum
-     * matches.
+     * matches and adds them to the peptide and protein matches. The
+     * probabilities are attached in parallel, the peptide and protein matches
+     * are built one spectrum match at a time.
      *
      * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      */
-    private void attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler)
+    private void attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(SequenceMatchingPreferences sequenceMatchingPreferences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws SQLException, IOException, ClassNotFoundException, IllegalArgumentException, Exception {
 
         waitingHandler.setWaitingText("Attaching Spectrum Probabilities - Building Peptides and Proteins. Please Wait...");
@@ -821,39 +937,64 @@ public class PeptideShaker {
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+        parameters.add(new PSParameter());
 
         for (String spectrumFileName : identification.getSpectrumFiles()) {
+            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, null);
+            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+                SpectrumProbabilitiesRunnable runnable = new SpectrumProbabilitiesRunnable(psmIterator, identification, sequenceMatchingPreferences, waitingHandler, exceptionHandler);
+                pool.submit(runnable);
+            }
+            if (waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                return;
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("Building peptides and proteins timed out. Please contact the developers.");
+            }
+        }
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, waitingHandler);
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
 
-            while (psmIterator.hasNext()) {
+    /**
+     * Attaches the spectrum posterior error probability to a spectrum match
+     * and adds it to its peptide and protein matches.
+     *
+     * @param identification the identification containing the match
+     * @param spectrumMatch the spectrum match of interest
+     * @param psParameter a PSParameter instance used to retrieve the match
+     * parameter
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws IOException thrown if an IOException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     */
+    private void attachSpectrumProbabilityAndBuildPeptidesAndProteins(Identification identification, SpectrumMatch spectrumMatch, PSParameter psParameter,
+            SequenceMatchingPreferences sequenceMatchingPreferences) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+        String spectrumKey = spectrumMatch.getKey();
+        psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
 
-                if (sequenceFactory.concatenatedTargetDecoy()) {
-                    Integer charge = new Integer(psParameter.getSpecificMapKey());
-                    String fileName = Spectrum.getSpectrumFile(spectrumKey);
-                    psParameter.setPsmProbability(matchesValidator.getPsmMap().getProbability(fileName, charge, psParameter.getPsmProbabilityScore()));
-                } else {
-                    psParameter.setPsmProbability(1.0);
-                }
+        if (sequenceFactory.concatenatedTargetDecoy()) {
+            Integer charge = new Integer(psParameter.getSpecificMapKey());
+            String fileName = Spectrum.getSpectrumFile(spectrumKey);
+            psParameter.setPsmProbability(matchesValidator.getPsmMap().getProbability(fileName, charge, psParameter.getPsmProbabilityScore()));
+        } else {
+            psParameter.setPsmProbability(1.0);
+        }
 
-                identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
-                identification.buildPeptidesAndProteins(spectrumKey, sequenceMatchingPreferences);
+        identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
 
-                waitingHandler.increaseSecondaryProgressCounter();
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-            }
+        // peptide and protein matches are created on first insertion and shared between spectrum matches, the building is therefore not parallelized
+        synchronized (buildPeptidesAndProteinsLock) {
+            identification.buildPeptidesAndProteins(spectrumKey, sequenceMatchingPreferences);
         }
-
-        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
     /**
@@ -1100,4 +1241,148 @@ public class PeptideShaker {
         File file = new File(folder, PEPTIDESHAKER_CONFIGURATION_FILE);
         return new ConfigurationFile(file);
     }
+
+    /**
+     * Runnable attaching the assumptions probabilities.
+     *
+     * @author Marc Vaudel
+     */
+    private class AssumptionsProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The input map.
+         */
+        private InputMap inputMap;
+        /**
+         * The sequence matching preferences.
+         */
+        private SequenceMatchingPreferences sequenceMatchingPreferences;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator an iterator of the PSMs to iterate
+         * @param identification the identification containing all matches
+         * @param inputMap map of the input scores
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public AssumptionsProbabilitiesRunnable(PsmIterator psmIterator, Identification identification, InputMap inputMap,
+                SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.inputMap = inputMap;
+            this.sequenceMatchingPreferences = sequenceMatchingPreferences;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (psmIterator.hasNext() && (waitingHandler == null || !waitingHandler.isRunCanceled())) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch != null) {
+                        attachAssumptionsProbabilities(identification, spectrumMatch, inputMap, sequenceMatchingPreferences);
+                        if (waitingHandler != null) {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runnable attaching the spectrum probabilities and building the peptide
+     * and protein matches.
+     *
+     * @author Marc Vaudel
+     */
+    private class SpectrumProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The sequence matching preferences.
+         */
+        private SequenceMatchingPreferences sequenceMatchingPreferences;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * PSParameter instance used by this thread to retrieve the match
+         * parameters.
+         */
+        private PSParameter psParameter = new PSParameter();
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator an iterator of the PSMs to iterate
+         * @param identification the identification containing all matches
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public SpectrumProbabilitiesRunnable(PsmIterator psmIterator, Identification identification, SequenceMatchingPreferences sequenceMatchingPreferences,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.sequenceMatchingPreferences = sequenceMatchingPreferences;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch != null) {
+                        attachSpectrumProbabilityAndBuildPeptidesAndProteins(identification, spectrumMatch, psParameter, sequenceMatchingPreferences);
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
 }
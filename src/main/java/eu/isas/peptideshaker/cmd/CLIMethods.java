@@ -1,18 +1,25 @@
 package eu.isas.peptideshaker.cmd;
 
 import com.compomics.util.experiment.ShotgunProtocol;
+import com.compomics.util.experiment.biology.genes.GeneFactory;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
+import com.compomics.util.experiment.biology.genes.go.GoDomains;
+import com.compomics.util.experiment.biology.taxonomy.SpeciesFactory;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.io.export.ExportFormat;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.export.ColumnarReportWriter;
 import eu.isas.peptideshaker.export.PSExportFactory;
 import com.compomics.util.io.export.ExportScheme;
+import com.compomics.util.preferences.GenePreferences;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.export.MzIdentMLExport;
 import eu.isas.peptideshaker.followup.FastaExport;
+import eu.isas.peptideshaker.followup.GoEnrichment;
+import eu.isas.peptideshaker.followup.GoMappingCache;
 import eu.isas.peptideshaker.followup.InclusionListExport;
 import eu.isas.peptideshaker.followup.TrainingExport;
 import eu.isas.peptideshaker.followup.ProgenesisExport;
@@ -44,6 +51,7 @@ public class CLIMethods {
      * @param followUpCLIInputBean the follow up input bean
      * @param identification the identification
      * @param identificationParameters the identification parameters
+     * @param nThreads the number of spectrum files to recalibrate in parallel
      * @param waitingHandler a waiting handler to display progress
      *
      * @throws IOException exception thrown whenever an IO exception occurred
@@ -58,7 +66,7 @@ public class CLIMethods {
      * occurred while reading an mzML file
      */
     public static void recalibrateSpectra(FollowUpCLIInputBean followUpCLIInputBean, Identification identification,
-            IdentificationParameters identificationParameters, WaitingHandler waitingHandler) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+            IdentificationParameters identificationParameters, int nThreads, WaitingHandler waitingHandler) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
         File recalibrationFolder = followUpCLIInputBean.getRecalibrationFolder();
         if (!recalibrationFolder.exists()) {
             recalibrationFolder.mkdir();
@@ -70,7 +78,7 @@ public class CLIMethods {
         } else if (followUpCLIInputBean.getRecalibrationMode() == 2) {
             ms1 = false;
         }
-        RecalibrationExporter.writeRecalibratedSpectra(ms1, ms2, recalibrationFolder, identification, identificationParameters, waitingHandler);
+        RecalibrationExporter.writeRecalibratedSpectra(ms1, ms2, recalibrationFolder, identification, identificationParameters, nThreads, waitingHandler);
     }
 
     /**
@@ -246,6 +254,210 @@ public class CLIMethods {
         InclusionListExport.exportInclusionList(destinationFile, identification, identificationFeaturesGenerator, followUpCLIInputBean.getInclusionProteinFilter(), peptideFilterType, InclusionListExport.ExportFormat.getTypeFromIndex(followUpCLIInputBean.getInclusionFormat()), searchParameters, followUpCLIInputBean.getInclusionRtWindow(), waitingHandler, filterPreferences);
     }
 
+    /**
+     * Exports the gene ontology enrichment analysis of the validated proteins
+     * against the background species selected in the gene preferences.
+     *
+     * @param followUpCLIInputBean the follow up input bean
+     * @param identification the identification
+     * @param identificationParameters the identification parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler to display progress
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while interacting with the database
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     */
+    public static void exportGoEnrichment(FollowUpCLIInputBean followUpCLIInputBean, Identification identification, IdentificationParameters identificationParameters, int nThreads, WaitingHandler waitingHandler) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+        GenePreferences genePreferences = identificationParameters.getGenePreferences();
+        Integer taxon = genePreferences == null ? null : genePreferences.getSelectedBackgroundSpecies();
+        if (taxon == null) {
+            throw new IllegalArgumentException("No background species selected for the gene ontology enrichment analysis.");
+        }
+        String ensemblDatasetName = SpeciesFactory.getInstance().getEnsemblDataset(taxon);
+        File goMappingFile = GeneFactory.getGoMappingFile(ensemblDatasetName);
+        if (!goMappingFile.exists()) {
+            throw new IllegalArgumentException("GO mapping file " + goMappingFile.getAbsolutePath() + " not found.");
+        }
+        GoMappingCache goMapping = GoMappingCache.getGoMapping(goMappingFile, null);
+        GoDomains goDomains = null;
+        File goDomainsFile = GeneFactory.getGoDomainsFile();
+        if (goDomainsFile.exists()) {
+            goDomains = new GoDomains();
+            goDomains.laodMappingFromFile(goDomainsFile, null);
+        }
+        GoEnrichment goEnrichment = new GoEnrichment(goMapping);
+        goEnrichment.addValidatedProteins(identification, null);
+        ArrayList<GoEnrichment.TermEnrichment> enrichment = goEnrichment.getEnrichment(nThreads, waitingHandler);
+        if (enrichment != null) {
+            GoEnrichment.writeReport(followUpCLIInputBean.getGoEnrichmentFile(), enrichment, goDomains, followUpCLIInputBean.getGoEnrichmentSignificance());
+        }
+    }
+
+    /**
+     * Exports the accessions and the protein details in FASTA format in a
+     * single pass over the proteins. The export types of both files must be
+     * the same.
+     *
+     * @param followUpCLIInputBean the follow up input bean
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param waitingHandler a waiting handler to display progress
+     * @param filteringPreferences the filtering preferences
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while interacting with the database
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     */
+    public static void exportAccessionsAndFasta(FollowUpCLIInputBean followUpCLIInputBean, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler, FilterPreferences filteringPreferences) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+        if (followUpCLIInputBean.getAccessionsExportTypeIndex() != followUpCLIInputBean.getFastaExportTypeIndex()) {
+            throw new IllegalArgumentException("The accessions and FASTA exports can only be combined for the same export type.");
+        }
+        File accessionsFile = followUpCLIInputBean.getAccessionsExportFile();
+        if (!accessionsFile.exists()) {
+            accessionsFile.createNewFile();
+        }
+        File fastaFile = followUpCLIInputBean.getFastaExportFile();
+        if (!fastaFile.exists()) {
+            fastaFile.createNewFile();
+        }
+        FastaExport.exportAccessionsAndFasta(accessionsFile, fastaFile, identification, identificationFeaturesGenerator, FastaExport.ExportType.getTypeFromIndex(followUpCLIInputBean.getFastaExportTypeIndex()), waitingHandler, filteringPreferences);
+    }
+
+    /**
+     * Executes the follow-up tasks requested in the follow-up input bean. The
+     * tasks run one after the other on the calling thread, so that they can
+     * share the waiting handler and the caches of the identification features
+     * generator, the recalibration and the gene ontology enrichment using the
+     * given number of threads. Errors are reported in the waiting handler and
+     * cancel the run.
+     *
+     * Note that there is no shared pass over the matches: every task iterates
+     * the identification itself. Only the accessions and FASTA exports are
+     * written in a single pass over the proteins, when they have the same
+     * export type.
+     *
+     * @param followUpCLIInputBean the follow up input bean
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param identificationParameters the identification parameters
+     * @param filterPreferences the filter preferences
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler to display progress
+     */
+    public static void executeFollowUpTasks(final FollowUpCLIInputBean followUpCLIInputBean, final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final IdentificationParameters identificationParameters, final FilterPreferences filterPreferences, final int nThreads, final WaitingHandler waitingHandler) {
+
+        ArrayList<FollowUpTask> tasks = new ArrayList<FollowUpTask>();
+
+        // recalibrate spectra
+        if (followUpCLIInputBean.recalibrationNeeded()) {
+            tasks.add(new FollowUpTask("Recalibration process completed.", "An error occurred while recalibrating the spectra.", waitingHandler) {
+                @Override
+                protected void execute() throws Exception {
+                    recalibrateSpectra(followUpCLIInputBean, identification, identificationParameters, nThreads, waitingHandler);
+                }
+            });
+        }
+
+        // export spectra
+        if (followUpCLIInputBean.spectrumExportNeeded()) {
+            tasks.add(new FollowUpTask("Spectrum export completed.", "An error occurred while exporting the spectra.", waitingHandler) {
+                @Override
+                protected void execute() throws Exception {
+                    exportSpectra(followUpCLIInputBean, identification, waitingHandler, identificationParameters.getSequenceMatchingPreferences());
+                }
+            });
+        }
+
+        // export protein accessions and details
+        if (followUpCLIInputBean.accessionExportNeeded() && followUpCLIInputBean.fastaExportNeeded()
+                && followUpCLIInputBean.getAccessionsExportTypeIndex() == followUpCLIInputBean.getFastaExportTypeIndex()) {
+            tasks.add(new FollowUpTask("Protein accessions and details export completed.", "An error occurred while exporting the protein accessions and details.", waitingHandler) {
+                @Override
+                protected void execute() throws Exception {
+                    exportAccessionsAndFasta(followUpCLIInputBean, identification, identificationFeaturesGenerator, waitingHandler, filterPreferences);
+                }
+            });
+        } else {
+            if (followUpCLIInputBean.accessionExportNeeded()) {
+                tasks.add(new FollowUpTask("Protein accessions export completed.", "An error occurred while exporting the protein accessions.", waitingHandler) {
+                    @Override
+                    protected void execute() throws Exception {
+                        exportAccessions(followUpCLIInputBean, identification, identificationFeaturesGenerator, waitingHandler, filterPreferences);
+                    }
+                });
+            }
+            if (followUpCLIInputBean.fastaExportNeeded()) {
+                tasks.add(new FollowUpTask("Protein details export completed.", "An error occurred while exporting the protein details.", waitingHandler) {
+                    @Override
+                    protected void execute() throws Exception {
+                        exportFasta(followUpCLIInputBean, identification, identificationFeaturesGenerator, waitingHandler, filterPreferences);
+                    }
+                });
+            }
+        }
+
+        // progenesis export
+        if (followUpCLIInputBean.progenesisExportNeeded()) {
+            tasks.add(new FollowUpTask("Progenesis export completed.", "An error occurred while exporting the Progenesis file.", waitingHandler) {
+                @Override
+                protected void execute() throws Exception {
+                    exportProgenesis(followUpCLIInputBean, identification, waitingHandler, identificationParameters.getSequenceMatchingPreferences());
+                }
+            });
+        }
+
+        // PepNovo training export
+        if (followUpCLIInputBean.pepnovoTrainingExportNeeded()) {
+            tasks.add(new FollowUpTask("PepNovo training export completed.", "An error occurred while exporting the PepNovo training file.", waitingHandler) {
+                @Override
+                protected void execute() throws Exception {
+                    exportPepnovoTrainingFiles(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
+                }
+            });
+        }
+
+        // inclusion list export
+        if (followUpCLIInputBean.inclusionListNeeded()) {
+            tasks.add(new FollowUpTask(null, "An error occurred while generating the inclusion list.", waitingHandler) {
+                @Override
+                protected void execute() throws Exception {
+                    exportInclusionList(followUpCLIInputBean, identification, identificationFeaturesGenerator, identificationParameters.getSearchParameters(), waitingHandler, filterPreferences);
+                }
+            });
+        }
+
+        // gene ontology enrichment analysis
+        if (followUpCLIInputBean.goEnrichmentNeeded()) {
+            tasks.add(new FollowUpTask("Gene ontology enrichment analysis completed.", "An error occurred while exporting the gene ontology enrichment analysis.", waitingHandler) {
+                @Override
+                protected void execute() throws Exception {
+                    exportGoEnrichment(followUpCLIInputBean, identification, identificationParameters, nThreads, waitingHandler);
+                }
+            });
+        }
+
+        for (FollowUpTask task : tasks) {
+            if (waitingHandler.isRunCanceled()) {
+                break;
+            }
+            task.run();
+        }
+    }
+
     /**
      * Writes an export according to the command line settings contained in the
      * reportCLIInputBean.
@@ -287,14 +499,29 @@ public class CLIMethods {
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException,
             InterruptedException, MzMLUnmarshallerException, MathException {
 
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        if (reportCLIInputBean.getnThreads() != null) {
+            nThreads = reportCLIInputBean.getnThreads();
+        }
+
         PSExportFactory exportFactory = PSExportFactory.getInstance();
         ExportScheme exportScheme = exportFactory.getExportScheme(reportType);
         String reportName = reportType.replaceAll(" ", "_");
-        File reportFile = new File(reportCLIInputBean.getReportOutputFolder(), PSExportFactory.getDefaultReportName(experiment, sample, replicateNumber, reportName));
+        String reportFileName = PSExportFactory.getDefaultReportName(experiment, sample, replicateNumber, reportName);
+
+        if (reportCLIInputBean.isColumnarReports()) {
+            reportFileName = reportFileName.substring(0, reportFileName.lastIndexOf(".")) + ColumnarReportWriter.EXTENSION;
+            File reportFile = new File(reportCLIInputBean.getReportOutputFolder(), reportFileName);
+            PSExportFactory.writeColumnarExport(exportScheme, reportFile, identification, identificationFeaturesGenerator, geneMaps,
+                    null, null, null, nSurroundingAA, shotgunProtocol, identificationParameters, nThreads, waitingHandler);
+            return;
+        }
+
+        File reportFile = new File(reportCLIInputBean.getReportOutputFolder(), reportFileName);
 
         //@TODO: allow format selection
         PSExportFactory.writeExport(exportScheme, reportFile, ExportFormat.text, experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator, geneMaps,
-                null, null, null, null, nSurroundingAA, shotgunProtocol, identificationParameters, spectrumCountingPreferences, waitingHandler);
+                null, null, null, null, nSurroundingAA, shotgunProtocol, identificationParameters, spectrumCountingPreferences, nThreads, waitingHandler);
     }
 
     /**
@@ -357,4 +584,60 @@ public class CLIMethods {
                 mzidCLIInputBean.getOutputFile(), waitingHandler);
         mzIdentMLExport.createMzIdentMLFile(false);
     }
+
+    /**
+     * A follow-up task reporting its completion or failure in the waiting
+     * handler.
+     */
+    private static abstract class FollowUpTask implements Runnable {
+
+        /**
+         * The report to display when the task is completed, null if none.
+         */
+        private final String completionReport;
+        /**
+         * The report to display when an error occurred.
+         */
+        private final String errorReport;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param completionReport the report to display when the task is
+         * completed, null if none
+         * @param errorReport the report to display when an error occurred
+         * @param waitingHandler the waiting handler
+         */
+        public FollowUpTask(String completionReport, String errorReport, WaitingHandler waitingHandler) {
+            this.completionReport = completionReport;
+            this.errorReport = errorReport;
+            this.waitingHandler = waitingHandler;
+        }
+
+        /**
+         * Executes the task.
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * executing the task
+         */
+        protected abstract void execute() throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                execute();
+                if (completionReport != null) {
+                    waitingHandler.appendReport(completionReport, true, true);
+                }
+            } catch (Exception e) {
+                waitingHandler.appendReport(errorReport, true, true);
+                e.printStackTrace();
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
 }
@@ -4,6 +4,7 @@ import com.compomics.software.settings.PathKey;
 import com.compomics.software.settings.UtilitiesPathPreferences;
 import com.compomics.util.experiment.biology.EnzymeFactory;
 import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.genes.GeneFactory;
 import com.compomics.util.experiment.biology.taxonomy.SpeciesFactory;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
@@ -114,6 +115,17 @@ public class FollowUpCLI extends CpsParent {
         loadEnzymes();
         loadSpecies();
 
+        // Set the gene mappings
+        if (followUpCLIInputBean.goEnrichmentNeeded()) {
+            try {
+                GeneFactory geneFactory = GeneFactory.getInstance();
+                geneFactory.initialize(PeptideShaker.getJarFilePath());
+            } catch (Exception e) {
+                System.out.println("An error occurred while loading the gene mappings.");
+                e.printStackTrace();
+            }
+        }
+
         waitingHandler = new WaitingHandlerCLIImpl();
 
         String inputFilePath = null;
@@ -206,87 +218,13 @@ public class FollowUpCLI extends CpsParent {
             System.out.println(error);
         }
 
-        // recalibrate spectra
-        if (followUpCLIInputBean.recalibrationNeeded()) {
-            try {
-                CLIMethods.recalibrateSpectra(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
-                waitingHandler.appendReport("Recalibration process completed.", true, true);
-            } catch (Exception e) {
-                waitingHandler.appendReport("An error occurred while recalibrating the spectra.", true, true);
-                e.printStackTrace();
-                waitingHandler.setRunCanceled();
-            }
-        }
-
-        // export spectra
-        if (followUpCLIInputBean.spectrumExportNeeded()) {
-            try {
-                CLIMethods.exportSpectra(followUpCLIInputBean, identification, waitingHandler, identificationParameters.getSequenceMatchingPreferences());
-                waitingHandler.appendReport("Spectrum export completed.", true, true);
-            } catch (Exception e) {
-                waitingHandler.appendReport("An error occurred while exporting the spectra.", true, true);
-                e.printStackTrace();
-                waitingHandler.setRunCanceled();
-            }
-        }
-
-        // export protein accessions
-        if (followUpCLIInputBean.accessionExportNeeded()) {
-            try {
-                CLIMethods.exportAccessions(followUpCLIInputBean, identification, identificationFeaturesGenerator, waitingHandler, filterPreferences);
-                waitingHandler.appendReport("Protein accessions export completed.", true, true);
-            } catch (Exception e) {
-                waitingHandler.appendReport("An error occurred while exporting the protein accessions.", true, true);
-                e.printStackTrace();
-                waitingHandler.setRunCanceled();
-            }
-        }
-
-        // export protein details
-        if (followUpCLIInputBean.fastaExportNeeded()) {
-            try {
-                CLIMethods.exportFasta(followUpCLIInputBean, identification, identificationFeaturesGenerator, waitingHandler, filterPreferences);
-                waitingHandler.appendReport("Protein details export completed.", true, true);
-            } catch (Exception e) {
-                waitingHandler.appendReport("An error occurred while exporting the protein details.", true, true);
-                e.printStackTrace();
-                waitingHandler.setRunCanceled();
-            }
-        }
-
-        // progenesis export
-        if (followUpCLIInputBean.progenesisExportNeeded()) {
-            try {
-                CLIMethods.exportProgenesis(followUpCLIInputBean, identification, waitingHandler, identificationParameters.getSequenceMatchingPreferences());
-                waitingHandler.appendReport("Progenesis export completed.", true, true);
-            } catch (Exception e) {
-                waitingHandler.appendReport("An error occurred while exporting the Progenesis file.", true, true);
-                e.printStackTrace();
-                waitingHandler.setRunCanceled();
-            }
-        }
-
-        // PepNovo training export
-        if (followUpCLIInputBean.pepnovoTrainingExportNeeded()) {
-            try {
-                CLIMethods.exportPepnovoTrainingFiles(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
-                waitingHandler.appendReport("PepNovo training export completed.", true, true);
-            } catch (Exception e) {
-                waitingHandler.appendReport("An error occurred while exporting the PepNovo training file.", true, true);
-                e.printStackTrace();
-                waitingHandler.setRunCanceled();
-            }
-        }
-
-        // inclusion list export
-        if (followUpCLIInputBean.inclusionListNeeded()) {
-            try {
-                CLIMethods.exportInclusionList(followUpCLIInputBean, identification, identificationFeaturesGenerator, identificationParameters.getSearchParameters(), waitingHandler, filterPreferences);
-            } catch (Exception e) {
-                waitingHandler.appendReport("An error occurred while generating the inclusion list.", true, true);
-                e.printStackTrace();
-                waitingHandler.setRunCanceled();
-            }
+        // execute the follow up tasks
+        try {
+            CLIMethods.executeFollowUpTasks(followUpCLIInputBean, identification, identificationFeaturesGenerator, identificationParameters, filterPreferences, Runtime.getRuntime().availableProcessors(), waitingHandler);
+        } catch (Exception e) {
+            waitingHandler.appendReport("An error occurred while executing the follow up tasks.", true, true);
+            e.printStackTrace();
+            waitingHandler.setRunCanceled();
         }
 
         try {
@@ -101,6 +101,15 @@ public class FollowUpCLIInputBean {
      * RT window for the inclusion list creation. 20 by default.
      */
     private Double inclusionRtWindow = 20.0;
+    /**
+     * The file for the gene ontology enrichment analysis export.
+     */
+    private File goEnrichmentFile = null;
+    /**
+     * The significance level of the gene ontology enrichment analysis. 0.05
+     * by default.
+     */
+    private double goEnrichmentSignificance = 0.05;
     /**
      * The Progenesis targeted PTMs.
      */
@@ -190,6 +199,12 @@ public class FollowUpCLIInputBean {
         if (aLine.hasOption(FollowUpCLIParams.INCLUSION_LIST_RT_WINDOW.id)) {
             inclusionRtWindow = new Double(aLine.getOptionValue(FollowUpCLIParams.INCLUSION_LIST_RT_WINDOW.id));
         }
+        if (aLine.hasOption(FollowUpCLIParams.GO_ENRICHMENT_FILE.id)) {
+            goEnrichmentFile = new File(aLine.getOptionValue(FollowUpCLIParams.GO_ENRICHMENT_FILE.id));
+        }
+        if (aLine.hasOption(FollowUpCLIParams.GO_ENRICHMENT_SIGNIFICANCE.id)) {
+            goEnrichmentSignificance = new Double(aLine.getOptionValue(FollowUpCLIParams.GO_ENRICHMENT_SIGNIFICANCE.id));
+        }
         pathSettingsCLIInputBean = new PathSettingsCLIInputBean(aLine);
     }
 
@@ -430,6 +445,26 @@ public class FollowUpCLIInputBean {
         return inclusionRtWindow;
     }
 
+    /**
+     * Returns the file for the gene ontology enrichment analysis export. null
+     * if not set.
+     *
+     * @return the file for the gene ontology enrichment analysis export
+     */
+    public File getGoEnrichmentFile() {
+        return goEnrichmentFile;
+    }
+
+    /**
+     * Returns the significance level of the gene ontology enrichment
+     * analysis.
+     *
+     * @return the significance level of the gene ontology enrichment analysis
+     */
+    public double getGoEnrichmentSignificance() {
+        return goEnrichmentSignificance;
+    }
+
     /**
      * Indicates whether follow-up tasks are required.
      *
@@ -441,7 +476,8 @@ public class FollowUpCLIInputBean {
                 || accessionExportNeeded()
                 || fastaExportNeeded()
                 || progenesisExportNeeded()
-                || inclusionListNeeded();
+                || inclusionListNeeded()
+                || goEnrichmentNeeded();
     }
 
     /**
@@ -507,6 +543,15 @@ public class FollowUpCLIInputBean {
         return inclusionFile != null;
     }
 
+    /**
+     * Indicates whether a gene ontology enrichment analysis is needed.
+     *
+     * @return whether a gene ontology enrichment analysis is needed
+     */
+    public boolean goEnrichmentNeeded() {
+        return goEnrichmentFile != null;
+    }
+
     /**
      * Returns the path settings provided by the user.
      *
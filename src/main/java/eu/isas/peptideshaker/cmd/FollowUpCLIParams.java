@@ -34,7 +34,9 @@ public enum FollowUpCLIParams {
     INCLUSION_LIST_FORMAT("inclusion_list_format", "Format for the inclusion list. " + InclusionListExport.ExportFormat.getCommandLineOptions(), false),
     INCLUSION_LIST_PROTEIN_FILTERS("inclusion_list_protein_filters", "Protein inference filters to be used for the inclusion list export (comma separated). " + InclusionListExport.getProteinFiltersCommandLineOptions(), false),
     INCLUSION_LIST_PEPTIDE_FILTERS("inclusion_list_peptide_filters", "Peptide filters to be used for the inclusion list export (comma separated). " + InclusionListExport.PeptideFilterType.getCommandLineOptions(), false),
-    INCLUSION_LIST_RT_WINDOW("inclusion_list_rt_window", "Retention time window for the inclusion list export (in seconds).", false);
+    INCLUSION_LIST_RT_WINDOW("inclusion_list_rt_window", "Retention time window for the inclusion list export (in seconds).", false),
+    GO_ENRICHMENT_FILE("go_enrichment_file", "Output file for the gene ontology enrichment analysis of the validated proteins in tab separated format, using the background species of the gene preferences. (Existing files will be overwritten.)", false),
+    GO_ENRICHMENT_SIGNIFICANCE("go_enrichment_significance", "Significance level for the corrected p-values of the gene ontology enrichment analysis. 0.05 by default.", false);
 
     /**
      * Short Id for the CLI parameter.
@@ -92,6 +94,8 @@ public enum FollowUpCLIParams {
         aOptions.addOption(INCLUSION_LIST_PEPTIDE_FILTERS.id, true, INCLUSION_LIST_PEPTIDE_FILTERS.description);
         aOptions.addOption(INCLUSION_LIST_PROTEIN_FILTERS.id, true, INCLUSION_LIST_PROTEIN_FILTERS.description);
         aOptions.addOption(INCLUSION_LIST_RT_WINDOW.id, true, INCLUSION_LIST_RT_WINDOW.description);
+        aOptions.addOption(GO_ENRICHMENT_FILE.id, true, GO_ENRICHMENT_FILE.description);
+        aOptions.addOption(GO_ENRICHMENT_SIGNIFICANCE.id, true, GO_ENRICHMENT_SIGNIFICANCE.description);
         
         // Path setup
         aOptions.addOption(PathSettingsCLIParams.ALL.id, true, PathSettingsCLIParams.ALL.description);
@@ -165,6 +169,10 @@ public enum FollowUpCLIParams {
         output += "-" + String.format(formatter, INCLUSION_LIST_PROTEIN_FILTERS.id) + " " + INCLUSION_LIST_PROTEIN_FILTERS.description + "\n";
         output += "-" + String.format(formatter, INCLUSION_LIST_RT_WINDOW.id) + " " + INCLUSION_LIST_RT_WINDOW.description + "\n";
         
+        output += "\nGene Ontology Enrichment Analysis:\n\n";
+        output += "-" + String.format(formatter, GO_ENRICHMENT_FILE.id) + " " + GO_ENRICHMENT_FILE.description + "\n";
+        output += "-" + String.format(formatter, GO_ENRICHMENT_SIGNIFICANCE.id) + " " + GO_ENRICHMENT_SIGNIFICANCE.description + "\n";
+        
         return output;
     }
 }
@@ -38,6 +38,7 @@ import eu.isas.peptideshaker.preferences.PeptideShakerPathPreferences;
 import eu.isas.peptideshaker.utils.CpsParent;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.protein_inference.ProteinHeaderIndex;
 import eu.isas.peptideshaker.utils.Properties;
 import eu.isas.peptideshaker.utils.PsZipUtils;
 import eu.isas.peptideshaker.utils.Tips;
@@ -260,74 +261,17 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
             if (followUpCLIInputBean.followUpNeeded()) {
                 waitingHandler.appendReport("Starting follow up tasks.", true, true);
 
-                // recalibrate spectra
-                if (followUpCLIInputBean.recalibrationNeeded()) {
-                    try {
-                        CLIMethods.recalibrateSpectra(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
-                    } catch (Exception e) {
-                        waitingHandler.appendReport("An error occurred while recalibrating the spectra.", true, true);
-                        e.printStackTrace();
-                        waitingHandler.setRunCanceled();
-                    }
-                }
-
-                // export spectra
-                if (followUpCLIInputBean.spectrumExportNeeded()) {
-                    try {
-                        CLIMethods.exportSpectra(followUpCLIInputBean, identification, waitingHandler, identificationParameters.getSequenceMatchingPreferences());
-                    } catch (Exception e) {
-                        waitingHandler.appendReport("An error occurred while exporting the spectra.", true, true);
-                        e.printStackTrace();
-                        waitingHandler.setRunCanceled();
-                    }
-                }
-
-                // export protein accessions
-                if (followUpCLIInputBean.accessionExportNeeded()) {
-                    try {
-                        CLIMethods.exportAccessions(followUpCLIInputBean, identification, identificationFeaturesGenerator, waitingHandler, filterPreferences);
-                    } catch (Exception e) {
-                        waitingHandler.appendReport("An error occurred while exporting the protein accessions.", true, true);
-                        e.printStackTrace();
-                        waitingHandler.setRunCanceled();
-                    }
-                }
-
-                // export protein details
-                if (followUpCLIInputBean.accessionExportNeeded()) {
-                    try {
-                        CLIMethods.exportFasta(followUpCLIInputBean, identification, identificationFeaturesGenerator, waitingHandler, filterPreferences);
-                    } catch (Exception e) {
-                        waitingHandler.appendReport("An error occurred while exporting the protein details.", true, true);
-                        e.printStackTrace();
-                        waitingHandler.setRunCanceled();
-                    }
-                }
-
-                // progenesis export
-                if (followUpCLIInputBean.progenesisExportNeeded()) {
-                    try {
-                        CLIMethods.exportProgenesis(followUpCLIInputBean, identification, waitingHandler, identificationParameters.getSequenceMatchingPreferences());
-                        waitingHandler.appendReport("Progenesis export completed.", true, true);
-                    } catch (Exception e) {
-                        waitingHandler.appendReport("An error occurred while exporting the Progenesis file.", true, true);
-                        e.printStackTrace();
-                        waitingHandler.setRunCanceled();
-                    }
+                Integer nThreads = cliInputBean.getnThreads();
+                if (nThreads == null) {
+                    nThreads = Runtime.getRuntime().availableProcessors();
                 }
-
-                // de novo training export
-                if (followUpCLIInputBean.pepnovoTrainingExportNeeded()) {
-                    try {
-                        CLIMethods.exportPepnovoTrainingFiles(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
-                        waitingHandler.appendReport("PepNovo training export completed.", true, true);
-                    } catch (Exception e) {
-                        waitingHandler.appendReport("An error occurred while exporting the Pepnovo training file.", true, true);
-                        e.printStackTrace();
-                        waitingHandler.setRunCanceled();
-                    }
+                try {
+                    CLIMethods.executeFollowUpTasks(followUpCLIInputBean, identification, identificationFeaturesGenerator, identificationParameters, filterPreferences, nThreads, waitingHandler);
+                } catch (Exception e) {
+                    waitingHandler.appendReport("An error occurred while executing the follow up tasks.", true, true);
+                    e.printStackTrace();
+                    waitingHandler.setRunCanceled();
                 }
-
             }
 
             // report export if needed
@@ -727,6 +671,18 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
 
         // create a shaker which will perform the analysis
         PeptideShaker peptideShaker = new PeptideShaker(experiment, sample, replicateNumber);
+        Integer maxParallelIdFiles = cliInputBean.getMaxParallelIdFiles();
+        if (maxParallelIdFiles != null) {
+            peptideShaker.setMaxParallelIdFiles(maxParallelIdFiles);
+        }
+        Integer psmBatchSize = cliInputBean.getPsmBatchSize();
+        if (psmBatchSize != null) {
+            peptideShaker.setPsmBatchSize(psmBatchSize);
+        }
+        Integer psmQueueDepth = cliInputBean.getPsmQueueDepth();
+        if (psmQueueDepth != null) {
+            peptideShaker.setPsmQueueDepth(psmQueueDepth);
+        }
 
         // import the files
         peptideShaker.importFiles(waitingHandler, identificationFiles, spectrumFiles,
@@ -786,6 +742,22 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
      * @throws SQLException thrown if SQLException occurs
      */
     public static void closePeptideShaker(Identification identification) throws IOException, SQLException {
+        closePeptideShaker(identification, false);
+    }
+
+    /**
+     * Close the PeptideShaker instance. Closes file connections and deletes
+     * temporary files.
+     *
+     * @param identification the identification to close
+     * @param keepMatchesFolder if true, the content of the matches folder is
+     * not deleted so that it can be reused the next time the project is
+     * opened
+     *
+     * @throws IOException thrown of IOException occurs
+     * @throws SQLException thrown if SQLException occurs
+     */
+    public static void closePeptideShaker(Identification identification, boolean keepMatchesFolder) throws IOException, SQLException {
 
         try {
             if (identification != null) {
@@ -801,20 +773,22 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
             e.printStackTrace();
         }
 
-        try {
-            File matchFolder = PeptideShaker.getMatchesFolder();
-            File[] tempFiles = matchFolder.listFiles();
-
-            if (tempFiles != null) {
-                for (File currentFile : tempFiles) {
-                    boolean deleted = Util.deleteDir(currentFile);
-                    if (!deleted) {
-                        System.out.println(currentFile.getAbsolutePath() + " could not be deleted!"); // @TODO: better handling of this error?
+        if (!keepMatchesFolder) {
+            try {
+                File matchFolder = PeptideShaker.getMatchesFolder();
+                File[] tempFiles = matchFolder.listFiles();
+
+                if (tempFiles != null) {
+                    for (File currentFile : tempFiles) {
+                        boolean deleted = Util.deleteDir(currentFile);
+                        if (!deleted) {
+                            System.out.println(currentFile.getAbsolutePath() + " could not be deleted!"); // @TODO: better handling of this error?
+                        }
                     }
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
         try {
@@ -827,6 +801,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        ProteinHeaderIndex.releaseIndex();
 
         try {
             TempFilesManager.deleteTempFolders();
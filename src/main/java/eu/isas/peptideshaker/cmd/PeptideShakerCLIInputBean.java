@@ -77,6 +77,18 @@ public class PeptideShakerCLIInputBean {
      * The number of threads to use.
      */
     private Integer nThreads = null;
+    /**
+     * The maximal number of identification files imported concurrently.
+     */
+    private Integer maxParallelIdFiles = null;
+    /**
+     * The number of PSMs handed over to the import threads at once.
+     */
+    private Integer psmBatchSize = null;
+    /**
+     * The maximal number of PSM batches waiting to be imported.
+     */
+    private Integer psmQueueDepth = null;
 
     /**
      * Construct a PeptideShakerCLIInputBean from an Apache CLI instance.
@@ -122,6 +134,19 @@ public class PeptideShakerCLIInputBean {
             nThreads = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.THREADS.id));
         }
 
+        // n identification files imported in parallel
+        if (aLine.hasOption(PeptideShakerCLIParams.PARALLEL_ID_FILES.id)) {
+            maxParallelIdFiles = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.PARALLEL_ID_FILES.id));
+        }
+
+        // PSM import batches
+        if (aLine.hasOption(PeptideShakerCLIParams.PSM_BATCH_SIZE.id)) {
+            psmBatchSize = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.PSM_BATCH_SIZE.id));
+        }
+        if (aLine.hasOption(PeptideShakerCLIParams.PSM_QUEUE_DEPTH.id)) {
+            psmQueueDepth = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.PSM_QUEUE_DEPTH.id));
+        }
+
         followUpCLIInputBean = new FollowUpCLIInputBean(aLine);
         reportCLIInputBean = new ReportCLIInputBean(aLine);
         pathSettingsCLIInputBean = new PathSettingsCLIInputBean(aLine);
@@ -371,6 +396,37 @@ public class PeptideShakerCLIInputBean {
         return nThreads;
     }
 
+    /**
+     * Returns the maximal number of identification files imported
+     * concurrently, null if not set.
+     *
+     * @return the maximal number of identification files imported
+     * concurrently
+     */
+    public Integer getMaxParallelIdFiles() {
+        return maxParallelIdFiles;
+    }
+
+    /**
+     * Returns the number of PSMs handed over to the import threads at once,
+     * null if not set.
+     *
+     * @return the number of PSMs handed over to the import threads at once
+     */
+    public Integer getPsmBatchSize() {
+        return psmBatchSize;
+    }
+
+    /**
+     * Returns the maximal number of PSM batches waiting to be imported, null
+     * if not set.
+     *
+     * @return the maximal number of PSM batches waiting to be imported
+     */
+    public Integer getPsmQueueDepth() {
+        return psmQueueDepth;
+    }
+
     /**
      * Verifies the command line start parameters.
      *
@@ -24,7 +24,10 @@ public enum PeptideShakerCLIParams {
     PEPTIDESHAKER_OUTPUT("out", "PeptideShaker output file. Note: if file exists it will be overwritten.", true),
     GUI("gui", "Use a dialog to display the progress (1: true, 0: false, default is '0').", false),
     ZIP("zip", "Exports the entire project as a zip file in the file specified.", false),
-    THREADS("threads", "The number of threads to use. Defaults to the number of available CPUs.", false);
+    THREADS("threads", "The number of threads to use. Defaults to the number of available CPUs.", false),
+    PARALLEL_ID_FILES("parallel_id_files", "The maximal number of identification files imported concurrently. Defaults to 4, 1 imports the files one after the other.", false),
+    PSM_BATCH_SIZE("psm_batch_size", "The number of PSMs handed over to the import threads at once. Defaults to 1000.", false),
+    PSM_QUEUE_DEPTH("psm_queue_depth", "The maximal number of PSM batches waiting to be imported. Defaults to 4.", false);
 
     /**
      * Short Id for the CLI parameter.
@@ -105,6 +108,9 @@ public enum PeptideShakerCLIParams {
         output += "\n\nOptional Processing Parameters:\n\n";
         output += "-" + String.format(formatter, GUI.id) + " " + GUI.description + "\n";
         output += "-" + String.format(formatter, THREADS.id) + " " + THREADS.description + "\n";
+        output += "-" + String.format(formatter, PARALLEL_ID_FILES.id) + " " + PARALLEL_ID_FILES.description + "\n";
+        output += "-" + String.format(formatter, PSM_BATCH_SIZE.id) + " " + PSM_BATCH_SIZE.description + "\n";
+        output += "-" + String.format(formatter, PSM_QUEUE_DEPTH.id) + " " + PSM_QUEUE_DEPTH.description + "\n";
 
         output += "\n\nOptional Export Parameters:\n\n";
         output += "-" + String.format(formatter, ZIP.id) + " " + ZIP.description + "\n";
@@ -129,6 +129,7 @@ public class ReportCLI extends CpsParent {
             } else if (reportCLIInputBean.getCpsFile() != null) {
                 inputFilePath = reportCLIInputBean.getCpsFile().getAbsolutePath();
                 cpsFile = reportCLIInputBean.getCpsFile();
+                setReuseExtractedFiles(reportCLIInputBean.isReuseDb());
                 loadCpsFile(PeptideShaker.getMatchesFolder(), waitingHandler);
             } else {
                 waitingHandler.appendReport("PeptideShaker project input missing.", true, true);
@@ -237,7 +238,7 @@ public class ReportCLI extends CpsParent {
         }
 
         try {
-            PeptideShakerCLI.closePeptideShaker(identification);
+            PeptideShakerCLI.closePeptideShaker(identification, reportCLIInputBean.isReuseDb());
         } catch (Exception e2) {
             waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
             e2.printStackTrace();
@@ -331,6 +332,7 @@ public class ReportCLI extends CpsParent {
         try {
             Options lOptions = new Options();
             ReportCLIParams.createOptionsCLI(lOptions);
+            lOptions.addOption(PeptideShakerCLIParams.THREADS.id, true, PeptideShakerCLIParams.THREADS.description);
             BasicParser parser = new BasicParser();
             CommandLine line = parser.parse(lOptions, args);
 
@@ -34,6 +34,20 @@ public class ReportCLIInputBean {
      * The documentation types required by the user.
      */
     private ArrayList<String> documentationTypes = new ArrayList<String>();
+    /**
+     * Indicates whether the reports should be exported in the columnar binary
+     * format.
+     */
+    private boolean columnarReports = false;
+    /**
+     * Indicates whether the extracted project should be kept and reused.
+     */
+    private boolean reuseDb = false;
+    /**
+     * The number of threads to use when exporting the reports, null if not
+     * set.
+     */
+    private Integer nThreads = null;
     /**
      * The path settings.
      */
@@ -66,6 +80,10 @@ public class ReportCLIInputBean {
                 reportTypes.add(exportFactory.getExportTypeFromCommandLineOption(option));
             }
         }
+        if (aLine.hasOption(ReportCLIParams.REPORT_FORMAT.id)) {
+            String reportFormatOption = aLine.getOptionValue(ReportCLIParams.REPORT_FORMAT.id);
+            columnarReports = reportFormatOption.trim().equals("1");
+        }
         if (aLine.hasOption(ReportCLIParams.DOCUMENTATION_TYPE.id)) {
             ArrayList<Integer> options = CommandLineUtils.getIntegerListFromString(aLine.getOptionValue(ReportCLIParams.DOCUMENTATION_TYPE.id), ",");
             PSExportFactory exportFactory = PSExportFactory.getInstance();
@@ -73,6 +91,13 @@ public class ReportCLIInputBean {
                 documentationTypes.add(exportFactory.getExportTypeFromCommandLineOption(option));
             }
         }
+        if (aLine.hasOption(ReportCLIParams.REUSE_DB.id)) {
+            String reuseDbOption = aLine.getOptionValue(ReportCLIParams.REUSE_DB.id);
+            reuseDb = reuseDbOption.trim().equals("1");
+        }
+        if (aLine.hasOption(PeptideShakerCLIParams.THREADS.id)) {
+            nThreads = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.THREADS.id));
+        }
         pathSettingsCLIInputBean = new PathSettingsCLIInputBean(aLine);
     }
 
@@ -85,6 +110,38 @@ public class ReportCLIInputBean {
         return cpsFile;
     }
 
+    /**
+     * Indicates whether the extracted project should be kept in the matches
+     * folder and reused the next time the project is opened.
+     *
+     * @return a boolean indicating whether the extracted project should be
+     * reused
+     */
+    public boolean isReuseDb() {
+        return reuseDb;
+    }
+
+    /**
+     * Returns the number of threads to use when exporting the reports, null if
+     * not set.
+     *
+     * @return the number of threads to use when exporting the reports
+     */
+    public Integer getnThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Indicates whether the reports should be exported in the columnar binary
+     * format.
+     *
+     * @return a boolean indicating whether the reports should be exported in
+     * the columnar binary format
+     */
+    public boolean isColumnarReports() {
+        return columnarReports;
+    }
+
     /**
      * The zip file selected by the user. Null if not set.
      *
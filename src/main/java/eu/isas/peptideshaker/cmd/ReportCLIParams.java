@@ -13,7 +13,9 @@ public enum ReportCLIParams {
     CPS_FILE("in", "PeptideShaker project (.cpsx or .zip file)", true),
     EXPORT_FOLDER("out_reports", "Output folder for report files. (Existing files will be overwritten.)", true),
     REPORT_TYPE("reports", "Comma separated list of types of report to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false),
-    DOCUMENTATION_TYPE("documentation", "Comma separated list of types of report documentation to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false);
+    REPORT_FORMAT("report_format", "Format of the reports (0: tab separated text, 1: columnar binary, default is '0').", false),
+    DOCUMENTATION_TYPE("documentation", "Comma separated list of types of report documentation to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false),
+    REUSE_DB("reuse_db", "Keep the extracted project in the matches folder and only extract the files which changed the next time the project is opened (1: true, 0: false, default is '0').", false);
 
     /**
      * Short Id for the CLI parameter.
@@ -53,7 +55,9 @@ public enum ReportCLIParams {
         aOptions.addOption(CPS_FILE.id, true, CPS_FILE.description);
         aOptions.addOption(EXPORT_FOLDER.id, true, EXPORT_FOLDER.description);
         aOptions.addOption(REPORT_TYPE.id, true, REPORT_TYPE.description);
+        aOptions.addOption(REPORT_FORMAT.id, true, REPORT_FORMAT.description);
         aOptions.addOption(DOCUMENTATION_TYPE.id, true, DOCUMENTATION_TYPE.description);
+        aOptions.addOption(REUSE_DB.id, true, REUSE_DB.description);
 
         // Path setup
         aOptions.addOption(PathSettingsCLIParams.ALL.id, true, PathSettingsCLIParams.ALL.description);
@@ -80,6 +84,10 @@ public enum ReportCLIParams {
 
         output += "\n\nOptional temporary folder:\n\n";
         output += "-" + String.format(formatter, PathSettingsCLIParams.ALL.id) + PathSettingsCLIParams.ALL.description + "\n";
+        output += "-" + String.format(formatter, REUSE_DB.id) + REUSE_DB.description + "\n";
+
+        output += "\n\nOptional processing parameters:\n\n";
+        output += "-" + String.format(formatter, PeptideShakerCLIParams.THREADS.id) + PeptideShakerCLIParams.THREADS.description + "\n";
 
         return output;
     }
@@ -96,6 +104,7 @@ public enum ReportCLIParams {
 
         output += "\nReport export:\n\n";
         output += "-" + String.format(formatter, REPORT_TYPE.id) + REPORT_TYPE.description + "\n";
+        output += "-" + String.format(formatter, REPORT_FORMAT.id) + REPORT_FORMAT.description + "\n";
 
         output += "\nReport Documentation export:\n\n";
         output += "-" + String.format(formatter, DOCUMENTATION_TYPE.id) + DOCUMENTATION_TYPE.description + "\n";
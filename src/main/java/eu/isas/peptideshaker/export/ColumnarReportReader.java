@@ -0,0 +1,247 @@
+package eu.isas.peptideshaker.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads reports written by the ColumnarReportWriter. Only the footer is read
+ * upon opening, column chunks are read when a column is requested.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReportReader {
+
+    /**
+     * The report file.
+     */
+    private RandomAccessFile reportFile;
+    /**
+     * The column titles of every table indexed by table name.
+     */
+    private LinkedHashMap<String, ArrayList<String>> columnTitles = new LinkedHashMap<String, ArrayList<String>>();
+    /**
+     * The number of rows of every row group of every table.
+     */
+    private LinkedHashMap<String, int[]> rowGroupSizes = new LinkedHashMap<String, int[]>();
+    /**
+     * The chunks of every table indexed by row group and column. Every chunk
+     * is stored as type, position, compressed size and uncompressed size.
+     */
+    private LinkedHashMap<String, long[][][]> chunks = new LinkedHashMap<String, long[][][]>();
+
+    /**
+     * Constructor. Reads the footer of the report.
+     *
+     * @param file the report file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file or if the file is not a columnar report
+     */
+    public ColumnarReportReader(File file) throws IOException {
+        reportFile = new RandomAccessFile(file, "r");
+        byte[] magic = new byte[ColumnarReportWriter.MAGIC.length];
+        reportFile.readFully(magic);
+        int version = reportFile.readInt();
+        if (!Arrays.equals(magic, ColumnarReportWriter.MAGIC) || version != ColumnarReportWriter.VERSION) {
+            reportFile.close();
+            throw new IOException(file.getAbsolutePath() + " is not a columnar report of version " + ColumnarReportWriter.VERSION + ".");
+        }
+        reportFile.seek(reportFile.length() - ColumnarReportWriter.MAGIC.length - 8);
+        long footerPosition = reportFile.readLong();
+        reportFile.seek(footerPosition);
+        int nTables = reportFile.readInt();
+        for (int i = 0; i < nTables; i++) {
+            String tableName = reportFile.readUTF();
+            int nColumns = reportFile.readInt();
+            ArrayList<String> titles = new ArrayList<String>(nColumns);
+            for (int j = 0; j < nColumns; j++) {
+                titles.add(reportFile.readUTF());
+            }
+            int nRowGroups = reportFile.readInt();
+            int[] sizes = new int[nRowGroups];
+            long[][][] tableChunks = new long[nRowGroups][nColumns][];
+            for (int j = 0; j < nRowGroups; j++) {
+                sizes[j] = reportFile.readInt();
+                for (int k = 0; k < nColumns; k++) {
+                    byte type = reportFile.readByte();
+                    long position = reportFile.readLong();
+                    int compressedSize = reportFile.readInt();
+                    int size = reportFile.readInt();
+                    tableChunks[j][k] = new long[]{type, position, compressedSize, size};
+                }
+            }
+            columnTitles.put(tableName, titles);
+            rowGroupSizes.put(tableName, sizes);
+            chunks.put(tableName, tableChunks);
+        }
+    }
+
+    /**
+     * Returns the names of the tables in the report.
+     *
+     * @return the names of the tables in the report
+     */
+    public ArrayList<String> getTableNames() {
+        return new ArrayList<String>(columnTitles.keySet());
+    }
+
+    /**
+     * Returns the titles of the columns of the given table.
+     *
+     * @param tableName the name of the table
+     *
+     * @return the titles of the columns
+     */
+    public ArrayList<String> getColumnTitles(String tableName) {
+        return columnTitles.get(tableName);
+    }
+
+    /**
+     * Returns the number of rows of the given table.
+     *
+     * @param tableName the name of the table
+     *
+     * @return the number of rows of the table
+     */
+    public int getnRows(String tableName) {
+        int nRows = 0;
+        for (int size : rowGroupSizes.get(tableName)) {
+            nRows += size;
+        }
+        return nRows;
+    }
+
+    /**
+     * Returns the values of a column as they were exported. Only the chunks of
+     * this column are read.
+     *
+     * @param tableName the name of the table
+     * @param columnTitle the title of the column
+     *
+     * @return the values of the column
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ArrayList<String> getColumn(String tableName, String columnTitle) throws IOException {
+        ArrayList<String> titles = columnTitles.get(tableName);
+        if (titles == null) {
+            throw new IllegalArgumentException("Table " + tableName + " not found.");
+        }
+        int columnIndex = titles.indexOf(columnTitle);
+        if (columnIndex == -1) {
+            throw new IllegalArgumentException("Column " + columnTitle + " not found in table " + tableName + ".");
+        }
+        int[] sizes = rowGroupSizes.get(tableName);
+        long[][][] tableChunks = chunks.get(tableName);
+        ArrayList<String> values = new ArrayList<String>(getnRows(tableName));
+        for (int i = 0; i < sizes.length; i++) {
+            readChunk(tableChunks[i][columnIndex], sizes[i], values);
+        }
+        return values;
+    }
+
+    /**
+     * Reads, decompresses and decodes a column chunk.
+     *
+     * @param chunk the type, position, compressed size and uncompressed size
+     * of the chunk
+     * @param nRows the number of rows in the chunk
+     * @param values the list where to add the values
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private void readChunk(long[] chunk, int nRows, ArrayList<String> values) throws IOException {
+
+        byte[] compressed = new byte[(int) chunk[2]];
+        reportFile.seek(chunk[1]);
+        reportFile.readFully(compressed);
+        byte[] encoded = new byte[(int) chunk[3]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < encoded.length && !inflater.finished()) {
+                length += inflater.inflate(encoded, length, encoded.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted column chunk at position " + chunk[1] + ".", e);
+        } finally {
+            inflater.end();
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(encoded));
+
+        byte type = (byte) chunk[0];
+        if (type == ColumnarReportWriter.TYPE_LONG || type == ColumnarReportWriter.TYPE_DOUBLE) {
+            byte[] present = new byte[(nRows + 7) / 8];
+            input.readFully(present);
+            for (int i = 0; i < nRows; i++) {
+                if ((present[i / 8] & (1 << (i % 8))) == 0) {
+                    values.add("");
+                } else if (type == ColumnarReportWriter.TYPE_LONG) {
+                    values.add(Long.toString(input.readLong()));
+                } else {
+                    values.add(Double.toString(input.readDouble()));
+                }
+            }
+        } else if (type == ColumnarReportWriter.TYPE_DICTIONARY) {
+            int dictionarySize = input.readInt();
+            String[] dictionary = new String[dictionarySize];
+            for (int i = 0; i < dictionarySize; i++) {
+                dictionary[i] = readString(input);
+            }
+            for (int i = 0; i < nRows; i++) {
+                int index;
+                if (dictionarySize <= 256) {
+                    index = input.readUnsignedByte();
+                } else if (dictionarySize <= 65536) {
+                    index = input.readUnsignedShort();
+                } else {
+                    index = input.readInt();
+                }
+                values.add(dictionary[index]);
+            }
+        } else if (type == ColumnarReportWriter.TYPE_STRING) {
+            for (int i = 0; i < nRows; i++) {
+                values.add(readString(input));
+            }
+        } else {
+            throw new IOException("Column chunk type " + type + " not supported.");
+        }
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string.
+     *
+     * @param input the stream to read from
+     *
+     * @return the string
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the stream
+     */
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Closes the report file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing the file
+     */
+    public void close() throws IOException {
+        reportFile.close();
+    }
+}
@@ -0,0 +1,407 @@
+package eu.isas.peptideshaker.export;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes report tables in a columnar binary format. The rows of a table are
+ * stored in row groups and every column of a row group is encoded and
+ * compressed separately, so that readers can load only the columns they need.
+ * The footer indexes the position of every column chunk.
+ *
+ * File layout:
+ * <ul>
+ * <li>header: magic number and format version</li>
+ * <li>column chunks, compressed using the deflate algorithm</li>
+ * <li>footer: for every table its name, column titles and row groups, for
+ * every row group the number of rows and the type, position, compressed and
+ * uncompressed size of every column chunk</li>
+ * <li>position of the footer (long) and magic number</li>
+ * </ul>
+ *
+ * The type of a column chunk is inferred from its values: integers and
+ * decimal numbers are stored as 64 bit values when they can be restored
+ * exactly from the binary value, empty values being flagged in a bit set.
+ * Other columns, including chunks mixing integers and decimal numbers like
+ * "3" and "1.5", are stored as UTF-8 strings, dictionary encoded when values
+ * repeat, as is the case for accessions and modification strings.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReportWriter {
+
+    /**
+     * The extension of columnar report files.
+     */
+    public static final String EXTENSION = ".pscol";
+    /**
+     * The magic number at the beginning and end of the file.
+     */
+    public static final byte[] MAGIC = {'P', 'S', 'C', 'O', 'L'};
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The maximal number of rows in a row group.
+     */
+    public static final int ROW_GROUP_SIZE = 65536;
+    /**
+     * The title of the column containing the line indexes.
+     */
+    public static final String INDEX_COLUMN = "Index";
+    /**
+     * Type of a column chunk containing integers.
+     */
+    public static final byte TYPE_LONG = 0;
+    /**
+     * Type of a column chunk containing decimal numbers.
+     */
+    public static final byte TYPE_DOUBLE = 1;
+    /**
+     * Type of a column chunk containing dictionary encoded strings.
+     */
+    public static final byte TYPE_DICTIONARY = 2;
+    /**
+     * Type of a column chunk containing plain strings.
+     */
+    public static final byte TYPE_STRING = 3;
+    /**
+     * The stream to the file.
+     */
+    private DataOutputStream outputStream;
+    /**
+     * The current position in the file.
+     */
+    private long position = 0;
+    /**
+     * The footer being built.
+     */
+    private ByteArrayOutputStream footer = new ByteArrayOutputStream();
+    /**
+     * Stream to the footer.
+     */
+    private DataOutputStream footerStream = new DataOutputStream(footer);
+    /**
+     * The number of tables written.
+     */
+    private int nTables = 0;
+    /**
+     * The name of the current table.
+     */
+    private String tableName = null;
+    /**
+     * The column titles of the current table.
+     */
+    private ArrayList<String> columnTitles;
+    /**
+     * The values of the current row group indexed by column.
+     */
+    private ArrayList<ArrayList<String>> columns;
+    /**
+     * The number of rows in the current row group.
+     */
+    private int nRows = 0;
+    /**
+     * The index of the row groups of the current table.
+     */
+    private ByteArrayOutputStream rowGroupsIndex;
+    /**
+     * The number of row groups of the current table.
+     */
+    private int nRowGroups = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param destinationFile the file where to write the report
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public ColumnarReportWriter(File destinationFile) throws IOException {
+        outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destinationFile)));
+        write(MAGIC);
+        writeInt(VERSION);
+    }
+
+    /**
+     * Starts a new table. The previous table is completed.
+     *
+     * @param name the name of the table
+     * @param titles the titles of the columns
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void startTable(String name, ArrayList<String> titles) throws IOException {
+        endTable();
+        tableName = name;
+        columnTitles = new ArrayList<String>(titles);
+        columns = new ArrayList<ArrayList<String>>(titles.size());
+        for (int i = 0; i < titles.size(); i++) {
+            columns.add(new ArrayList<String>());
+        }
+        rowGroupsIndex = new ByteArrayOutputStream();
+        nRowGroups = 0;
+        nRows = 0;
+    }
+
+    /**
+     * Adds a row to the current table.
+     *
+     * @param values the values of the row, one per column
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void addRow(ArrayList<String> values) throws IOException {
+        if (tableName == null) {
+            throw new IllegalArgumentException("No table started.");
+        }
+        if (values.size() != columns.size()) {
+            throw new IllegalArgumentException(values.size() + " values found for " + columns.size() + " columns in table " + tableName + ".");
+        }
+        for (int i = 0; i < values.size(); i++) {
+            String value = values.get(i);
+            columns.get(i).add(value == null ? "" : value);
+        }
+        nRows++;
+        if (nRows == ROW_GROUP_SIZE) {
+            writeRowGroup();
+        }
+    }
+
+    /**
+     * Completes the current table and writes the footer.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void close() throws IOException {
+        try {
+            endTable();
+            long footerPosition = position;
+            footerStream.flush();
+            writeInt(nTables);
+            write(footer.toByteArray());
+            outputStream.writeLong(footerPosition);
+            position += 8;
+            write(MAGIC);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Writes the pending rows and the index of the current table to the
+     * footer.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void endTable() throws IOException {
+        if (tableName == null) {
+            return;
+        }
+        if (nRows > 0) {
+            writeRowGroup();
+        }
+        footerStream.writeUTF(tableName);
+        footerStream.writeInt(columnTitles.size());
+        for (String title : columnTitles) {
+            footerStream.writeUTF(title);
+        }
+        footerStream.writeInt(nRowGroups);
+        footerStream.write(rowGroupsIndex.toByteArray());
+        nTables++;
+        tableName = null;
+    }
+
+    /**
+     * Encodes, compresses and writes the columns of the current row group.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void writeRowGroup() throws IOException {
+        DataOutputStream indexStream = new DataOutputStream(rowGroupsIndex);
+        indexStream.writeInt(nRows);
+        for (ArrayList<String> column : columns) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            DataOutputStream encodedStream = new DataOutputStream(encoded);
+            byte type = encodeColumn(column, encodedStream);
+            encodedStream.flush();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressed, deflater);
+            encoded.writeTo(deflaterStream);
+            deflaterStream.close();
+            deflater.end();
+            indexStream.writeByte(type);
+            indexStream.writeLong(position);
+            indexStream.writeInt(compressed.size());
+            indexStream.writeInt(encoded.size());
+            write(compressed.toByteArray());
+            column.clear();
+        }
+        indexStream.flush();
+        nRowGroups++;
+        nRows = 0;
+    }
+
+    /**
+     * Encodes the values of a column chunk using the most compact type
+     * allowing restoring the values.
+     *
+     * @param values the values of the column chunk
+     * @param encodedStream the stream where to write the encoded values
+     *
+     * @return the type of the column chunk
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the stream
+     */
+    private static byte encodeColumn(ArrayList<String> values, DataOutputStream encodedStream) throws IOException {
+
+        boolean isLong = true, isDouble = true;
+        HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+        ArrayList<String> dictionaryValues = new ArrayList<String>();
+        for (String value : values) {
+            if (!value.isEmpty()) {
+                if (isLong && !isLong(value)) {
+                    isLong = false;
+                }
+                if (isDouble && !isDouble(value)) {
+                    isDouble = false;
+                }
+            }
+            if (!dictionary.containsKey(value)) {
+                dictionary.put(value, dictionaryValues.size());
+                dictionaryValues.add(value);
+            }
+        }
+
+        if (isLong || isDouble) {
+            byte[] present = new byte[(values.size() + 7) / 8];
+            for (int i = 0; i < values.size(); i++) {
+                if (!values.get(i).isEmpty()) {
+                    present[i / 8] |= 1 << (i % 8);
+                }
+            }
+            encodedStream.write(present);
+            for (String value : values) {
+                if (!value.isEmpty()) {
+                    if (isLong) {
+                        encodedStream.writeLong(Long.parseLong(value));
+                    } else {
+                        encodedStream.writeDouble(Double.parseDouble(value));
+                    }
+                }
+            }
+            return isLong ? TYPE_LONG : TYPE_DOUBLE;
+        }
+
+        if (2 * dictionaryValues.size() <= values.size()) {
+            encodedStream.writeInt(dictionaryValues.size());
+            for (String value : dictionaryValues) {
+                writeString(value, encodedStream);
+            }
+            for (String value : values) {
+                int index = dictionary.get(value);
+                if (dictionaryValues.size() <= 256) {
+                    encodedStream.writeByte(index);
+                } else if (dictionaryValues.size() <= 65536) {
+                    encodedStream.writeShort(index);
+                } else {
+                    encodedStream.writeInt(index);
+                }
+            }
+            return TYPE_DICTIONARY;
+        }
+
+        for (String value : values) {
+            writeString(value, encodedStream);
+        }
+        return TYPE_STRING;
+    }
+
+    /**
+     * Indicates whether a value can be stored as long and restored exactly.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether a value can be stored as long
+     */
+    private static boolean isLong(String value) {
+        try {
+            return Long.toString(Long.parseLong(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Indicates whether a value can be stored as double and restored exactly.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether a value can be stored as double
+     */
+    private static boolean isDouble(String value) {
+        try {
+            return Double.toString(Double.parseDouble(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a string as length prefixed UTF-8 bytes.
+     *
+     * @param value the string
+     * @param encodedStream the stream where to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the stream
+     */
+    private static void writeString(String value, DataOutputStream encodedStream) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        encodedStream.writeInt(bytes.length);
+        encodedStream.write(bytes);
+    }
+
+    /**
+     * Writes bytes to the file.
+     *
+     * @param bytes the bytes to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void write(byte[] bytes) throws IOException {
+        outputStream.write(bytes);
+        position += bytes.length;
+    }
+
+    /**
+     * Writes an integer to the file.
+     *
+     * @param value the integer to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void writeInt(int value) throws IOException {
+        outputStream.writeInt(value);
+        position += 4;
+    }
+}
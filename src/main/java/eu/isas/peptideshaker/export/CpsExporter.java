@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.export;
 
+import com.compomics.util.Util;
 import com.compomics.util.db.ObjectsCache;
 import com.compomics.util.db.ObjectsDB;
 import com.compomics.util.experiment.MsExperiment;
@@ -8,8 +9,8 @@ import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.experiment.identification.Advocate;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.io.ExperimentIO;
+import com.compomics.util.waiting.Duration;
 import com.compomics.util.waiting.WaitingHandler;
-import com.compomics.util.io.compression.TarUtils;
 import com.compomics.util.preferences.IdentificationParameters;
 import eu.isas.peptideshaker.preferences.DisplayPreferences;
 import eu.isas.peptideshaker.preferences.FilterPreferences;
@@ -19,10 +20,22 @@ import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
 import eu.isas.peptideshaker.utils.CpsParent;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesCache;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.TarArchiveIndex;
 import java.io.*;
+import java.nio.channels.Channels;
 import java.sql.SQLException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 
 /**
  * This class will export an identification project as cps file.
@@ -32,7 +45,29 @@ import org.apache.commons.compress.archivers.ArchiveException;
 public class CpsExporter {
 
     /**
-     * Saves the given data in a cps file.
+     * Name of the file keeping track of the content of the database folder
+     * when the project was last saved or opened.
+     */
+    public static final String SAVE_MANIFEST_NAME = "cps_save_manifest.txt";
+    /**
+     * Separator used in the save manifest.
+     */
+    private static final String MANIFEST_SEPARATOR = "\t";
+    /**
+     * Value used in the save manifest for files whose checksum was not
+     * computed.
+     */
+    private static final long UNKNOWN_CHECKSUM = -1;
+    /**
+     * The maximal size of an incrementally saved archive relative to the size
+     * of the project. Above, the archive is rewritten from scratch.
+     */
+    private static final double MAX_ARCHIVE_OVERHEAD = 2.0;
+
+    /**
+     * Saves the given data in a cps file. If the destination file is the
+     * archive the project was last saved to or opened from, only the files
+     * which changed since are appended to it.
      *
      * @param destinationFile the destination cps file
      * @param waitingHandler a waiting handler used to cancel the saving
@@ -67,11 +102,57 @@ public class CpsExporter {
             IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails, FilterPreferences filterPreferences,
             Metrics metrics, GeneMaps geneMaps, IdentificationFeaturesCache identificationFeaturesCache, ObjectsCache objectsCache, boolean emptyCache,
             DisplayPreferences displayPreferences, File dbFolder) throws IOException, SQLException, ArchiveException, ClassNotFoundException, InterruptedException {
+        saveAs(destinationFile, waitingHandler, experiment, identification, shotgunProtocol, identificationParameters, spectrumCountingPreferences, projectDetails, filterPreferences,
+                metrics, geneMaps, identificationFeaturesCache, objectsCache, emptyCache, displayPreferences, dbFolder, true);
+    }
+
+    /**
+     * Saves the given data in a cps file.
+     *
+     * @param destinationFile the destination cps file
+     * @param waitingHandler a waiting handler used to cancel the saving
+     * @param experiment the experiment to save
+     * @param identification the identification to save
+     * @param shotgunProtocol information about the protocol used
+     * @param identificationParameters the identification parameters
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param projectDetails the project details
+     * @param filterPreferences the filtering preferences
+     * @param displayPreferences the display preferences
+     * @param metrics the dataset
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesCache the identification features cache
+     * @param objectsCache the object cache
+     * @param emptyCache a boolean indicating whether the object cache should be
+     * emptied
+     * @param dbFolder the path to the folder where the database is located
+     * @param incremental if true and the destination file is the archive the
+     * project was last saved to or opened from, only the files which changed
+     * since are appended to the archive
+     *
+     * @throws IOException thrown of IOException occurs exception thrown
+     * whenever an error occurred while reading or writing a file
+     * @throws SQLException thrown of SQLException occurs exception thrown
+     * whenever an error occurred while interacting with the database
+     * @throws ArchiveException thrown of ArchiveException occurs exception
+     * thrown whenever an error occurred while taring the project
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while saving the project
+     */
+    public static void saveAs(File destinationFile, WaitingHandler waitingHandler, MsExperiment experiment, Identification identification, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails, FilterPreferences filterPreferences,
+            Metrics metrics, GeneMaps geneMaps, IdentificationFeaturesCache identificationFeaturesCache, ObjectsCache objectsCache, boolean emptyCache,
+            DisplayPreferences displayPreferences, File dbFolder, boolean incremental) throws IOException, SQLException, ArchiveException, ClassNotFoundException, InterruptedException {
 
         identificationFeaturesCache.setReadOnly(true);
 
         try {
 
+            Duration duration = new Duration();
+            duration.start();
+
             // save the user advocates
             projectDetails.setUserAdvocateMapping(Advocate.getUserAdvocates());
 
@@ -88,6 +169,11 @@ public class CpsExporter {
                 objectsDB.insertObject(CpsParent.settingsTableName, peptideShakerSettings.getFamilyName(), peptideShakerSettings, false);
             }
 
+            duration.end();
+            reportPhase(waitingHandler, "Settings saved", duration, -1);
+            duration = new Duration();
+            duration.start();
+
             // save the objects in cache
             objectsCache.saveCache(waitingHandler, emptyCache);
             objectsCache.setReadOnly(true);
@@ -95,28 +181,55 @@ public class CpsExporter {
             // close connection
             identification.close();
 
+            duration.end();
+            reportPhase(waitingHandler, "Cache saved", duration, -1);
+
             // transfer all files in the match directory
             if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
                 waitingHandler.setPrimaryProgressCounterIndeterminate(true);
                 waitingHandler.setSecondaryProgressCounterIndeterminate(true);
             }
 
+            // the manifest is only valid once the archive is completely written
+            HashMap<String, long[]> savedFiles = incremental ? readSaveManifest(dbFolder, destinationFile) : null;
+            File manifestFile = new File(dbFolder, SAVE_MANIFEST_NAME);
+            if (manifestFile.exists() && !manifestFile.delete()) {
+                throw new IOException("Impossible to delete " + manifestFile.getAbsolutePath() + ".");
+            }
+
+            if (savedFiles != null && (waitingHandler == null || !waitingHandler.isRunCanceled())) {
+                duration = new Duration();
+                duration.start();
+                HashMap<String, Long> checksums = new HashMap<String, Long>();
+                long bytesWritten = saveIncrementally(destinationFile, dbFolder, savedFiles, experiment, checksums, waitingHandler);
+                if (bytesWritten >= 0) {
+                    duration.end();
+                    reportPhase(waitingHandler, "Project changes appended to " + destinationFile.getName(), duration, bytesWritten);
+                    writeSaveManifest(dbFolder, destinationFile, checksums);
+                    return;
+                }
+            }
+
             if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
+                duration = new Duration();
+                duration.start();
                 File experimentFile = new File(dbFolder, MsExperiment.experimentObjectName);
                 ExperimentIO.save(experimentFile, experiment);
+                duration.end();
+                reportPhase(waitingHandler, "Experiment saved", duration, experimentFile.length());
             }
 
             // tar everything in the current cps file
             if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
-                File logFolder = new File(objectsDB.getPath(), "log");
-                HashSet<String> exceptions = new HashSet<String>(1);
-                for (File file : logFolder.listFiles()) {
-                    String fileName = file.getName();
-                    if (fileName.endsWith(".dat") && fileName.startsWith("log")) {
-                        exceptions.add(file.getAbsolutePath());
-                    }
+                duration = new Duration();
+                duration.start();
+                HashMap<String, Long> checksums = new HashMap<String, Long>();
+                tarProject(dbFolder, destinationFile, checksums, waitingHandler);
+                duration.end();
+                reportPhase(waitingHandler, "Project archived in " + destinationFile.getName(), duration, destinationFile.length());
+                if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
+                    writeSaveManifest(dbFolder, destinationFile, checksums);
                 }
-                TarUtils.tarFolderContent(dbFolder, destinationFile, exceptions, waitingHandler);
             }
 
         } finally {
@@ -128,4 +241,408 @@ public class CpsExporter {
             }
         }
     }
+
+    /**
+     * Appends the files of the database folder which changed since the last
+     * save to the destination archive. The experiment is serialized while the
+     * database files are being archived. Nothing is done if the destination
+     * file is not the archive the project was last saved to or opened from,
+     * if files were deleted since, or if the archive grew too large compared
+     * to the project. Files are considered unchanged when their size and last
+     * modification match the save manifest, the checksum is only computed for
+     * files of the same size but with a different last modification. The
+     * changed files are appended in place after the last entry of the
+     * archive, the end of archive blocks are restored if the saving is
+     * canceled or fails.
+     *
+     * @param destinationFile the destination cps file
+     * @param dbFolder the folder where the database is located
+     * @param savedFiles the size, last modification and checksum of the
+     * archived files as listed in the save manifest
+     * @param experiment the experiment to save
+     * @param checksums map where to store the checksums of the archived files
+     * indexed by relative path
+     * @param waitingHandler a waiting handler used to cancel the saving
+     *
+     * @return the number of bytes appended to the archive, -1 if the project
+     * was not saved incrementally
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while saving the experiment
+     */
+    private static long saveIncrementally(File destinationFile, File dbFolder, HashMap<String, long[]> savedFiles, final MsExperiment experiment,
+            HashMap<String, Long> checksums, WaitingHandler waitingHandler) throws IOException, InterruptedException {
+
+        TarArchiveIndex archiveIndex = new TarArchiveIndex(destinationFile);
+        if (!archiveIndex.isSupported()) {
+            return -1;
+        }
+        final String experimentEntryName = archiveIndex.getEntryName(MsExperiment.experimentObjectName);
+        if (experimentEntryName == null) {
+            return -1;
+        }
+        String entryPrefix = experimentEntryName.substring(0, experimentEntryName.length() - MsExperiment.experimentObjectName.length());
+
+        HashMap<String, File> projectFiles = new HashMap<String, File>();
+        listFiles(dbFolder, dbFolder, projectFiles);
+        for (String path : savedFiles.keySet()) {
+            if (!projectFiles.containsKey(path)) {
+                // files cannot be removed from the archive
+                return -1;
+            }
+        }
+
+        final File experimentFile = new File(dbFolder, MsExperiment.experimentObjectName);
+        String experimentPath = getRelativePath(dbFolder, experimentFile);
+        ArrayList<String> changedFiles = new ArrayList<String>();
+        long projectSize = 0, changedSize = 0;
+        for (String path : projectFiles.keySet()) {
+            File file = projectFiles.get(path);
+            projectSize += file.length();
+            if (!path.equals(experimentPath)) {
+                long[] savedFile = savedFiles.get(path);
+                if (isUnchanged(file, savedFile)) {
+                    checksums.put(path, savedFile[2]);
+                } else {
+                    changedFiles.add(path);
+                    changedSize += file.length();
+                }
+            }
+        }
+        long endOfEntries = archiveIndex.getEndOfEntries();
+        if (endOfEntries + changedSize > MAX_ARCHIVE_OVERHEAD * projectSize) {
+            return -1;
+        }
+        Collections.sort(changedFiles);
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(changedFiles.size() + 1);
+        }
+
+        // serialize the experiment while the database files are archived
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<Object> experimentSaving = pool.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                ExperimentIO.save(experimentFile, experiment);
+                return null;
+            }
+        });
+        pool.shutdown();
+
+        // append the changed files in place of the end of archive blocks
+        long archiveLength = destinationFile.length();
+        RandomAccessFile archive = new RandomAccessFile(destinationFile, "rw");
+        boolean completed = false;
+        try {
+            archive.setLength(endOfEntries);
+            archive.seek(endOfEntries);
+            TarArchiveOutputStream tarOutput = new TarArchiveOutputStream(new BufferedOutputStream(Channels.newOutputStream(archive.getChannel())));
+            tarOutput.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+            for (String path : changedFiles) {
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        return -1;
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+                checksums.put(path, appendFile(tarOutput, projectFiles.get(path), entryPrefix + path));
+            }
+            try {
+                experimentSaving.get();
+            } catch (ExecutionException e) {
+                throw new IOException("An error occurred while saving the experiment.", e.getCause());
+            }
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return -1;
+            }
+            checksums.put(experimentPath, appendFile(tarOutput, experimentFile, experimentEntryName));
+            if (waitingHandler != null) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+            tarOutput.close();
+            completed = true;
+        } finally {
+            if (!completed) {
+                // restore the archive as it was before appending
+                archive.setLength(endOfEntries);
+                archive.seek(endOfEntries);
+                archive.write(new byte[(int) (archiveLength - endOfEntries)]);
+            }
+            archive.close();
+            if (waitingHandler != null) {
+                waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+            }
+        }
+
+        return destinationFile.length() - endOfEntries;
+    }
+
+    /**
+     * Writes the files of the database folder to a new tar archive. The
+     * checksums of the files are computed while the files are archived.
+     *
+     * @param dbFolder the folder where the database is located
+     * @param destinationFile the destination cps file
+     * @param checksums map where to store the checksums of the archived files
+     * indexed by relative path
+     * @param waitingHandler a waiting handler used to cancel the saving
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     */
+    private static void tarProject(File dbFolder, File destinationFile, HashMap<String, Long> checksums, WaitingHandler waitingHandler) throws IOException {
+
+        HashMap<String, File> projectFiles = new HashMap<String, File>();
+        listFiles(dbFolder, dbFolder, projectFiles);
+        ArrayList<String> paths = new ArrayList<String>(projectFiles.keySet());
+        Collections.sort(paths);
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(paths.size());
+        }
+
+        TarArchiveOutputStream tarOutput = new TarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(destinationFile)));
+        try {
+            tarOutput.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+            for (String path : paths) {
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+                checksums.put(path, appendFile(tarOutput, projectFiles.get(path), path));
+            }
+            tarOutput.finish();
+        } finally {
+            tarOutput.close();
+            if (waitingHandler != null) {
+                waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+            }
+        }
+    }
+
+    /**
+     * Appends a file to a tar archive.
+     *
+     * @param tarOutput the tar output stream
+     * @param file the file to append
+     * @param entryName the name of the entry in the archive
+     *
+     * @return the checksum of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     */
+    private static long appendFile(TarArchiveOutputStream tarOutput, File file, String entryName) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(file, entryName);
+        tarOutput.putArchiveEntry(entry);
+        CRC32 checksum = new CRC32();
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[65536];
+            int nRead;
+            while ((nRead = bis.read(buffer)) != -1) {
+                tarOutput.write(buffer, 0, nRead);
+                checksum.update(buffer, 0, nRead);
+            }
+        } finally {
+            bis.close();
+        }
+        tarOutput.closeArchiveEntry();
+        return checksum.getValue();
+    }
+
+    /**
+     * Returns the CRC32 checksum of the content of a file.
+     *
+     * @param file the file
+     *
+     * @return the checksum of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public static long getChecksum(File file) throws IOException {
+        CRC32 checksum = new CRC32();
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[65536];
+            int nRead;
+            while ((nRead = bis.read(buffer)) != -1) {
+                checksum.update(buffer, 0, nRead);
+            }
+        } finally {
+            bis.close();
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Indicates whether a file is in the state listed in the save manifest.
+     * The size and last modification are trusted. The checksum is only
+     * computed when the size matches but not the last modification, and the
+     * file is considered changed if no checksum was recorded.
+     *
+     * @param file the file
+     * @param manifestEntry the size, last modification and checksum of the
+     * file as listed in the save manifest, can be null
+     *
+     * @return a boolean indicating whether the file is in the state listed in
+     * the save manifest
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public static boolean isUnchanged(File file, long[] manifestEntry) throws IOException {
+        if (manifestEntry == null || !file.exists() || manifestEntry[0] != file.length()) {
+            return false;
+        }
+        if (manifestEntry[1] == file.lastModified()) {
+            return true;
+        }
+        return manifestEntry[2] != UNKNOWN_CHECKSUM && manifestEntry[2] == getChecksum(file);
+    }
+
+    /**
+     * Writes the save manifest of the database folder, i.e. the size, last
+     * modification and checksum of every file archived in the given cps file.
+     * Should be called whenever the content of the database folder and of the
+     * cps file match, after saving or opening a project.
+     *
+     * @param dbFolder the folder where the database is located
+     * @param cpsFile the cps file
+     * @param checksums the checksums already known indexed by relative path,
+     * the checksums of the other files are listed as unknown
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public static void writeSaveManifest(File dbFolder, File cpsFile, HashMap<String, Long> checksums) throws IOException {
+        HashMap<String, File> projectFiles = new HashMap<String, File>();
+        listFiles(dbFolder, dbFolder, projectFiles);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(new File(dbFolder, SAVE_MANIFEST_NAME)));
+        try {
+            bw.write(cpsFile.getAbsolutePath() + MANIFEST_SEPARATOR + cpsFile.length() + MANIFEST_SEPARATOR + cpsFile.lastModified());
+            bw.newLine();
+            for (String path : projectFiles.keySet()) {
+                File file = projectFiles.get(path);
+                Long checksum = checksums.get(path);
+                if (checksum == null) {
+                    checksum = UNKNOWN_CHECKSUM;
+                }
+                bw.write(path + MANIFEST_SEPARATOR + file.length() + MANIFEST_SEPARATOR + file.lastModified() + MANIFEST_SEPARATOR + checksum);
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+    }
+
+    /**
+     * Reads the save manifest of the database folder and returns the size,
+     * last modification and checksum of the archived files indexed by
+     * relative path. Null if no manifest is found or if it does not correspond
+     * to the given cps file in its current state.
+     *
+     * @param dbFolder the folder where the database is located
+     * @param cpsFile the cps file
+     *
+     * @return the size, last modification and checksum of the archived files
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public static HashMap<String, long[]> readSaveManifest(File dbFolder, File cpsFile) throws IOException {
+        File manifestFile = new File(dbFolder, SAVE_MANIFEST_NAME);
+        if (!manifestFile.exists() || !cpsFile.exists()) {
+            return null;
+        }
+        BufferedReader br = new BufferedReader(new FileReader(manifestFile));
+        try {
+            String line = br.readLine();
+            String expectedHeader = cpsFile.getAbsolutePath() + MANIFEST_SEPARATOR + cpsFile.length() + MANIFEST_SEPARATOR + cpsFile.lastModified();
+            if (line == null || !line.equals(expectedHeader)) {
+                return null;
+            }
+            HashMap<String, long[]> result = new HashMap<String, long[]>();
+            while ((line = br.readLine()) != null) {
+                String[] split = line.split(MANIFEST_SEPARATOR);
+                if (split.length != 4) {
+                    return null;
+                }
+                result.put(split[0], new long[]{Long.parseLong(split[1]), Long.parseLong(split[2]), Long.parseLong(split[3])});
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Lists the files of a folder which are archived in cps files.
+     *
+     * @param dbFolder the folder where the database is located
+     * @param folder the folder to inspect
+     * @param files map where to store the files indexed by path relative to
+     * the database folder
+     */
+    private static void listFiles(File dbFolder, File folder, HashMap<String, File> files) {
+        File[] folderContent = folder.listFiles();
+        if (folderContent != null) {
+            for (File file : folderContent) {
+                if (file.isDirectory()) {
+                    listFiles(dbFolder, file, files);
+                } else {
+                    String fileName = file.getName();
+                    boolean derbyLog = fileName.startsWith("log") && fileName.endsWith(".dat") && file.getParentFile().getName().equals("log");
+                    if (!derbyLog && !fileName.equals(SAVE_MANIFEST_NAME)) {
+                        files.put(getRelativePath(dbFolder, file), file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the path of a file relative to the database folder using '/' as
+     * separator.
+     *
+     * @param dbFolder the folder where the database is located
+     * @param file the file
+     *
+     * @return the relative path
+     */
+    private static String getRelativePath(File dbFolder, File file) {
+        String path = file.getAbsolutePath().substring(dbFolder.getAbsolutePath().length() + 1);
+        return path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Reports the duration and bytes written of a saving phase.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     * @param phase the description of the phase
+     * @param duration the duration of the phase
+     * @param bytesWritten the number of bytes written, ignored if negative
+     */
+    private static void reportPhase(WaitingHandler waitingHandler, String phase, Duration duration, long bytesWritten) {
+        if (waitingHandler != null) {
+            String report = phase + " (" + duration.toString();
+            if (bytesWritten >= 0) {
+                report += ", " + Util.roundDouble(bytesWritten / 1048576.0, 1) + " MB";
+            }
+            report += ").";
+            waitingHandler.appendReport(report, true, true);
+        }
+    }
 }
@@ -13,14 +13,12 @@ import com.compomics.util.experiment.biology.NeutralLoss;
 import com.compomics.util.experiment.biology.PTM;
 import com.compomics.util.experiment.biology.PTMFactory;
 import com.compomics.util.experiment.biology.Peptide;
-import com.compomics.util.experiment.biology.Protein;
 import com.compomics.util.experiment.biology.ions.ImmoniumIon;
 import com.compomics.util.experiment.biology.ions.PeptideFragmentIon;
 import com.compomics.util.experiment.biology.ions.PrecursorIon;
 import com.compomics.util.experiment.biology.ions.RelatedIon;
 import com.compomics.util.experiment.biology.ions.ReporterIon;
 import com.compomics.util.experiment.identification.*;
-import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory.ProteinIterator;
 import com.compomics.util.experiment.identification.matches.*;
 import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
 import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
@@ -59,7 +57,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 import org.apache.commons.lang3.StringEscapeUtils;
 
@@ -72,13 +78,31 @@ import org.apache.commons.lang3.StringEscapeUtils;
 public class MzIdentMLExport {
 
     /**
-     * The fileWriter.
+     * The number of matches rendered per chunk when writing in parallel.
      */
-    private FileWriter r;
+    public static final int CHUNK_SIZE = 1000;
     /**
      * The buffered writer which will write the results in the desired file.
      */
     private BufferedWriter br;
+    /**
+     * The buffer where the chunk is rendered, null if this exporter writes to
+     * the output file.
+     */
+    private StringWriter chunkBuffer = null;
+    /**
+     * The buffer where the peptide evidences of a chunk of peptides are
+     * rendered.
+     */
+    private StringBuilder peptideEvidenceBuffer = null;
+    /**
+     * The accessions of the proteins referenced by the peptide evidences.
+     */
+    private HashSet<String> referencedAccessions = null;
+    /**
+     * The number of threads to use.
+     */
+    private int nThreads = Runtime.getRuntime().availableProcessors();
     /**
      * Integer keeping track of the number of tabs to include at the beginning
      * of each line.
@@ -188,6 +212,25 @@ public class MzIdentMLExport {
      */
     private boolean writeFragmentIons = true;
 
+    /**
+     * The sections rendered in chunks.
+     */
+    private enum ChunkSection {
+
+        /**
+         * DBSequence elements, keys are protein accessions.
+         */
+        dbSequences,
+        /**
+         * Peptide and PeptideEvidence elements, keys are peptide keys.
+         */
+        peptides,
+        /**
+         * SpectrumIdentificationResult elements, keys are spectrum keys.
+         */
+        spectrumIdentificationResults;
+    }
+
     /**
      * Constructor.
      *
@@ -258,8 +301,51 @@ public class MzIdentMLExport {
         this.peptideMatchValidationLevel = peptideMatchValidationLevel;
         this.psmMatchValidationLevel = psmMatchValidationLevel;
         this.peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
-        r = new FileWriter(outputFile);
-        br = new BufferedWriter(r);
+        OutputStream outputStream = new FileOutputStream(outputFile);
+        if (outputFile.getName().toLowerCase().endsWith(".gz")) {
+            outputStream = new GZIPOutputStream(outputStream, 65536);
+        }
+        br = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"), 1048576);
+    }
+
+    /**
+     * Constructor for an exporter rendering a chunk of the file in memory. The
+     * settings and the maps of identifiers are shared with the main exporter.
+     *
+     * @param mainExport the exporter writing the file
+     */
+    private MzIdentMLExport(MzIdentMLExport mainExport) {
+        this.peptideShakerVersion = mainExport.peptideShakerVersion;
+        this.identification = mainExport.identification;
+        this.projectDetails = mainExport.projectDetails;
+        this.shotgunProtocol = mainExport.shotgunProtocol;
+        this.identificationParameters = mainExport.identificationParameters;
+        this.spectrumCountingPreferences = mainExport.spectrumCountingPreferences;
+        this.identificationFeaturesGenerator = mainExport.identificationFeaturesGenerator;
+        this.waitingHandler = mainExport.waitingHandler;
+        this.proteinMatchValidationLevel = mainExport.proteinMatchValidationLevel;
+        this.peptideMatchValidationLevel = mainExport.peptideMatchValidationLevel;
+        this.psmMatchValidationLevel = mainExport.psmMatchValidationLevel;
+        this.mzidVersion_1_2 = mainExport.mzidVersion_1_2;
+        this.maxNeutralLosses = mainExport.maxNeutralLosses;
+        this.writeFragmentIons = mainExport.writeFragmentIons;
+        this.pepEvidenceIds = mainExport.pepEvidenceIds;
+        this.spectrumIds = mainExport.spectrumIds;
+        this.spectrumKeyToPeptideKeyMap = mainExport.spectrumKeyToPeptideKeyMap;
+        this.ptmIndexMap = mainExport.ptmIndexMap;
+        this.tabCounter = mainExport.tabCounter;
+        this.peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        chunkBuffer = new StringWriter();
+        br = new BufferedWriter(chunkBuffer);
+    }
+
+    /**
+     * Sets the number of threads to use to render the file.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public void setnThreads(int nThreads) {
+        this.nThreads = nThreads;
     }
 
     /**
@@ -305,8 +391,8 @@ public class MzIdentMLExport {
 
         waitingHandler.setPrimaryProgressCounterIndeterminate(false);
         waitingHandler.resetPrimaryProgressCounter();
-        waitingHandler.setMaxPrimaryProgressCounter(sequenceFactory.getNSequences()
-                + identification.getPeptideIdentification().size() * 2
+        waitingHandler.setMaxPrimaryProgressCounter(identification.getProteinMap().size()
+                + identification.getPeptideIdentification().size()
                 + identification.getSpectrumIdentificationSize()
                 + identification.getProteinIdentification().size());
 
@@ -324,7 +410,6 @@ public class MzIdentMLExport {
 
         if (waitingHandler.isRunCanceled()) {
             br.close();
-            r.close();
             return;
         }
 
@@ -332,7 +417,6 @@ public class MzIdentMLExport {
         writeMzIdentMLEndTag();
 
         br.close();
-        r.close();
     }
 
     /**
@@ -503,183 +587,285 @@ public class MzIdentMLExport {
      * occurred while writing the export
      * @throws SQLException exception thrown whenever an error occurred while
      * interacting with the database
+     * @throws MzMLUnmarshallerException exception thrown whenever an error
+     * occurred while reading an mzML file
      */
-    private void writeSequenceCollection() throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+    private void writeSequenceCollection() throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException {
 
         br.write(getCurrentTabSpace() + "<SequenceCollection>" + lineBreak);
         tabCounter++;
 
-        // get the sequence database
-        ProteinIterator iterator = sequenceFactory.getProteinIterator(false);
-
 //        String dbType = Header.getDatabaseTypeAsString(Header.DatabaseType.Unknown); // @TODO: add database type as cv param? children of MS:1001013 (database name)
 //        FastaIndex fastaIndex = sequenceFactory.getCurrentFastaIndex();
 //        if (fastaIndex != null) {
 //            dbType = Header.getDatabaseTypeAsString(fastaIndex.getDatabaseType());
 //        }
 //
-        // iterate all the protein sequences // @TODO: should be able to do this faster? we're just reading through the file once?
-        while (iterator.hasNext()) {
-            Protein currentProtein = iterator.getNextProtein();
-            br.write(getCurrentTabSpace() + "<DBSequence id=\"" + currentProtein.getAccession() + "\" "
-                    + "accession=\"" + currentProtein.getAccession() + "\" searchDatabase_ref=\"" + "SearchDB_1" + "\" >" + lineBreak);
-            tabCounter++;
-            //br.write(getCurrentTabSpace() + "<Seq>" + currentProtein.getSequence() + "</Seq>" + lineBreak);
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1001088", "protein description", StringEscapeUtils.escapeHtml4(sequenceFactory.getHeader(currentProtein.getAccession()).getDescription())));
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</DBSequence>" + lineBreak);
-
-            waitingHandler.increasePrimaryProgressCounter();
+        // render the peptides and their evidences in temporary files, the DBSequence elements referenced by the evidences come first
+        referencedAccessions = new HashSet<String>();
+        spectrumKeyToPeptideKeyMap = new HashMap<String, String>(identification.getSpectrumIdentificationSize());
+        File peptideFile = File.createTempFile("peptides", ".xml");
+        File peptideEvidenceFile = File.createTempFile("peptide_evidences", ".xml");
+        try {
+            BufferedWriter peptideWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(peptideFile), "UTF-8"), 1048576);
+            try {
+                BufferedWriter peptideEvidenceWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(peptideEvidenceFile), "UTF-8"), 1048576);
+                try {
+                    writeChunks(ChunkSection.peptides, new ArrayList<String>(identification.getPeptideIdentification()), peptideWriter, peptideEvidenceWriter);
+                } finally {
+                    peptideEvidenceWriter.close();
+                }
+            } finally {
+                peptideWriter.close();
+            }
 
             if (waitingHandler.isRunCanceled()) {
-                break;
+                return;
             }
-        }
 
-        iterator.close();
+            // write the referenced proteins in the order of the database
+            ArrayList<String> accessions = new ArrayList<String>(referencedAccessions.size());
+            for (String accession : sequenceFactory.getAccessions()) {
+                if (referencedAccessions.contains(accession)) {
+                    accessions.add(accession);
+                }
+            }
+            writeChunks(ChunkSection.dbSequences, accessions, br, null);
 
-        PSParameter psParameter = new PSParameter();
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        // set up the spectrum key to peptide key map
-        spectrumKeyToPeptideKeyMap = new HashMap<String, String>();
+            appendFile(peptideFile);
+            appendFile(peptideEvidenceFile);
+        } finally {
+            peptideFile.delete();
+            peptideEvidenceFile.delete();
+        }
 
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
+        tabCounter--;
+        br.write(getCurrentTabSpace() + "</SequenceCollection>" + lineBreak);
+    }
 
-        while (peptideMatchesIterator.hasNext()) {
+    /**
+     * Copies the content of a temporary file to the output file.
+     *
+     * @param file the file to copy
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading/writing a file
+     */
+    private void appendFile(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1048576);
+        try {
+            char[] buffer = new char[65536];
+            int nRead;
+            while ((nRead = reader.read(buffer)) != -1) {
+                br.write(buffer, 0, nRead);
+            }
+        } finally {
+            reader.close();
+        }
+    }
 
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
-            Peptide peptide = peptideMatch.getTheoreticPeptide();
-            String peptideSequence = peptide.getSequence();
+    /**
+     * Renders the given section in chunks of CHUNK_SIZE keys in parallel and
+     * writes the chunks in order.
+     *
+     * @param chunkSection the section to write
+     * @param keys the keys of the elements to write
+     * @param writer the writer where to write the chunks
+     * @param peptideEvidenceWriter the writer where to write the peptide
+     * evidences, only used for the peptides section
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading/writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while writing the export
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws MzMLUnmarshallerException exception thrown whenever an error
+     * occurred while reading an mzML file
+     */
+    private void writeChunks(ChunkSection chunkSection, ArrayList<String> keys, Writer writer, Writer peptideEvidenceWriter)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-            // store the spectrum to peptide mapping for later
-            for (String spectrumMatchKey : peptideMatch.getSpectrumMatchesKeys()) {
-                spectrumKeyToPeptideKeyMap.put(spectrumMatchKey, peptideKey);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            // keep a limited number of chunks in memory
+            LinkedList<Future<MzIdentMLExport>> chunks = new LinkedList<Future<MzIdentMLExport>>();
+            int start = 0;
+            while ((start < keys.size() || !chunks.isEmpty()) && !waitingHandler.isRunCanceled()) {
+                while (start < keys.size() && chunks.size() < 2 * nThreads) {
+                    int end = Math.min(start + CHUNK_SIZE, keys.size());
+                    chunks.add(pool.submit(new ChunkRenderer(chunkSection, new ArrayList<String>(keys.subList(start, end)), start)));
+                    start = end;
+                }
+                MzIdentMLExport chunk;
+                try {
+                    chunk = chunks.removeFirst().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    } else if (cause instanceof ClassNotFoundException) {
+                        throw (ClassNotFoundException) cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else if (cause instanceof MzMLUnmarshallerException) {
+                        throw (MzMLUnmarshallerException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+                writer.write(chunk.chunkBuffer.toString());
+                switch (chunkSection) {
+                    case peptides:
+                        peptideEvidenceWriter.write(chunk.peptideEvidenceBuffer.toString());
+                        referencedAccessions.addAll(chunk.referencedAccessions);
+                        pepEvidenceIds.putAll(chunk.pepEvidenceIds);
+                        spectrumKeyToPeptideKeyMap.putAll(chunk.spectrumKeyToPeptideKeyMap);
+                        break;
+                    case spectrumIdentificationResults:
+                        spectrumIds.putAll(chunk.spectrumIds);
+                        break;
+                }
             }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            br.write(getCurrentTabSpace() + "<Peptide id=\"" + peptideKey + "\">" + lineBreak);
-            tabCounter++;
-            br.write(getCurrentTabSpace() + "<PeptideSequence>" + peptideSequence + "</PeptideSequence>" + lineBreak);
+    /**
+     * Writes a DBSequence element.
+     *
+     * @param accession the accession of the protein
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading/writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while writing the export
+     */
+    private void writeDbSequence(String accession) throws IOException, ClassNotFoundException, InterruptedException {
+        br.write(getCurrentTabSpace() + "<DBSequence id=\"" + accession + "\" "
+                + "accession=\"" + accession + "\" searchDatabase_ref=\"" + "SearchDB_1" + "\" >" + lineBreak);
+        tabCounter++;
+        writeCvTerm(new CvTerm("PSI-MS", "MS:1001088", "protein description", StringEscapeUtils.escapeHtml4(sequenceFactory.getHeader(accession).getDescription())));
+        tabCounter--;
+        br.write(getCurrentTabSpace() + "</DBSequence>" + lineBreak);
+    }
+
+    /**
+     * Writes a Peptide element, renders its peptide evidences in the peptide
+     * evidence buffer and stores the spectrum to peptide mapping.
+     *
+     * @param peptideMatch the peptide match
+     * @param peptideIndex the index of the peptide
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading/writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while writing the export
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     */
+    private void writePeptide(PeptideMatch peptideMatch, int peptideIndex) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
 
-            if (peptide.isModified()) {
-                for (ModificationMatch modMatch : peptide.getModificationMatches()) {
+        String peptideKey = peptideMatch.getKey();
+        Peptide peptide = peptideMatch.getTheoreticPeptide();
+        String peptideSequence = peptide.getSequence();
 
-                    PTM currentPtm = ptmFactory.getPTM(modMatch.getTheoreticPtm());
-                    int ptmLocation = modMatch.getModificationSite();
+        // store the spectrum to peptide mapping for later
+        for (String spectrumMatchKey : peptideMatch.getSpectrumMatchesKeys()) {
+            spectrumKeyToPeptideKeyMap.put(spectrumMatchKey, peptideKey);
+        }
 
-                    if (currentPtm.isNTerm()) {
-                        ptmLocation = 0;
-                    } else if (currentPtm.isCTerm()) {
-                        ptmLocation = peptideSequence.length() + 1;
-                    }
+        br.write(getCurrentTabSpace() + "<Peptide id=\"" + peptideKey + "\">" + lineBreak);
+        tabCounter++;
+        br.write(getCurrentTabSpace() + "<PeptideSequence>" + peptideSequence + "</PeptideSequence>" + lineBreak);
 
-                    br.write(getCurrentTabSpace() + "<Modification monoisotopicMassDelta=\"" + currentPtm.getRoundedMass() + "\" "
-                            + "residues=\"" + peptideSequence.charAt(modMatch.getModificationSite() - 1) + "\" "
-                            + "location=\"" + ptmLocation + "\" >" + lineBreak);
+        if (peptide.isModified()) {
+            for (ModificationMatch modMatch : peptide.getModificationMatches()) {
 
-                    CvTerm ptmCvTerm = currentPtm.getCvTerm();
-                    if (ptmCvTerm != null) {
-                        tabCounter++;
-                        writeCvTerm(ptmCvTerm, false);
-                        tabCounter--;
-                    }
+                PTM currentPtm = ptmFactory.getPTM(modMatch.getTheoreticPtm());
+                int ptmLocation = modMatch.getModificationSite();
 
-                    br.write(getCurrentTabSpace() + "</Modification>" + lineBreak);
+                if (currentPtm.isNTerm()) {
+                    ptmLocation = 0;
+                } else if (currentPtm.isCTerm()) {
+                    ptmLocation = peptideSequence.length() + 1;
                 }
-            }
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</Peptide>" + lineBreak);
+                br.write(getCurrentTabSpace() + "<Modification monoisotopicMassDelta=\"" + currentPtm.getRoundedMass() + "\" "
+                        + "residues=\"" + peptideSequence.charAt(modMatch.getModificationSite() - 1) + "\" "
+                        + "location=\"" + ptmLocation + "\" >" + lineBreak);
 
-            waitingHandler.increasePrimaryProgressCounter();
+                CvTerm ptmCvTerm = currentPtm.getCvTerm();
+                if (ptmCvTerm != null) {
+                    tabCounter++;
+                    writeCvTerm(ptmCvTerm, false);
+                    tabCounter--;
+                }
 
-            if (waitingHandler.isRunCanceled()) {
-                break;
+                br.write(getCurrentTabSpace() + "</Modification>" + lineBreak);
             }
         }
 
+        tabCounter--;
+        br.write(getCurrentTabSpace() + "</Peptide>" + lineBreak);
+
+        // get the peptide to protein mapping
         SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
         int peptideEvidenceCounter = 0;
+        String tabSpace = getCurrentTabSpace();
 
-        // re-iterate the peptides to get peptide to protein mapping
-        peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
+        for (String tempProtein : peptide.getParentProteins(sequenceMatchingPreferences)) {
 
-        while (peptideMatchesIterator.hasNext()) {
+            referencedAccessions.add(tempProtein);
 
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
-            Peptide peptide = peptideMatch.getTheoreticPeptide();
+            // get the start indexes and the surrounding amino acids
+            HashMap<Integer, String[]> aaSurrounding = sequenceFactory.getProtein(tempProtein).getSurroundingAA(
+                    peptideSequence, 1, sequenceMatchingPreferences);
+            ArrayList<Integer> indexes = new ArrayList<Integer>(aaSurrounding.keySet());
+            Collections.sort(indexes);
 
-            // get the possible parent proteins
-            ArrayList<String> possibleProteins = peptide.getParentProteins(sequenceMatchingPreferences);
+            for (int peptideStart : indexes) {
+                String aaBefore = aaSurrounding.get(peptideStart)[0];
+                String aaAfter = aaSurrounding.get(peptideStart)[1];
 
-            // iterate the possible protein parents
-            for (String tempProtein : possibleProteins) {
-
-                // get the start indexes and the surrounding 
-                HashMap<Integer, String[]> aaSurrounding = sequenceFactory.getProtein(tempProtein).getSurroundingAA(
-                        peptide.getSequence(), 1, sequenceMatchingPreferences);
-
-                ArrayList<Integer> indexes = new ArrayList<Integer>();
-                ArrayList<String> before = new ArrayList<String>();
-                ArrayList<String> after = new ArrayList<String>();
-
-                if (aaSurrounding.size() == 1) {
-                    for (int index : aaSurrounding.keySet()) {
-                        indexes.add(index);
-                        before.add(aaSurrounding.get(index)[0]);
-                        after.add(aaSurrounding.get(index)[1]);
-                    }
-                } else {
-                    ArrayList<Integer> tempIndexes = new ArrayList<Integer>(aaSurrounding.keySet());
-                    Collections.sort(tempIndexes);
-                    for (int index : tempIndexes) {
-                        indexes.add(index);
-                        before.add(aaSurrounding.get(index)[0]);
-                        after.add(aaSurrounding.get(index)[1]);
-                    }
+                if (aaBefore.isEmpty()) {
+                    aaBefore = "-";
                 }
-
-                for (int i = 0; i < indexes.size(); i++) {
-                    String aaBefore = "-";
-                    String aaAfter = "-";
-
-                    if (!before.get(i).isEmpty()) {
-                        aaBefore = before.get(i);
-                    }
-                    if (!after.get(i).isEmpty()) {
-                        aaAfter = after.get(i);
-                    }
-
-                    int peptideStart = indexes.get(i);
-                    int peptideEnd = (indexes.get(i) + peptide.getSequence().length() - 1);
-
-                    String pepEvidenceKey = tempProtein + "_" + peptideStart + "_" + peptideKey;
-                    pepEvidenceIds.put(pepEvidenceKey, "PepEv_" + ++peptideEvidenceCounter);
-
-                    br.write(getCurrentTabSpace() + "<PeptideEvidence isDecoy=\"" + peptide.isDecoy(sequenceMatchingPreferences) + "\" "
-                            + "pre=\"" + aaBefore + "\" "
-                            + "post=\"" + aaAfter + "\" "
-                            + "start=\"" + peptideStart + "\" "
-                            + "end=\"" + peptideEnd + "\" "
-                            + "peptide_ref=\"" + peptideKey + "\" "
-                            + "dBSequence_ref=\"" + sequenceFactory.getProtein(tempProtein).getAccession() + "\" "
-                            + "id=\"" + pepEvidenceIds.get(pepEvidenceKey) + "\" "
-                            + "/>" + lineBreak);
+                if (aaAfter.isEmpty()) {
+                    aaAfter = "-";
                 }
-            }
-
-            waitingHandler.increasePrimaryProgressCounter();
 
-            if (waitingHandler.isRunCanceled()) {
-                break;
+                int peptideEnd = peptideStart + peptideSequence.length() - 1;
+
+                String pepEvidenceKey = tempProtein + "_" + peptideStart + "_" + peptideKey;
+                String pepEvidenceId = "PepEv_" + peptideIndex + "_" + ++peptideEvidenceCounter;
+                pepEvidenceIds.put(pepEvidenceKey, pepEvidenceId);
+
+                peptideEvidenceBuffer.append(tabSpace).append("<PeptideEvidence isDecoy=\"").append(peptide.isDecoy(sequenceMatchingPreferences)).append("\" ")
+                        .append("pre=\"").append(aaBefore).append("\" ")
+                        .append("post=\"").append(aaAfter).append("\" ")
+                        .append("start=\"").append(peptideStart).append("\" ")
+                        .append("end=\"").append(peptideEnd).append("\" ")
+                        .append("peptide_ref=\"").append(peptideKey).append("\" ")
+                        .append("dBSequence_ref=\"").append(tempProtein).append("\" ")
+                        .append("id=\"").append(pepEvidenceId).append("\" ")
+                        .append("/>").append(lineBreak);
             }
         }
-
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SequenceCollection>" + lineBreak);
     }
 
     /**
@@ -1174,32 +1360,12 @@ public class MzIdentMLExport {
 
         writeFragmentationTable();
 
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(new PSParameter());
-        int psmCount = 0;
-
-        // iterate the spectrum files
+        // write the spectra of all files
+        ArrayList<String> spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentificationSize());
         for (String spectrumFileName : identification.getSpectrumFiles()) {
-
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, true, waitingHandler);
-
-            while (psmIterator.hasNext()) {
-
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-
-                writeSpectrumIdentificationResult(spectrumKey, ++psmCount);
-                waitingHandler.increasePrimaryProgressCounter();
-
-                if (waitingHandler.isRunCanceled()) {
-                    break;
-                }
-            }
-
-            if (waitingHandler.isRunCanceled()) {
-                break;
-            }
+            spectrumKeys.addAll(identification.getSpectrumIdentification(spectrumFileName));
         }
+        writeChunks(ChunkSection.spectrumIdentificationResults, spectrumKeys, br, null);
 
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -2029,4 +2195,85 @@ public class MzIdentMLExport {
     private void writeUserParam(String name, String value) throws IOException {
         br.write(getCurrentTabSpace() + "<userParam name=\"" + StringEscapeUtils.escapeHtml4(name) + "\" value=\"" + StringEscapeUtils.escapeHtml4(value) + "\" />" + lineBreak);
     }
+
+    /**
+     * Renders a chunk of a section in a new exporter.
+     */
+    private class ChunkRenderer implements Callable<MzIdentMLExport> {
+
+        /**
+         * The section to render.
+         */
+        private ChunkSection chunkSection;
+        /**
+         * The keys of the elements to render.
+         */
+        private ArrayList<String> keys;
+        /**
+         * The index of the first element in the section.
+         */
+        private int firstIndex;
+
+        /**
+         * Constructor.
+         *
+         * @param chunkSection the section to render
+         * @param keys the keys of the elements to render
+         * @param firstIndex the index of the first element in the section
+         */
+        public ChunkRenderer(ChunkSection chunkSection, ArrayList<String> keys, int firstIndex) {
+            this.chunkSection = chunkSection;
+            this.keys = keys;
+            this.firstIndex = firstIndex;
+        }
+
+        @Override
+        public MzIdentMLExport call() throws Exception {
+
+            MzIdentMLExport chunk = new MzIdentMLExport(MzIdentMLExport.this);
+            ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+            parameters.add(new PSParameter());
+            int index = firstIndex;
+
+            switch (chunkSection) {
+                case dbSequences:
+                    for (String accession : keys) {
+                        if (waitingHandler.isRunCanceled()) {
+                            break;
+                        }
+                        chunk.writeDbSequence(accession);
+                        waitingHandler.increasePrimaryProgressCounter();
+                    }
+                    break;
+                case peptides:
+                    chunk.pepEvidenceIds = new HashMap<String, String>();
+                    chunk.spectrumKeyToPeptideKeyMap = new HashMap<String, String>();
+                    chunk.peptideEvidenceBuffer = new StringBuilder();
+                    chunk.referencedAccessions = new HashSet<String>();
+                    PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(keys, parameters, false, parameters, null);
+                    while (peptideMatchesIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                        PeptideMatch peptideMatch = peptideMatchesIterator.next();
+                        if (peptideMatch != null) {
+                            chunk.writePeptide(peptideMatch, ++index);
+                        }
+                        waitingHandler.increasePrimaryProgressCounter();
+                    }
+                    break;
+                case spectrumIdentificationResults:
+                    chunk.spectrumIds = new HashMap<String, String>();
+                    PsmIterator psmIterator = identification.getPsmIterator(keys, parameters, true, null);
+                    while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                        SpectrumMatch spectrumMatch = psmIterator.next();
+                        if (spectrumMatch != null) {
+                            chunk.writeSpectrumIdentificationResult(spectrumMatch.getKey(), ++index);
+                        }
+                        waitingHandler.increasePrimaryProgressCounter();
+                    }
+                    break;
+            }
+
+            chunk.br.flush();
+            return chunk;
+        }
+    }
 }
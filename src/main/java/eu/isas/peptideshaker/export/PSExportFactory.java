@@ -250,6 +250,8 @@ public class PSExportFactory implements ExportFactory {
      * @param identificationParameters the identification parameters
      * @param spectrumCountingPreferences the spectrum counting preferences
      * (mandatory for the spectrum counting section)
+     * @param nThreads the number of threads to use to render the Protein,
+     * Peptide and PSM sections
      * @param waitingHandler the waiting handler
      *
      * @throws IOException thrown if an IOException occurs
@@ -265,7 +267,7 @@ public class PSExportFactory implements ExportFactory {
             ProjectDetails projectDetails, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             ArrayList<String> proteinKeys, ArrayList<String> peptideKeys, ArrayList<String> psmKeys,
             String proteinMatchKey, int nSurroundingAA, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
-            SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler)
+            SpectrumCountingPreferences spectrumCountingPreferences, int nThreads, WaitingHandler waitingHandler)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         ExportWriter exportWriter = ExportWriter.getExportWriter(exportFormat, destinationFile, exportScheme.getSeparator(), exportScheme.getSeparationLines());
@@ -290,16 +292,16 @@ public class PSExportFactory implements ExportFactory {
                 PsInputFilterSection section = new PsInputFilterSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
                 section.writeSection(identificationParameters.getPeptideAssumptionFilter(), waitingHandler);
             } else if (sectionName.equals(PsPeptideFeature.type)) {
-                PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+                PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter, nThreads);
                 section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideKeys, nSurroundingAA, "", exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
             } else if (sectionName.equals(PsProjectFeature.type)) {
                 PsProjectSection section = new PsProjectSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
                 section.writeSection(experiment, sample, replicateNumber, projectDetails, waitingHandler);
             } else if (sectionName.equals(PsProteinFeature.type)) {
-                PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+                PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter, nThreads);
                 section.writeSection(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, psmKeys, nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
             } else if (sectionName.equals(PsPsmFeature.type)) {
-                PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+                PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter, nThreads);
                 section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, psmKeys, "", nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
             } else if (sectionName.equals(PsIdentificationAlgorithmMatchesFeature.type)) {
                 PsIdentificationAlgorithmMatchesSection section = new PsIdentificationAlgorithmMatchesSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
@@ -326,6 +328,65 @@ public class PSExportFactory implements ExportFactory {
         exportWriter.close();
     }
 
+    /**
+     * Writes the desired export as columnar report, see ColumnarReportWriter.
+     * Every Protein, Peptide and PSM section is written as a table. Other
+     * sections are not exported. Hierarchical reports are not supported. If an
+     * argument is not needed, provide null (at your own risks).
+     *
+     * @param exportScheme the scheme of the export
+     * @param destinationFile the destination file
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param geneMaps the gene maps
+     * @param proteinKeys the protein keys to export
+     * @param peptideKeys the peptide keys to export
+     * @param psmKeys the keys of the PSMs to export
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param nThreads the number of threads to use to render the sections
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    public static void writeColumnarExport(ExportScheme exportScheme, File destinationFile, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, ArrayList<String> proteinKeys,
+            ArrayList<String> peptideKeys, ArrayList<String> psmKeys, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, int nThreads, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        ColumnarReportWriter columnarWriter = new ColumnarReportWriter(destinationFile);
+
+        try {
+            for (String sectionName : exportScheme.getSections()) {
+                if (sectionName.equals(PsProteinFeature.type)) {
+                    PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), columnarWriter, nThreads);
+                    section.writeSection(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, proteinKeys, nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+                } else if (sectionName.equals(PsPeptideFeature.type)) {
+                    PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), columnarWriter, nThreads);
+                    section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideKeys, nSurroundingAA, "", exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+                } else if (sectionName.equals(PsPsmFeature.type)) {
+                    PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), columnarWriter, nThreads);
+                    section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, psmKeys, "", nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+                }
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    break;
+                }
+            }
+        } finally {
+            columnarWriter.close();
+        }
+    }
+
     /**
      * Writes the documentation related to a report.
      *
@@ -14,6 +14,7 @@ import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.io.export.ExportFeature;
 import com.compomics.util.io.export.ExportWriter;
 import com.compomics.util.preferences.IdentificationParameters;
+import eu.isas.peptideshaker.export.ColumnarReportWriter;
 import eu.isas.peptideshaker.export.exportfeatures.PsFragmentFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsIdentificationAlgorithmMatchesFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsPeptideFeature;
@@ -60,6 +61,15 @@ public class PsPeptideSection {
      * The writer used to send the output to file.
      */
     private ExportWriter writer;
+    /**
+     * The writer used to send the output to a columnar report, null if not
+     * exporting a columnar report.
+     */
+    private ColumnarReportWriter columnarWriter = null;
+    /**
+     * The number of threads to use to render the rows.
+     */
+    private int nThreads;
 
     /**
      * Constructor.
@@ -68,8 +78,9 @@ public class PsPeptideSection {
      * @param indexes indicates whether the line index should be written
      * @param header indicates whether the table header should be written
      * @param writer the writer which will write to the file
+     * @param nThreads the number of threads to use to render the rows
      */
-    public PsPeptideSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, boolean header, ExportWriter writer) {
+    public PsPeptideSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, boolean header, ExportWriter writer, int nThreads) {
         ArrayList<ExportFeature> psmFeatures = new ArrayList<ExportFeature>();
         for (ExportFeature exportFeature : exportFeatures) {
             if (exportFeature instanceof PsPeptideFeature) {
@@ -82,11 +93,29 @@ public class PsPeptideSection {
         }
         Collections.sort(peptideFeatures);
         if (!psmFeatures.isEmpty()) {
-            psmSection = new PsPsmSection(psmFeatures, indexes, header, writer);
+            psmSection = new PsPsmSection(psmFeatures, indexes, header, writer, nThreads);
         }
         this.indexes = indexes;
         this.header = header;
         this.writer = writer;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Constructor for an export as columnar report. Subsections are not
+     * supported.
+     *
+     * @param exportFeatures the features to export in this section
+     * @param indexes indicates whether the line index should be written
+     * @param columnarWriter the writer which will write to the columnar report
+     * @param nThreads the number of threads to use to render the rows
+     */
+    public PsPeptideSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, ColumnarReportWriter columnarWriter, int nThreads) {
+        this(exportFeatures, indexes, false, null, nThreads);
+        if (psmSection != null) {
+            throw new IllegalArgumentException("PSM and fragment features cannot be exported as subsections of a columnar report.");
+        }
+        this.columnarWriter = columnarWriter;
     }
 
     /**
@@ -115,16 +144,18 @@ public class PsPeptideSection {
      * @throws MzMLUnmarshallerException thrown whenever an error occurred while
      * reading an mzML file
      */
-    public void writeSection(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
-            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys, int nSurroundingAA,
-            String linePrefix, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+    public void writeSection(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters, ArrayList<String> keys, final int nSurroundingAA,
+            final String linePrefix, final boolean validatedOnly, final boolean decoys, final WaitingHandler waitingHandler)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
         if (waitingHandler != null) {
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
         }
 
-        if (header) {
+        if (columnarWriter != null) {
+            columnarWriter.startTable(PsPeptideFeature.type, getColumnTitles());
+        } else if (header) {
             writeHeader();
         }
 
@@ -132,76 +163,113 @@ public class PsPeptideSection {
             keys = new ArrayList<String>(identification.getPeptideIdentification());
         }
 
-        int line = 1;
-
         if (waitingHandler != null) {
             waitingHandler.setWaitingText("Exporting. Please Wait...");
             waitingHandler.resetSecondaryProgressCounter();
             waitingHandler.setMaxSecondaryProgressCounter(keys.size());
         }
 
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+        parameters.add(new PSParameter());
 
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(keys, parameters, psmSection != null, parameters, waitingHandler);
+        final ArrayList<String> peptideKeys = keys;
+        SectionRowsRenderer<PeptideMatch> renderer = new SectionRowsRenderer<PeptideMatch>(nThreads) {
 
-        while (peptideMatchesIterator.hasNext()) {
+            /**
+             * The index of the next line.
+             */
+            private int line = 1;
 
-            if (waitingHandler != null) {
-                if (waitingHandler.isRunCanceled()) {
-                    return;
+            @Override
+            protected ArrayList<String> getRow(PeptideMatch peptideMatch) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+                PSParameter psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideMatch.getKey(), new PSParameter());
+
+                if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()
+                        || !decoys && peptideMatch.getTheoreticPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+                    return null;
+                }
+
+                ArrayList<String> row = new ArrayList<String>(peptideFeatures.size());
+                for (ExportFeature exportFeature : peptideFeatures) {
+                    PsPeptideFeature peptideFeature = (PsPeptideFeature) exportFeature;
+                    row.add(getfeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideKeys, nSurroundingAA, linePrefix, peptideMatch, psParameter, peptideFeature, validatedOnly, decoys, waitingHandler));
                 }
-                waitingHandler.increaseSecondaryProgressCounter();
+                return row;
             }
 
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
-            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+            @Override
+            protected void writeRow(PeptideMatch peptideMatch, ArrayList<String> row) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-            if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
+                if (row == null) {
+                    return;
+                }
 
-                if (decoys || !peptideMatch.getTheoreticPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+                if (columnarWriter != null) {
+                    if (indexes) {
+                        row.add(0, line + "");
+                    }
+                    columnarWriter.addRow(row);
+                    line++;
+                    return;
+                }
 
-                    boolean first = true;
+                boolean first = true;
 
-                    if (indexes) {
-                        if (linePrefix != null) {
-                            writer.write(linePrefix);
-                        }
-                        writer.write(line + "");
-                        first = false;
+                if (indexes) {
+                    if (linePrefix != null) {
+                        writer.write(linePrefix);
                     }
+                    writer.write(line + "");
+                    first = false;
+                }
 
-                    for (ExportFeature exportFeature : peptideFeatures) {
-                        if (!first) {
-                            writer.addSeparator();
-                        } else {
-                            first = false;
-                        }
-                        PsPeptideFeature peptideFeature = (PsPeptideFeature) exportFeature;
-                        writer.write(getfeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, nSurroundingAA, linePrefix, peptideMatch, psParameter, peptideFeature, validatedOnly, decoys, waitingHandler));
+                for (String feature : row) {
+                    if (!first) {
+                        writer.addSeparator();
+                    } else {
+                        first = false;
                     }
-                    writer.newLine();
-                    if (psmSection != null) {
-                        String psmSectionPrefix = "";
-                        if (linePrefix != null) {
-                            psmSectionPrefix += linePrefix;
-                        }
-                        psmSectionPrefix += line + ".";
-                        writer.increaseDepth();
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(false);
-                        }
-                        psmSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideMatch.getSpectrumMatchesKeys(), psmSectionPrefix, nSurroundingAA, validatedOnly, decoys, waitingHandler);
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(true);
-                        }
-                        writer.decreseDepth();
+                    writer.write(feature);
+                }
+                writer.newLine();
+                if (psmSection != null) {
+                    String psmSectionPrefix = "";
+                    if (linePrefix != null) {
+                        psmSectionPrefix += linePrefix;
                     }
-                    line++;
+                    psmSectionPrefix += line + ".";
+                    writer.increaseDepth();
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(false);
+                    }
+                    psmSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideMatch.getSpectrumMatchesKeys(), psmSectionPrefix, nSurroundingAA, validatedOnly, decoys, waitingHandler);
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(true);
+                    }
+                    writer.decreseDepth();
+                }
+                line++;
+            }
+        };
+
+        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(keys, parameters, psmSection != null, parameters, waitingHandler);
+
+        try {
+            while (peptideMatchesIterator.hasNext()) {
+
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
                 }
+
+                renderer.add(peptideMatchesIterator.next());
             }
+            renderer.finish();
+        } finally {
+            renderer.close();
         }
     }
 
@@ -626,4 +694,20 @@ public class PsPeptideSection {
         }
         writer.newLine();
     }
+
+    /**
+     * Returns the titles of the columns of the section.
+     *
+     * @return the titles of the columns of the section
+     */
+    private ArrayList<String> getColumnTitles() {
+        ArrayList<String> titles = new ArrayList<String>(peptideFeatures.size() + 1);
+        if (indexes) {
+            titles.add(ColumnarReportWriter.INDEX_COLUMN);
+        }
+        for (ExportFeature exportFeature : peptideFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        return titles;
+    }
 }
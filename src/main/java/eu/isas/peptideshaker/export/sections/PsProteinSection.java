@@ -18,6 +18,7 @@ import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.io.export.ExportFeature;
 import com.compomics.util.io.export.ExportWriter;
 import com.compomics.util.preferences.IdentificationParameters;
+import eu.isas.peptideshaker.export.ColumnarReportWriter;
 import eu.isas.peptideshaker.export.exportfeatures.PsFragmentFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsIdentificationAlgorithmMatchesFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsPeptideFeature;
@@ -67,6 +68,15 @@ public class PsProteinSection {
      * The writer used to send the output to file.
      */
     private ExportWriter writer;
+    /**
+     * The writer used to send the output to a columnar report, null if not
+     * exporting a columnar report.
+     */
+    private ColumnarReportWriter columnarWriter = null;
+    /**
+     * The number of threads to use to render the rows.
+     */
+    private int nThreads;
 
     /**
      * Constructor.
@@ -77,8 +87,9 @@ public class PsProteinSection {
      * @param indexes indicates whether the line index should be written
      * @param header indicates whether the table header should be written
      * @param writer the writer which will write to the file
+     * @param nThreads the number of threads to use to render the rows
      */
-    public PsProteinSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, boolean header, ExportWriter writer) {
+    public PsProteinSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, boolean header, ExportWriter writer, int nThreads) {
         ArrayList<ExportFeature> peptideFeatures = new ArrayList<ExportFeature>();
         for (ExportFeature exportFeature : exportFeatures) {
             if (exportFeature instanceof PsProteinFeature) {
@@ -91,11 +102,29 @@ public class PsProteinSection {
         }
         Collections.sort(proteinFeatures);
         if (!peptideFeatures.isEmpty()) {
-            peptideSection = new PsPeptideSection(peptideFeatures, indexes, header, writer);
+            peptideSection = new PsPeptideSection(peptideFeatures, indexes, header, writer, nThreads);
         }
         this.indexes = indexes;
         this.header = header;
         this.writer = writer;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Constructor for an export as columnar report. Subsections are not
+     * supported.
+     *
+     * @param exportFeatures the features to export in this section
+     * @param indexes indicates whether the line index should be written
+     * @param columnarWriter the writer which will write to the columnar report
+     * @param nThreads the number of threads to use to render the rows
+     */
+    public PsProteinSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, ColumnarReportWriter columnarWriter, int nThreads) {
+        this(exportFeatures, indexes, false, null, nThreads);
+        if (peptideSection != null) {
+            throw new IllegalArgumentException("Peptide, PSM and fragment features cannot be exported as subsections of a columnar report.");
+        }
+        this.columnarWriter = columnarWriter;
     }
 
     /**
@@ -128,85 +157,138 @@ public class PsProteinSection {
      * @throws org.apache.commons.math.MathException exception thrown whenever
      * an error is encountered while calculating the observable coverage
      */
-    public void writeSection(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
-            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys,
-            int nSurroundingAas, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+    public void writeSection(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator, final GeneMaps geneMaps,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters, ArrayList<String> keys,
+            final int nSurroundingAas, final boolean validatedOnly, final boolean decoys, final WaitingHandler waitingHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         if (waitingHandler != null) {
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
         }
 
-        if (header) {
+        if (columnarWriter != null) {
+            columnarWriter.startTable(PsProteinFeature.type, getColumnTitles());
+        } else if (header) {
             writeHeader();
         }
 
         if (keys == null) {
             keys = new ArrayList<String>(identification.getProteinIdentification());
         }
-        int line = 1;
-
         if (waitingHandler != null) {
             waitingHandler.setWaitingText("Exporting. Please Wait...");
             waitingHandler.resetSecondaryProgressCounter();
             waitingHandler.setMaxSecondaryProgressCounter(keys.size());
         }
 
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(
-                keys, parameters, peptideSection != null, parameters, peptideSection != null, parameters, waitingHandler); // @TODO: find a better way to know if we need psms
+        parameters.add(new PSParameter());
 
-        while (proteinMatchesIterator.hasNext()) {
+        final ArrayList<String> proteinKeys = keys;
+        SectionRowsRenderer<ProteinMatch> renderer = new SectionRowsRenderer<ProteinMatch>(nThreads) {
 
-            if (waitingHandler != null) {
-                if (waitingHandler.isRunCanceled()) {
-                    return;
+            /**
+             * The index of the next line.
+             */
+            private int line = 1;
+
+            @Override
+            protected ArrayList<String> getRow(ProteinMatch proteinMatch) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+                String proteinKey = proteinMatch.getKey();
+
+                if (!decoys && ProteinMatch.isDecoy(proteinKey)) {
+                    return null;
                 }
-                waitingHandler.increaseSecondaryProgressCounter();
-            }
 
-            ProteinMatch proteinMatch = proteinMatchesIterator.next();
-            String proteinKey = proteinMatch.getKey();
+                PSParameter psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, new PSParameter());
 
-            if (decoys || !ProteinMatch.isDecoy(proteinKey)) {
+                if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()) {
+                    return null;
+                }
 
-                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                ArrayList<String> row = new ArrayList<String>(proteinFeatures.size());
+                for (ExportFeature exportFeature : proteinFeatures) {
+                    PsProteinFeature tempProteinFeatures = (PsProteinFeature) exportFeature;
+                    try {
+                        row.add(getFeature(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, proteinKeys, nSurroundingAas, proteinKey, proteinMatch, psParameter, tempProteinFeatures, waitingHandler));
+                    } catch (MathException e) {
+                        throw new IllegalArgumentException(e);
+                    }
+                }
+                return row;
+            }
 
-                if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
+            @Override
+            protected void writeRow(ProteinMatch proteinMatch, ArrayList<String> row) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-                    boolean first = true;
+                if (row == null) {
+                    return;
+                }
 
+                if (columnarWriter != null) {
                     if (indexes) {
-                        writer.write(line + "");
-                        first = false;
+                        row.add(0, line + "");
                     }
+                    columnarWriter.addRow(row);
+                    line++;
+                    return;
+                }
 
-                    for (ExportFeature exportFeature : proteinFeatures) {
-                        if (!first) {
-                            writer.addSeparator();
-                        } else {
-                            first = false;
-                        }
-                        PsProteinFeature tempProteinFeatures = (PsProteinFeature) exportFeature;
-                        writer.write(getFeature(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys, nSurroundingAas, proteinKey, proteinMatch, psParameter, tempProteinFeatures, waitingHandler));
+                boolean first = true;
+
+                if (indexes) {
+                    writer.write(line + "");
+                    first = false;
+                }
+
+                for (String feature : row) {
+                    if (!first) {
+                        writer.addSeparator();
+                    } else {
+                        first = false;
                     }
-                    writer.newLine();
-                    if (peptideSection != null) {
-                        writer.increaseDepth();
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(false);
-                        }
-                        peptideSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, proteinMatch.getPeptideMatchesKeys(), nSurroundingAas, line + ".", validatedOnly, decoys, waitingHandler);
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(true);
-                        }
-                        writer.decreseDepth();
+                    writer.write(feature);
+                }
+                writer.newLine();
+                if (peptideSection != null) {
+                    writer.increaseDepth();
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(false);
                     }
-                    line++;
+                    peptideSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, proteinMatch.getPeptideMatchesKeys(), nSurroundingAas, line + ".", validatedOnly, decoys, waitingHandler);
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(true);
+                    }
+                    writer.decreseDepth();
                 }
+                line++;
             }
+        };
+
+        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(
+                keys, parameters, peptideSection != null, parameters, peptideSection != null, parameters, waitingHandler); // @TODO: find a better way to know if we need psms
+
+        try {
+            while (proteinMatchesIterator.hasNext()) {
+
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+
+                renderer.add(proteinMatchesIterator.next());
+            }
+            renderer.finish();
+        } catch (IllegalArgumentException e) {
+            if (e.getCause() instanceof MathException) {
+                throw (MathException) e.getCause();
+            }
+            throw e;
+        } finally {
+            renderer.close();
         }
     }
 
@@ -516,4 +598,20 @@ public class PsProteinSection {
         }
         writer.newLine();
     }
+
+    /**
+     * Returns the titles of the columns of the section.
+     *
+     * @return the titles of the columns of the section
+     */
+    private ArrayList<String> getColumnTitles() {
+        ArrayList<String> titles = new ArrayList<String>(proteinFeatures.size() + 1);
+        if (indexes) {
+            titles.add(ColumnarReportWriter.INDEX_COLUMN);
+        }
+        for (ExportFeature exportFeature : proteinFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        return titles;
+    }
 }
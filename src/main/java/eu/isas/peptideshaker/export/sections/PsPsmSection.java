@@ -17,6 +17,7 @@ import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.io.export.ExportFeature;
 import com.compomics.util.io.export.ExportWriter;
 import com.compomics.util.preferences.IdentificationParameters;
+import eu.isas.peptideshaker.export.ColumnarReportWriter;
 import eu.isas.peptideshaker.export.exportfeatures.PsFragmentFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsIdentificationAlgorithmMatchesFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsPsmFeature;
@@ -66,6 +67,15 @@ public class PsPsmSection {
      * The writer used to send the output to file.
      */
     private ExportWriter writer;
+    /**
+     * The writer used to send the output to a columnar report, null if not
+     * exporting a columnar report.
+     */
+    private ColumnarReportWriter columnarWriter = null;
+    /**
+     * The number of threads to use to render the rows.
+     */
+    private int nThreads;
 
     /**
      * Constructor.
@@ -74,8 +84,9 @@ public class PsPsmSection {
      * @param indexes indicates whether the line index should be written
      * @param header indicates whether the table header should be written
      * @param writer the writer which will write to the file
+     * @param nThreads the number of threads to use to render the rows
      */
-    public PsPsmSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, boolean header, ExportWriter writer) {
+    public PsPsmSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, boolean header, ExportWriter writer, int nThreads) {
         ArrayList<ExportFeature> fragmentFeatures = new ArrayList<ExportFeature>();
         for (ExportFeature exportFeature : exportFeatures) {
             if (exportFeature instanceof PsPsmFeature) {
@@ -96,6 +107,24 @@ public class PsPsmSection {
         this.indexes = indexes;
         this.header = header;
         this.writer = writer;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Constructor for an export as columnar report. Subsections are not
+     * supported.
+     *
+     * @param exportFeatures the features to export in this section
+     * @param indexes indicates whether the line index should be written
+     * @param columnarWriter the writer which will write to the columnar report
+     * @param nThreads the number of threads to use to render the rows
+     */
+    public PsPsmSection(ArrayList<ExportFeature> exportFeatures, boolean indexes, ColumnarReportWriter columnarWriter, int nThreads) {
+        this(exportFeatures, indexes, false, null, nThreads);
+        if (fragmentSection != null) {
+            throw new IllegalArgumentException("Fragment features cannot be exported as subsections of a columnar report.");
+        }
+        this.columnarWriter = columnarWriter;
     }
 
     /**
@@ -124,16 +153,18 @@ public class PsPsmSection {
      * @throws MzMLUnmarshallerException thrown whenever an error occurred while
      * reading an mzML file
      */
-    public void writeSection(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
-            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys,
-            String linePrefix, int nSurroundingAA, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+    public void writeSection(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters, final ArrayList<String> keys,
+            final String linePrefix, final int nSurroundingAA, final boolean validatedOnly, final boolean decoys, final WaitingHandler waitingHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
         if (waitingHandler != null) {
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
         }
 
-        if (header) {
+        if (columnarWriter != null) {
+            columnarWriter.startTable(PsPsmFeature.type, getColumnTitles());
+        } else if (header) {
             writeHeader();
         }
 
@@ -151,7 +182,6 @@ public class PsPsmSection {
             }
         }
 
-        int line = 1;
         int totalSize = 0;
 
         for (String spectrumFile : psmMap.keySet()) {
@@ -164,94 +194,129 @@ public class PsPsmSection {
             waitingHandler.setMaxSecondaryProgressCounter(totalSize);
         }
 
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+        parameters.add(new PSParameter());
 
-        for (String spectrumFile : psmMap.keySet()) {
+        SectionRowsRenderer<SpectrumMatch> renderer = new SectionRowsRenderer<SpectrumMatch>(nThreads) {
+
+            /**
+             * The index of the next line.
+             */
+            private int line = 1;
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFile, new ArrayList<String>(
-                    psmMap.get(spectrumFile)), parameters, !identificationAlgorithmMatchesFeatures.isEmpty(), waitingHandler);
+            @Override
+            protected ArrayList<String> getRow(SpectrumMatch spectrumMatch) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-            while (psmIterator.hasNext()) {
+                PSParameter psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumMatch.getKey(), new PSParameter());
+
+                if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()) {
+                    return null;
+                }
 
-                if (waitingHandler != null) {
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
+                PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+
+                if (!decoys && peptideAssumption != null && peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+                    return null;
+                }
+
+                ArrayList<String> row = new ArrayList<String>(identificationAlgorithmMatchesFeatures.size() + psmFeatures.size());
+                for (PsIdentificationAlgorithmMatchesFeature identificationAlgorithmMatchesFeature : identificationAlgorithmMatchesFeatures) {
+                    String feature;
+                    if (peptideAssumption != null) {
+                        feature = PsIdentificationAlgorithmMatchesSection.getPeptideAssumptionFeature(identification, identificationFeaturesGenerator,
+                                shotgunProtocol, identificationParameters, keys, linePrefix, nSurroundingAA, peptideAssumption, spectrumMatch.getKey(),
+                                psParameter, identificationAlgorithmMatchesFeature, waitingHandler);
+                    } else if (spectrumMatch.getBestTagAssumption() != null) {
+                        TagAssumption tagAssumption = spectrumMatch.getBestTagAssumption();
+                        feature = PsIdentificationAlgorithmMatchesSection.getTagAssumptionFeature(identification, identificationFeaturesGenerator,
+                                shotgunProtocol, identificationParameters, keys, linePrefix, tagAssumption, spectrumMatch.getKey(), psParameter,
+                                identificationAlgorithmMatchesFeature, waitingHandler);
+                    } else {
+                        throw new IllegalArgumentException("No best match found for spectrum " + spectrumMatch.getKey() + ".");
                     }
-                    waitingHandler.increaseSecondaryProgressCounter();
+                    row.add(feature);
+                }
+                for (PsPsmFeature psmFeature : psmFeatures) {
+                    row.add(getFeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters,
+                            keys, linePrefix, spectrumMatch, psParameter, psmFeature, validatedOnly, decoys, waitingHandler));
                 }
+                return row;
+            }
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
+            @Override
+            protected void writeRow(SpectrumMatch spectrumMatch, ArrayList<String> row) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+                if (row == null) {
+                    return;
+                }
 
-                if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
+                if (columnarWriter != null) {
+                    if (indexes) {
+                        row.add(0, line + "");
+                    }
+                    columnarWriter.addRow(row);
+                    line++;
+                    return;
+                }
 
-                    PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+                boolean first = true;
 
-                    if (decoys || peptideAssumption == null || !peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+                if (indexes) {
+                    if (linePrefix != null) {
+                        writer.write(linePrefix);
+                    }
+                    writer.write(line + "");
+                    first = false;
+                }
+                for (String feature : row) {
+                    if (!first) {
+                        writer.addSeparator();
+                    } else {
+                        first = false;
+                    }
+                    writer.write(feature);
+                }
+                writer.newLine();
+                if (fragmentSection != null) {
+                    String spectrumKey = spectrumMatch.getKey();
+                    String fractionPrefix = "";
+                    if (linePrefix != null) {
+                        fractionPrefix += linePrefix;
+                    }
+                    fractionPrefix += line + ".";
+                    writer.increaseDepth();
+                    if (spectrumMatch.getBestPeptideAssumption() != null) {
+                        fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestPeptideAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
+                    } else if (spectrumMatch.getBestTagAssumption() != null) {
+                        fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestTagAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
+                    }
+                    writer.decreseDepth();
+                }
+                line++;
+            }
+        };
 
-                        boolean first = true;
+        try {
+            for (String spectrumFile : psmMap.keySet()) {
 
-                        if (indexes) {
-                            if (linePrefix != null) {
-                                writer.write(linePrefix);
-                            }
-                            writer.write(line + "");
-                            first = false;
-                        }
-                        for (PsIdentificationAlgorithmMatchesFeature identificationAlgorithmMatchesFeature : identificationAlgorithmMatchesFeatures) {
-                            if (!first) {
-                                writer.addSeparator();
-                            } else {
-                                first = false;
-                            }
-                            String feature;
-                            if (peptideAssumption != null) {
-                                peptideAssumption = spectrumMatch.getBestPeptideAssumption();
-                                feature = PsIdentificationAlgorithmMatchesSection.getPeptideAssumptionFeature(identification, identificationFeaturesGenerator,
-                                        shotgunProtocol, identificationParameters, keys, linePrefix, nSurroundingAA, peptideAssumption, spectrumMatch.getKey(),
-                                        psParameter, identificationAlgorithmMatchesFeature, waitingHandler);
-                            } else if (spectrumMatch.getBestTagAssumption() != null) {
-                                TagAssumption tagAssumption = spectrumMatch.getBestTagAssumption();
-                                feature = PsIdentificationAlgorithmMatchesSection.getTagAssumptionFeature(identification, identificationFeaturesGenerator,
-                                        shotgunProtocol, identificationParameters, keys, linePrefix, tagAssumption, spectrumMatch.getKey(), psParameter,
-                                        identificationAlgorithmMatchesFeature, waitingHandler);
-                            } else {
-                                throw new IllegalArgumentException("No best match found for spectrum " + spectrumMatch.getKey() + ".");
-                            }
-                            writer.write(feature);
-                        }
-                        for (PsPsmFeature psmFeature : psmFeatures) {
-                            if (!first) {
-                                writer.addSeparator();
-                            } else {
-                                first = false;
-                            }
-                            writer.write(getFeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters,
-                                    keys, linePrefix, spectrumMatch, psParameter, psmFeature, validatedOnly, decoys, waitingHandler));
-                        }
-                        writer.newLine();
-                        if (fragmentSection != null) {
-                            String fractionPrefix = "";
-                            if (linePrefix != null) {
-                                fractionPrefix += linePrefix;
-                            }
-                            fractionPrefix += line + ".";
-                            writer.increaseDepth();
-                            if (spectrumMatch.getBestPeptideAssumption() != null) {
-                                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestPeptideAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
-                            } else if (spectrumMatch.getBestTagAssumption() != null) {
-                                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestTagAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
-                            }
-                            writer.decreseDepth();
+                PsmIterator psmIterator = identification.getPsmIterator(spectrumFile, new ArrayList<String>(
+                        psmMap.get(spectrumFile)), parameters, !identificationAlgorithmMatchesFeatures.isEmpty(), waitingHandler);
+
+                while (psmIterator.hasNext()) {
+
+                    if (waitingHandler != null) {
+                        if (waitingHandler.isRunCanceled()) {
+                            return;
                         }
-                        line++;
+                        waitingHandler.increaseSecondaryProgressCounter();
                     }
+
+                    renderer.add(psmIterator.next());
                 }
             }
+            renderer.finish();
+        } finally {
+            renderer.close();
         }
     }
 
@@ -638,4 +703,23 @@ public class PsPsmSection {
         }
         writer.newLine();
     }
+
+    /**
+     * Returns the titles of the columns of the section.
+     *
+     * @return the titles of the columns of the section
+     */
+    private ArrayList<String> getColumnTitles() {
+        ArrayList<String> titles = new ArrayList<String>(identificationAlgorithmMatchesFeatures.size() + psmFeatures.size() + 1);
+        if (indexes) {
+            titles.add(ColumnarReportWriter.INDEX_COLUMN);
+        }
+        for (ExportFeature exportFeature : identificationAlgorithmMatchesFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        for (ExportFeature exportFeature : psmFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        return titles;
+    }
 }
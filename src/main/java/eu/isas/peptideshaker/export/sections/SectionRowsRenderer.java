@@ -0,0 +1,276 @@
+package eu.isas.peptideshaker.export.sections;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+
+/**
+ * Renders the rows of a section in parallel batches. The matches are added in
+ * the order of the iterator, the features of the rows are computed by a pool
+ * of threads and the rows are written back in the same order on the calling
+ * thread. Sections smaller than a batch are rendered on the calling thread.
+ *
+ * @param <M> the type of match exported in a row
+ *
+ * @author Marc Vaudel
+ */
+public abstract class SectionRowsRenderer<M> {
+
+    /**
+     * The number of matches rendered by a thread at a time.
+     */
+    public static final int BATCH_SIZE = 100;
+    /**
+     * The number of threads to use.
+     */
+    private final int nThreads;
+    /**
+     * The pool rendering the batches, created upon submission of the first
+     * batch.
+     */
+    private ExecutorService pool = null;
+    /**
+     * The batch being filled.
+     */
+    private ArrayList<M> batch = new ArrayList<M>(BATCH_SIZE);
+    /**
+     * The batches submitted and not written yet in order of submission.
+     */
+    private final LinkedList<RowsBatch> pendingBatches = new LinkedList<RowsBatch>();
+
+    /**
+     * Constructor.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public SectionRowsRenderer(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Returns the features of the row of the given match, null if the match
+     * should not be exported. This method is called from multiple threads.
+     *
+     * @param match the match
+     *
+     * @return the features of the row
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    protected abstract ArrayList<String> getRow(M match) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException;
+
+    /**
+     * Writes the row of a match. This method is called on the thread adding
+     * the matches in the order of addition.
+     *
+     * @param match the match
+     * @param row the features of the row as returned by getRow, null if the
+     * match should not be exported
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    protected abstract void writeRow(M match, ArrayList<String> row) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException;
+
+    /**
+     * Adds a match to export. Rows rendered in the meantime are written.
+     *
+     * @param match the match
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public void add(M match) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+        batch.add(match);
+        if (batch.size() == BATCH_SIZE) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * Renders the remaining matches and writes all pending rows, then releases
+     * the threads.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public void finish() throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+        try {
+            if (pool == null) {
+                for (M match : batch) {
+                    writeRow(match, getRow(match));
+                }
+                batch.clear();
+            } else {
+                if (!batch.isEmpty()) {
+                    submitBatch();
+                }
+                while (!pendingBatches.isEmpty()) {
+                    writeBatch(pendingBatches.removeFirst());
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Releases the threads and discards the pending rows, e.g. when the export
+     * is canceled.
+     */
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        pendingBatches.clear();
+        batch.clear();
+    }
+
+    /**
+     * Submits the current batch to the pool and writes the oldest batches if
+     * too many are pending.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    private void submitBatch() throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(nThreads);
+        }
+        final ArrayList<M> matches = batch;
+        batch = new ArrayList<M>(BATCH_SIZE);
+        Future<ArrayList<ArrayList<String>>> rows = pool.submit(new Callable<ArrayList<ArrayList<String>>>() {
+            @Override
+            public ArrayList<ArrayList<String>> call() throws Exception {
+                ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>(matches.size());
+                for (M match : matches) {
+                    result.add(getRow(match));
+                }
+                return result;
+            }
+        });
+        pendingBatches.add(new RowsBatch(matches, rows));
+        while (pendingBatches.size() > 2 * nThreads) {
+            writeBatch(pendingBatches.removeFirst());
+        }
+    }
+
+    /**
+     * Waits for a batch to be rendered and writes its rows.
+     *
+     * @param rowsBatch the batch to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    private void writeBatch(RowsBatch rowsBatch) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+        ArrayList<ArrayList<String>> rows;
+        try {
+            rows = rowsBatch.rows.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof MzMLUnmarshallerException) {
+                throw (MzMLUnmarshallerException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalArgumentException(cause);
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            writeRow(rowsBatch.matches.get(i), rows.get(i));
+        }
+    }
+
+    /**
+     * A batch of matches and the future of their rows.
+     */
+    private class RowsBatch {
+
+        /**
+         * The matches of the batch.
+         */
+        private final ArrayList<M> matches;
+        /**
+         * The rows of the matches.
+         */
+        private final Future<ArrayList<ArrayList<String>>> rows;
+
+        /**
+         * Constructor.
+         *
+         * @param matches the matches of the batch
+         * @param rows the rows of the matches
+         */
+        private RowsBatch(ArrayList<M> matches, Future<ArrayList<ArrayList<String>>> rows) {
+            this.matches = matches;
+            this.rows = rows;
+        }
+    }
+}
@@ -1,19 +1,24 @@
 package eu.isas.peptideshaker.fileimport;
 
 import com.compomics.software.CompomicsWrapper;
+import com.compomics.util.Util;
 import com.compomics.util.db.ObjectsDB;
 import com.compomics.util.experiment.MsExperiment;
 import com.compomics.util.experiment.biology.Sample;
 import com.compomics.util.experiment.io.ExperimentIO;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.io.compression.TarUtils;
+import eu.isas.peptideshaker.export.CpsExporter;
 import eu.isas.peptideshaker.parameters.PeptideShakerSettings;
 import eu.isas.peptideshaker.utils.CpsParent;
+import eu.isas.peptideshaker.utils.TarArchiveIndex;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import org.apache.commons.compress.archivers.ArchiveException;
 
 /**
@@ -45,18 +50,174 @@ public class CpsFileImporter {
      * thrown whenever an error occurred while untaring the file
      */
     public CpsFileImporter(File cpsFile, File dbFolder, WaitingHandler waitingHandler) throws FileNotFoundException, IOException, ClassNotFoundException, ArchiveException {
+        this(cpsFile, dbFolder, waitingHandler, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cpsFile the cps file
+     * @param dbFolder the path where to store the database
+     * @param waitingHandler the waiting handler
+     * @param reuseExtractedFiles if true, the files already extracted from
+     * this cps file in the database folder and not modified since are not
+     * extracted again
+     *
+     * @throws FileNotFoundException thrown if the file to import cannot be
+     * found
+     * @throws IOException thrown if there is a problem extracting or loading
+     * the file
+     * @throws ClassNotFoundException thrown if there is a problem loading the
+     * experiment data
+     * @throws org.apache.commons.compress.archivers.ArchiveException exception
+     * thrown whenever an error occurred while untaring the file
+     */
+    public CpsFileImporter(File cpsFile, File dbFolder, WaitingHandler waitingHandler, boolean reuseExtractedFiles) throws FileNotFoundException, IOException, ClassNotFoundException, ArchiveException {
 
         if (waitingHandler != null) {
             waitingHandler.resetSecondaryProgressCounter();
             waitingHandler.setMaxSecondaryProgressCounter(100);
         }
 
-        TarUtils.extractFile(cpsFile, dbFolder, waitingHandler);
+        HashMap<String, long[]> extractedFiles = null;
+        if (reuseExtractedFiles) {
+            extractedFiles = CpsExporter.readSaveManifest(dbFolder, cpsFile);
+        }
+
+        // the manifest is only valid once the archive is completely extracted
+        File manifestFile = new File(dbFolder, CpsExporter.SAVE_MANIFEST_NAME);
+        if (manifestFile.exists() && !manifestFile.delete()) {
+            throw new IOException("Impossible to delete " + manifestFile.getAbsolutePath() + ".");
+        }
+
+        // the checksums are recorded during extraction, they are listed as unknown for archives extracted at once
+        HashMap<String, Long> checksums = new HashMap<String, Long>();
+        if (!reuseExtractedFiles || !extractChangedFiles(cpsFile, dbFolder, extractedFiles, checksums, waitingHandler)) {
+            TarUtils.extractFile(cpsFile, dbFolder, waitingHandler);
+        }
+        if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
+            CpsExporter.writeSaveManifest(dbFolder, cpsFile, checksums);
+        }
 
         File experimentFile = new File(dbFolder, MsExperiment.experimentObjectName);
         experiment = ExperimentIO.loadExperiment(experimentFile);
     }
 
+    /**
+     * Extracts the files of the cps file which are not already in the
+     * database folder in the state they were extracted or saved. Files of the
+     * project folders which are not in the cps file are deleted, other folders
+     * of the database folder are left untouched. Only the entry headers of the
+     * archive are read to find the files to extract.
+     *
+     * @param cpsFile the cps file
+     * @param dbFolder the path where to store the database
+     * @param extractedFiles the size, last modification and checksum of the
+     * files extracted or saved as listed in the save manifest, can be null
+     * @param checksums map where to store the checksums of the files reused or
+     * extracted indexed by relative path, when known
+     * @param waitingHandler the waiting handler
+     *
+     * @return false if the cps file could not be indexed and needs to be
+     * extracted completely
+     *
+     * @throws IOException thrown if there is a problem extracting the file
+     */
+    private boolean extractChangedFiles(File cpsFile, File dbFolder, HashMap<String, long[]> extractedFiles, HashMap<String, Long> checksums,
+            WaitingHandler waitingHandler) throws IOException {
+
+        TarArchiveIndex archiveIndex = new TarArchiveIndex(cpsFile);
+        if (!archiveIndex.isSupported()) {
+            return false;
+        }
+        String experimentEntryName = archiveIndex.getEntryName(MsExperiment.experimentObjectName);
+        if (experimentEntryName == null) {
+            return false;
+        }
+        String entryPrefix = experimentEntryName.substring(0, experimentEntryName.length() - MsExperiment.experimentObjectName.length());
+
+        HashMap<String, String> entryNames = new HashMap<String, String>();
+        HashSet<String> projectFolders = new HashSet<String>();
+        for (String entryName : archiveIndex.getEntryNames()) {
+            if (entryName.startsWith(entryPrefix)) {
+                String path = entryName.substring(entryPrefix.length());
+                entryNames.put(path, entryName);
+                int separatorIndex = path.indexOf('/');
+                if (separatorIndex > 0) {
+                    projectFolders.add(path.substring(0, separatorIndex));
+                }
+            }
+        }
+
+        if (extractedFiles == null) {
+            extractedFiles = new HashMap<String, long[]>(0);
+        }
+
+        // remove the files of the project folders which are not part of the project
+        dbFolder.mkdirs();
+        for (String projectFolder : projectFolders) {
+            deleteFilesNotInArchive(dbFolder, new File(dbFolder, projectFolder), entryNames);
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.setMaxSecondaryProgressCounter(entryNames.size());
+        }
+
+        int nExtracted = 0, nReused = 0;
+        long bytesExtracted = 0;
+        for (String path : entryNames.keySet()) {
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return true;
+                }
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+            File file = new File(dbFolder, path);
+            long[] extractedFile = extractedFiles.get(path);
+            if (CpsExporter.isUnchanged(file, extractedFile)) {
+                checksums.put(path, extractedFile[2]);
+                nReused++;
+            } else {
+                String entryName = entryNames.get(path);
+                checksums.put(path, archiveIndex.extract(entryName, file));
+                nExtracted++;
+                bytesExtracted += archiveIndex.getSize(entryName);
+            }
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.appendReport(nExtracted + " files extracted (" + Util.roundDouble(bytesExtracted / 1048576.0, 1) + " MB), "
+                    + nReused + " files reused from " + dbFolder.getAbsolutePath() + ".", true, true);
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes the files of a folder and its subfolders which are not in the
+     * archive.
+     *
+     * @param dbFolder the database folder
+     * @param folder the folder to inspect
+     * @param entryNames the archive entries indexed by path relative to the
+     * database folder
+     */
+    private void deleteFilesNotInArchive(File dbFolder, File folder, HashMap<String, String> entryNames) {
+        File[] folderContent = folder.listFiles();
+        if (folderContent != null) {
+            for (File file : folderContent) {
+                if (file.isDirectory()) {
+                    deleteFilesNotInArchive(dbFolder, file, entryNames);
+                } else if (!file.getName().equals(CpsExporter.SAVE_MANIFEST_NAME)) {
+                    String path = file.getAbsolutePath().substring(dbFolder.getAbsolutePath().length() + 1).replace(File.separatorChar, '/');
+                    if (!entryNames.containsKey(path)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Returns the PeptideShaker settings saved in the given database.
      *
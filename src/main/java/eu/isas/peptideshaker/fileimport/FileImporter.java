@@ -28,6 +28,7 @@ import com.compomics.util.gui.JOptionEditorPane;
 import eu.isas.peptideshaker.PeptideShaker;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingDialog;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
 import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.preferences.GenePreferences;
 import com.compomics.util.preferences.IdentificationParameters;
@@ -50,6 +51,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is responsible for the import of identifications.
@@ -99,6 +104,24 @@ public class FileImporter {
      * resolution in X!Tandem result files.
      */
     public static final double PTM_MASS_TOLERANCE = 0.01;
+    /**
+     * The default maximal number of identification files imported
+     * concurrently.
+     */
+    public static final int DEFAULT_MAX_PARALLEL_ID_FILES = 4;
+    /**
+     * The maximal number of identification files imported concurrently. The
+     * threads of the processing preferences are shared between the files.
+     */
+    private int maxParallelIdFiles = DEFAULT_MAX_PARALLEL_ID_FILES;
+    /**
+     * The number of PSMs handed over to the import threads at once.
+     */
+    private int psmBatchSize = PsmImporter.DEFAULT_BATCH_SIZE;
+    /**
+     * The maximal number of PSM batches waiting to be imported.
+     */
+    private int psmQueueDepth = PsmImporter.DEFAULT_QUEUE_DEPTH;
     /**
      * The shotgun protocol.
      */
@@ -159,6 +182,66 @@ public class FileImporter {
         }
     }
 
+    /**
+     * Returns the maximal number of identification files imported
+     * concurrently.
+     *
+     * @return the maximal number of identification files imported
+     * concurrently
+     */
+    public int getMaxParallelIdFiles() {
+        return maxParallelIdFiles;
+    }
+
+    /**
+     * Sets the maximal number of identification files imported concurrently.
+     * Set to one to import the files one after the other.
+     *
+     * @param maxParallelIdFiles the maximal number of identification files
+     * imported concurrently
+     */
+    public void setMaxParallelIdFiles(int maxParallelIdFiles) {
+        this.maxParallelIdFiles = Math.max(maxParallelIdFiles, 1);
+    }
+
+    /**
+     * Returns the number of PSMs handed over to the import threads at once.
+     *
+     * @return the number of PSMs handed over to the import threads at once
+     */
+    public int getPsmBatchSize() {
+        return psmBatchSize;
+    }
+
+    /**
+     * Sets the number of PSMs handed over to the import threads at once.
+     *
+     * @param psmBatchSize the number of PSMs handed over to the import
+     * threads at once
+     */
+    public void setPsmBatchSize(int psmBatchSize) {
+        this.psmBatchSize = Math.max(psmBatchSize, 1);
+    }
+
+    /**
+     * Returns the maximal number of PSM batches waiting to be imported.
+     *
+     * @return the maximal number of PSM batches waiting to be imported
+     */
+    public int getPsmQueueDepth() {
+        return psmQueueDepth;
+    }
+
+    /**
+     * Sets the maximal number of PSM batches waiting to be imported.
+     *
+     * @param psmQueueDepth the maximal number of PSM batches waiting to be
+     * imported
+     */
+    public void setPsmQueueDepth(int psmQueueDepth) {
+        this.psmQueueDepth = Math.max(psmQueueDepth, 1);
+    }
+
     /**
      * Imports sequences from a FASTA file.
      *
@@ -325,7 +408,7 @@ public class FileImporter {
         /**
          * List of the mgf files used.
          */
-        private ArrayList<String> mgfUsed = new ArrayList<String>();
+        private Set<String> mgfUsed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         /**
          * Map of the missing mgf files indexed by identification file.
          */
@@ -347,7 +430,7 @@ public class FileImporter {
          */
         private PeptideMapper peptideMapper;
         /**
-         * A tag to protein mapper.
+         * A tag to protein mapper, shared by the files imported concurrently.
          */
         private TagMapper tagMapper = null;
         /**
@@ -375,6 +458,11 @@ public class FileImporter {
          * The identification parameters.
          */
         private IdentificationParameters identificationParameters;
+        /**
+         * The first error encountered while importing identification files
+         * concurrently.
+         */
+        private Throwable idFileImportError = null;
 
         /**
          * Constructor for a worker importing matches from a list of files.
@@ -484,17 +572,15 @@ public class FileImporter {
 
                     waitingHandler.appendReport("Reading identification files.", true, true);
 
-                    for (File idFile : idFiles) {
-                        importPsms(idFile);
+                    importPsms(idFiles);
 
-                        if (waitingHandler.isRunCanceled()) {
-                            try {
-                                identification.close();
-                            } catch (Exception e) {
-                                e.printStackTrace(); // Let derby crash
-                            }
-                            return 1;
+                    if (waitingHandler.isRunCanceled()) {
+                        try {
+                            identification.close();
+                        } catch (Exception e) {
+                            e.printStackTrace(); // Let derby crash
                         }
+                        return 1;
                     }
 
                     while (!missingMgfFiles.isEmpty()) {
@@ -530,9 +616,7 @@ public class FileImporter {
                             projectDetails.addSpectrumFile(newFile);
                         }
                         missingMgfFiles.clear();
-                        for (File idFile : filesToProcess) {
-                            importPsms(idFile);
-                        }
+                        importPsms(filesToProcess);
                         if (waitingHandler.isRunCanceled()) {
                             identification.close();
                             sequenceFactory.clearFactory();
@@ -649,10 +733,74 @@ public class FileImporter {
             identification.establishConnection(dbFolder, true, peptideShaker.getCache());
         }
 
+        /**
+         * Imports the PSMs from the given identification files. Sequencing
+         * files are imported one after the other as they need much more
+         * memory, the other files are imported concurrently when more than one
+         * thread is available. The threads of the processing preferences are
+         * then split between the files imported in parallel.
+         *
+         * @param idFiles the identification files
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * importing a file
+         * @throws OutOfMemoryError thrown if the parser of an id file runs out
+         * of memory
+         */
+        private void importPsms(ArrayList<File> idFiles) throws Exception, OutOfMemoryError {
+
+            int nThreads = processingPreferences.getnThreads();
+            ArrayList<File> parallelFiles = new ArrayList<File>(idFiles.size());
+
+            // created before the files are imported, the mapper is then only read by the import threads
+            tagMapper = new TagMapper(identificationParameters, exceptionHandler);
+
+            for (File idFile : idFiles) {
+                if (nThreads == 1 || maxParallelIdFiles == 1 || idFile.getName().endsWith("tags")) {
+                    importPsms(idFile, nThreads, waitingHandler);
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                } else {
+                    parallelFiles.add(idFile);
+                }
+            }
+
+            if (parallelFiles.size() == 1) {
+                importPsms(parallelFiles.get(0), nThreads, waitingHandler);
+            } else if (!parallelFiles.isEmpty()) {
+                // the thread budget is split between the files, every file uses its share for its PSM import, tag mapping and peptide mapping pools
+                int nParallelFiles = Math.min(Math.min(parallelFiles.size(), maxParallelIdFiles), nThreads);
+                int nThreadsPerFile = Math.max(nThreads / nParallelFiles, 1);
+                idFileImportError = null;
+                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+                waitingHandler.resetSecondaryProgressCounter();
+                waitingHandler.setMaxSecondaryProgressCounter(parallelFiles.size());
+                ExecutorService pool = Executors.newFixedThreadPool(nParallelFiles);
+                for (File idFile : parallelFiles) {
+                    IdFileImporterRunnable idFileImporterRunnable = new IdFileImporterRunnable(idFile, nThreadsPerFile);
+                    pool.submit(idFileImporterRunnable);
+                }
+                pool.shutdown();
+                if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                    throw new InterruptedException("Identification files import timed out. Please contact the developers.");
+                }
+                if (idFileImportError != null) {
+                    if (idFileImportError instanceof Exception) {
+                        throw (Exception) idFileImportError;
+                    }
+                    throw (Error) idFileImportError;
+                }
+            }
+        }
+
         /**
          * Imports the PSMs from an identification file.
          *
          * @param idFile the identification file
+         * @param nThreads the number of threads to use for this file
+         * @param waitingHandler the handler displaying the progress of this
+         * file
          * @throws FileNotFoundException exception thrown whenever a file was
          * not found
          * @throws IOException exception thrown whenever an error occurred while
@@ -664,7 +812,7 @@ public class FileImporter {
          * @throws OutOfMemoryError thrown if the parser if the id files runs
          * out of memory
          */
-        public void importPsms(File idFile) throws FileNotFoundException, IOException, SAXException, MzMLUnmarshallerException, IllegalArgumentException, Exception, OutOfMemoryError {
+        public void importPsms(File idFile, int nThreads, WaitingHandler waitingHandler) throws FileNotFoundException, IOException, SAXException, MzMLUnmarshallerException, IllegalArgumentException, Exception, OutOfMemoryError {
 
             identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -703,7 +851,9 @@ public class FileImporter {
 
             // set the search engine name and version for this file
             HashMap<String, ArrayList<String>> software = fileReader.getSoftwareVersions();
-            projectDetails.setIdentificationAlgorithmsForFile(Util.getFileName(idFile), software);
+            synchronized (projectDetails) {
+                projectDetails.setIdentificationAlgorithmsForFile(Util.getFileName(idFile), software);
+            }
 
             // check for unsupported software
             if (!software.isEmpty()) {
@@ -732,7 +882,7 @@ public class FileImporter {
                     int nTags = 0;
                     for (SpectrumMatch spectrumMatch : idFileSpectrumMatches) {
                         // Verify that the spectrum is in the provided mgf files
-                        if (!importSpectrum(idFile, spectrumMatch, numberOfMatches)) {
+                        if (!importSpectrum(idFile, spectrumMatch, numberOfMatches, waitingHandler)) {
                             allLoaded = false;
                         }
                         // Load spectrum in cache for tag mapping
@@ -749,14 +899,11 @@ public class FileImporter {
                     if (allLoaded) {
 
                         // if any map spectrum sequencing matches on protein sequences
-                        if (tagMapper == null) {
-                            tagMapper = new TagMapper(identificationParameters, exceptionHandler);
-                        }
                         if (fileReader.getTagsMap() != null && !fileReader.getTagsMap().isEmpty()) {
                             if (!peptideShaker.getCache().isEmpty()) {
                                 peptideShaker.getCache().reduceMemoryConsumption(0.9, waitingHandler);
                             }
-                            tagMapper.mapTags(fileReader, identification, waitingHandler, processingPreferences.getnThreads());
+                            tagMapper.mapTags(fileReader, identification, waitingHandler, nThreads);
                         }
 
                         // Batch map the peptides on protein sequences
@@ -768,7 +915,7 @@ public class FileImporter {
                                 waitingHandler.appendReport("Collecting peptides to map.", true, true);
                                 HashMap<String, LinkedList<Peptide>> peptideMap = PeptideMapper.getPeptideMap(fileReader, idFileSpectrumMatches, identification, identificationParameters, waitingHandler);
                                 if (!peptideMapper.isCanceled()) {
-                                    peptideMapper.mapPeptides(peptideMap, processingPreferences.getnThreads(), waitingHandler);
+                                    peptideMapper.mapPeptides(peptideMap, nThreads, waitingHandler);
                                 }
                                 if (peptideMapper.isCanceled()) {
                                     peptideMap.clear();
@@ -797,29 +944,15 @@ public class FileImporter {
 
                         PsmImporter psmImporter = new PsmImporter(peptideShaker.getCache(), shotgunProtocol, identificationParameters, processingPreferences, fileReader, idFile, identification,
                                 inputMap, proteinCount, singleProteinList, exceptionHandler);
-                        psmImporter.importPsms(idFileSpectrumMatches, processingPreferences.getnThreads(), waitingHandler);
+                        psmImporter.setBatchSize(psmBatchSize);
+                        psmImporter.setQueueDepth(psmQueueDepth);
+                        psmImporter.importPsms(idFileSpectrumMatches, nThreads, waitingHandler);
 
                         if (waitingHandler.isRunCanceled()) {
                             return;
                         }
 
-                        nPSMs += psmImporter.getnPSMs();
-                        nSecondary += psmImporter.getnSecondary();
-                        nRetained += psmImporter.getnRetained();
-
-                        metrics.addFoundCharges(psmImporter.getCharges());
-                        if (psmImporter.getMaxPeptideErrorDa() > metrics.getMaxPeptidePrecursorErrorDa()) {
-                            metrics.setMaxPeptidePrecursorErrorDa(psmImporter.getMaxPeptideErrorDa());
-                        }
-                        if (psmImporter.getMaxPeptideErrorPpm() > metrics.getMaxPeptidePrecursorErrorPpm()) {
-                            metrics.setMaxPeptidePrecursorErrorPpm(psmImporter.getMaxPeptideErrorPpm());
-                        }
-                        if (psmImporter.getMaxTagErrorDa() > metrics.getMaxTagPrecursorErrorDa()) {
-                            metrics.setMaxTagPrecursorErrorDa(psmImporter.getMaxTagErrorDa());
-                        }
-                        if (psmImporter.getMaxTagErrorPpm() > metrics.getMaxTagPrecursorErrorPpm()) {
-                            metrics.setMaxTagPrecursorErrorPpm(psmImporter.getMaxTagErrorPpm());
-                        }
+                        addImportedPsms(psmImporter);
 
                         // Free at least 0.5GB for the next parser if not anymore available
                         if (!MemoryConsumptionStatus.halfGbFree() && !peptideShaker.getCache().isEmpty()) {
@@ -839,7 +972,9 @@ public class FileImporter {
                                 proteinTree.reduceNodeCacheSize(0.5);
                             }
                         }
-                        projectDetails.addIdentificationFiles(idFile);
+                        synchronized (projectDetails) {
+                            projectDetails.addIdentificationFiles(idFile);
+                        }
 
                         int psmsRejected = psmImporter.getPsmsRejected();
                         int noProteins = psmImporter.getMissingProteins();
@@ -960,6 +1095,47 @@ public class FileImporter {
             waitingHandler.increasePrimaryProgressCounter();
         }
 
+        /**
+         * Adds the counts and metrics of the given PSM importer to the ones of
+         * the project.
+         *
+         * @param psmImporter the PSM importer which completed the import of a
+         * file
+         */
+        private synchronized void addImportedPsms(PsmImporter psmImporter) {
+
+            nPSMs += psmImporter.getnPSMs();
+            nSecondary += psmImporter.getnSecondary();
+            nRetained += psmImporter.getnRetained();
+
+            metrics.addFoundCharges(psmImporter.getCharges());
+            if (psmImporter.getMaxPeptideErrorDa() > metrics.getMaxPeptidePrecursorErrorDa()) {
+                metrics.setMaxPeptidePrecursorErrorDa(psmImporter.getMaxPeptideErrorDa());
+            }
+            if (psmImporter.getMaxPeptideErrorPpm() > metrics.getMaxPeptidePrecursorErrorPpm()) {
+                metrics.setMaxPeptidePrecursorErrorPpm(psmImporter.getMaxPeptideErrorPpm());
+            }
+            if (psmImporter.getMaxTagErrorDa() > metrics.getMaxTagPrecursorErrorDa()) {
+                metrics.setMaxTagPrecursorErrorDa(psmImporter.getMaxTagErrorDa());
+            }
+            if (psmImporter.getMaxTagErrorPpm() > metrics.getMaxTagPrecursorErrorPpm()) {
+                metrics.setMaxTagPrecursorErrorPpm(psmImporter.getMaxTagErrorPpm());
+            }
+        }
+
+        /**
+         * Stores the first error encountered while importing identification
+         * files concurrently and cancels the import.
+         *
+         * @param error the error encountered
+         */
+        private synchronized void setIdFileImportError(Throwable error) {
+            if (idFileImportError == null) {
+                idFileImportError = error;
+            }
+            waitingHandler.setRunCanceled();
+        }
+
         /**
          * Checks whether the spectrum file needed for the given spectrum match
          * is loaded and if the spectrum is present. Try to load it from the
@@ -969,11 +1145,13 @@ public class FileImporter {
          * @param spectrumMatch the spectrum match
          * @param numberOfMatches the number of matches expected for this
          * identification file
+         * @param waitingHandler the handler displaying the progress of the
+         * identification file
          *
          * @return indicates whether the spectrum is imported, false if the file
          * was not found
          */
-        private boolean importSpectrum(File idFile, SpectrumMatch spectrumMatch, int numberOfMatches) {
+        private boolean importSpectrum(File idFile, SpectrumMatch spectrumMatch, int numberOfMatches, WaitingHandler waitingHandler) {
 
             String spectrumKey = spectrumMatch.getKey();
             String fileName = Spectrum.getSpectrumFile(spectrumKey);
@@ -987,22 +1165,8 @@ public class FileImporter {
             }
 
             // import the mgf file if not done already
-            if (!mgfUsed.contains(fileName)) {
-                File spectrumFile = spectrumFiles.get(fileName);
-                if (spectrumFile != null && spectrumFile.exists()) {
-                    importSpectra(fileName);
-                    waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                    waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
-                    mgfUsed.add(fileName);
-                    projectDetails.addSpectrumFile(spectrumFile);
-                    nSpectra += spectrumFactory.getNSpectra(fileName);
-                } else {
-                    if (!missingMgfFiles.containsKey(idFile)) {
-                        missingMgfFiles.put(idFile, fileName);
-                        waitingHandler.appendReport(fileName + " not found.", true, true);
-                    }
-                    return false;
-                }
+            if (!mgfUsed.contains(fileName) && !importSpectrumFile(idFile, fileName, numberOfMatches, waitingHandler)) {
+                return false;
             }
 
             // remap missing spectrum titles
@@ -1040,6 +1204,41 @@ public class FileImporter {
             return true;
         }
 
+        /**
+         * Imports the given spectrum file if not done already. Only one
+         * spectrum file is imported at a time.
+         *
+         * @param idFile the identification file
+         * @param fileName the name of the spectrum file
+         * @param numberOfMatches the number of matches expected for this
+         * identification file
+         * @param waitingHandler the handler displaying the progress of the
+         * identification file
+         *
+         * @return indicates whether the spectrum file is imported, false if
+         * the file was not found
+         */
+        private synchronized boolean importSpectrumFile(File idFile, String fileName, int numberOfMatches, WaitingHandler waitingHandler) {
+            if (!mgfUsed.contains(fileName)) {
+                File spectrumFile = spectrumFiles.get(fileName);
+                if (spectrumFile != null && spectrumFile.exists()) {
+                    importSpectra(fileName, waitingHandler);
+                    waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+                    waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
+                    projectDetails.addSpectrumFile(spectrumFile);
+                    nSpectra += spectrumFactory.getNSpectra(fileName);
+                    mgfUsed.add(fileName);
+                } else {
+                    if (!missingMgfFiles.containsKey(idFile)) {
+                        missingMgfFiles.put(idFile, fileName);
+                        waitingHandler.appendReport(fileName + " not found.", true, true);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * Verify that the spectra are imported and imports spectra from the
          * desired spectrum file if necessary.
@@ -1047,6 +1246,17 @@ public class FileImporter {
          * @param targetFileName the spectrum file
          */
         public void importSpectra(String targetFileName) {
+            importSpectra(targetFileName, waitingHandler);
+        }
+
+        /**
+         * Verify that the spectra are imported and imports spectra from the
+         * desired spectrum file if necessary.
+         *
+         * @param targetFileName the spectrum file
+         * @param waitingHandler the handler displaying the progress
+         */
+        private void importSpectra(String targetFileName, WaitingHandler waitingHandler) {
 
             File spectrumFile = spectrumFiles.get(targetFileName);
 
@@ -1068,6 +1278,98 @@ public class FileImporter {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * Runnable importing the PSMs of an identification file.
+         */
+        private class IdFileImporterRunnable implements Runnable {
+
+            /**
+             * The identification file to import.
+             */
+            private File idFile;
+            /**
+             * The number of threads to use for this file.
+             */
+            private int nThreads;
+
+            /**
+             * Constructor.
+             *
+             * @param idFile the identification file to import
+             * @param nThreads the number of threads to use for this file
+             */
+            public IdFileImporterRunnable(File idFile, int nThreads) {
+                this.idFile = idFile;
+                this.nThreads = nThreads;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (!waitingHandler.isRunCanceled()) {
+                        importPsms(idFile, nThreads, new IdFileWaitingHandler(waitingHandler));
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                } catch (Throwable e) {
+                    setIdFileImportError(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waiting handler used for an identification file imported concurrently
+     * with other files. The secondary progress is kept per file while reports,
+     * primary progress and cancellation are forwarded to the waiting handler
+     * of the import.
+     */
+    private static class IdFileWaitingHandler extends WaitingHandlerCLIImpl {
+
+        /**
+         * The waiting handler of the import.
+         */
+        private final WaitingHandler importWaitingHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param importWaitingHandler the waiting handler of the import
+         */
+        public IdFileWaitingHandler(WaitingHandler importWaitingHandler) {
+            this.importWaitingHandler = importWaitingHandler;
+            setDisplayProgress(false);
+        }
+
+        @Override
+        public void appendReport(String report, boolean includeDate, boolean addNewLine) {
+            importWaitingHandler.appendReport(report, includeDate, addNewLine);
+        }
+
+        @Override
+        public void appendReportEndLine() {
+            importWaitingHandler.appendReportEndLine();
+        }
+
+        @Override
+        public void increasePrimaryProgressCounter() {
+            importWaitingHandler.increasePrimaryProgressCounter();
+        }
+
+        @Override
+        public void setWaitingText(String text) {
+            importWaitingHandler.setWaitingText(text);
+        }
+
+        @Override
+        public void setRunCanceled() {
+            importWaitingHandler.setRunCanceled();
+        }
+
+        @Override
+        public boolean isRunCanceled() {
+            return importWaitingHandler.isRunCanceled();
+        }
     }
 
     /**
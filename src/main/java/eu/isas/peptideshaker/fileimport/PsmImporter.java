@@ -39,6 +39,7 @@ import com.compomics.util.experiment.identification.identification_parameters.Pt
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
 import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.io.identifications.idfilereaders.NovorIdfileReader;
+import com.compomics.util.Util;
 import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
@@ -54,6 +55,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -67,6 +69,27 @@ import static eu.isas.peptideshaker.fileimport.FileImporter.PTM_MASS_TOLERANCE;
  */
 public class PsmImporter {
 
+    /**
+     * The default number of PSMs handed over to the import threads at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    /**
+     * The default maximal number of batches waiting to be imported.
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+    /**
+     * The number of PSMs handed over to the import threads at once.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    /**
+     * The maximal number of batches waiting to be imported. When the queue is
+     * full, the reading thread waits for the import threads to catch up.
+     */
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;
+    /**
+     * Batch used to notify the import threads that no more PSMs will come.
+     */
+    private final ArrayList<SpectrumMatch> endOfImport = new ArrayList<SpectrumMatch>(0);
     /**
      * The protein sequence factory.
      */
@@ -232,6 +255,25 @@ public class PsmImporter {
         this.exceptionHandler = exceptionHandler;
     }
 
+    /**
+     * Sets the number of PSMs handed over to the import threads at once.
+     *
+     * @param batchSize the number of PSMs handed over to the import threads at
+     * once
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * Sets the maximal number of batches waiting to be imported.
+     *
+     * @param queueDepth the maximal number of batches waiting to be imported
+     */
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = Math.max(queueDepth, 1);
+    }
+
     /**
      * Imports PSMs.
      *
@@ -261,7 +303,9 @@ public class PsmImporter {
     }
 
     /**
-     * Imports PSMs using multiple threads.
+     * Imports PSMs using multiple threads. The PSMs are handed over to the
+     * import threads in batches through a bounded queue so that the matches
+     * are released from the list as they are imported.
      *
      * @param idFileSpectrumMatches the PSMs to import
      * @param nThreads the number of threads to use
@@ -282,12 +326,36 @@ public class PsmImporter {
     public void importPsmsMultipleThreads(LinkedList<SpectrumMatch> idFileSpectrumMatches, int nThreads, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
+        ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue = new ArrayBlockingQueue<ArrayList<SpectrumMatch>>(queueDepth);
         ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-        while (!idFileSpectrumMatches.isEmpty()) {
-            SpectrumMatch match = idFileSpectrumMatches.pollLast();
-            PsmImporterRunnable psmImporterRunnable = new PsmImporterRunnable(match, waitingHandler);
+        for (int i = 0; i < nThreads; i++) {
+            PsmImporterRunnable psmImporterRunnable = new PsmImporterRunnable(batchQueue, waitingHandler);
             pool.submit(psmImporterRunnable);
-            if (waitingHandler.isRunCanceled()) {
+        }
+
+        long start = System.currentTimeMillis();
+        int nBatches = 0;
+        ArrayList<SpectrumMatch> batch = new ArrayList<SpectrumMatch>(batchSize);
+        while (!idFileSpectrumMatches.isEmpty()) {
+            batch.add(idFileSpectrumMatches.pollLast());
+            if (batch.size() == batchSize) {
+                if (!queueBatch(batchQueue, batch, waitingHandler)) {
+                    pool.shutdownNow();
+                    return;
+                }
+                nBatches++;
+                batch = new ArrayList<SpectrumMatch>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            if (!queueBatch(batchQueue, batch, waitingHandler)) {
+                pool.shutdownNow();
+                return;
+            }
+            nBatches++;
+        }
+        for (int i = 0; i < nThreads; i++) {
+            if (!queueBatch(batchQueue, endOfImport, waitingHandler)) {
                 pool.shutdownNow();
                 return;
             }
@@ -296,6 +364,34 @@ public class PsmImporter {
         if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
             throw new InterruptedException("PSM import timed out. Please contact the developers.");
         }
+
+        if (!waitingHandler.isRunCanceled()) {
+            double elapsedSeconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+            waitingHandler.appendReport(nBatches + " batches of PSMs imported (" + Util.roundDouble(nBatches / elapsedSeconds, 1) + " batches/s).", true, true);
+        }
+    }
+
+    /**
+     * Adds a batch of PSMs to the queue of the import threads, waiting for
+     * space to become available if the queue is full.
+     *
+     * @param batchQueue the queue of batches to import
+     * @param batch the batch to add
+     * @param waitingHandler waiting handler to display progress and allow
+     * canceling the import
+     *
+     * @return true if the batch was queued, false if the import was canceled
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting
+     */
+    private boolean queueBatch(ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue, ArrayList<SpectrumMatch> batch, WaitingHandler waitingHandler) throws InterruptedException {
+        while (!batchQueue.offer(batch, 1, TimeUnit.SECONDS)) {
+            if (waitingHandler.isRunCanceled()) {
+                return false;
+            }
+        }
+        return !waitingHandler.isRunCanceled();
     }
 
     /**
@@ -320,16 +416,20 @@ public class PsmImporter {
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
         PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        InputMap fileInputMap = new InputMap(); // the input map can be shared with the importers of other files
         while (!idFileSpectrumMatches.isEmpty()) {
             SpectrumMatch match = idFileSpectrumMatches.pollLast();
-            importPsm(match, peptideSpectrumAnnotator, waitingHandler);
+            importPsm(match, fileInputMap, peptideSpectrumAnnotator, waitingHandler);
         }
+        inputMap.addAll(fileInputMap);
     }
 
     /**
      * Imports a PSM.
      *
      * @param spectrumMatch the spectrum match to import
+     * @param inputMap the input map where to store the scores of the retained
+     * hits
      * @param peptideSpectrumAnnotator the spectrum annotator to use to annotate
      * spectra
      * @param waitingHandler waiting handler to display progress and allow
@@ -346,7 +446,7 @@ public class PsmImporter {
      * @throws MzMLUnmarshallerException exception thrown whenever an exception
      * occurred while reading an mzML file
      */
-    private void importPsm(SpectrumMatch spectrumMatch, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
+    private void importPsm(SpectrumMatch spectrumMatch, InputMap inputMap, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
         // free memory if needed
@@ -416,13 +516,13 @@ public class PsmImporter {
             }
             spectrumMatch.removeAssumptions();
             identification.removeRawAssumptions(spectrumKey);
-            importAssumptions(spectrumMatch, combinedAssumptions, peptideSpectrumAnnotator, waitingHandler);
+            importAssumptions(spectrumMatch, combinedAssumptions, inputMap, peptideSpectrumAnnotator, waitingHandler);
         } else if (matchAssumptions != null) {
             spectrumMatch.removeAssumptions();
-            importAssumptions(spectrumMatch, matchAssumptions, peptideSpectrumAnnotator, waitingHandler);
+            importAssumptions(spectrumMatch, matchAssumptions, inputMap, peptideSpectrumAnnotator, waitingHandler);
         } else if (rawDbAssumptions != null) {
             identification.removeRawAssumptions(spectrumKey);
-            importAssumptions(spectrumMatch, rawDbAssumptions, peptideSpectrumAnnotator, waitingHandler);
+            importAssumptions(spectrumMatch, rawDbAssumptions, inputMap, peptideSpectrumAnnotator, waitingHandler);
         }
 
         if (waitingHandler.isRunCanceled()) {
@@ -439,6 +539,8 @@ public class PsmImporter {
      *
      * @param spectrumMatch the spectrum match to import
      * @param assumptions the assumptions to import
+     * @param inputMap the input map where to store the scores of the retained
+     * hits
      * @param peptideSpectrumAnnotator the spectrum annotator to use to annotate
      * spectra
      * @param waitingHandler waiting handler to display progress and allow
@@ -455,7 +557,7 @@ public class PsmImporter {
      * @throws MzMLUnmarshallerException exception thrown whenever an exception
      * occurred while reading an mzML file
      */
-    private void importAssumptions(SpectrumMatch spectrumMatch, HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
+    private void importAssumptions(SpectrumMatch spectrumMatch, HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions, InputMap inputMap, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
         PeptideAssumptionFilter peptideAssumptionFilter = identificationParameters.getPeptideAssumptionFilter();
@@ -1174,17 +1276,19 @@ public class PsmImporter {
         }
 
         ArrayList<String> accessions = peptideAssumption.getPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences());
-        for (String protein : accessions) {
-            Integer count = proteinCount.get(protein);
-            if (count != null) {
-                proteinCount.put(protein, count + 1);
-            } else {
-                boolean oneHitWonder = singleProteinList.contains(protein);
-                if (oneHitWonder) {
-                    singleProteinList.remove(protein);
-                    proteinCount.put(protein, 2);
+        synchronized (proteinCount) { // the protein count can be shared by the importers of different files
+            for (String protein : accessions) {
+                Integer count = proteinCount.get(protein);
+                if (count != null) {
+                    proteinCount.put(protein, count + 1);
                 } else {
-                    singleProteinList.add(protein);
+                    boolean oneHitWonder = singleProteinList.contains(protein);
+                    if (oneHitWonder) {
+                        singleProteinList.remove(protein);
+                        proteinCount.put(protein, 2);
+                    } else {
+                        singleProteinList.add(protein);
+                    }
                 }
             }
         }
@@ -1438,9 +1542,9 @@ public class PsmImporter {
     private class PsmImporterRunnable implements Runnable {
 
         /**
-         * The spectrum match to import.
+         * The queue of batches of spectrum matches to import.
          */
-        private SpectrumMatch spectrumMatch;
+        private ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue;
 
         /**
          * The waiting handler.
@@ -1453,15 +1557,21 @@ public class PsmImporter {
          */
         private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
 
+        /**
+         * The input map filled by this thread, merged into the input map of
+         * the importer when done.
+         */
+        private InputMap threadInputMap = new InputMap();
+
         /**
          * Constructor.
          *
-         * @param spectrumMatch the match to import
+         * @param batchQueue the queue of batches of matches to import
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          */
-        public PsmImporterRunnable(SpectrumMatch spectrumMatch, WaitingHandler waitingHandler) {
-            this.spectrumMatch = spectrumMatch;
+        public PsmImporterRunnable(ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue, WaitingHandler waitingHandler) {
+            this.batchQueue = batchQueue;
             this.waitingHandler = waitingHandler;
         }
 
@@ -1469,8 +1579,18 @@ public class PsmImporter {
         public void run() {
 
             try {
+                ArrayList<SpectrumMatch> batch = batchQueue.take();
+                while (batch != endOfImport && !waitingHandler.isRunCanceled()) {
+                    for (SpectrumMatch spectrumMatch : batch) {
+                        importPsm(spectrumMatch, threadInputMap, peptideSpectrumAnnotator, waitingHandler);
+                        if (waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                    }
+                    batch = batchQueue.take();
+                }
                 if (!waitingHandler.isRunCanceled()) {
-                    importPsm(spectrumMatch, peptideSpectrumAnnotator, waitingHandler);
+                    inputMap.addAll(threadInputMap);
                 }
             } catch (Exception e) {
                 if (!waitingHandler.isRunCanceled()) {
@@ -2,30 +2,26 @@ package eu.isas.peptideshaker.filtering;
 
 import com.compomics.util.experiment.filtering.FilterItemComparator;
 import com.compomics.util.experiment.ShotgunProtocol;
-import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.experiment.filtering.FilterItem;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
-import com.compomics.util.experiment.identification.matches.IonMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
-import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Precursor;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.math.statistics.distributions.NonSymmetricalNormalDistribution;
-import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.IdentificationParameters;
-import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.filtering.items.AssumptionFilterItem;
 import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.utils.AnnotationCache;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -95,11 +91,17 @@ public class AssumptionFilter extends MatchFilter {
     }
 
     @Override
-    public boolean isValidated(String itemName, FilterItemComparator filterItemComparator, Object value, String spectrumKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+    protected boolean isValidated(ArrayList<CompiledFilterItem> items, String spectrumKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
-        SpectrumMatch spectrumMatch = identification.getSpectrumMatch(spectrumKey);
-        PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
-        return isValidated(itemName, filterItemComparator, value, spectrumKey, peptideAssumption, identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
+        PeptideAssumption peptideAssumption = null;
+        for (CompiledFilterItem compiledItem : items) {
+            if (needsAssumption((AssumptionFilterItem) compiledItem.getFilterItem())) {
+                SpectrumMatch spectrumMatch = identification.getSpectrumMatch(spectrumKey);
+                peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+                break;
+            }
+        }
+        return isValidated(items, spectrumKey, peptideAssumption, identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
     }
 
     /**
@@ -143,14 +145,7 @@ public class AssumptionFilter extends MatchFilter {
         if (manualValidation.contains(matchKey)) {
             return true;
         }
-        for (String itemName : valuesMap.keySet()) {
-            FilterItemComparator filterItemComparator = comparatorsMap.get(itemName);
-            Object value = valuesMap.get(itemName);
-            if (!isValidated(itemName, filterItemComparator, value, matchKey, peptideAssumption, identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator)) {
-                return false;
-            }
-        }
-        return true;
+        return isValidated(getCompiledItems(), matchKey, peptideAssumption, identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
     }
 
     /**
@@ -196,88 +191,186 @@ public class AssumptionFilter extends MatchFilter {
         if (filterItem == null) {
             throw new IllegalArgumentException("Filter item " + itemName + "not recognized as spectrum assumption filter item.");
         }
-        String input = value.toString();
+        ArrayList<CompiledFilterItem> items = new ArrayList<CompiledFilterItem>(1);
+        items.add(new CompiledFilterItem(filterItem, filterItemComparator, value));
+        return isValidated(items, spectrumKey, peptideAssumption, identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
+    }
+
+    /**
+     * Indicates whether the given assumption validates all the given compiled
+     * items. The precursor and the parameters of the match are retrieved at
+     * most once.
+     *
+     * @param items the compiled items
+     * @param spectrumKey the key of the match of interest
+     * @param peptideAssumption the assumption to validate, can be null if no
+     * item needs it
+     * @param identification the identification objects where to get
+     * identification matches from
+     * @param identificationFeaturesGenerator the identification feature
+     * generator where to get identification features
+     * @param shotgunProtocol information on the protocol used
+     * @param identificationParameters the identification parameters used
+     * @param peptideSpectrumAnnotator the annotator to use to annotate spectra
+     * when filtering on PSM or assumptions
+     *
+     * @return a boolean indicating whether the assumption validates all the
+     * items
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while validating that the match passes the
+     * filter
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    protected boolean isValidated(ArrayList<CompiledFilterItem> items, String spectrumKey, PeptideAssumption peptideAssumption, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+
+        Precursor precursor = null;
+        PSParameter psParameter = null;
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+
+        for (CompiledFilterItem compiledItem : items) {
+            AssumptionFilterItem filterItem = (AssumptionFilterItem) compiledItem.getFilterItem();
+            boolean passes;
+            switch (filterItem) {
+                case precrusorMz:
+                case precrusorRT:
+                case precrusorMzErrorDa:
+                case precrusorMzErrorPpm:
+                case precrusorMzErrorStat:
+                    if (precursor == null) {
+                        precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
+                    }
+                    break;
+                case confidence:
+                case validationStatus:
+                case stared:
+                    if (psParameter == null) {
+                        psParameter = (PSParameter) identification.getPeptideMatchParameter(spectrumKey, new PSParameter());
+                    }
+                    break;
+                default:
+                    break;
+            }
+            switch (filterItem) {
+                case precrusorMz:
+                    passes = compiledItem.passes(precursor.getMz());
+                    break;
+                case precrusorRT:
+                    passes = compiledItem.passes(precursor.getRt());
+                    break;
+                case precrusorCharge:
+                    passes = compiledItem.passes(peptideAssumption.getIdentificationCharge().value);
+                    break;
+                case precrusorMzErrorDa:
+                    passes = compiledItem.passes(Math.abs(peptideAssumption.getDeltaMass(precursor.getMz(), false, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection())));
+                    break;
+                case precrusorMzErrorPpm:
+                    passes = compiledItem.passes(Math.abs(peptideAssumption.getDeltaMass(precursor.getMz(), true, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection())));
+                    break;
+                case precrusorMzErrorStat:
+                    double mzError = peptideAssumption.getDeltaMass(precursor.getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
+                    NonSymmetricalNormalDistribution precDeviationDistribution = identificationFeaturesGenerator.getMassErrorDistribution(Spectrum.getSpectrumFile(spectrumKey));
+                    double p;
+                    if (mzError > precDeviationDistribution.getMean()) {
+                        p = precDeviationDistribution.getDescendingCumulativeProbabilityAt(mzError);
+                    } else {
+                        p = precDeviationDistribution.getCumulativeProbabilityAt(mzError);
+                    }
+                    passes = compiledItem.passes(p);
+                    break;
+                case sequenceCoverage:
+                    AnnotationCache.FragmentCoverage fragmentCoverage = AnnotationCache.getInstance().getFragmentCoverage(spectrumKey, peptideAssumption, identificationParameters, peptideSpectrumAnnotator);
+                    int nAA = peptideAssumption.getPeptide().getSequence().length();
+                    double nCovered = fragmentCoverage.getnAminoAcidsCovered(0, nAA);
+                    passes = compiledItem.passes(100.0 * nCovered / nAA);
+                    break;
+                case algorithmScore:
+                    Double score = peptideAssumption.getRawScore();
+                    if (score == null) {
+                        score = peptideAssumption.getScore();
+                    }
+                    passes = compiledItem.passes(score);
+                    break;
+                case fileNames:
+                    passes = compiledItem.passes(Spectrum.getSpectrumFile(spectrumKey));
+                    break;
+                case confidence:
+                    passes = compiledItem.passes(psParameter.getProteinConfidence());
+                    break;
+                case validationStatus:
+                    passes = compiledItem.passes(psParameter.getMatchValidationLevel().getIndex());
+                    break;
+                case stared:
+                    passes = compiledItem.passes(psParameter.isStarred());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+            }
+            if (!passes) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected int getEvaluationCost(FilterItem filterItem) {
+        switch ((AssumptionFilterItem) filterItem) {
+            case fileNames:
+                return 0;
+            case confidence:
+            case validationStatus:
+            case stared:
+                return 1;
+            case precrusorCharge:
+            case algorithmScore:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    @Override
+    protected void loadMatches(ArrayList<CompiledFilterItem> items, ArrayList<String> matchKeys, Identification identification, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        for (CompiledFilterItem compiledItem : items) {
+            if (needsAssumption((AssumptionFilterItem) compiledItem.getFilterItem())) {
+                identification.loadSpectrumMatches(matchKeys, waitingHandler, false);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the evaluation of the given item needs the best
+     * peptide assumption of the spectrum match.
+     *
+     * @param filterItem the item
+     *
+     * @return a boolean indicating whether the item needs the best peptide
+     * assumption
+     */
+    private static boolean needsAssumption(AssumptionFilterItem filterItem) {
         switch (filterItem) {
-            case precrusorMz:
-                Precursor precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
-                Double mz = precursor.getMz();
-                return filterItemComparator.passes(input, mz.toString());
-            case precrusorRT:
-                precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
-                Double rt = precursor.getRt();
-                return filterItemComparator.passes(input, rt.toString());
             case precrusorCharge:
-                Integer charge = peptideAssumption.getIdentificationCharge().value;
-                return filterItemComparator.passes(input, charge.toString());
             case precrusorMzErrorDa:
-                precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
-                SearchParameters searchParameters = identificationParameters.getSearchParameters();
-                Double mzError = Math.abs(peptideAssumption.getDeltaMass(precursor.getMz(), false, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                return filterItemComparator.passes(input, mzError.toString());
             case precrusorMzErrorPpm:
-                searchParameters = identificationParameters.getSearchParameters();
-                precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
-                mzError = Math.abs(peptideAssumption.getDeltaMass(precursor.getMz(), true, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                return filterItemComparator.passes(input, mzError.toString());
             case precrusorMzErrorStat:
-                searchParameters = identificationParameters.getSearchParameters();
-                precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
-                mzError = peptideAssumption.getDeltaMass(precursor.getMz(), identificationParameters.getSearchParameters().isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
-                NonSymmetricalNormalDistribution precDeviationDistribution = identificationFeaturesGenerator.getMassErrorDistribution(Spectrum.getSpectrumFile(spectrumKey));
-                Double p;
-                if (mzError > precDeviationDistribution.getMean()) {
-                    p = precDeviationDistribution.getDescendingCumulativeProbabilityAt(mzError);
-                } else {
-                    p = precDeviationDistribution.getCumulativeProbabilityAt(mzError);
-                }
-                return filterItemComparator.passes(input, p.toString());
             case sequenceCoverage:
-                SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
-                MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
-                Peptide peptide = peptideAssumption.getPeptide();
-                AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
-                SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), peptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                HashMap<Integer, ArrayList<IonMatch>> matches = peptideSpectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide);
-                double nCovered = 0;
-                int nAA = peptide.getSequence().length();
-                for (int i = 0; i <= nAA; i++) {
-                    ArrayList<IonMatch> matchesAtAa = matches.get(i);
-                    if (matchesAtAa != null && !matchesAtAa.isEmpty()) {
-                        nCovered++;
-                    }
-                }
-                Double coverage = 100.0 * nCovered / nAA;
-                return filterItemComparator.passes(input, coverage.toString());
             case algorithmScore:
-                Double score = peptideAssumption.getRawScore();
-                if (score == null) {
-                    score = peptideAssumption.getScore();
-                }
-                return filterItemComparator.passes(input, score.toString());
-            case fileNames:
-                return filterItemComparator.passes(input, Spectrum.getSpectrumFile(spectrumKey));
-            case confidence:
-                PSParameter psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(spectrumKey, psParameter);
-                Double confidence = psParameter.getProteinConfidence();
-                return filterItemComparator.passes(input, confidence.toString());
-            case validationStatus:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(spectrumKey, psParameter);
-                Integer validation = psParameter.getMatchValidationLevel().getIndex();
-                return filterItemComparator.passes(input, validation.toString());
-            case stared:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(spectrumKey, psParameter);
-                String starred;
-                if (psParameter.isStarred()) {
-                    starred = FilterItemComparator.trueFalse[0];
-                } else {
-                    starred = FilterItemComparator.trueFalse[1];
-                }
-                return filterItemComparator.passes(input, starred);
+                return true;
             default:
-                throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+                return false;
         }
     }
 
@@ -0,0 +1,170 @@
+package eu.isas.peptideshaker.filtering;
+
+import com.compomics.util.experiment.filtering.FilterItem;
+import com.compomics.util.experiment.filtering.FilterItemComparator;
+import java.util.ArrayList;
+
+/**
+ * An item of a filter compiled for evaluation: the item is resolved from its
+ * name, the threshold is converted to text once and numeric thresholds are
+ * parsed for native comparison.
+ *
+ * @author Marc Vaudel
+ */
+public class CompiledFilterItem {
+
+    /**
+     * The item to filter on.
+     */
+    private final FilterItem filterItem;
+    /**
+     * The comparator to use.
+     */
+    private final FilterItemComparator filterItemComparator;
+    /**
+     * The threshold as text.
+     */
+    private final String input;
+    /**
+     * The threshold as number for the comparators evaluated natively, null
+     * otherwise.
+     */
+    private final Double numericInput;
+
+    /**
+     * Constructor.
+     *
+     * @param filterItem the item to filter on
+     * @param filterItemComparator the comparator to use
+     * @param value the threshold
+     */
+    public CompiledFilterItem(FilterItem filterItem, FilterItemComparator filterItemComparator, Object value) {
+        this.filterItem = filterItem;
+        this.filterItemComparator = filterItemComparator;
+        this.input = value.toString();
+        Double threshold = null;
+        if (filterItemComparator == FilterItemComparator.higherOrEqual || filterItemComparator == FilterItemComparator.lowerOrEqual) {
+            try {
+                threshold = Double.parseDouble(input);
+            } catch (NumberFormatException e) {
+                // compare as text
+            }
+        }
+        this.numericInput = threshold;
+    }
+
+    /**
+     * Returns the item to filter on.
+     *
+     * @return the item to filter on
+     */
+    public FilterItem getFilterItem() {
+        return filterItem;
+    }
+
+    /**
+     * Returns the comparator.
+     *
+     * @return the comparator
+     */
+    public FilterItemComparator getFilterItemComparator() {
+        return filterItemComparator;
+    }
+
+    /**
+     * Returns the threshold as text.
+     *
+     * @return the threshold as text
+     */
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * Indicates whether the given value passes the threshold.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the given value passes the
+     * threshold
+     */
+    public boolean passes(String value) {
+        return filterItemComparator.passes(input, value);
+    }
+
+    /**
+     * Indicates whether one of the given values passes the threshold.
+     *
+     * @param values the values
+     *
+     * @return a boolean indicating whether the given values pass the
+     * threshold
+     */
+    public boolean passes(ArrayList<String> values) {
+        return filterItemComparator.passes(input, values);
+    }
+
+    /**
+     * Indicates whether one of the given values passes the threshold.
+     *
+     * @param values the values
+     *
+     * @return a boolean indicating whether the given values pass the
+     * threshold
+     */
+    public boolean passes(String[] values) {
+        return filterItemComparator.passes(input, values);
+    }
+
+    /**
+     * Indicates whether the given number passes the threshold. Numbers are
+     * compared natively for the higher or equal and lower or equal
+     * comparators.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the given value passes the
+     * threshold
+     */
+    public boolean passes(double value) {
+        if (numericInput != null) {
+            if (filterItemComparator == FilterItemComparator.higherOrEqual) {
+                return value >= numericInput;
+            }
+            return value <= numericInput;
+        }
+        return filterItemComparator.passes(input, Double.toString(value));
+    }
+
+    /**
+     * Indicates whether the given number passes the threshold. Numbers are
+     * compared natively for the higher or equal and lower or equal
+     * comparators.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the given value passes the
+     * threshold
+     */
+    public boolean passes(int value) {
+        if (numericInput != null) {
+            if (filterItemComparator == FilterItemComparator.higherOrEqual) {
+                return value >= numericInput;
+            }
+            return value <= numericInput;
+        }
+        return filterItemComparator.passes(input, Integer.toString(value));
+    }
+
+    /**
+     * Indicates whether the given boolean passes the threshold.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the given value passes the
+     * threshold
+     */
+    public boolean passes(boolean value) {
+        return filterItemComparator.passes(input, value ? FilterItemComparator.trueFalse[0] : FilterItemComparator.trueFalse[1]);
+    }
+}
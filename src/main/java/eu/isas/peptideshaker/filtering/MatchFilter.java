@@ -9,11 +9,14 @@ import com.compomics.util.experiment.filtering.FilterItem;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import java.io.IOException;
 import java.io.Serializable;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import org.apache.commons.math.MathException;
@@ -74,6 +77,11 @@ public abstract class MatchFilter implements Serializable, Filter {
      * Map of the values to filter on.
      */
     protected HashMap<String, Object> valuesMap = new HashMap<String, Object>();
+    /**
+     * The items of the filter compiled for evaluation, cheapest first. Null
+     * if not compiled yet.
+     */
+    private transient ArrayList<CompiledFilterItem> compiledItems = null;
 
     /**
      * Enum for the type of possible filter.
@@ -313,6 +321,7 @@ public abstract class MatchFilter implements Serializable, Filter {
     public void removeFilterItem(String itemName) {
         comparatorsMap.remove(itemName);
         valuesMap.remove(itemName);
+        compiledItems = null;
     }
 
     /**
@@ -335,6 +344,7 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void setComparatorForItem(String itemName, FilterItemComparator filterItemComparator) {
         comparatorsMap.put(itemName, filterItemComparator);
+        compiledItems = null;
     }
     
     /**
@@ -345,6 +355,7 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void setValueForItem(String itemName, Object value) {
         valuesMap.put(itemName, value);
+        compiledItems = null;
     }
 
     /**
@@ -384,6 +395,7 @@ public abstract class MatchFilter implements Serializable, Filter {
     public void clear() {
         valuesMap.clear();
         comparatorsMap.clear();
+        compiledItems = null;
     }
 
     /**
@@ -426,16 +438,169 @@ public abstract class MatchFilter implements Serializable, Filter {
         if (manualValidation.contains(matchKey)) {
             return true;
         }
-        for (String itemName : valuesMap.keySet()) {
-            FilterItemComparator filterItemComparator = comparatorsMap.get(itemName);
-            Object value = valuesMap.get(itemName);
-            if (!isValidated(itemName, filterItemComparator, value, matchKey, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator)) {
-                return false;
+        return isValidated(getCompiledItems(), matchKey, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
+    }
+
+    /**
+     * Returns the keys of the matches validated by this filter in the order of
+     * the given keys. The matches and parameters needed by the filter are
+     * loaded in bulk before evaluation.
+     *
+     * @param matchKeys the keys of the matches
+     * @param identification the identification where to get the information
+     * from
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesGenerator the identification features
+     * generator providing identification features
+     * @param shotgunProtocol information on the protocol
+     * @param identificationParameters the identification parameters
+     * @param peptideSpectrumAnnotator the annotator to use to annotate spectra
+     * when filtering on psm or assumptions
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return the keys of the matches validated by this filter
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while validating that the match passes the
+     * filter
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public ArrayList<String> getValidatedKeys(ArrayList<String> matchKeys, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+
+        ArrayList<CompiledFilterItem> items = getCompiledItems();
+        loadMatches(items, matchKeys, identification, waitingHandler);
+
+        ArrayList<String> result = new ArrayList<String>();
+        for (String matchKey : matchKeys) {
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                break;
+            }
+            if (exceptions.contains(matchKey)) {
+                continue;
+            }
+            if (manualValidation.contains(matchKey)
+                    || isValidated(items, matchKey, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator)) {
+                result.add(matchKey);
             }
         }
-        return true;
+        return result;
     }
 
+    /**
+     * Returns the items of the filter compiled for evaluation, sorted by
+     * evaluation cost.
+     *
+     * @return the compiled items of the filter
+     */
+    public ArrayList<CompiledFilterItem> getCompiledItems() {
+        ArrayList<CompiledFilterItem> result = compiledItems;
+        if (result == null) {
+            result = new ArrayList<CompiledFilterItem>(valuesMap.size());
+            for (String itemName : valuesMap.keySet()) {
+                FilterItem filterItem = getFilterItem(itemName);
+                if (filterItem == null) {
+                    throw new IllegalArgumentException("Filter item " + itemName + " not recognized for filter " + name + ".");
+                }
+                result.add(new CompiledFilterItem(filterItem, comparatorsMap.get(itemName), valuesMap.get(itemName)));
+            }
+            Collections.sort(result, new Comparator<CompiledFilterItem>() {
+                @Override
+                public int compare(CompiledFilterItem o1, CompiledFilterItem o2) {
+                    return getEvaluationCost(o1.getFilterItem()) - getEvaluationCost(o2.getFilterItem());
+                }
+            });
+            compiledItems = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns an estimate of the cost of the evaluation of an item: 0 when the
+     * item can be evaluated from the key, 1 when the parameters of the match
+     * are needed, 2 when the match is needed, and 3 when the item needs
+     * further computation or files.
+     *
+     * @param filterItem the item
+     *
+     * @return the cost of the evaluation of the item
+     */
+    protected abstract int getEvaluationCost(FilterItem filterItem);
+
+    /**
+     * Loads in bulk the matches and parameters needed to evaluate the given
+     * items on the given matches. Does nothing by default.
+     *
+     * @param items the compiled items
+     * @param matchKeys the keys of the matches
+     * @param identification the identification where to get the information
+     * from
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while validating that the match passes the
+     * filter
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    protected void loadMatches(ArrayList<CompiledFilterItem> items, ArrayList<String> matchKeys, Identification identification, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+    }
+
+    /**
+     * Indicates whether the match designated by the match key validates all
+     * the given compiled items. Every match and parameter is retrieved at most
+     * once.
+     *
+     * @param items the compiled items
+     * @param matchKey the key of the match of interest
+     * @param identification the identification objects where to get
+     * identification matches from
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesGenerator the identification feature
+     * generator where to get identification features
+     * @param shotgunProtocol information on the protocol used
+     * @param identificationParameters the identification parameters used
+     * @param peptideSpectrumAnnotator the annotator to use to annotate spectra
+     * when filtering on psm or assumptions
+     *
+     * @return a boolean indicating whether the match validates all the items
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while validating that the match passes the
+     * filter
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    protected abstract boolean isValidated(ArrayList<CompiledFilterItem> items, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException;
+
     /**
      * Indicates whether the match designated by the match key validates the
      * given item using the given comparator and value threshold.
@@ -471,8 +636,16 @@ public abstract class MatchFilter implements Serializable, Filter {
      * @throws org.apache.commons.math.MathException exception thrown whenever
      * an error occurred while doing statistics on a distribution
      */
-    public abstract boolean isValidated(String itemName, FilterItemComparator filterItemComparator, Object value, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
-            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException;
+    public boolean isValidated(String itemName, FilterItemComparator filterItemComparator, Object value, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        FilterItem filterItem = getFilterItem(itemName);
+        if (filterItem == null) {
+            throw new IllegalArgumentException("Filter item " + itemName + " not recognized for filter " + name + ".");
+        }
+        ArrayList<CompiledFilterItem> items = new ArrayList<CompiledFilterItem>(1);
+        items.add(new CompiledFilterItem(filterItem, filterItemComparator, value));
+        return isValidated(items, matchKey, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
+    }
 
     @Override
     public boolean isSameAs(Filter anotherFilter) {
@@ -1,6 +1,5 @@
 package eu.isas.peptideshaker.filtering;
 
-import com.compomics.util.experiment.filtering.FilterItemComparator;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
@@ -10,6 +9,7 @@ import com.compomics.util.experiment.identification.protein_sequences.SequenceFa
 import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.protein.Header;
 import eu.isas.peptideshaker.filtering.items.PeptideFilterItem;
 import eu.isas.peptideshaker.parameters.PSParameter;
@@ -90,77 +90,128 @@ public class PeptideFilter extends MatchFilter {
     }
 
     @Override
-    public boolean isValidated(String itemName, FilterItemComparator filterItemComparator, Object value, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+    protected boolean isValidated(ArrayList<CompiledFilterItem> items, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
 
-        PeptideFilterItem filterItem = PeptideFilterItem.getItem(itemName);
-        if (filterItem == null) {
-            throw new IllegalArgumentException("Filter item " + itemName + "not recognized as peptide filter item.");
-        }
-        String input = value.toString();
-        switch (filterItem) {
-            case proteinAccession:
-                PeptideMatch peptideMatch = identification.getPeptideMatch(matchKey);
-                return filterItemComparator.passes(input, peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences()));
-            case proteinDescription:
+        PeptideMatch peptideMatch = null;
+        PSParameter psParameter = null;
+
+        for (CompiledFilterItem compiledItem : items) {
+            PeptideFilterItem filterItem = (PeptideFilterItem) compiledItem.getFilterItem();
+            if (getEvaluationCost(filterItem) == 1 && psParameter == null) {
+                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, new PSParameter());
+            }
+            if (needsMatch(filterItem) && peptideMatch == null) {
                 peptideMatch = identification.getPeptideMatch(matchKey);
-                ArrayList<String> accessions = peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences());
-                ArrayList<String> descriptions = new ArrayList<String>();
-                for (String accession : accessions) {
-                    Header proteinHeader = SequenceFactory.getInstance().getHeader(accession);
-                    descriptions.add(proteinHeader.getDescription());
-                }
-                return filterItemComparator.passes(input, descriptions);
+            }
+            boolean passes;
+            switch (filterItem) {
+                case proteinAccession:
+                    passes = compiledItem.passes(peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences()));
+                    break;
+                case proteinDescription:
+                    ArrayList<String> accessions = peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences());
+                    ArrayList<String> descriptions = new ArrayList<String>();
+                    for (String accession : accessions) {
+                        Header proteinHeader = SequenceFactory.getInstance().getHeader(accession);
+                        descriptions.add(proteinHeader.getDescription());
+                    }
+                    passes = compiledItem.passes(descriptions);
+                    break;
+                case sequence:
+                    passes = compiledItem.passes(Peptide.getSequence(matchKey));
+                    break;
+                case ptm:
+                    ArrayList<String> ptms;
+                    PSPtmScores psPtmScores = new PSPtmScores();
+                    psPtmScores = (PSPtmScores) peptideMatch.getUrParam(psPtmScores);
+                    if (psPtmScores != null) {
+                        ptms = psPtmScores.getScoredPTMs();
+                    } else {
+                        ptms = new ArrayList<String>(0);
+                    }
+                    passes = compiledItem.passes(ptms);
+                    break;
+                case nPSMs:
+                    passes = compiledItem.passes(peptideMatch.getSpectrumCount());
+                    break;
+                case nValidatedPSMs:
+                    passes = compiledItem.passes(identificationFeaturesGenerator.getNValidatedSpectraForPeptide(matchKey));
+                    break;
+                case nConfidentPSMs:
+                    passes = compiledItem.passes(identificationFeaturesGenerator.getNConfidentSpectraForPeptide(matchKey));
+                    break;
+                case confidence:
+                    passes = compiledItem.passes(psParameter.getProteinConfidence());
+                    break;
+                case proteinInference:
+                    passes = compiledItem.passes(psParameter.getProteinInferenceClass());
+                    break;
+                case validationStatus:
+                    passes = compiledItem.passes(psParameter.getMatchValidationLevel().getIndex());
+                    break;
+                case stared:
+                    passes = compiledItem.passes(psParameter.isStarred());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+            }
+            if (!passes) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected int getEvaluationCost(FilterItem filterItem) {
+        switch ((PeptideFilterItem) filterItem) {
             case sequence:
-                return filterItemComparator.passes(input, Peptide.getSequence(matchKey));
-            case ptm:
-                peptideMatch = identification.getPeptideMatch(matchKey);
-                ArrayList<String> ptms;
-                PSPtmScores psPtmScores = new PSPtmScores();
-                psPtmScores = (PSPtmScores) peptideMatch.getUrParam(psPtmScores);
-                if (psPtmScores != null) {
-                    ptms = psPtmScores.getScoredPTMs();
-                } else {
-                    ptms = new ArrayList<String>(0);
-                }
-                return filterItemComparator.passes(input, ptms);
-            case nPSMs:
-                peptideMatch = identification.getPeptideMatch(matchKey);
-                Integer nPsms = peptideMatch.getSpectrumCount();
-                return filterItemComparator.passes(input, nPsms.toString());
-            case nValidatedPSMs:
-                nPsms = identificationFeaturesGenerator.getNValidatedSpectraForPeptide(matchKey);
-                return filterItemComparator.passes(input, nPsms.toString());
-            case nConfidentPSMs:
-                nPsms = identificationFeaturesGenerator.getNConfidentSpectraForPeptide(matchKey);
-                return filterItemComparator.passes(input, nPsms.toString());
+                return 0;
             case confidence:
-                PSParameter psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                Double confidence = psParameter.getProteinConfidence();
-                return filterItemComparator.passes(input, confidence.toString());
             case proteinInference:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                Integer pi = psParameter.getProteinInferenceClass();
-                return filterItemComparator.passes(input, pi.toString());
             case validationStatus:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                Integer validation = psParameter.getMatchValidationLevel().getIndex();
-                return filterItemComparator.passes(input, validation.toString());
             case stared:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                String starred;
-                if (psParameter.isStarred()) {
-                    starred = FilterItemComparator.trueFalse[0];
-                } else {
-                    starred = FilterItemComparator.trueFalse[1];
-                }
-                return filterItemComparator.passes(input, starred);
+                return 1;
+            case proteinAccession:
+            case ptm:
+            case nPSMs:
+                return 2;
             default:
-                throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+                return 3;
+        }
+    }
+
+    /**
+     * Indicates whether the peptide match is needed to evaluate the given
+     * item.
+     *
+     * @param filterItem the item
+     *
+     * @return a boolean indicating whether the peptide match is needed
+     */
+    private static boolean needsMatch(PeptideFilterItem filterItem) {
+        return filterItem == PeptideFilterItem.proteinAccession || filterItem == PeptideFilterItem.proteinDescription
+                || filterItem == PeptideFilterItem.ptm || filterItem == PeptideFilterItem.nPSMs;
+    }
+
+    @Override
+    protected void loadMatches(ArrayList<CompiledFilterItem> items, ArrayList<String> matchKeys, Identification identification, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        boolean parametersNeeded = false, matchesNeeded = false;
+        for (CompiledFilterItem compiledItem : items) {
+            PeptideFilterItem filterItem = (PeptideFilterItem) compiledItem.getFilterItem();
+            if (getEvaluationCost(filterItem) == 1) {
+                parametersNeeded = true;
+            } else if (needsMatch(filterItem)) {
+                matchesNeeded = true;
+            }
+        }
+        if (parametersNeeded) {
+            identification.loadPeptideMatchParameters(matchKeys, new PSParameter(), waitingHandler, false);
+        }
+        if (matchesNeeded) {
+            identification.loadPeptideMatches(matchKeys, waitingHandler, false);
         }
     }
 
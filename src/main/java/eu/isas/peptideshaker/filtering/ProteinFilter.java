@@ -1,6 +1,5 @@
 package eu.isas.peptideshaker.filtering;
 
-import com.compomics.util.experiment.filtering.FilterItemComparator;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.genes.GeneFactory;
 import com.compomics.util.experiment.biology.genes.go.GoMapping;
@@ -12,6 +11,7 @@ import com.compomics.util.experiment.identification.protein_sequences.SequenceFa
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.protein.Header;
 import eu.isas.peptideshaker.filtering.items.ProteinFilterItem;
 import eu.isas.peptideshaker.parameters.PSParameter;
@@ -91,123 +91,164 @@ public class ProteinFilter extends MatchFilter {
     }
 
     @Override
-    public boolean isValidated(String itemName, FilterItemComparator filterItemComparator, Object value, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+    protected boolean isValidated(ArrayList<CompiledFilterItem> items, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
 
-        ProteinFilterItem filterItem = ProteinFilterItem.getItem(itemName);
-        if (filterItem == null) {
-            throw new IllegalArgumentException("Filter item " + itemName + "not recognized as protein filter item.");
+        ProteinMatch proteinMatch = null;
+        PSParameter psParameter = null;
+        HashMap<Integer, Double> sequenceCoverage = null;
+
+        for (CompiledFilterItem compiledItem : items) {
+            ProteinFilterItem filterItem = (ProteinFilterItem) compiledItem.getFilterItem();
+            if (getEvaluationCost(filterItem) == 1 && psParameter == null) {
+                psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, new PSParameter());
+            } else if (getEvaluationCost(filterItem) == 2 && proteinMatch == null) {
+                proteinMatch = identification.getProteinMatch(matchKey);
+            }
+            boolean passes;
+            switch (filterItem) {
+                case proteinAccession:
+                    passes = compiledItem.passes(ProteinMatch.getAccessions(matchKey));
+                    break;
+                case proteinDescription:
+                    String[] accessions = ProteinMatch.getAccessions(matchKey);
+                    ArrayList<String> descriptions = new ArrayList<String>();
+                    for (String accession : accessions) {
+                        Header proteinHeader = SequenceFactory.getInstance().getHeader(accession);
+                        descriptions.add(proteinHeader.getDescription());
+                    }
+                    passes = compiledItem.passes(descriptions);
+                    break;
+                case sequence:
+                    accessions = ProteinMatch.getAccessions(matchKey);
+                    ArrayList<String> sequences = new ArrayList<String>();
+                    for (String accession : accessions) {
+                        Protein protein = SequenceFactory.getInstance().getProtein(accession);
+                        sequences.add(protein.getSequence());
+                    }
+                    passes = compiledItem.passes(sequences);
+                    break;
+                case chromosome:
+                    accessions = ProteinMatch.getAccessions(matchKey);
+                    ArrayList<String> chromosomes = new ArrayList<String>();
+                    for (String accession : accessions) {
+                        String geneName = SequenceFactory.getInstance().getHeader(accession).getGeneName();
+                        String chromosomeNumber = geneMaps.getChromosome(geneName);
+                        chromosomes.add(chromosomeNumber);
+                    }
+                    passes = compiledItem.passes(chromosomes);
+                    break;
+                case gene:
+                    accessions = ProteinMatch.getAccessions(matchKey);
+                    ArrayList<String> genes = new ArrayList<String>();
+                    for (String accession : accessions) {
+                        String geneName = SequenceFactory.getInstance().getHeader(accession).getGeneName();
+                        genes.add(geneName);
+                    }
+                    passes = compiledItem.passes(genes);
+                    break;
+                case GO:
+                    passes = compiledItem.passes(new ArrayList<String>(geneMaps.getGoNamesForProtein(matchKey)));
+                    break;
+                case expectedCoverage:
+                    passes = compiledItem.passes(100 * identificationFeaturesGenerator.getObservableCoverage(matchKey));
+                    break;
+                case validatedCoverage:
+                    passes = compiledItem.passes(100 * identificationFeaturesGenerator.getValidatedSequenceCoverage(matchKey));
+                    break;
+                case confidentCoverage:
+                case spectrumCounting:
+                    if (sequenceCoverage == null) {
+                        sequenceCoverage = identificationFeaturesGenerator.getSequenceCoverage(matchKey);
+                    }
+                    passes = compiledItem.passes(100 * sequenceCoverage.get(MatchValidationLevel.confident.getIndex()));
+                    break;
+                case ptm:
+                    ArrayList<String> ptms;
+                    PSPtmScores psPtmScores = new PSPtmScores();
+                    psPtmScores = (PSPtmScores) proteinMatch.getUrParam(psPtmScores);
+                    if (psPtmScores != null) {
+                        ptms = psPtmScores.getScoredPTMs();
+                    } else {
+                        ptms = new ArrayList<String>(0);
+                    }
+                    passes = compiledItem.passes(ptms);
+                    break;
+                case nPeptides:
+                    passes = compiledItem.passes(proteinMatch.getPeptideCount());
+                    break;
+                case nValidatedPeptides:
+                    passes = compiledItem.passes(identificationFeaturesGenerator.getNValidatedPeptides(matchKey));
+                    break;
+                case nConfidentPeptides:
+                    passes = compiledItem.passes(identificationFeaturesGenerator.getNConfidentPeptides(matchKey));
+                    break;
+                case nPSMs:
+                    passes = compiledItem.passes(identificationFeaturesGenerator.getNSpectra(matchKey));
+                    break;
+                case nValidatedPSMs:
+                    passes = compiledItem.passes(identificationFeaturesGenerator.getNValidatedSpectra(matchKey));
+                    break;
+                case nConfidentPSMs:
+                    passes = compiledItem.passes(identificationFeaturesGenerator.getNConfidentSpectra(matchKey));
+                    break;
+                case confidence:
+                    passes = compiledItem.passes(psParameter.getProteinConfidence());
+                    break;
+                case proteinInference:
+                    passes = compiledItem.passes(psParameter.getProteinInferenceClass());
+                    break;
+                case validationStatus:
+                    passes = compiledItem.passes(psParameter.getMatchValidationLevel().getIndex());
+                    break;
+                case stared:
+                    passes = compiledItem.passes(psParameter.isStarred());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+            }
+            if (!passes) {
+                return false;
+            }
         }
-        String input = value.toString();
-        switch (filterItem) {
+        return true;
+    }
+
+    @Override
+    protected int getEvaluationCost(FilterItem filterItem) {
+        switch ((ProteinFilterItem) filterItem) {
             case proteinAccession:
-                return filterItemComparator.passes(input, ProteinMatch.getAccessions(matchKey));
-            case proteinDescription:
-                String[] accessions = ProteinMatch.getAccessions(matchKey);
-                ArrayList<String> descriptions = new ArrayList<String>();
-                for (String accession : accessions) {
-                    Header proteinHeader = SequenceFactory.getInstance().getHeader(accession);
-                    descriptions.add(proteinHeader.getDescription());
-                }
-                return filterItemComparator.passes(input, descriptions);
-            case sequence:
-                accessions = ProteinMatch.getAccessions(matchKey);
-                ArrayList<String> sequences = new ArrayList<String>();
-                for (String accession : accessions) {
-                    Protein protein = SequenceFactory.getInstance().getProtein(accession);
-                    sequences.add(protein.getSequence());
-                }
-                return filterItemComparator.passes(input, sequences);
-            case chromosome:
-                accessions = ProteinMatch.getAccessions(matchKey);
-                ArrayList<String> chromosomes = new ArrayList<String>();
-                for (String accession : accessions) {
-                    String geneName = SequenceFactory.getInstance().getHeader(accession).getGeneName();
-                    String chromosomeNumber = geneMaps.getChromosome(geneName);
-                    chromosomes.add(chromosomeNumber);
-                }
-                return filterItemComparator.passes(input, chromosomes);
-            case gene:
-                accessions = ProteinMatch.getAccessions(matchKey);
-                ArrayList<String> genes = new ArrayList<String>();
-                for (String accession : accessions) {
-                    String geneName = SequenceFactory.getInstance().getHeader(accession).getGeneName();
-                    genes.add(geneName);
-                }
-                return filterItemComparator.passes(input, genes);
-            case GO:
-                return filterItemComparator.passes(input, new ArrayList<String>(geneMaps.getGoNamesForProtein(matchKey)));
-            case expectedCoverage:
-                Double coverage = 100 * identificationFeaturesGenerator.getObservableCoverage(matchKey);
-                return filterItemComparator.passes(input, coverage.toString());
-            case validatedCoverage:
-                coverage = 100 * identificationFeaturesGenerator.getValidatedSequenceCoverage(matchKey);
-                return filterItemComparator.passes(input, coverage.toString());
-            case confidentCoverage:
-                HashMap<Integer, Double> sequenceCoverage = identificationFeaturesGenerator.getSequenceCoverage(matchKey);
-                coverage = 100 * sequenceCoverage.get(MatchValidationLevel.confident.getIndex());
-                return filterItemComparator.passes(input, coverage.toString());
-            case spectrumCounting:
-                sequenceCoverage = identificationFeaturesGenerator.getSequenceCoverage(matchKey);
-                coverage = 100 * sequenceCoverage.get(MatchValidationLevel.confident.getIndex());
-                return filterItemComparator.passes(input, coverage.toString());
-            case ptm:
-                ProteinMatch proteinMatch = identification.getProteinMatch(matchKey);
-                ArrayList<String> ptms;
-                PSPtmScores psPtmScores = new PSPtmScores();
-                psPtmScores = (PSPtmScores) proteinMatch.getUrParam(psPtmScores);
-                if (psPtmScores != null) {
-                    ptms = psPtmScores.getScoredPTMs();
-                } else {
-                    ptms = new ArrayList<String>(0);
-                }
-                return filterItemComparator.passes(input, ptms);
-            case nPeptides:
-                proteinMatch = identification.getProteinMatch(matchKey);
-                Integer nPeptides = proteinMatch.getPeptideCount();
-                return filterItemComparator.passes(input, nPeptides.toString());
-            case nValidatedPeptides:
-                nPeptides = identificationFeaturesGenerator.getNValidatedPeptides(matchKey);
-                return filterItemComparator.passes(input, nPeptides.toString());
-            case nConfidentPeptides:
-                nPeptides = identificationFeaturesGenerator.getNConfidentPeptides(matchKey);
-                return filterItemComparator.passes(input, nPeptides.toString());
-            case nPSMs:
-                Integer nPsms = identificationFeaturesGenerator.getNSpectra(matchKey);
-                return filterItemComparator.passes(input, nPsms.toString());
-            case nValidatedPSMs:
-                nPsms = identificationFeaturesGenerator.getNValidatedSpectra(matchKey);
-                return filterItemComparator.passes(input, nPsms.toString());
-            case nConfidentPSMs:
-                nPsms = identificationFeaturesGenerator.getNConfidentSpectra(matchKey);
-                return filterItemComparator.passes(input, nPsms.toString());
+                return 0;
             case confidence:
-                PSParameter psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, psParameter);
-                Double confidence = psParameter.getProteinConfidence();
-                return filterItemComparator.passes(input, confidence.toString());
             case proteinInference:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, psParameter);
-                Integer pi = psParameter.getProteinInferenceClass();
-                return filterItemComparator.passes(input, pi.toString());
             case validationStatus:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, psParameter);
-                Integer validation = psParameter.getMatchValidationLevel().getIndex();
-                return filterItemComparator.passes(input, validation.toString());
             case stared:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, psParameter);
-                String starred;
-                if (psParameter.isStarred()) {
-                    starred = FilterItemComparator.trueFalse[0];
-                } else {
-                    starred = FilterItemComparator.trueFalse[1];
-                }
-                return filterItemComparator.passes(input, starred);
+                return 1;
+            case ptm:
+            case nPeptides:
+                return 2;
             default:
-                throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+                return 3;
+        }
+    }
+
+    @Override
+    protected void loadMatches(ArrayList<CompiledFilterItem> items, ArrayList<String> matchKeys, Identification identification, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        boolean parametersNeeded = false, matchesNeeded = false;
+        for (CompiledFilterItem compiledItem : items) {
+            int cost = getEvaluationCost(compiledItem.getFilterItem());
+            if (cost == 1) {
+                parametersNeeded = true;
+            } else if (cost == 2) {
+                matchesNeeded = true;
+            }
+        }
+        if (parametersNeeded) {
+            identification.loadProteinMatchParameters(matchKeys, new PSParameter(), waitingHandler, false);
+        }
+        if (matchesNeeded) {
+            identification.loadProteinMatches(matchKeys, waitingHandler, false);
         }
     }
 
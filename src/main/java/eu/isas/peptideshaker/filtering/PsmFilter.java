@@ -1,18 +1,19 @@
 package eu.isas.peptideshaker.filtering;
 
-import com.compomics.util.experiment.filtering.FilterItemComparator;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.experiment.filtering.FilterItem;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.filtering.items.AssumptionFilterItem;
 import eu.isas.peptideshaker.filtering.items.PsmFilterItem;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -86,37 +87,67 @@ public class PsmFilter extends MatchFilter {
     }
 
     @Override
-    public boolean isValidated(String itemName, FilterItemComparator filterItemComparator, Object value, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+    protected boolean isValidated(ArrayList<CompiledFilterItem> items, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
 
-        PsmFilterItem filterItem = PsmFilterItem.getItem(itemName);
-        if (filterItem == null) {
-            return assumptionFilter.isValidated(itemName, filterItemComparator, value, matchKey, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
-        }
-        String input = value.toString();
-        switch (filterItem) {
-            case confidence:
-                PSParameter psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                Double confidence = psParameter.getProteinConfidence();
-                return filterItemComparator.passes(input, confidence.toString());
-            case validationStatus:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                Integer validation = psParameter.getMatchValidationLevel().getIndex();
-                return filterItemComparator.passes(input, validation.toString());
-            case stared:
-                psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                String starred;
-                if (psParameter.isStarred()) {
-                    starred = FilterItemComparator.trueFalse[0];
-                } else {
-                    starred = FilterItemComparator.trueFalse[1];
+        ArrayList<CompiledFilterItem> assumptionItems = null;
+        PSParameter psParameter = null;
+
+        for (CompiledFilterItem compiledItem : items) {
+            if (!(compiledItem.getFilterItem() instanceof PsmFilterItem)) {
+                if (assumptionItems == null) {
+                    assumptionItems = new ArrayList<CompiledFilterItem>(items.size());
                 }
-                return filterItemComparator.passes(input, starred);
-            default:
-                throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+                assumptionItems.add(compiledItem);
+                continue;
+            }
+            PsmFilterItem filterItem = (PsmFilterItem) compiledItem.getFilterItem();
+            if (psParameter == null) {
+                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, new PSParameter());
+            }
+            boolean passes;
+            switch (filterItem) {
+                case confidence:
+                    passes = compiledItem.passes(psParameter.getProteinConfidence());
+                    break;
+                case validationStatus:
+                    passes = compiledItem.passes(psParameter.getMatchValidationLevel().getIndex());
+                    break;
+                case stared:
+                    passes = compiledItem.passes(psParameter.isStarred());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Protein filter not implemented for item " + filterItem.name + ".");
+            }
+            if (!passes) {
+                return false;
+            }
+        }
+        if (assumptionItems != null) {
+            return assumptionFilter.isValidated(assumptionItems, matchKey, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator);
+        }
+        return true;
+    }
+
+    @Override
+    protected int getEvaluationCost(FilterItem filterItem) {
+        if (filterItem instanceof PsmFilterItem) {
+            return 1;
+        }
+        return assumptionFilter.getEvaluationCost(filterItem);
+    }
+
+    @Override
+    protected void loadMatches(ArrayList<CompiledFilterItem> items, ArrayList<String> matchKeys, Identification identification, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        ArrayList<CompiledFilterItem> assumptionItems = new ArrayList<CompiledFilterItem>(items.size());
+        for (CompiledFilterItem compiledItem : items) {
+            if (!(compiledItem.getFilterItem() instanceof PsmFilterItem)) {
+                assumptionItems.add(compiledItem);
+            }
+        }
+        if (!assumptionItems.isEmpty()) {
+            assumptionFilter.loadMatches(assumptionItems, matchKeys, identification, waitingHandler);
         }
     }
 
@@ -15,6 +15,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Export proteins in the FASTA format.
@@ -100,81 +101,166 @@ public class FastaExport {
     public static void export(File destinationFile, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             ExportType exportType, WaitingHandler waitingHandler, FilterPreferences filterPreferences, boolean accessionOnly) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
 
-        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
-        FileWriter f = new FileWriter(destinationFile);
+        BufferedWriter b = new BufferedWriter(new FileWriter(destinationFile));
 
         try {
+            if (accessionOnly) {
+                export(b, null, identification, identificationFeaturesGenerator, exportType, waitingHandler, filterPreferences);
+            } else {
+                export(null, b, identification, identificationFeaturesGenerator, exportType, waitingHandler, filterPreferences);
+            }
+        } finally {
+            b.close();
+        }
+    }
+
+    /**
+     * Exports the accessions and the FASTA details of the proteins of interest
+     * in two text files in a single pass over the proteins.
+     *
+     * @param accessionsFile the file where to write the accessions
+     * @param fastaFile the file where to write the proteins in FASTA format
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param exportType the export type (see enum below)
+     * @param waitingHandler waiting handler used to display progress and cancel
+     * the process
+     * @param filterPreferences the filter preferences
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     */
+    public static void exportAccessionsAndFasta(File accessionsFile, File fastaFile, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ExportType exportType, WaitingHandler waitingHandler, FilterPreferences filterPreferences) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+
+        BufferedWriter accessionsWriter = new BufferedWriter(new FileWriter(accessionsFile));
 
-            BufferedWriter b = new BufferedWriter(f);
+        try {
+            BufferedWriter fastaWriter = new BufferedWriter(new FileWriter(fastaFile));
 
             try {
-                if (exportType == ExportType.non_validated) {
+                export(accessionsWriter, fastaWriter, identification, identificationFeaturesGenerator, exportType, waitingHandler, filterPreferences);
+            } finally {
+                fastaWriter.close();
+            }
+        } finally {
+            accessionsWriter.close();
+        }
+    }
 
-                    PSParameter psParameter = new PSParameter();
-                    identification.loadProteinMatchParameters(psParameter, waitingHandler, false);
+    /**
+     * Exports the proteins of interest to the given writers.
+     *
+     * @param accessionsWriter the writer for the accessions, can be null
+     * @param fastaWriter the writer for the proteins in FASTA format, can be
+     * null
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param exportType the export type (see enum below)
+     * @param waitingHandler waiting handler used to display progress and cancel
+     * the process
+     * @param filterPreferences the filter preferences
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     */
+    private static void export(BufferedWriter accessionsWriter, BufferedWriter fastaWriter, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ExportType exportType, WaitingHandler waitingHandler, FilterPreferences filterPreferences) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
 
-                    for (String accession : sequenceFactory.getAccessions()) {
+        if (exportType == ExportType.non_validated) {
 
-                        if (!sequenceFactory.isDecoyAccession(accession)) {
+            PSParameter psParameter = new PSParameter();
+            identification.loadProteinMatchParameters(psParameter, waitingHandler, false);
 
-                            ArrayList<String> matches = new ArrayList<String>(identification.getProteinMap().get(accession));
+            for (String accession : sequenceFactory.getAccessions()) {
 
-                            if (matches != null) {
-                                boolean validated = false;
-                                for (String match : matches) {
-                                    psParameter = (PSParameter) identification.getProteinMatchParameter(match, psParameter);
-                                    if (psParameter.getMatchValidationLevel().isValidated()) {
-                                        validated = true;
-                                        break;
-                                    }
-                                }
-                                if (!validated) {
-                                    writeAccession(b, accession, sequenceFactory, accessionOnly);
-                                }
-                            }
-                        }
-                        if (waitingHandler != null) {
-                            if (waitingHandler.isRunCanceled()) {
+                if (!sequenceFactory.isDecoyAccession(accession)) {
+
+                    ArrayList<String> matches = new ArrayList<String>(identification.getProteinMap().get(accession));
+
+                    if (matches != null) {
+                        boolean validated = false;
+                        for (String match : matches) {
+                            psParameter = (PSParameter) identification.getProteinMatchParameter(match, psParameter);
+                            if (psParameter.getMatchValidationLevel().isValidated()) {
+                                validated = true;
                                 break;
                             }
-                            waitingHandler.increaseSecondaryProgressCounter();
                         }
+                        if (!validated) {
+                            writeAccession(accessionsWriter, fastaWriter, accession, sequenceFactory);
+                        }
+                    }
+                }
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        break;
                     }
-                } else {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            }
+        } else {
 
-                    ArrayList<String> exported = new ArrayList<String>();
+            HashSet<String> exported = new HashSet<String>();
 
-                    ArrayList<String> proteinMatches = identificationFeaturesGenerator.getValidatedProteins(waitingHandler, filterPreferences);
-                    ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(proteinMatches, null, false, null, false, null, waitingHandler);
-                    while (proteinMatchesIterator.hasNext()) {
-                        ProteinMatch proteinMatch = proteinMatchesIterator.next();
-                        ArrayList<String> accessions = new ArrayList<String>();
-                        if (exportType == ExportType.validated_main_accession) {
-                            accessions.add(proteinMatch.getMainMatch());
-                        } else if (exportType == ExportType.validated_all_accessions) {
-                            accessions.addAll(proteinMatch.getTheoreticProteinsAccessions());
-                        }
-                        for (String accession : accessions) {
-                            if (!exported.contains(accession)) {
-                                writeAccession(b, accession, sequenceFactory, accessionOnly);
-                                exported.add(accession);
-                            }
-                        }
-                        if (waitingHandler != null) {
-                            if (waitingHandler.isRunCanceled()) {
-                                break;
-                            }
-                            waitingHandler.increaseSecondaryProgressCounter();
-                        }
+            ArrayList<String> proteinMatches = identificationFeaturesGenerator.getValidatedProteins(waitingHandler, filterPreferences);
+            ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(proteinMatches, null, false, null, false, null, waitingHandler);
+            while (proteinMatchesIterator.hasNext()) {
+                ProteinMatch proteinMatch = proteinMatchesIterator.next();
+                ArrayList<String> accessions = new ArrayList<String>();
+                if (exportType == ExportType.validated_main_accession) {
+                    accessions.add(proteinMatch.getMainMatch());
+                } else if (exportType == ExportType.validated_all_accessions) {
+                    accessions.addAll(proteinMatch.getTheoreticProteinsAccessions());
+                }
+                for (String accession : accessions) {
+                    if (exported.add(accession)) {
+                        writeAccession(accessionsWriter, fastaWriter, accession, sequenceFactory);
                     }
                 }
-            } finally {
-                b.close();
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        break;
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
             }
-        } finally {
-            f.close();
         }
+    }
 
+    /**
+     * Writes the accession to the accessions writer and the protein details in
+     * FASTA format to the FASTA writer.
+     *
+     * @param accessionsWriter the writer for the accessions, can be null
+     * @param fastaWriter the writer for the proteins in FASTA format, can be
+     * null
+     * @param accession the accession of interest
+     * @param sequenceFactory the sequence factory
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws IllegalArgumentException thrown if an IllegalArgumentException
+     * occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws FileNotFoundException thrown if a FileNotFoundException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     */
+    private static void writeAccession(BufferedWriter accessionsWriter, BufferedWriter fastaWriter, String accession, SequenceFactory sequenceFactory)
+            throws IOException, IllegalArgumentException, InterruptedException, FileNotFoundException, ClassNotFoundException {
+        if (accessionsWriter != null) {
+            writeAccession(accessionsWriter, accession, sequenceFactory, true);
+        }
+        if (fastaWriter != null) {
+            writeAccession(fastaWriter, accession, sequenceFactory, false);
+        }
     }
 
     /**
@@ -0,0 +1,453 @@
+package eu.isas.peptideshaker.followup;
+
+import com.compomics.util.experiment.biology.genes.go.GoDomains;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.experiment.personalization.UrParameter;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.math.distribution.HypergeometricDistributionImpl;
+
+/**
+ * Gene ontology enrichment analysis of the proteins of a dataset against the
+ * GO mapping of a species. The p-values are estimated using a hypergeometric
+ * distribution and corrected for multiple testing using the
+ * Benjamini-Hochberg procedure.
+ *
+ * @author Marc Vaudel
+ */
+public class GoEnrichment {
+
+    /**
+     * The GO mapping used as background.
+     */
+    private final GoMappingCache goMapping;
+    /**
+     * The number of dataset proteins annotated with every term.
+     */
+    private final int[] datasetFrequencies;
+    /**
+     * The number of dataset proteins annotated with GO terms.
+     */
+    private int nDatasetProteins = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param goMapping the GO mapping used as background
+     */
+    public GoEnrichment(GoMappingCache goMapping) {
+        this.goMapping = goMapping;
+        datasetFrequencies = new int[goMapping.getnTerms()];
+    }
+
+    /**
+     * Adds a protein to the dataset.
+     *
+     * @param proteinAccession the accession of the protein
+     *
+     * @return a boolean indicating whether the protein is annotated with GO
+     * terms
+     */
+    public boolean addProtein(String proteinAccession) {
+        int proteinIndex = goMapping.getProteinIndex(proteinAccession);
+        if (proteinIndex == -1) {
+            return false;
+        }
+        goMapping.countTerms(proteinIndex, datasetFrequencies);
+        nDatasetProteins++;
+        return true;
+    }
+
+    /**
+     * Adds the main accession of the validated target proteins which are not
+     * hidden to the dataset.
+     *
+     * @param identification the identification
+     * @param waitingHandler waiting handler displaying progress to the user
+     * and allowing canceling the process
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     */
+    public void addValidatedProteins(Identification identification, WaitingHandler waitingHandler)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        PSParameter psParameter = new PSParameter();
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(psParameter);
+        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, false, null, false, null, waitingHandler);
+
+        while (proteinMatchesIterator.hasNext()) {
+
+            ProteinMatch proteinMatch = proteinMatchesIterator.next();
+            String proteinKey = proteinMatch.getKey();
+            psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+
+            if (psParameter.getMatchValidationLevel().isValidated() && !ProteinMatch.isDecoy(proteinKey) && !psParameter.isHidden()) {
+                addProtein(proteinMatch.getMainMatch());
+            }
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                waitingHandler.increasePrimaryProgressCounter();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of dataset proteins annotated with GO terms.
+     *
+     * @return the number of dataset proteins annotated with GO terms
+     */
+    public int getnDatasetProteins() {
+        return nDatasetProteins;
+    }
+
+    /**
+     * Returns the GO mapping used as background.
+     *
+     * @return the GO mapping used as background
+     */
+    public GoMappingCache getGoMapping() {
+        return goMapping;
+    }
+
+    /**
+     * Estimates the enrichment of every term of the mapping in the dataset.
+     * The p-values are estimated in parallel.
+     *
+     * @param nThreads the number of threads to use
+     * @param waitingHandler waiting handler displaying progress to the user
+     * and allowing canceling the process, can be null
+     *
+     * @return the enrichment of the terms in the order of the term names, null
+     * if the process was canceled
+     *
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     */
+    public ArrayList<TermEnrichment> getEnrichment(int nThreads, final WaitingHandler waitingHandler) throws InterruptedException {
+
+        final int nTerms = goMapping.getnTerms();
+        final double[] pValues = new double[nTerms];
+
+        int nChunks = Math.max(1, Math.min(nThreads, nTerms));
+        int chunkSize = (nTerms + nChunks - 1) / nChunks;
+        ExecutorService pool = Executors.newFixedThreadPool(nChunks);
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(nChunks);
+
+        try {
+            for (int start = 0; start < nTerms; start += chunkSize) {
+                final int chunkStart = start;
+                final int chunkEnd = Math.min(start + chunkSize, nTerms);
+                futures.add(pool.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = chunkStart; i < chunkEnd; i++) {
+                            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                                return null;
+                            }
+                            pValues[i] = getPValue(i);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            pool.shutdown();
+
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalArgumentException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return null;
+        }
+
+        double[] correctedPValues = getBenjaminiHochbergCorrection(pValues);
+
+        int nBackgroundProteins = goMapping.getnBackgroundProteins();
+        ArrayList<TermEnrichment> result = new ArrayList<TermEnrichment>(nTerms);
+        for (int i = 0; i < nTerms; i++) {
+            int frequencyBackground = goMapping.getBackgroundFrequency(i);
+            int frequencyDataset = datasetFrequencies[i];
+            double percentAll = ((double) frequencyBackground) * 100 / nBackgroundProteins;
+            double percentDataset = frequencyDataset == 0 ? 0.0 : ((double) frequencyDataset) * 100 / nDatasetProteins;
+            result.add(new TermEnrichment(goMapping.getTermAccession(i), goMapping.getTermName(i), frequencyBackground, frequencyDataset,
+                    percentAll, percentDataset, pValues[i], correctedPValues[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the probability to observe the dataset frequency of the term at
+     * the given index.
+     *
+     * @param termIndex the index of the term
+     *
+     * @return the p-value of the term
+     */
+    private double getPValue(int termIndex) {
+        return new HypergeometricDistributionImpl(
+                goMapping.getnBackgroundProteins(), // population size
+                goMapping.getBackgroundFrequency(termIndex), // number of successes
+                nDatasetProteins // sample size
+        ).probability(datasetFrequencies[termIndex]);
+    }
+
+    /**
+     * Corrects p-values for multiple testing using the Benjamini-Hochberg
+     * procedure: every p-value is multiplied by the number of p-values and
+     * divided by its rank, corrected values bigger than one are set to one.
+     *
+     * @param pValues the p-values
+     *
+     * @return the corrected p-values in the same order
+     */
+    public static double[] getBenjaminiHochbergCorrection(final double[] pValues) {
+
+        int n = pValues.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(pValues[o1], pValues[o2]);
+            }
+        });
+
+        double[] correctedPValues = new double[n];
+        for (int rank = 1; rank <= n; rank++) {
+            int index = order[rank - 1];
+            correctedPValues[index] = Math.min(1.0, pValues[index] * n / rank);
+        }
+        return correctedPValues;
+    }
+
+    /**
+     * Writes the enrichment of the terms in a tab separated text file.
+     *
+     * @param destinationFile the file where to write
+     * @param enrichment the enrichment of the terms
+     * @param goDomains the domains of the terms, can be null
+     * @param significanceLevel the significance level for the corrected
+     * p-values
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public static void writeReport(File destinationFile, ArrayList<TermEnrichment> enrichment, GoDomains goDomains, double significanceLevel) throws IOException {
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(destinationFile));
+        try {
+            writer.write("GO Accession\tGO Term\tGO Domain\tFrequency All\tFrequency Dataset\tFrequency All (%)\tFrequency Dataset (%)\tLog2 Diff\tp-value\tCorrected p-value\tSignificant");
+            writer.newLine();
+            for (TermEnrichment termEnrichment : enrichment) {
+                String goDomain = goDomains == null ? null : goDomains.getTermDomain(termEnrichment.getAccession());
+                writer.write(termEnrichment.getAccession() + "\t"
+                        + termEnrichment.getName() + "\t"
+                        + (goDomain == null ? "" : goDomain) + "\t"
+                        + termEnrichment.getFrequencyBackground() + "\t"
+                        + termEnrichment.getFrequencyDataset() + "\t"
+                        + termEnrichment.getPercentAll() + "\t"
+                        + termEnrichment.getPercentDataset() + "\t"
+                        + termEnrichment.getLog2Diff() + "\t"
+                        + termEnrichment.getPValue() + "\t"
+                        + termEnrichment.getCorrectedPValue() + "\t"
+                        + (termEnrichment.getCorrectedPValue() < significanceLevel ? 1 : 0));
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * The enrichment of a GO term in the dataset.
+     */
+    public static class TermEnrichment {
+
+        /**
+         * The accession of the term.
+         */
+        private final String accession;
+        /**
+         * The name of the term.
+         */
+        private final String name;
+        /**
+         * The number of background proteins annotated with the term.
+         */
+        private final int frequencyBackground;
+        /**
+         * The number of dataset proteins annotated with the term.
+         */
+        private final int frequencyDataset;
+        /**
+         * The share of background proteins annotated with the term in
+         * percent.
+         */
+        private final double percentAll;
+        /**
+         * The share of dataset proteins annotated with the term in percent.
+         */
+        private final double percentDataset;
+        /**
+         * The p-value.
+         */
+        private final double pValue;
+        /**
+         * The p-value corrected for multiple testing.
+         */
+        private final double correctedPValue;
+
+        /**
+         * Constructor.
+         *
+         * @param accession the accession of the term
+         * @param name the name of the term
+         * @param frequencyBackground the number of background proteins
+         * annotated with the term
+         * @param frequencyDataset the number of dataset proteins annotated
+         * with the term
+         * @param percentAll the share of background proteins annotated with
+         * the term in percent
+         * @param percentDataset the share of dataset proteins annotated with
+         * the term in percent
+         * @param pValue the p-value
+         * @param correctedPValue the p-value corrected for multiple testing
+         */
+        public TermEnrichment(String accession, String name, int frequencyBackground, int frequencyDataset,
+                double percentAll, double percentDataset, double pValue, double correctedPValue) {
+            this.accession = accession;
+            this.name = name;
+            this.frequencyBackground = frequencyBackground;
+            this.frequencyDataset = frequencyDataset;
+            this.percentAll = percentAll;
+            this.percentDataset = percentDataset;
+            this.pValue = pValue;
+            this.correctedPValue = correctedPValue;
+        }
+
+        /**
+         * Returns the accession of the term.
+         *
+         * @return the accession of the term
+         */
+        public String getAccession() {
+            return accession;
+        }
+
+        /**
+         * Returns the name of the term.
+         *
+         * @return the name of the term
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of background proteins annotated with the term.
+         *
+         * @return the number of background proteins annotated with the term
+         */
+        public int getFrequencyBackground() {
+            return frequencyBackground;
+        }
+
+        /**
+         * Returns the number of dataset proteins annotated with the term.
+         *
+         * @return the number of dataset proteins annotated with the term
+         */
+        public int getFrequencyDataset() {
+            return frequencyDataset;
+        }
+
+        /**
+         * Returns the share of background proteins annotated with the term in
+         * percent.
+         *
+         * @return the share of background proteins annotated with the term
+         */
+        public double getPercentAll() {
+            return percentAll;
+        }
+
+        /**
+         * Returns the share of dataset proteins annotated with the term in
+         * percent.
+         *
+         * @return the share of dataset proteins annotated with the term
+         */
+        public double getPercentDataset() {
+            return percentDataset;
+        }
+
+        /**
+         * Returns the log2 of the ratio between the dataset and background
+         * shares.
+         *
+         * @return the log2 of the ratio between the dataset and background
+         * shares
+         */
+        public double getLog2Diff() {
+            return Math.log(percentDataset / percentAll) / Math.log(2);
+        }
+
+        /**
+         * Returns the p-value.
+         *
+         * @return the p-value
+         */
+        public double getPValue() {
+            return pValue;
+        }
+
+        /**
+         * Returns the p-value corrected for multiple testing.
+         *
+         * @return the p-value corrected for multiple testing
+         */
+        public double getCorrectedPValue() {
+            return correctedPValue;
+        }
+    }
+}
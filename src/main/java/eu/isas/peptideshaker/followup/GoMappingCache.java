@@ -0,0 +1,510 @@
+package eu.isas.peptideshaker.followup;
+
+import com.compomics.util.experiment.biology.genes.go.GoMapping;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The gene ontology mapping of a species stored in primitive arrays. The
+ * mapping is parsed once from the Ensembl GO mapping file and saved in a
+ * binary cache file next to it, subsequent loads map the cache file in memory.
+ * Loaded mappings are kept in memory and reused as long as the mapping file is
+ * not modified.
+ *
+ * Cache file layout:
+ * <ul>
+ * <li>header: magic number, format version, size and modification date of the
+ * mapping file</li>
+ * <li>the number of proteins in the background</li>
+ * <li>the terms sorted by name: accession, name and number of background
+ * proteins</li>
+ * <li>the proteins sorted by accession: accession and indexes of the
+ * terms</li>
+ * </ul>
+ *
+ * @author Marc Vaudel
+ */
+public class GoMappingCache {
+
+    /**
+     * The extension of the cache files.
+     */
+    public static final String EXTENSION = ".cache";
+    /**
+     * The magic number at the beginning of the cache files.
+     */
+    public static final int MAGIC = 0x5053474F;
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The mappings loaded indexed by path of the mapping file.
+     */
+    private static final HashMap<String, GoMappingCache> loadedMappings = new HashMap<String, GoMappingCache>();
+    /**
+     * The size of the mapping file used to build the cache.
+     */
+    private final long sourceLength;
+    /**
+     * The modification date of the mapping file used to build the cache.
+     */
+    private final long sourceLastModified;
+    /**
+     * The number of proteins annotated in the mapping.
+     */
+    private final int nBackgroundProteins;
+    /**
+     * The accessions of the terms, sorted by term name.
+     */
+    private final String[] termAccessions;
+    /**
+     * The names of the terms, sorted.
+     */
+    private final String[] termNames;
+    /**
+     * The number of background proteins annotated with every term.
+     */
+    private final int[] backgroundFrequencies;
+    /**
+     * The accessions of the annotated proteins, sorted.
+     */
+    private final String[] proteinAccessions;
+    /**
+     * The index in proteinTerms of the first term of every protein, the last
+     * element is the total number of protein terms.
+     */
+    private final int[] proteinTermsStart;
+    /**
+     * The indexes of the terms of the proteins.
+     */
+    private final int[] proteinTerms;
+
+    /**
+     * Constructor.
+     *
+     * @param sourceLength the size of the mapping file
+     * @param sourceLastModified the modification date of the mapping file
+     * @param nBackgroundProteins the number of proteins annotated in the
+     * mapping
+     * @param termAccessions the accessions of the terms, sorted by term name
+     * @param termNames the names of the terms, sorted
+     * @param backgroundFrequencies the number of background proteins annotated
+     * with every term
+     * @param proteinAccessions the accessions of the annotated proteins,
+     * sorted
+     * @param proteinTermsStart the index in proteinTerms of the first term of
+     * every protein
+     * @param proteinTerms the indexes of the terms of the proteins
+     */
+    private GoMappingCache(long sourceLength, long sourceLastModified, int nBackgroundProteins, String[] termAccessions, String[] termNames,
+            int[] backgroundFrequencies, String[] proteinAccessions, int[] proteinTermsStart, int[] proteinTerms) {
+        this.sourceLength = sourceLength;
+        this.sourceLastModified = sourceLastModified;
+        this.nBackgroundProteins = nBackgroundProteins;
+        this.termAccessions = termAccessions;
+        this.termNames = termNames;
+        this.backgroundFrequencies = backgroundFrequencies;
+        this.proteinAccessions = proteinAccessions;
+        this.proteinTermsStart = proteinTermsStart;
+        this.proteinTerms = proteinTerms;
+    }
+
+    /**
+     * Returns the mapping of the given GO mapping file. The mapping is taken
+     * from memory if already loaded, from the cache file if up to date, and
+     * parsed from the mapping file otherwise.
+     *
+     * @param goMappingFile the Ensembl GO mapping file
+     * @param waitingHandler waiting handler displaying progress to the user
+     * while parsing the mapping file, can be null
+     *
+     * @return the mapping
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     */
+    public static synchronized GoMappingCache getGoMapping(File goMappingFile, WaitingHandler waitingHandler) throws IOException {
+
+        String key = goMappingFile.getAbsolutePath();
+        GoMappingCache goMappingCache = loadedMappings.get(key);
+        if (goMappingCache != null && goMappingCache.isUpToDate(goMappingFile)) {
+            return goMappingCache;
+        }
+
+        File cacheFile = getCacheFile(goMappingFile);
+        goMappingCache = readCache(cacheFile, goMappingFile);
+        if (goMappingCache == null) {
+            goMappingCache = parseMapping(goMappingFile, waitingHandler);
+            try {
+                goMappingCache.writeCache(cacheFile);
+            } catch (IOException e) {
+                // the mapping can be used without cache
+                e.printStackTrace();
+            }
+        }
+
+        loadedMappings.put(key, goMappingCache);
+        return goMappingCache;
+    }
+
+    /**
+     * Empties the mappings kept in memory.
+     */
+    public static synchronized void clearLoadedMappings() {
+        loadedMappings.clear();
+    }
+
+    /**
+     * Returns the cache file of a GO mapping file.
+     *
+     * @param goMappingFile the GO mapping file
+     *
+     * @return the cache file
+     */
+    public static File getCacheFile(File goMappingFile) {
+        return new File(goMappingFile.getParentFile(), goMappingFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Indicates whether the mapping was built from the current version of the
+     * given mapping file.
+     *
+     * @param goMappingFile the GO mapping file
+     *
+     * @return a boolean indicating whether the mapping is up to date
+     */
+    private boolean isUpToDate(File goMappingFile) {
+        return goMappingFile.length() == sourceLength && goMappingFile.lastModified() == sourceLastModified;
+    }
+
+    /**
+     * Parses a GO mapping file.
+     *
+     * @param goMappingFile the GO mapping file
+     * @param waitingHandler waiting handler displaying progress to the user,
+     * can be null
+     *
+     * @return the mapping
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static GoMappingCache parseMapping(File goMappingFile, WaitingHandler waitingHandler) throws IOException {
+
+        long sourceLength = goMappingFile.length();
+        long sourceLastModified = goMappingFile.lastModified();
+
+        GoMapping goMapping = new GoMapping();
+        goMapping.loadMappingsFromFile(goMappingFile, waitingHandler);
+
+        ArrayList<String> sortedTermNames = goMapping.getSortedTermNames();
+        int nTerms = sortedTermNames.size();
+        String[] termNames = new String[nTerms];
+        String[] termAccessions = new String[nTerms];
+        int[] backgroundFrequencies = new int[nTerms];
+        HashMap<String, Integer> termIndexes = new HashMap<String, Integer>(nTerms);
+        for (int i = 0; i < nTerms; i++) {
+            String termName = sortedTermNames.get(i);
+            String termAccession = goMapping.getTermAccession(termName);
+            termNames[i] = termName;
+            termAccessions[i] = termAccession;
+            HashSet<String> termProteins = goMapping.getProteinAccessions(termAccession);
+            backgroundFrequencies[i] = termProteins == null ? 0 : termProteins.size();
+            termIndexes.put(termAccession, i);
+        }
+
+        int nBackgroundProteins = goMapping.getProteinToGoMap().size();
+        ArrayList<String> mappedProteins = new ArrayList<String>(nBackgroundProteins);
+        for (String proteinAccession : goMapping.getProteinToGoMap().keySet()) {
+            HashSet<String> goAccessions = goMapping.getGoAccessions(proteinAccession);
+            if (goAccessions != null && !goAccessions.isEmpty()) {
+                mappedProteins.add(proteinAccession);
+            }
+        }
+        String[] proteinAccessions = mappedProteins.toArray(new String[mappedProteins.size()]);
+        Arrays.sort(proteinAccessions);
+
+        int[] proteinTermsStart = new int[proteinAccessions.length + 1];
+        int[] proteinTerms = new int[16];
+        int nProteinTerms = 0;
+        for (int i = 0; i < proteinAccessions.length; i++) {
+            proteinTermsStart[i] = nProteinTerms;
+            for (String goAccession : goMapping.getGoAccessions(proteinAccessions[i])) {
+                Integer termIndex = termIndexes.get(goAccession);
+                if (termIndex != null) {
+                    if (nProteinTerms == proteinTerms.length) {
+                        proteinTerms = Arrays.copyOf(proteinTerms, 2 * nProteinTerms);
+                    }
+                    proteinTerms[nProteinTerms++] = termIndex;
+                }
+            }
+            Arrays.sort(proteinTerms, proteinTermsStart[i], nProteinTerms);
+        }
+        proteinTermsStart[proteinAccessions.length] = nProteinTerms;
+
+        return new GoMappingCache(sourceLength, sourceLastModified, nBackgroundProteins, termAccessions, termNames,
+                backgroundFrequencies, proteinAccessions, proteinTermsStart, Arrays.copyOf(proteinTerms, nProteinTerms));
+    }
+
+    /**
+     * Reads a cache file. Returns null if the file does not exist or was not
+     * built from the current version of the mapping file.
+     *
+     * @param cacheFile the cache file
+     * @param goMappingFile the GO mapping file
+     *
+     * @return the mapping, null if the cache is not usable
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static GoMappingCache readCache(File cacheFile, File goMappingFile) throws IOException {
+
+        if (!cacheFile.exists() || !isCacheUpToDate(cacheFile, goMappingFile)) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            buffer.getInt();
+            buffer.getInt();
+            long sourceLength = buffer.getLong();
+            long sourceLastModified = buffer.getLong();
+            int nBackgroundProteins = buffer.getInt();
+
+            int nTerms = buffer.getInt();
+            String[] termAccessions = new String[nTerms];
+            String[] termNames = new String[nTerms];
+            int[] backgroundFrequencies = new int[nTerms];
+            for (int i = 0; i < nTerms; i++) {
+                termAccessions[i] = readString(buffer);
+                termNames[i] = readString(buffer);
+                backgroundFrequencies[i] = buffer.getInt();
+            }
+
+            int nProteins = buffer.getInt();
+            String[] proteinAccessions = new String[nProteins];
+            int[] proteinTermsStart = new int[nProteins + 1];
+            int[] proteinTerms = new int[buffer.getInt()];
+            int nProteinTerms = 0;
+            for (int i = 0; i < nProteins; i++) {
+                proteinAccessions[i] = readString(buffer);
+                proteinTermsStart[i] = nProteinTerms;
+                int nTermsProtein = buffer.getInt();
+                buffer.asIntBuffer().get(proteinTerms, nProteinTerms, nTermsProtein);
+                buffer.position(buffer.position() + 4 * nTermsProtein);
+                nProteinTerms += nTermsProtein;
+            }
+            proteinTermsStart[nProteins] = nProteinTerms;
+
+            return new GoMappingCache(sourceLength, sourceLastModified, nBackgroundProteins, termAccessions, termNames,
+                    backgroundFrequencies, proteinAccessions, proteinTermsStart, proteinTerms);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Indicates whether the header of a cache file corresponds to the current
+     * format and version of the mapping file.
+     *
+     * @param cacheFile the cache file
+     * @param goMappingFile the GO mapping file
+     *
+     * @return a boolean indicating whether the cache file is up to date
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static boolean isCacheUpToDate(File cacheFile, File goMappingFile) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(cacheFile));
+        try {
+            return inputStream.readInt() == MAGIC
+                    && inputStream.readInt() == VERSION
+                    && inputStream.readLong() == goMappingFile.length()
+                    && inputStream.readLong() == goMappingFile.lastModified();
+        } catch (IOException e) {
+            return false;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Writes the mapping to a cache file. The file is written to a temporary
+     * file first to avoid leaving an incomplete cache if the process is
+     * interrupted.
+     *
+     * @param cacheFile the cache file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void writeCache(File cacheFile) throws IOException {
+
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + "_temp");
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeLong(sourceLength);
+            outputStream.writeLong(sourceLastModified);
+            outputStream.writeInt(nBackgroundProteins);
+
+            outputStream.writeInt(termAccessions.length);
+            for (int i = 0; i < termAccessions.length; i++) {
+                writeString(termAccessions[i], outputStream);
+                writeString(termNames[i], outputStream);
+                outputStream.writeInt(backgroundFrequencies[i]);
+            }
+
+            outputStream.writeInt(proteinAccessions.length);
+            outputStream.writeInt(proteinTerms.length);
+            for (int i = 0; i < proteinAccessions.length; i++) {
+                writeString(proteinAccessions[i], outputStream);
+                outputStream.writeInt(proteinTermsStart[i + 1] - proteinTermsStart[i]);
+                for (int j = proteinTermsStart[i]; j < proteinTermsStart[i + 1]; j++) {
+                    outputStream.writeInt(proteinTerms[j]);
+                }
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            tempFile.delete();
+            throw new IOException("Impossible to replace the GO mapping cache " + cacheFile.getAbsolutePath() + ".");
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            tempFile.delete();
+            throw new IOException("Impossible to write the GO mapping cache " + cacheFile.getAbsolutePath() + ".");
+        }
+    }
+
+    /**
+     * Writes a string as length prefixed UTF-8 bytes.
+     *
+     * @param value the string
+     * @param outputStream the stream where to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the stream
+     */
+    private static void writeString(String value, DataOutputStream outputStream) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Reads a string written as length prefixed UTF-8 bytes.
+     *
+     * @param buffer the buffer to read from
+     *
+     * @return the string
+     *
+     * @throws IOException exception thrown whenever the encoding is not
+     * supported
+     */
+    private static String readString(MappedByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Returns the number of proteins annotated in the mapping.
+     *
+     * @return the number of proteins annotated in the mapping
+     */
+    public int getnBackgroundProteins() {
+        return nBackgroundProteins;
+    }
+
+    /**
+     * Returns the number of terms.
+     *
+     * @return the number of terms
+     */
+    public int getnTerms() {
+        return termAccessions.length;
+    }
+
+    /**
+     * Returns the accession of the term at the given index.
+     *
+     * @param termIndex the index of the term
+     *
+     * @return the accession of the term
+     */
+    public String getTermAccession(int termIndex) {
+        return termAccessions[termIndex];
+    }
+
+    /**
+     * Returns the name of the term at the given index. Terms are indexed in
+     * the order of their names.
+     *
+     * @param termIndex the index of the term
+     *
+     * @return the name of the term
+     */
+    public String getTermName(int termIndex) {
+        return termNames[termIndex];
+    }
+
+    /**
+     * Returns the number of background proteins annotated with the term at
+     * the given index.
+     *
+     * @param termIndex the index of the term
+     *
+     * @return the number of background proteins annotated with the term
+     */
+    public int getBackgroundFrequency(int termIndex) {
+        return backgroundFrequencies[termIndex];
+    }
+
+    /**
+     * Returns the index of a protein in the mapping, -1 if the protein is not
+     * annotated with GO terms.
+     *
+     * @param proteinAccession the accession of the protein
+     *
+     * @return the index of the protein
+     */
+    public int getProteinIndex(String proteinAccession) {
+        int index = Arrays.binarySearch(proteinAccessions, proteinAccession);
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * Increments the counts of the terms annotating the protein at the given
+     * index.
+     *
+     * @param proteinIndex the index of the protein
+     * @param termCounts the counts indexed by term index
+     */
+    public void countTerms(int proteinIndex, int[] termCounts) {
+        for (int i = proteinTermsStart[proteinIndex]; i < proteinTermsStart[proteinIndex + 1]; i++) {
+            termCounts[proteinTerms[i]]++;
+        }
+    }
+}
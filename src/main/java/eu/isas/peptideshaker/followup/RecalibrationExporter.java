@@ -4,6 +4,7 @@ import com.compomics.util.Util;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.IdentificationParameters;
@@ -14,6 +15,12 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -34,10 +41,17 @@ public class RecalibrationExporter {
      * Suffix for the mgf file containing all recalibrated spectra.
      */
     public static final String recalibrated = "_recalibrated";
+    /**
+     * The size in characters of the buffer used when writing recalibrated
+     * files.
+     */
+    private static final int WRITER_BUFFER_SIZE = 1024 * 1024;
 
     /**
      * Writes the recalibrated spectra in files named according to
-     * getRecalibratedFileName in the given folder.
+     * getRecalibratedFileName in the given folder. The files are processed
+     * in parallel, the secondary progress counter of the waiting handler is
+     * set for all files and increased by the files as they are processed.
      *
      * @param recalibratePrecursors boolean indicating whether precursor ions
      * shall be recalibrated
@@ -46,6 +60,7 @@ public class RecalibrationExporter {
      * @param folder folder where recalibrated files shall be written
      * @param identification identification of the project
      * @param identificationParameters the identification parameters
+     * @param nThreads the number of files to process in parallel
      * @param waitingHandler waiting handler displaying progress and used to
      * cancel the process. Can be null. The method does not call RunFinished.
      *
@@ -60,116 +75,194 @@ public class RecalibrationExporter {
      * @throws MzMLUnmarshallerException exception thrown whenever an exception
      * occurred while reading an mzML file
      */
-    public static void writeRecalibratedSpectra(boolean recalibratePrecursors, boolean recalibrateFragmentIons, File folder,
-            Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+    public static void writeRecalibratedSpectra(final boolean recalibratePrecursors, final boolean recalibrateFragmentIons, final File folder,
+            final Identification identification, final IdentificationParameters identificationParameters, int nThreads, final WaitingHandler waitingHandler)
             throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
         SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
-        SpectrumRecalibrator spectrumRecalibrator = new SpectrumRecalibrator();
+        final ArrayList<String> fileNames = new ArrayList<String>(spectrumFactory.getMgfFileNames());
 
-        int progress = 1;
+        if (fileNames.isEmpty()) {
+            return;
+        }
 
-        for (String fileName : spectrumFactory.getMgfFileNames()) {
+        final WaitingHandler fileWaitingHandler;
+        if (waitingHandler != null) {
+            int nSpectra = 0;
+            for (String fileName : fileNames) {
+                nSpectra += spectrumFactory.getNSpectra(fileName);
+            }
+            waitingHandler.setWaitingText("Recalibrating Spectra. Please Wait... (" + fileNames.size() + " files)");
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(2 * nSpectra);
+            fileWaitingHandler = new FileWaitingHandler(waitingHandler);
+        } else {
+            fileWaitingHandler = null;
+        }
 
-            if (waitingHandler != null) {
-                if (waitingHandler.isRunCanceled()) {
-                    break;
-                }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, fileNames.size())));
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(fileNames.size());
 
-                waitingHandler.setWaitingText("Recalibrating Spectra. Inspecting Mass Deviations. Please Wait... (" + progress + "/" + spectrumFactory.getMgfFileNames().size() + ")");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                waitingHandler.setMaxSecondaryProgressCounter(2 * spectrumFactory.getNSpectra(fileName));
+        try {
+            for (final String fileName : fileNames) {
+                futures.add(pool.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        writeRecalibratedSpectra(fileName, recalibratePrecursors, recalibrateFragmentIons, folder, identification, identificationParameters, fileWaitingHandler);
+                        return null;
+                    }
+                }));
             }
+            pool.shutdown();
+
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    } else if (cause instanceof ClassNotFoundException) {
+                        throw (ClassNotFoundException) cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else if (cause instanceof MzMLUnmarshallerException) {
+                        throw (MzMLUnmarshallerException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalArgumentException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, waitingHandler);
+    /**
+     * Estimates the m/z deviations of a spectrum file and writes its
+     * recalibrated spectra in a file named according to
+     * getRecalibratedFileName in the given folder. The secondary progress
+     * counter of the waiting handler is increased twice per spectrum.
+     *
+     * @param fileName the name of the spectrum file
+     * @param recalibratePrecursors boolean indicating whether precursor ions
+     * shall be recalibrated
+     * @param recalibrateFragmentIons boolean indicating whether fragment ions
+     * shall be recalibrated
+     * @param folder folder where recalibrated files shall be written
+     * @param identification identification of the project
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler waiting handler of the file used to display the
+     * progress and to cancel the process. Can be null.
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     */
+    private static void writeRecalibratedSpectra(String fileName, boolean recalibratePrecursors, boolean recalibrateFragmentIons, File folder,
+            Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+            throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
-            // Debug part
-            if (debug) {
+        SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+        SpectrumRecalibrator spectrumRecalibrator = new SpectrumRecalibrator();
 
-                RunMzDeviation runMzDeviation = spectrumRecalibrator.getRunMzDeviations(fileName);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-                File debugFile = new File(folder, "debug" + getRecalibratedFileName(fileName) + "_precursors.txt");
-                BufferedWriter debugWriter = new BufferedWriter(new FileWriter(debugFile));
-                debugWriter.write("rt\tgrade\toffset");
-                debugWriter.newLine();
+        spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, waitingHandler);
 
-                for (double key : runMzDeviation.getPrecursorRTList()) {
+        // Debug part
+        if (debug) {
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+            RunMzDeviation runMzDeviation = spectrumRecalibrator.getRunMzDeviations(fileName);
 
-                    debugWriter.write(key + "\t");
-                    debugWriter.write(runMzDeviation.getSlope(key) + "\t");
-                    debugWriter.write(runMzDeviation.getOffset(key) + "\t");
-                    debugWriter.newLine();
+            File debugFile = new File(folder, "debug" + getRecalibratedFileName(fileName) + "_precursors.txt");
+            BufferedWriter debugWriter = new BufferedWriter(new FileWriter(debugFile));
+            debugWriter.write("rt\tgrade\toffset");
+            debugWriter.newLine();
+
+            for (double key : runMzDeviation.getPrecursorRTList()) {
+
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    break;
                 }
 
-                debugWriter.flush();
-                debugWriter.close();
+                debugWriter.write(key + "\t");
+                debugWriter.write(runMzDeviation.getSlope(key) + "\t");
+                debugWriter.write(runMzDeviation.getOffset(key) + "\t");
+                debugWriter.newLine();
+            }
 
-                debugFile = new File(folder, getRecalibratedFileName(fileName) + "_fragments.txt");
-                debugWriter = new BufferedWriter(new FileWriter(debugFile));
+            debugWriter.flush();
+            debugWriter.close();
 
-                for (double rtKey : runMzDeviation.getPrecursorRTList()) {
+            debugFile = new File(folder, getRecalibratedFileName(fileName) + "_fragments.txt");
+            debugWriter = new BufferedWriter(new FileWriter(debugFile));
 
-                    debugWriter.write(rtKey + "\nm/z");
+            for (double rtKey : runMzDeviation.getPrecursorRTList()) {
 
-                    for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
+                debugWriter.write(rtKey + "\nm/z");
 
-                        debugWriter.write("\t" + mzKey);
+                for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
 
-                    }
-                    debugWriter.newLine();
-                    debugWriter.write("Error");
+                    debugWriter.write("\t" + mzKey);
 
-                    for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
+                }
+                debugWriter.newLine();
+                debugWriter.write("Error");
 
-                        debugWriter.write("\t" + runMzDeviation.getFragmentMzError(rtKey, mzKey));
+                for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
 
-                    }
+                    debugWriter.write("\t" + runMzDeviation.getFragmentMzError(rtKey, mzKey));
 
-                    debugWriter.newLine();
                 }
-                debugWriter.flush();
-                debugWriter.close();
-                // End of debug part
-            }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
+                debugWriter.newLine();
             }
+            debugWriter.flush();
+            debugWriter.close();
+            // End of debug part
+        }
 
-            File file = new File(folder, getRecalibratedFileName(fileName));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("Recalibrating Spectra. Writing Spectra. Please Wait... (" + progress + "/" + spectrumFactory.getMgfFileNames().size() + ")");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setMaxSecondaryProgressCounter(spectrumFactory.getNSpectra(fileName));
-            }
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-            for (String spectrumTitle : spectrumFactory.getSpectrumTitles(fileName)) {
+        File file = new File(folder, getRecalibratedFileName(fileName));
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file), WRITER_BUFFER_SIZE);
 
-                if (debug) {
-                    //System.out.println(new Date() + " recalibrating " + spectrumTitle + "\n");
-                }
+        try {
+            for (String spectrumTitle : spectrumFactory.getSpectrumTitles(fileName)) {
 
                 MSnSpectrum recalibratedSpectrum = spectrumRecalibrator.recalibrateSpectrum(fileName, spectrumTitle, recalibratePrecursors, recalibrateFragmentIons);
                 recalibratedSpectrum.writeMgf(writer);
-                writer.flush();
 
                 if (waitingHandler != null) {
                     if (waitingHandler.isRunCanceled()) {
                         break;
                     }
-                    waitingHandler.increasePrimaryProgressCounter();
+                    waitingHandler.increaseSecondaryProgressCounter();
                 }
             }
-
-            spectrumRecalibrator.clearErrors(fileName);
+        } finally {
             writer.close();
         }
+
+        spectrumRecalibrator.clearErrors(fileName);
     }
 
     /**
@@ -182,4 +275,49 @@ public class RecalibrationExporter {
     public static String getRecalibratedFileName(String fileName) {
         return Util.appendSuffix(fileName, recalibrated);
     }
+
+    /**
+     * Waiting handler used when processing a file. The progress of the file
+     * is added to the waiting handler of the export while the settings of the
+     * progress counters, done when inspecting a file, are ignored.
+     *
+     * @author Marc Vaudel
+     */
+    private static class FileWaitingHandler extends WaitingHandlerCLIImpl {
+
+        /**
+         * The waiting handler of the export.
+         */
+        private final WaitingHandler exportWaitingHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param exportWaitingHandler the waiting handler of the export
+         */
+        public FileWaitingHandler(WaitingHandler exportWaitingHandler) {
+            this.exportWaitingHandler = exportWaitingHandler;
+            setDisplayProgress(false);
+        }
+
+        @Override
+        public void appendReport(String report, boolean includeDate, boolean addNewLine) {
+            exportWaitingHandler.appendReport(report, includeDate, addNewLine);
+        }
+
+        @Override
+        public void increaseSecondaryProgressCounter() {
+            exportWaitingHandler.increaseSecondaryProgressCounter();
+        }
+
+        @Override
+        public void setRunCanceled() {
+            exportWaitingHandler.setRunCanceled();
+        }
+
+        @Override
+        public boolean isRunCanceled() {
+            return exportWaitingHandler.isRunCanceled();
+        }
+    }
 }
@@ -57,6 +57,7 @@ import eu.isas.peptideshaker.gui.tabpanels.QCPanel;
 import eu.isas.peptideshaker.gui.tabpanels.SpectrumIdentificationPanel;
 import eu.isas.peptideshaker.gui.tabpanels.ValidationPanel;
 import eu.isas.peptideshaker.preferences.DisplayPreferences;
+import eu.isas.peptideshaker.protein_inference.ProteinHeaderIndex;
 import eu.isas.peptideshaker.preferences.FilterPreferences;
 import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
@@ -4194,6 +4195,7 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
             e.printStackTrace();
             catchException(e);
         }
+        ProteinHeaderIndex.releaseIndex();
 
         if (clearDatabaseFolder) {
             clearDatabaseFolder();
@@ -649,6 +649,7 @@ public class MzIdentMLExportDialog extends javax.swing.JDialog {
                     MzIdentMLExport mzIdentMLExport = new MzIdentMLExport(PeptideShaker.getVersion(), peptideShakerGUI.getIdentification(), peptideShakerGUI.getProjectDetails(),
                             peptideShakerGUI.getShotgunProtocol(), peptideShakerGUI.getIdentificationParameters(), peptideShakerGUI.getSpectrumCountingPreferences(), peptideShakerGUI.getIdentificationFeaturesGenerator(),
                             finalOutputFile, progressDialog, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none);
+                    mzIdentMLExport.setnThreads(peptideShakerGUI.getProcessingPreferences().getnThreads());
                     mzIdentMLExport.createMzIdentMLFile(mzIdentML_v1_2);
 
                     // validate the mzidentml file
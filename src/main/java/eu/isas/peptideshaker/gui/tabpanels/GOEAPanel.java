@@ -5,13 +5,9 @@ import com.compomics.util.examples.BareBonesBrowserLaunch;
 import com.compomics.util.experiment.biology.genes.GeneFactory;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.experiment.biology.genes.go.GoDomains;
-import com.compomics.util.experiment.biology.genes.go.GoMapping;
 import com.compomics.util.experiment.biology.taxonomy.SpeciesFactory;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
-import com.compomics.util.experiment.identification.matches.ProteinMatch;
-import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
-import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.gui.GuiUtilities;
 import com.compomics.util.gui.TableProperties;
 import com.compomics.util.gui.XYPlottingDialog;
@@ -22,6 +18,8 @@ import com.compomics.util.gui.export.graphics.ExportGraphicsDialog;
 import com.compomics.util.gui.parameters.identification_parameters.GenePreferencesDialog;
 import com.compomics.util.preferences.GenePreferences;
 import com.compomics.util.preferences.IdentificationParameters;
+import eu.isas.peptideshaker.followup.GoEnrichment;
+import eu.isas.peptideshaker.followup.GoMappingCache;
 import eu.isas.peptideshaker.gui.PeptideShakerGUI;
 import eu.isas.peptideshaker.gui.tablemodels.ProteinGoTableModel;
 import eu.isas.peptideshaker.gui.tablemodels.ProteinTableModel;
@@ -60,7 +58,6 @@ import no.uib.jsparklines.renderers.JSparklinesBarChartTableCellRenderer;
 import no.uib.jsparklines.renderers.JSparklinesIntegerIconTableCellRenderer;
 import no.uib.jsparklines.renderers.JSparklinesTableCellRenderer;
 import no.uib.jsparklines.renderers.util.BarChartColorRenderer;
-import org.apache.commons.math.distribution.HypergeometricDistributionImpl;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartMouseEvent;
 import org.jfree.chart.ChartMouseListener;
@@ -351,11 +348,8 @@ public class GOEAPanel extends javax.swing.JPanel {
                         dm.getDataVector().removeAllElements();
                         dm.fireTableDataChanged();
 
-                        TreeMap<String, Integer> datasetGoTermUsage = new TreeMap<String, Integer>();
-
                         try {
                             progressDialog.setTitle("Importing GO (1/3). Please Wait...");
-                            GoMapping backgroundGoMapping = new GoMapping();
                             Integer taxon = null;
                             IdentificationParameters identificationParameters = peptideShakerGUI.getIdentificationParameters();
                             GenePreferences genePreferences = identificationParameters.getGenePreferences();
@@ -374,7 +368,7 @@ public class GOEAPanel extends javax.swing.JPanel {
                                 SpeciesFactory speciesFactory = SpeciesFactory.getInstance();
                                 String ensemblDatasetName = speciesFactory.getEnsemblDataset(taxon);
                                 File goMappingFile = GeneFactory.getGoMappingFile(ensemblDatasetName);
-                                backgroundGoMapping.loadMappingsFromFile(goMappingFile, progressDialog);
+                                GoMappingCache backgroundGoMapping = GoMappingCache.getGoMapping(goMappingFile, progressDialog);
 
                                 GoDomains goDomains = new GoDomains();
                                 File goDomainsFile = GeneFactory.getGoDomainsFile();
@@ -387,81 +381,47 @@ public class GOEAPanel extends javax.swing.JPanel {
                                 progressDialog.setMaxPrimaryProgressCounter(identification.getProteinIdentification().size());
                                 progressDialog.setValue(0);
 
-                                int totalNumberOfGoMappedProteinsInProject = 0;
-                                PSParameter psParameter = new PSParameter();
-                                ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-                                parameters.add(psParameter);
-                                ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, false, null, false, null, progressDialog);
-
-                                while (proteinMatchesIterator.hasNext()) {
-
-                                    ProteinMatch proteinMatch = proteinMatchesIterator.next();
-                                    String proteinKey = proteinMatch.getKey();
-                                    psParameter = (PSParameter) peptideShakerGUI.getIdentification().getProteinMatchParameter(proteinKey, psParameter);
-
-                                    if (psParameter.getMatchValidationLevel().isValidated() && !ProteinMatch.isDecoy(proteinKey) && !psParameter.isHidden()) {
-
-                                        String mainMatch = proteinMatch.getMainMatch();
-                                        HashSet<String> goTerms = backgroundGoMapping.getGoAccessions(mainMatch);
-                                        if (goTerms != null && !goTerms.isEmpty()) {
-                                            totalNumberOfGoMappedProteinsInProject++;
-                                            for (String goTerm : goTerms) {
-                                                Integer usage = datasetGoTermUsage.get(goTerm);
-                                                if (usage == null) {
-                                                    usage = 0;
-                                                }
-                                                datasetGoTermUsage.put(goTerm, usage + 1);
-                                            }
-                                        }
-                                    }
-                                    if (progressDialog.isRunCanceled()) {
-                                        return;
-                                    }
-                                    progressDialog.increasePrimaryProgressCounter();
+                                GoEnrichment goEnrichment = new GoEnrichment(backgroundGoMapping);
+                                goEnrichment.addValidatedProteins(identification, progressDialog);
+
+                                if (progressDialog.isRunCanceled()) {
+                                    return;
                                 }
 
-                                ArrayList<String> termNamesMapped = backgroundGoMapping.getSortedTermNames();
-                                int nBackgroundProteins = backgroundGoMapping.getProteinToGoMap().size();
+                                ArrayList<GoEnrichment.TermEnrichment> enrichment = goEnrichment.getEnrichment(peptideShakerGUI.getProcessingPreferences().getnThreads(), progressDialog);
+
+                                if (enrichment == null) {
+                                    return;
+                                }
+
+                                int nBackgroundProteins = backgroundGoMapping.getnBackgroundProteins();
                                 progressDialog.setTitle("Creating GO Plots (3/3). Please Wait...");
                                 progressDialog.setValue(0);
-                                progressDialog.setMaxPrimaryProgressCounter(termNamesMapped.size());
+                                progressDialog.setMaxPrimaryProgressCounter(enrichment.size());
 
                                 // update the table
                                 Double maxLog2Diff = 0.0;
                                 ArrayList<Integer> indexes = new ArrayList<Integer>();
-                                ArrayList<Double> pValues = new ArrayList<Double>();
+                                ArrayList<Double> correctedPValues = new ArrayList<Double>();
 
                                 // display the number of go mapped proteins
                                 goProteinCountLabel.setText("[GO Proteins: Ensembl: " + nBackgroundProteins
-                                        + ", Project: " + totalNumberOfGoMappedProteinsInProject + "]");
+                                        + ", Project: " + goEnrichment.getnDatasetProteins() + "]");
 
                                 boolean goDomainChanged = false;
 
-                                for (String goTermName : termNamesMapped) {
+                                for (GoEnrichment.TermEnrichment termEnrichment : enrichment) {
 
                                     if (progressDialog.isRunCanceled()) {
                                         break;
                                     }
 
-                                    String goAccession = backgroundGoMapping.getTermAccession(goTermName);
-
-                                    Integer frequencyBackground = backgroundGoMapping.getProteinAccessions(goAccession).size();
-
-                                    Integer frequencyDataset = 0;
-                                    Double percentDataset = 0.0;
-
-                                    if (datasetGoTermUsage.get(goAccession) != null) {
-                                        frequencyDataset = datasetGoTermUsage.get(goAccession);
-                                        percentDataset = ((double) frequencyDataset) * 100 / totalNumberOfGoMappedProteinsInProject;
-                                    }
-
-                                    Double percentAll = ((double) frequencyBackground) * 100 / nBackgroundProteins;
-                                    Double pValue = new HypergeometricDistributionImpl(
-                                            nBackgroundProteins, // population size
-                                            frequencyBackground, // number of successes
-                                            totalNumberOfGoMappedProteinsInProject // sample size
-                                    ).probability(frequencyDataset);
-                                    Double log2Diff = Math.log(percentDataset / percentAll) / Math.log(2);
+                                    String goAccession = termEnrichment.getAccession();
+                                    String goTermName = termEnrichment.getName();
+                                    Double percentAll = termEnrichment.getPercentAll();
+                                    Double percentDataset = termEnrichment.getPercentDataset();
+                                    Double pValue = termEnrichment.getPValue();
+                                    Double log2Diff = termEnrichment.getLog2Diff();
 
                                     if (!log2Diff.isInfinite() && Math.abs(log2Diff) > maxLog2Diff) {
                                         maxLog2Diff = Math.abs(log2Diff);
@@ -509,7 +469,7 @@ public class GOEAPanel extends javax.swing.JPanel {
 
                                     JSparklinesDataset dataset = new JSparklinesDataset(sparkLineDataSeries);
 
-                                    pValues.add(pValue);
+                                    correctedPValues.add(termEnrichment.getCorrectedPValue());
                                     indexes.add(goMappingsTable.getRowCount());
 
                                     ((DefaultTableModel) goMappingsTable.getModel()).addRow(new Object[]{
@@ -543,38 +503,21 @@ public class GOEAPanel extends javax.swing.JPanel {
 
                                     ((DefaultTableModel) goMappingsTable.getModel()).fireTableDataChanged();
 
-                                    // correct the p-values for multiple testing using benjamini-hochberg
-                                    sortPValues(pValues, indexes);
-
-                                    ((ValueAndBooleanDataPoint) ((DefaultTableModel) goMappingsTable.getModel()).getValueAt(
-                                            indexes.get(0), goMappingsTable.getColumn("Log2 Diff").getModelIndex())).setSignificant(
-                                                    pValues.get(0) < significanceLevel);
-                                    ((DefaultTableModel) goMappingsTable.getModel()).setValueAt(new XYDataPoint(pValues.get(0), pValues.get(0)), indexes.get(0),
-                                            goMappingsTable.getColumn("p-value").getModelIndex());
-
-                                    if (pValues.get(0) < significanceLevel) {
-                                        significantCounter++;
-                                    }
-
-                                    for (int i = 1; i < pValues.size(); i++) {
+                                    // display the p-values corrected for multiple testing using benjamini-hochberg
+                                    for (int i = 0; i < correctedPValues.size(); i++) {
 
                                         if (progressDialog.isRunCanceled()) {
                                             break;
                                         }
 
-                                        double tempPvalue = pValues.get(i) * pValues.size() / (pValues.size() - i);
-
-                                        // have to check if the correction results in a p-value bigger than 1
-                                        if (tempPvalue > 1) {
-                                            tempPvalue = 1;
-                                        }
+                                        double correctedPValue = correctedPValues.get(i);
 
                                         ((ValueAndBooleanDataPoint) ((DefaultTableModel) goMappingsTable.getModel()).getValueAt(
-                                                indexes.get(i), goMappingsTable.getColumn("Log2 Diff").getModelIndex())).setSignificant(tempPvalue < significanceLevel);
-                                        ((DefaultTableModel) goMappingsTable.getModel()).setValueAt(new XYDataPoint(tempPvalue, tempPvalue), indexes.get(i),
+                                                indexes.get(i), goMappingsTable.getColumn("Log2 Diff").getModelIndex())).setSignificant(correctedPValue < significanceLevel);
+                                        ((DefaultTableModel) goMappingsTable.getModel()).setValueAt(new XYDataPoint(correctedPValue, correctedPValue), indexes.get(i),
                                                 goMappingsTable.getColumn("p-value").getModelIndex());
 
-                                        if (tempPvalue < significanceLevel) {
+                                        if (correctedPValue < significanceLevel) {
                                             significantCounter++;
                                         }
                                     }
@@ -1939,39 +1882,6 @@ public class GOEAPanel extends javax.swing.JPanel {
         }
     }
 
-    /**
-     * Sort the p-values and make the same changes to the table indexes.
-     *
-     * @param pValues
-     * @param tableIndexes
-     */
-    private void sortPValues(ArrayList<Double> pValues, ArrayList<Integer> tableIndexes) {
-
-        // iterate p-value list
-        for (int i = 0; i < pValues.size(); i++) {
-
-            double maxValue = -1;
-            int maxIndex = -1;
-
-            // find max p-value in sublist
-            for (int j = i; j < pValues.size(); j++) {
-                if (pValues.get(j) > maxValue) {
-                    maxValue = pValues.get(j);
-                    maxIndex = j;
-                }
-            }
-
-            // move in both lists
-            double oldValue = pValues.get(i);
-            pValues.set(i, pValues.get(maxIndex));
-            pValues.set(maxIndex, oldValue);
-
-            int oldIntValue = tableIndexes.get(i);
-            tableIndexes.set(i, tableIndexes.get(maxIndex));
-            tableIndexes.set(maxIndex, oldIntValue);
-        }
-    }
-
     /**
      * Update the GO mappings.
      */
@@ -0,0 +1,728 @@
+package eu.isas.peptideshaker.parameters;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Methods for the compact binary encoding of the parameters stored in the
+ * matches database. Maps and lists are written as their size followed by
+ * their entries, null maps and lists having a size of -1. A flag after the
+ * size indicates whether null values are present, in which case every value
+ * is preceded by a presence flag. String keys are interned upon reading.
+ *
+ * @author Marc Vaudel
+ */
+public class CompactEncoding {
+
+    /**
+     * Empty default constructor.
+     */
+    private CompactEncoding() {
+    }
+
+    /**
+     * Writes a map of doubles indexed by string.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeDoubleMap(DataOutput output, HashMap<String, Double> map) throws IOException {
+        boolean hasNull = writeHeader(output, map == null ? null : map.values());
+        if (map != null) {
+            for (Map.Entry<String, Double> entry : map.entrySet()) {
+                output.writeUTF(entry.getKey());
+                Double value = entry.getValue();
+                if (writePresence(output, hasNull, value)) {
+                    output.writeDouble(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a map of doubles indexed by string.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<String, Double> readDoubleMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<String, Double> map = new HashMap<String, Double>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            String key = input.readUTF().intern();
+            map.put(key, !hasNull || input.readBoolean() ? input.readDouble() : null);
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of integers indexed by string.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeIntegerMap(DataOutput output, HashMap<String, Integer> map) throws IOException {
+        boolean hasNull = writeHeader(output, map == null ? null : map.values());
+        if (map != null) {
+            for (Map.Entry<String, Integer> entry : map.entrySet()) {
+                output.writeUTF(entry.getKey());
+                Integer value = entry.getValue();
+                if (writePresence(output, hasNull, value)) {
+                    output.writeInt(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a map of integers indexed by string.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<String, Integer> readIntegerMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<String, Integer> map = new HashMap<String, Integer>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            String key = input.readUTF().intern();
+            map.put(key, !hasNull || input.readBoolean() ? input.readInt() : null);
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of booleans indexed by string.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeBooleanMap(DataOutput output, HashMap<String, Boolean> map) throws IOException {
+        boolean hasNull = writeHeader(output, map == null ? null : map.values());
+        if (map != null) {
+            for (Map.Entry<String, Boolean> entry : map.entrySet()) {
+                output.writeUTF(entry.getKey());
+                Boolean value = entry.getValue();
+                if (writePresence(output, hasNull, value)) {
+                    output.writeBoolean(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a map of booleans indexed by string.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<String, Boolean> readBooleanMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<String, Boolean> map = new HashMap<String, Boolean>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            String key = input.readUTF().intern();
+            map.put(key, !hasNull || input.readBoolean() ? input.readBoolean() : null);
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of lists of doubles indexed by string.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeDoubleListMap(DataOutput output, HashMap<String, ArrayList<Double>> map) throws IOException {
+        if (map == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(map.size());
+        for (Map.Entry<String, ArrayList<Double>> entry : map.entrySet()) {
+            output.writeUTF(entry.getKey());
+            writeDoubleList(output, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a map of lists of doubles indexed by string.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<String, ArrayList<Double>> readDoubleListMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<String, ArrayList<Double>> map = new HashMap<String, ArrayList<Double>>(size);
+        for (int i = 0; i < size; i++) {
+            String key = input.readUTF().intern();
+            map.put(key, readDoubleList(input));
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of doubles indexed by integer.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeIndexedDoubleMap(DataOutput output, HashMap<Integer, Double> map) throws IOException {
+        boolean hasNull = writeHeader(output, map == null ? null : map.values());
+        if (map != null) {
+            for (Map.Entry<Integer, Double> entry : map.entrySet()) {
+                output.writeInt(entry.getKey());
+                Double value = entry.getValue();
+                if (writePresence(output, hasNull, value)) {
+                    output.writeDouble(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a map of doubles indexed by integer.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<Integer, Double> readIndexedDoubleMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<Integer, Double> map = new HashMap<Integer, Double>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            int key = input.readInt();
+            map.put(key, !hasNull || input.readBoolean() ? input.readDouble() : null);
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of integers indexed by integer.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeIndexedIntegerMap(DataOutput output, HashMap<Integer, Integer> map) throws IOException {
+        boolean hasNull = writeHeader(output, map == null ? null : map.values());
+        if (map != null) {
+            for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+                output.writeInt(entry.getKey());
+                Integer value = entry.getValue();
+                if (writePresence(output, hasNull, value)) {
+                    output.writeInt(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a map of integers indexed by integer.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<Integer, Integer> readIndexedIntegerMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<Integer, Integer> map = new HashMap<Integer, Integer>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            int key = input.readInt();
+            map.put(key, !hasNull || input.readBoolean() ? input.readInt() : null);
+        }
+        return map;
+    }
+
+    /**
+     * Writes a list of doubles.
+     *
+     * @param output the output to write to
+     * @param list the list to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeDoubleList(DataOutput output, ArrayList<Double> list) throws IOException {
+        boolean hasNull = writeHeader(output, list);
+        if (list != null) {
+            for (Double value : list) {
+                if (writePresence(output, hasNull, value)) {
+                    output.writeDouble(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a list of doubles.
+     *
+     * @param input the input to read from
+     *
+     * @return the list, null if a null list was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static ArrayList<Double> readDoubleList(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        ArrayList<Double> list = new ArrayList<Double>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            list.add(!hasNull || input.readBoolean() ? input.readDouble() : null);
+        }
+        return list;
+    }
+
+    /**
+     * Writes a list of integers.
+     *
+     * @param output the output to write to
+     * @param list the list to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeIntegerList(DataOutput output, ArrayList<Integer> list) throws IOException {
+        boolean hasNull = writeHeader(output, list);
+        if (list != null) {
+            for (Integer value : list) {
+                if (writePresence(output, hasNull, value)) {
+                    output.writeInt(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a list of integers.
+     *
+     * @param input the input to read from
+     *
+     * @return the list, null if a null list was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static ArrayList<Integer> readIntegerList(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        ArrayList<Integer> list = new ArrayList<Integer>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            list.add(!hasNull || input.readBoolean() ? input.readInt() : null);
+        }
+        return list;
+    }
+
+    /**
+     * Writes a list of strings.
+     *
+     * @param output the output to write to
+     * @param list the list to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeStringList(DataOutput output, ArrayList<String> list) throws IOException {
+        boolean hasNull = writeHeader(output, list);
+        if (list != null) {
+            for (String value : list) {
+                if (writePresence(output, hasNull, value)) {
+                    output.writeUTF(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a list of strings. The strings are interned.
+     *
+     * @param input the input to read from
+     *
+     * @return the list, null if a null list was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static ArrayList<String> readStringList(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        ArrayList<String> list = new ArrayList<String>(size);
+        boolean hasNull = size > 0 && input.readBoolean();
+        for (int i = 0; i < size; i++) {
+            list.add(!hasNull || input.readBoolean() ? input.readUTF().intern() : null);
+        }
+        return list;
+    }
+
+    /**
+     * Writes a map of lists of strings indexed by integer.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeIndexedStringListMap(DataOutput output, HashMap<Integer, ArrayList<String>> map) throws IOException {
+        if (map == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(map.size());
+        for (Map.Entry<Integer, ArrayList<String>> entry : map.entrySet()) {
+            output.writeInt(entry.getKey());
+            writeStringList(output, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a map of lists of strings indexed by integer.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<Integer, ArrayList<String>> readIndexedStringListMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<Integer, ArrayList<String>> map = new HashMap<Integer, ArrayList<String>>(size);
+        for (int i = 0; i < size; i++) {
+            int key = input.readInt();
+            map.put(key, readStringList(input));
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of lists of integers indexed by integer.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeIndexedIntegerListMap(DataOutput output, HashMap<Integer, ArrayList<Integer>> map) throws IOException {
+        if (map == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(map.size());
+        for (Map.Entry<Integer, ArrayList<Integer>> entry : map.entrySet()) {
+            output.writeInt(entry.getKey());
+            writeIntegerList(output, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a map of lists of integers indexed by integer.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<Integer, ArrayList<Integer>> readIndexedIntegerListMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<Integer, ArrayList<Integer>> map = new HashMap<Integer, ArrayList<Integer>>(size);
+        for (int i = 0; i < size; i++) {
+            int key = input.readInt();
+            map.put(key, readIntegerList(input));
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of lists of integers indexed by string.
+     *
+     * @param output the output to write to
+     * @param map the map to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeIntegerListMap(DataOutput output, HashMap<String, ArrayList<Integer>> map) throws IOException {
+        if (map == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(map.size());
+        for (Map.Entry<String, ArrayList<Integer>> entry : map.entrySet()) {
+            output.writeUTF(entry.getKey());
+            writeIntegerList(output, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a map of lists of integers indexed by string.
+     *
+     * @param input the input to read from
+     *
+     * @return the map, null if a null map was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static HashMap<String, ArrayList<Integer>> readIntegerListMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        if (size == -1) {
+            return null;
+        }
+        HashMap<String, ArrayList<Integer>> map = new HashMap<String, ArrayList<Integer>>(size);
+        for (int i = 0; i < size; i++) {
+            String key = input.readUTF().intern();
+            map.put(key, readIntegerList(input));
+        }
+        return map;
+    }
+
+    /**
+     * Writes a nullable string.
+     *
+     * @param output the output to write to
+     * @param value the string to write, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public static void writeString(DataOutput output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a nullable string. The string is interned.
+     *
+     * @param input the input to read from
+     *
+     * @return the string, null if a null string was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static String readString(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF().intern() : null;
+    }
+
+    /**
+     * Returns the value of a field written using the default serialization,
+     * or the given default value if the field was not written by the version
+     * of the class which wrote the object.
+     *
+     * @param fields the fields read from the stream
+     * @param name the name of the field
+     * @param defaultValue the default value
+     *
+     * @return the value of the field
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the field
+     */
+    public static double getLegacyField(ObjectInputStream.GetField fields, String name, double defaultValue) throws IOException {
+        try {
+            return fields.get(name, defaultValue);
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of a field written using the default serialization,
+     * or the given default value if the field was not written by the version
+     * of the class which wrote the object.
+     *
+     * @param fields the fields read from the stream
+     * @param name the name of the field
+     * @param defaultValue the default value
+     *
+     * @return the value of the field
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the field
+     */
+    public static int getLegacyField(ObjectInputStream.GetField fields, String name, int defaultValue) throws IOException {
+        try {
+            return fields.get(name, defaultValue);
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of a field written using the default serialization,
+     * or the given default value if the field was not written by the version
+     * of the class which wrote the object.
+     *
+     * @param fields the fields read from the stream
+     * @param name the name of the field
+     * @param defaultValue the default value
+     *
+     * @return the value of the field
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the field
+     */
+    public static boolean getLegacyField(ObjectInputStream.GetField fields, String name, boolean defaultValue) throws IOException {
+        try {
+            return fields.get(name, defaultValue);
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of a field written using the default serialization,
+     * or the given default value if the field was not written by the version
+     * of the class which wrote the object.
+     *
+     * @param <T> the type of the field
+     * @param fields the fields read from the stream
+     * @param name the name of the field
+     * @param defaultValue the default value
+     *
+     * @return the value of the field
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the field
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T getLegacyField(ObjectInputStream.GetField fields, String name, T defaultValue) throws IOException {
+        try {
+            return (T) fields.get(name, defaultValue);
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Writes the size of a collection, -1 if null, followed if not empty by a
+     * flag indicating whether null values are present.
+     *
+     * @param output the output to write to
+     * @param values the values of the collection, can be null
+     *
+     * @return a boolean indicating whether null values are present
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private static boolean writeHeader(DataOutput output, Collection<?> values) throws IOException {
+        if (values == null) {
+            output.writeInt(-1);
+            return false;
+        }
+        output.writeInt(values.size());
+        if (values.isEmpty()) {
+            return false;
+        }
+        boolean hasNull = values.contains(null);
+        output.writeBoolean(hasNull);
+        return hasNull;
+    }
+
+    /**
+     * Writes the presence flag of a value if null values are present.
+     *
+     * @param output the output to write to
+     * @param hasNull a boolean indicating whether null values are present
+     * @param value the value
+     *
+     * @return a boolean indicating whether the value should be written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private static boolean writePresence(DataOutput output, boolean hasNull, Object value) throws IOException {
+        if (hasNull) {
+            output.writeBoolean(value != null);
+        }
+        return value != null;
+    }
+}
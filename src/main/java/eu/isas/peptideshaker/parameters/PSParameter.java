@@ -2,6 +2,11 @@ package eu.isas.peptideshaker.parameters;
 
 import com.compomics.util.experiment.personalization.UrParameter;
 import eu.isas.peptideshaker.scoring.MatchValidationLevel;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,6 +27,45 @@ public class PSParameter implements UrParameter {
      * Serial version UID for post-serialization compatibility.
      */
     static final long serialVersionUID = 2846587135366515967L;
+    /**
+     * The version of the compact encoding.
+     */
+    private static final int ENCODING_VERSION = 1;
+    /**
+     * The fields written using the default serialization. Only the version of
+     * the encoding is written this way, the other fields are written in binary
+     * after it. Objects serialized before the compact encoding are read using
+     * the names of their fields.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField("encodingVersion", Integer.TYPE)};
+    /**
+     * Flag indicating that the identification algorithm delta PEP is set.
+     */
+    private static final int ALGORITHM_DELTA_PEP = 1;
+    /**
+     * Flag indicating that the delta PEP is set.
+     */
+    private static final int DELTA_PEP = 1 << 1;
+    /**
+     * Flag indicating that the manual validation is set.
+     */
+    private static final int MANUAL_VALIDATION_SET = 1 << 2;
+    /**
+     * Flag indicating that the validation was manually updated.
+     */
+    private static final int MANUAL_VALIDATION = 1 << 3;
+    /**
+     * Flag indicating that the match is hidden.
+     */
+    private static final int HIDDEN = 1 << 4;
+    /**
+     * Flag indicating that the match is starred.
+     */
+    private static final int STARRED = 1 << 5;
+    /**
+     * Flag indicating that the validation level is set.
+     */
+    private static final int VALIDATION_LEVEL = 1 << 6;
     /**
      * Posterior error probability estimated for the search engine results.
      */
@@ -881,6 +925,159 @@ public class PSParameter implements UrParameter {
         return score;
     }
 
+    /**
+     * Writes the parameter using the compact encoding: the flags, the scores
+     * and probabilities at fixed offsets, the validation level, the group
+     * class, the specific map key and the maps.
+     *
+     * @param out the stream to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("encodingVersion", ENCODING_VERSION);
+        out.writeFields();
+
+        int flags = 0;
+        if (algorithmDeltaPEP != null) {
+            flags |= ALGORITHM_DELTA_PEP;
+        }
+        if (deltaPEP != null) {
+            flags |= DELTA_PEP;
+        }
+        if (manualValidation != null) {
+            flags |= MANUAL_VALIDATION_SET;
+            if (manualValidation) {
+                flags |= MANUAL_VALIDATION;
+            }
+        }
+        if (hidden) {
+            flags |= HIDDEN;
+        }
+        if (starred) {
+            flags |= STARRED;
+        }
+        if (matchValidationLevel != null) {
+            flags |= VALIDATION_LEVEL;
+        }
+        out.writeByte(flags);
+        out.writeDouble(searchEngineProbability);
+        out.writeDouble(algorithmDeltaPEP == null ? 0 : algorithmDeltaPEP);
+        out.writeDouble(deltaPEP == null ? 0 : deltaPEP);
+        out.writeDouble(psmProbabilityScore);
+        out.writeDouble(psmProbability);
+        out.writeDouble(peptideProbabilityScore);
+        out.writeDouble(peptideProbability);
+        out.writeDouble(proteinProbabilityScore);
+        out.writeDouble(proteinProbability);
+        out.writeByte(matchValidationLevel == null ? 0 : matchValidationLevel.getIndex());
+        out.writeInt(groupClass);
+        CompactEncoding.writeString(out, specificMapKey);
+
+        CompactEncoding.writeDoubleMap(out, fractionPEP);
+        CompactEncoding.writeDoubleMap(out, fractionScore);
+        CompactEncoding.writeIntegerMap(out, validatedPeptidesPerFraction);
+        CompactEncoding.writeIntegerMap(out, validatedSpectraPerFraction);
+        CompactEncoding.writeDoubleListMap(out, precursorIntensityPerFraction);
+        CompactEncoding.writeDoubleMap(out, precursorIntensityAveragePerFraction);
+        CompactEncoding.writeDoubleMap(out, precursorIntensitySummedPerFraction);
+        CompactEncoding.writeBooleanMap(out, qcFilters);
+        CompactEncoding.writeIndexedDoubleMap(out, intermediateScores);
+    }
+
+    /**
+     * Reads a parameter written using the compact encoding or using the
+     * default serialization.
+     *
+     * @param in the stream to read from
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object written using the default
+     * serialization
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+
+        if (fields.defaulted("encodingVersion")) {
+            readLegacyFields(fields);
+            return;
+        }
+        int version = fields.get("encodingVersion", 0);
+        if (version > ENCODING_VERSION) {
+            throw new InvalidObjectException("Encoding version " + version + " of " + getClass().getSimpleName() + " not supported.");
+        }
+
+        int flags = in.readByte();
+        searchEngineProbability = in.readDouble();
+        double value = in.readDouble();
+        algorithmDeltaPEP = (flags & ALGORITHM_DELTA_PEP) != 0 ? value : null;
+        value = in.readDouble();
+        deltaPEP = (flags & DELTA_PEP) != 0 ? value : null;
+        psmProbabilityScore = in.readDouble();
+        psmProbability = in.readDouble();
+        peptideProbabilityScore = in.readDouble();
+        peptideProbability = in.readDouble();
+        proteinProbabilityScore = in.readDouble();
+        proteinProbability = in.readDouble();
+        int validationLevelIndex = in.readByte();
+        matchValidationLevel = (flags & VALIDATION_LEVEL) != 0 ? MatchValidationLevel.getMatchValidationLevel(validationLevelIndex) : null;
+        manualValidation = (flags & MANUAL_VALIDATION_SET) != 0 ? (flags & MANUAL_VALIDATION) != 0 : null;
+        hidden = (flags & HIDDEN) != 0;
+        starred = (flags & STARRED) != 0;
+        groupClass = in.readInt();
+        specificMapKey = CompactEncoding.readString(in);
+
+        fractionPEP = CompactEncoding.readDoubleMap(in);
+        fractionScore = CompactEncoding.readDoubleMap(in);
+        validatedPeptidesPerFraction = CompactEncoding.readIntegerMap(in);
+        validatedSpectraPerFraction = CompactEncoding.readIntegerMap(in);
+        precursorIntensityPerFraction = CompactEncoding.readDoubleListMap(in);
+        precursorIntensityAveragePerFraction = CompactEncoding.readDoubleMap(in);
+        precursorIntensitySummedPerFraction = CompactEncoding.readDoubleMap(in);
+        qcFilters = CompactEncoding.readBooleanMap(in);
+        intermediateScores = CompactEncoding.readIndexedDoubleMap(in);
+    }
+
+    /**
+     * Sets the fields from a parameter written using the default
+     * serialization.
+     *
+     * @param fields the fields read from the stream
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    private void readLegacyFields(ObjectInputStream.GetField fields) throws IOException {
+        searchEngineProbability = CompactEncoding.getLegacyField(fields, "searchEngineProbability", 0.0);
+        algorithmDeltaPEP = CompactEncoding.getLegacyField(fields, "algorithmDeltaPEP", (Double) null);
+        deltaPEP = CompactEncoding.getLegacyField(fields, "deltaPEP", (Double) null);
+        psmProbabilityScore = CompactEncoding.getLegacyField(fields, "psmProbabilityScore", 0.0);
+        psmProbability = CompactEncoding.getLegacyField(fields, "psmProbability", 0.0);
+        peptideProbabilityScore = CompactEncoding.getLegacyField(fields, "peptideProbabilityScore", 0.0);
+        peptideProbability = CompactEncoding.getLegacyField(fields, "peptideProbability", 0.0);
+        proteinProbabilityScore = CompactEncoding.getLegacyField(fields, "proteinProbabilityScore", 0.0);
+        proteinProbability = CompactEncoding.getLegacyField(fields, "proteinProbability", 0.0);
+        matchValidationLevel = CompactEncoding.getLegacyField(fields, "matchValidationLevel", (MatchValidationLevel) null);
+        manualValidation = CompactEncoding.getLegacyField(fields, "manualValidation", (Boolean) null);
+        hidden = CompactEncoding.getLegacyField(fields, "hidden", false);
+        starred = CompactEncoding.getLegacyField(fields, "starred", false);
+        specificMapKey = CompactEncoding.getLegacyField(fields, "specificMapKey", (String) null);
+        groupClass = CompactEncoding.getLegacyField(fields, "groupClass", NOT_GROUP);
+        fractionPEP = CompactEncoding.getLegacyField(fields, "fractionPEP", (HashMap<String, Double>) null);
+        fractionScore = CompactEncoding.getLegacyField(fields, "fractionScore", (HashMap<String, Double>) null);
+        validatedPeptidesPerFraction = CompactEncoding.getLegacyField(fields, "validatedPeptidesPerFraction", (HashMap<String, Integer>) null);
+        validatedSpectraPerFraction = CompactEncoding.getLegacyField(fields, "validatedSpectraPerFraction", (HashMap<String, Integer>) null);
+        precursorIntensityPerFraction = CompactEncoding.getLegacyField(fields, "precursorIntensityPerFraction", (HashMap<String, ArrayList<Double>>) null);
+        precursorIntensityAveragePerFraction = CompactEncoding.getLegacyField(fields, "precursorIntensityAveragePerFraction", (HashMap<String, Double>) null);
+        precursorIntensitySummedPerFraction = CompactEncoding.getLegacyField(fields, "precursorIntensitySummedPerFraction", (HashMap<String, Double>) null);
+        qcFilters = CompactEncoding.getLegacyField(fields, "qcFilters", (HashMap<String, Boolean>) null);
+        intermediateScores = CompactEncoding.getLegacyField(fields, "intermediateScores", (HashMap<Integer, Double>) null);
+    }
+
     @Override
     public String getFamilyName() {
         return "PeptideShaker";
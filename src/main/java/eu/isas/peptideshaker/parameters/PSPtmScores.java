@@ -2,9 +2,15 @@ package eu.isas.peptideshaker.parameters;
 
 import com.compomics.util.experiment.personalization.UrParameter;
 import eu.isas.peptideshaker.scoring.PtmScoring;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 /**
  * This class contains the scores for the locations of the possible
@@ -18,6 +24,16 @@ public class PSPtmScores implements UrParameter {
      * Serial version UID for post-serialization compatibility.
      */
     static final long serialVersionUID = 7450340838299319636L;
+    /**
+     * The version of the compact encoding.
+     */
+    private static final int ENCODING_VERSION = 1;
+    /**
+     * The fields written using the default serialization. Only the version of
+     * the encoding is written this way, the maps are written in binary after
+     * it.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField("encodingVersion", Integer.TYPE)};
     /**
      * A map containing all scores indexed by the modification of interest for a
      * peptide or a PSM.
@@ -465,6 +481,112 @@ public class PSPtmScores implements UrParameter {
         return result;
     }
 
+    /**
+     * Writes the scores using the compact encoding.
+     *
+     * @param out the stream to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("encodingVersion", ENCODING_VERSION);
+        out.writeFields();
+
+        if (ptmMap == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(ptmMap.size());
+            for (Map.Entry<String, PtmScoring> entry : ptmMap.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+        CompactEncoding.writeIndexedStringListMap(out, mainModificationSites);
+        CompactEncoding.writeIntegerListMap(out, confidentModificationsByPTM);
+        if (ambiguousModificationsByRepresentativeSite == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(ambiguousModificationsByRepresentativeSite.size());
+            for (Map.Entry<Integer, HashMap<Integer, ArrayList<String>>> entry : ambiguousModificationsByRepresentativeSite.entrySet()) {
+                out.writeInt(entry.getKey());
+                CompactEncoding.writeIndexedStringListMap(out, entry.getValue());
+            }
+        }
+        if (ambiguousModificationsByPTM == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(ambiguousModificationsByPTM.size());
+            for (Map.Entry<String, HashMap<Integer, ArrayList<Integer>>> entry : ambiguousModificationsByPTM.entrySet()) {
+                out.writeUTF(entry.getKey());
+                CompactEncoding.writeIndexedIntegerListMap(out, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads scores written using the compact encoding or using the default
+     * serialization.
+     *
+     * @param in the stream to read from
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object written using the default
+     * serialization
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+
+        if (fields.defaulted("encodingVersion")) {
+            ptmMap = CompactEncoding.getLegacyField(fields, "ptmMap", (HashMap<String, PtmScoring>) null);
+            mainModificationSites = CompactEncoding.getLegacyField(fields, "mainModificationSites", (HashMap<Integer, ArrayList<String>>) null);
+            confidentModificationsByPTM = CompactEncoding.getLegacyField(fields, "confidentModificationsByPTM", (HashMap<String, ArrayList<Integer>>) null);
+            ambiguousModificationsByRepresentativeSite = CompactEncoding.getLegacyField(fields, "ambiguousModificationsByRepresentativeSite", (HashMap<Integer, HashMap<Integer, ArrayList<String>>>) null);
+            ambiguousModificationsByPTM = CompactEncoding.getLegacyField(fields, "ambiguousModificationsByPTM", (HashMap<String, HashMap<Integer, ArrayList<Integer>>>) null);
+            return;
+        }
+        int version = fields.get("encodingVersion", 0);
+        if (version > ENCODING_VERSION) {
+            throw new InvalidObjectException("Encoding version " + version + " of " + getClass().getSimpleName() + " not supported.");
+        }
+
+        int size = in.readInt();
+        if (size == -1) {
+            ptmMap = null;
+        } else {
+            ptmMap = new HashMap<String, PtmScoring>(size);
+            for (int i = 0; i < size; i++) {
+                String ptmName = in.readUTF().intern();
+                ptmMap.put(ptmName, PtmScoring.read(in));
+            }
+        }
+        mainModificationSites = CompactEncoding.readIndexedStringListMap(in);
+        confidentModificationsByPTM = CompactEncoding.readIntegerListMap(in);
+        size = in.readInt();
+        if (size == -1) {
+            ambiguousModificationsByRepresentativeSite = null;
+        } else {
+            ambiguousModificationsByRepresentativeSite = new HashMap<Integer, HashMap<Integer, ArrayList<String>>>(size);
+            for (int i = 0; i < size; i++) {
+                int site = in.readInt();
+                ambiguousModificationsByRepresentativeSite.put(site, CompactEncoding.readIndexedStringListMap(in));
+            }
+        }
+        size = in.readInt();
+        if (size == -1) {
+            ambiguousModificationsByPTM = null;
+        } else {
+            ambiguousModificationsByPTM = new HashMap<String, HashMap<Integer, ArrayList<Integer>>>(size);
+            for (int i = 0; i < size; i++) {
+                String ptmName = in.readUTF().intern();
+                ambiguousModificationsByPTM.put(ptmName, CompactEncoding.readIndexedIntegerListMap(in));
+            }
+        }
+    }
+
     @Override
     public String getFamilyName() {
         return "PeptideShaker";
@@ -0,0 +1,237 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * In memory bipartite graph of the protein accessions and the protein groups
+ * they are mapped to. Accessions and groups are indexed by integers and the
+ * accessions of a group are stored as a bit set.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinGroupGraph {
+
+    /**
+     * The index of every accession.
+     */
+    private final HashMap<String, Integer> accessionIndexes = new HashMap<String, Integer>();
+    /**
+     * The keys of the groups.
+     */
+    private final ArrayList<String> groupKeys = new ArrayList<String>();
+    /**
+     * The index of every group key.
+     */
+    private final HashMap<String, Integer> groupIndexes = new HashMap<String, Integer>();
+    /**
+     * The accessions of every group as bit set of accession indexes.
+     */
+    private final ArrayList<BitSet> groupAccessions = new ArrayList<BitSet>();
+    /**
+     * The number of accessions of every group.
+     */
+    private final ArrayList<Integer> groupSizes = new ArrayList<Integer>();
+    /**
+     * The groups of every accession.
+     */
+    private final ArrayList<int[]> accessionGroups = new ArrayList<int[]>();
+
+    /**
+     * Constructor. Builds the graph from the protein map of an
+     * identification.
+     *
+     * @param proteinMap the protein map: accession &gt; keys of the groups
+     * containing this accession
+     */
+    public ProteinGroupGraph(HashMap<String, HashSet<String>> proteinMap) {
+
+        for (String accession : proteinMap.keySet()) {
+            for (String groupKey : proteinMap.get(accession)) {
+                if (!groupIndexes.containsKey(groupKey)) {
+                    addGroup(groupKey);
+                }
+            }
+        }
+
+        ArrayList<ArrayList<Integer>> groupsOfAccessions = new ArrayList<ArrayList<Integer>>(accessionIndexes.size());
+        for (int accessionIndex = 0; accessionIndex < accessionIndexes.size(); accessionIndex++) {
+            groupsOfAccessions.add(new ArrayList<Integer>(1));
+        }
+        for (int groupIndex = 0; groupIndex < groupKeys.size(); groupIndex++) {
+            BitSet accessions = groupAccessions.get(groupIndex);
+            for (int accessionIndex = accessions.nextSetBit(0); accessionIndex >= 0; accessionIndex = accessions.nextSetBit(accessionIndex + 1)) {
+                groupsOfAccessions.get(accessionIndex).add(groupIndex);
+            }
+        }
+        for (ArrayList<Integer> groups : groupsOfAccessions) {
+            int[] groupsArray = new int[groups.size()];
+            for (int i = 0; i < groupsArray.length; i++) {
+                groupsArray[i] = groups.get(i);
+            }
+            accessionGroups.add(groupsArray);
+        }
+    }
+
+    /**
+     * Adds a group and its accessions to the graph.
+     *
+     * @param groupKey the key of the group
+     */
+    private void addGroup(String groupKey) {
+        int groupIndex = groupKeys.size();
+        groupKeys.add(groupKey);
+        groupIndexes.put(groupKey, groupIndex);
+        BitSet accessions = new BitSet();
+        for (String accession : ProteinMatch.getAccessions(groupKey)) {
+            Integer accessionIndex = accessionIndexes.get(accession);
+            if (accessionIndex == null) {
+                accessionIndex = accessionIndexes.size();
+                accessionIndexes.put(accession, accessionIndex);
+            }
+            accessions.set(accessionIndex);
+        }
+        groupAccessions.add(accessions);
+        groupSizes.add(accessions.cardinality());
+    }
+
+    /**
+     * Returns the number of groups in the graph.
+     *
+     * @return the number of groups in the graph
+     */
+    public int getnGroups() {
+        return groupKeys.size();
+    }
+
+    /**
+     * Returns the key of the group at the given index.
+     *
+     * @param groupIndex the index of the group
+     *
+     * @return the key of the group
+     */
+    public String getGroupKey(int groupIndex) {
+        return groupKeys.get(groupIndex);
+    }
+
+    /**
+     * Returns the index of the given group, null if not in the graph.
+     *
+     * @param groupKey the key of the group
+     *
+     * @return the index of the group
+     */
+    public Integer getGroupIndex(String groupKey) {
+        return groupIndexes.get(groupKey);
+    }
+
+    /**
+     * Returns the number of accessions of the given group.
+     *
+     * @param groupIndex the index of the group
+     *
+     * @return the number of accessions of the group
+     */
+    public int getGroupSize(int groupIndex) {
+        return groupSizes.get(groupIndex);
+    }
+
+    /**
+     * Returns the indexes of the other groups whose accessions are all
+     * contained in the given group.
+     *
+     * @param groupIndex the index of the group
+     *
+     * @return the indexes of the subgroups
+     */
+    public ArrayList<Integer> getSubgroups(int groupIndex) {
+        BitSet accessions = groupAccessions.get(groupIndex);
+        int size = groupSizes.get(groupIndex);
+        HashSet<Integer> inspected = new HashSet<Integer>();
+        ArrayList<Integer> result = new ArrayList<Integer>(1);
+        for (int accessionIndex = accessions.nextSetBit(0); accessionIndex >= 0; accessionIndex = accessions.nextSetBit(accessionIndex + 1)) {
+            for (int otherGroup : accessionGroups.get(accessionIndex)) {
+                if (otherGroup != groupIndex && groupSizes.get(otherGroup) <= size && inspected.add(otherGroup)) {
+                    BitSet difference = (BitSet) groupAccessions.get(otherGroup).clone();
+                    difference.andNot(accessions);
+                    if (difference.isEmpty()) {
+                        result.add(otherGroup);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the connected components of the graph, i.e. the sets of groups
+     * linked by shared accessions, largest components first. The groups of a
+     * component are sorted by index.
+     *
+     * @return the connected components of the graph
+     */
+    public ArrayList<ArrayList<Integer>> getConnectedComponents() {
+
+        int[] parents = new int[groupKeys.size()];
+        for (int groupIndex = 0; groupIndex < parents.length; groupIndex++) {
+            parents[groupIndex] = groupIndex;
+        }
+        for (int[] groups : accessionGroups) {
+            for (int i = 1; i < groups.length; i++) {
+                int root1 = getRoot(parents, groups[0]);
+                int root2 = getRoot(parents, groups[i]);
+                if (root1 != root2) {
+                    parents[Math.max(root1, root2)] = Math.min(root1, root2);
+                }
+            }
+        }
+
+        HashMap<Integer, ArrayList<Integer>> componentsMap = new HashMap<Integer, ArrayList<Integer>>();
+        for (int groupIndex = 0; groupIndex < parents.length; groupIndex++) {
+            int root = getRoot(parents, groupIndex);
+            ArrayList<Integer> component = componentsMap.get(root);
+            if (component == null) {
+                component = new ArrayList<Integer>(1);
+                componentsMap.put(root, component);
+            }
+            component.add(groupIndex);
+        }
+
+        ArrayList<ArrayList<Integer>> components = new ArrayList<ArrayList<Integer>>(componentsMap.values());
+        Collections.sort(components, new Comparator<ArrayList<Integer>>() {
+            @Override
+            public int compare(ArrayList<Integer> o1, ArrayList<Integer> o2) {
+                return o2.size() - o1.size();
+            }
+        });
+        return components;
+    }
+
+    /**
+     * Returns the root of an element in a union-find forest and compresses the
+     * path on the way.
+     *
+     * @param parents the parent of every element
+     * @param element the element of interest
+     *
+     * @return the root of the element
+     */
+    private static int getRoot(int[] parents, int element) {
+        int root = element;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        while (parents[element] != root) {
+            int parent = parents[element];
+            parents[element] = root;
+            element = parent;
+        }
+        return root;
+    }
+}
@@ -0,0 +1,512 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.protein.Header;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Index of the protein header features used for protein inference: gene name,
+ * description words, evidence level and uncharacterized status. The index is
+ * built once per FASTA file and saved next to it so that it can be reused by
+ * all projects searched against the same database.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinHeaderIndex {
+
+    /**
+     * The extension of the index files.
+     */
+    public static final String EXTENSION = ".psh";
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Value used when no evidence level is provided.
+     */
+    public static final int NO_EVIDENCE = -1;
+    /**
+     * Value used when an evidence level is provided but could not be parsed.
+     */
+    public static final int UNPARSABLE_EVIDENCE = -2;
+    /**
+     * Keywords indicating that a protein is uncharacterized.
+     */
+    private static final String[] UNCHARACTERIZED_KEYWORDS = {"Uncharacterized", "Putative"};
+    /**
+     * The index currently loaded.
+     */
+    private static ProteinHeaderIndex currentIndex = null;
+    /**
+     * The FASTA file indexed.
+     */
+    private final File fastaFile;
+    /**
+     * The last modification time of the FASTA file when indexed.
+     */
+    private final long fastaLastModified;
+    /**
+     * The index of every accession.
+     */
+    private final HashMap<String, Integer> accessionIndexes;
+    /**
+     * The gene names.
+     */
+    private final String[] geneNames;
+    /**
+     * The index of the gene name of every protein, -1 if none.
+     */
+    private final int[] proteinGenes;
+    /**
+     * The evidence level of every protein.
+     */
+    private final int[] proteinEvidences;
+    /**
+     * Indicates whether every protein is uncharacterized.
+     */
+    private final boolean[] proteinUncharacterized;
+    /**
+     * The sorted indexes of the description words of every protein.
+     */
+    private final int[][] proteinWords;
+
+    /**
+     * Constructor.
+     *
+     * @param fastaFile the FASTA file indexed
+     * @param fastaLastModified the last modification time of the FASTA file
+     * when indexed
+     * @param accessionIndexes the index of every accession
+     * @param geneNames the gene names
+     * @param proteinGenes the index of the gene name of every protein
+     * @param proteinEvidences the evidence level of every protein
+     * @param proteinUncharacterized the uncharacterized status of every
+     * protein
+     * @param proteinWords the sorted indexes of the description words of every
+     * protein
+     */
+    private ProteinHeaderIndex(File fastaFile, long fastaLastModified, HashMap<String, Integer> accessionIndexes, String[] geneNames,
+            int[] proteinGenes, int[] proteinEvidences, boolean[] proteinUncharacterized, int[][] proteinWords) {
+        this.fastaFile = fastaFile;
+        this.fastaLastModified = fastaLastModified;
+        this.accessionIndexes = accessionIndexes;
+        this.geneNames = geneNames;
+        this.proteinGenes = proteinGenes;
+        this.proteinEvidences = proteinEvidences;
+        this.proteinUncharacterized = proteinUncharacterized;
+        this.proteinWords = proteinWords;
+    }
+
+    /**
+     * Returns the index of the FASTA file loaded in the sequence factory. The
+     * index is loaded from the index file if up to date, built and saved
+     * otherwise.
+     *
+     * @param sequenceFactory the sequence factory
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler the handler for the exceptions encountered while
+     * loading or saving the index file, can be null
+     *
+     * @return the index of the FASTA file loaded in the sequence factory, null
+     * if the indexing was canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the FASTA index
+     */
+    public static synchronized ProteinHeaderIndex getIndex(SequenceFactory sequenceFactory, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws IOException, InterruptedException, ClassNotFoundException {
+
+        File fastaFile = sequenceFactory.getCurrentFastaFile();
+        if (currentIndex != null && currentIndex.fastaFile.equals(fastaFile) && currentIndex.fastaLastModified == fastaFile.lastModified()) {
+            return currentIndex;
+        }
+
+        currentIndex = null;
+        File indexFile = getIndexFile(fastaFile);
+        if (indexFile.exists()) {
+            try {
+                currentIndex = load(indexFile, fastaFile);
+            } catch (Exception e) {
+                // corrupted or outdated index, will be rebuilt
+                if (exceptionHandler != null) {
+                    exceptionHandler.catchException(e);
+                }
+            }
+        }
+        if (currentIndex == null) {
+            currentIndex = build(sequenceFactory, waitingHandler);
+            if (currentIndex == null) {
+                return null;
+            }
+            try {
+                currentIndex.save(indexFile);
+            } catch (IOException e) {
+                // the index will only be kept in memory
+                indexFile.delete();
+                if (exceptionHandler != null) {
+                    exceptionHandler.catchException(e);
+                }
+            }
+        }
+        return currentIndex;
+    }
+
+    /**
+     * Releases the index kept in memory. To be called when the project is
+     * closed.
+     */
+    public static synchronized void releaseIndex() {
+        currentIndex = null;
+    }
+
+    /**
+     * Returns the file where the index of a FASTA file is stored.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @return the file where the index of the FASTA file is stored
+     */
+    public static File getIndexFile(File fastaFile) {
+        return new File(fastaFile.getParentFile(), fastaFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Builds the index of the FASTA file loaded in the sequence factory.
+     *
+     * @param sequenceFactory the sequence factory
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return the index, null if the indexing was canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the FASTA index
+     */
+    private static ProteinHeaderIndex build(SequenceFactory sequenceFactory, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, ClassNotFoundException {
+
+        File fastaFile = sequenceFactory.getCurrentFastaFile();
+        ArrayList<String> accessions = sequenceFactory.getAccessions();
+
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Indexing Protein Headers. Please Wait...");
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(accessions.size());
+        }
+
+        HashMap<String, Integer> accessionIndexes = new HashMap<String, Integer>(accessions.size());
+        HashMap<String, Integer> geneIndexes = new HashMap<String, Integer>();
+        ArrayList<String> geneNames = new ArrayList<String>();
+        HashMap<String, Integer> wordIndexes = new HashMap<String, Integer>();
+        int[] proteinGenes = new int[accessions.size()];
+        int[] proteinEvidences = new int[accessions.size()];
+        boolean[] proteinUncharacterized = new boolean[accessions.size()];
+        int[][] proteinWords = new int[accessions.size()][];
+
+        for (int i = 0; i < accessions.size(); i++) {
+
+            String accession = accessions.get(i);
+            accessionIndexes.put(accession, i);
+            Header header = sequenceFactory.getHeader(accession);
+
+            String geneName = header.getGeneName();
+            if (geneName == null) {
+                proteinGenes[i] = -1;
+            } else {
+                Integer geneIndex = geneIndexes.get(geneName);
+                if (geneIndex == null) {
+                    geneIndex = geneNames.size();
+                    geneIndexes.put(geneName, geneIndex);
+                    geneNames.add(geneName);
+                }
+                proteinGenes[i] = geneIndex;
+            }
+
+            String evidence = header.getProteinEvidence();
+            if (evidence == null) {
+                proteinEvidences[i] = NO_EVIDENCE;
+            } else {
+                try {
+                    proteinEvidences[i] = new Integer(evidence);
+                    if (proteinEvidences[i] < 0) {
+                        proteinEvidences[i] = UNPARSABLE_EVIDENCE;
+                    }
+                } catch (NumberFormatException e) {
+                    proteinEvidences[i] = UNPARSABLE_EVIDENCE;
+                }
+            }
+
+            String description = header.getSimpleProteinDescription();
+
+            // if the description is not set, use the accession instead - fix for home made fasta headers
+            String characterization = description;
+            if (characterization == null || characterization.trim().isEmpty()) {
+                characterization = accession;
+            }
+            for (String keyWord : UNCHARACTERIZED_KEYWORDS) {
+                if (characterization.contains(keyWord)) {
+                    proteinUncharacterized[i] = true;
+                    break;
+                }
+            }
+
+            ArrayList<Integer> words = new ArrayList<Integer>();
+            if (description != null) {
+                for (String component : description.split(" ")) {
+                    if (component.length() > 3) {
+                        Integer wordIndex = wordIndexes.get(component);
+                        if (wordIndex == null) {
+                            wordIndex = wordIndexes.size();
+                            wordIndexes.put(component, wordIndex);
+                        }
+                        words.add(wordIndex);
+                    }
+                }
+            }
+            int[] wordsArray = new int[words.size()];
+            for (int j = 0; j < wordsArray.length; j++) {
+                wordsArray[j] = words.get(j);
+            }
+            Arrays.sort(wordsArray);
+            proteinWords[i] = wordsArray;
+
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return null;
+                }
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+
+        return new ProteinHeaderIndex(fastaFile, fastaFile.lastModified(), accessionIndexes, geneNames.toArray(new String[geneNames.size()]),
+                proteinGenes, proteinEvidences, proteinUncharacterized, proteinWords);
+    }
+
+    /**
+     * Saves the index to the given file.
+     *
+     * @param indexFile the file where to save the index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void save(File indexFile) throws IOException {
+
+        String[] accessions = new String[accessionIndexes.size()];
+        for (String accession : accessionIndexes.keySet()) {
+            accessions[accessionIndexes.get(accession)] = accession;
+        }
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeLong(fastaFile.length());
+            dos.writeLong(fastaLastModified);
+            dos.writeInt(geneNames.length);
+            for (String geneName : geneNames) {
+                writeString(dos, geneName);
+            }
+            dos.writeInt(accessions.length);
+            for (int i = 0; i < accessions.length; i++) {
+                writeString(dos, accessions[i]);
+                dos.writeInt(proteinGenes[i]);
+                dos.writeInt(proteinEvidences[i]);
+                dos.writeBoolean(proteinUncharacterized[i]);
+                dos.writeInt(proteinWords[i].length);
+                for (int word : proteinWords[i]) {
+                    dos.writeInt(word);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Loads an index from a file.
+     *
+     * @param indexFile the index file
+     * @param fastaFile the FASTA file indexed
+     *
+     * @return the index, null if the file is not the index of the current
+     * version of the FASTA file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static ProteinHeaderIndex load(File indexFile, File fastaFile) throws IOException {
+
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            int version = dis.readInt();
+            long fastaLength = dis.readLong();
+            long fastaLastModified = dis.readLong();
+            if (version != VERSION || fastaLength != fastaFile.length() || fastaLastModified != fastaFile.lastModified()) {
+                return null;
+            }
+
+            String[] geneNames = new String[dis.readInt()];
+            for (int i = 0; i < geneNames.length; i++) {
+                geneNames[i] = readString(dis);
+            }
+            int nProteins = dis.readInt();
+            HashMap<String, Integer> accessionIndexes = new HashMap<String, Integer>(nProteins);
+            int[] proteinGenes = new int[nProteins];
+            int[] proteinEvidences = new int[nProteins];
+            boolean[] proteinUncharacterized = new boolean[nProteins];
+            int[][] proteinWords = new int[nProteins][];
+            for (int i = 0; i < nProteins; i++) {
+                accessionIndexes.put(readString(dis), i);
+                proteinGenes[i] = dis.readInt();
+                proteinEvidences[i] = dis.readInt();
+                proteinUncharacterized[i] = dis.readBoolean();
+                int[] words = new int[dis.readInt()];
+                for (int j = 0; j < words.length; j++) {
+                    words[j] = dis.readInt();
+                }
+                proteinWords[i] = words;
+            }
+
+            return new ProteinHeaderIndex(fastaFile, fastaLastModified, accessionIndexes, geneNames, proteinGenes, proteinEvidences, proteinUncharacterized, proteinWords);
+
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Writes a string as UTF-8 bytes preceded by their number.
+     *
+     * @param dos the stream where to write
+     * @param string the string to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static void writeString(DataOutputStream dos, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param dis the stream to read from
+     *
+     * @return the string
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the string
+     */
+    private static String readString(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Returns the index of the given protein, null if not found.
+     *
+     * @param accession the accession of the protein
+     *
+     * @return the index of the protein
+     */
+    public Integer getProteinIndex(String accession) {
+        return accessionIndexes.get(accession);
+    }
+
+    /**
+     * Returns the gene name of the protein at the given index, null if none.
+     *
+     * @param proteinIndex the index of the protein
+     *
+     * @return the gene name of the protein
+     */
+    public String getGeneName(int proteinIndex) {
+        int geneIndex = proteinGenes[proteinIndex];
+        if (geneIndex == -1) {
+            return null;
+        }
+        return geneNames[geneIndex];
+    }
+
+    /**
+     * Indicates whether the proteins at the given indexes have the same gene
+     * name, ignoring case.
+     *
+     * @param proteinIndex1 the index of the first protein
+     * @param proteinIndex2 the index of the second protein
+     *
+     * @return a boolean indicating whether the proteins have the same gene
+     * name
+     */
+    public boolean sameGene(int proteinIndex1, int proteinIndex2) {
+        int geneIndex1 = proteinGenes[proteinIndex1];
+        int geneIndex2 = proteinGenes[proteinIndex2];
+        if (geneIndex1 == -1 || geneIndex2 == -1) {
+            return false;
+        }
+        return geneIndex1 == geneIndex2 || geneNames[geneIndex1].equalsIgnoreCase(geneNames[geneIndex2]);
+    }
+
+    /**
+     * Returns the evidence level of the protein at the given index. NO_EVIDENCE
+     * if not provided, UNPARSABLE_EVIDENCE if it could not be parsed.
+     *
+     * @param proteinIndex the index of the protein
+     *
+     * @return the evidence level of the protein
+     */
+    public int getEvidence(int proteinIndex) {
+        return proteinEvidences[proteinIndex];
+    }
+
+    /**
+     * Indicates whether the protein at the given index is uncharacterized.
+     *
+     * @param proteinIndex the index of the protein
+     *
+     * @return a boolean indicating whether the protein is uncharacterized
+     */
+    public boolean isUncharacterized(int proteinIndex) {
+        return proteinUncharacterized[proteinIndex];
+    }
+
+    /**
+     * Returns the sorted indexes of the words of more than 3 characters in the
+     * description of the protein at the given index.
+     *
+     * @param proteinIndex the index of the protein
+     *
+     * @return the description words of the protein
+     */
+    public int[] getDescriptionWords(int proteinIndex) {
+        return proteinWords[proteinIndex];
+    }
+}
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.protein_inference;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.Enzyme;
 import com.compomics.util.experiment.biology.Protein;
@@ -11,6 +12,7 @@ import com.compomics.util.experiment.identification.matches_iterators.PeptideMat
 import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.ProteinInferencePreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.parameters.PSParameter;
@@ -21,9 +23,14 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class groups the methods for protein inference.
@@ -52,6 +59,16 @@ public class ProteinInference {
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The index of the protein headers features of the database, built on
+     * first use.
+     */
+    private ProteinHeaderIndex proteinHeaderIndex = null;
+    /**
+     * The handler for the exceptions encountered while indexing the protein
+     * headers.
+     */
+    private ExceptionHandler exceptionHandler;
     /**
      * Map of the most complex groups: key | proteins
      */
@@ -84,42 +101,42 @@ public class ProteinInference {
      * occurs
      */
     public void removeRedundantGroups(Identification identification, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
-            IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ProcessingPreferences processingPreferences)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
 
         ArrayList<String> toRemove = new ArrayList<String>();
-        int max = identification.getProteinIdentification().size();
+        this.exceptionHandler = exceptionHandler;
+
+        ProteinGroupGraph proteinGroupGraph = new ProteinGroupGraph(identification.getProteinMap());
 
         if (waitingHandler != null) {
             waitingHandler.setWaitingText("Symplifying Protein Groups. Please Wait...");
             waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-            waitingHandler.setMaxSecondaryProgressCounter(max);
+            waitingHandler.setMaxSecondaryProgressCounter(proteinGroupGraph.getnGroups());
         }
 
-        HashSet<String> toDelete = new HashSet<String>();
-        HashMap<String, String> processedKeys = new HashMap<String, String>();
+        // groups sharing no accession are independent, process every connected component separately
+        ConcurrentLinkedQueue<ArrayList<Integer>> components = new ConcurrentLinkedQueue<ArrayList<Integer>>(proteinGroupGraph.getConnectedComponents());
 
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, false, null, false, null, waitingHandler);
-        while (proteinMatchesIterator.hasNext()) {
-            ProteinMatch proteinSharedGroup = proteinMatchesIterator.next();
-            if (proteinSharedGroup.getNProteins() > 1) {
-                String proteinSharedKey = proteinSharedGroup.getKey();
-                if (!processedKeys.containsKey(proteinSharedKey)) {
-                    String uniqueKey = getSubgroup(identification, proteinSharedKey, proteinSharedGroup, processedKeys, toDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
-                    if (uniqueKey != null) {
-                        mergeProteinGroups(identification, proteinSharedKey, uniqueKey, toDelete);
-                        processedKeys.put(proteinSharedKey, uniqueKey);
-                    } else {
-                        processedKeys.put(proteinSharedKey, proteinSharedKey);
-                    }
-                }
-                if (waitingHandler != null) {
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
-                    waitingHandler.increaseSecondaryProgressCounter();
-                }
-            }
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<RedundantGroupsRunnable> runnables = new ArrayList<RedundantGroupsRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            RedundantGroupsRunnable runnable = new RedundantGroupsRunnable(components, proteinGroupGraph, identification, shotgunProtocol, identificationParameters,
+                    identificationFeaturesGenerator, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein groups simplification timed out. Please contact the developers.");
+        }
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
+
+        HashSet<String> toDelete = new HashSet<String>();
+        for (RedundantGroupsRunnable runnable : runnables) {
+            toDelete.addAll(runnable.getKeysToDelete());
         }
 
         if (enzymaticIssue + evidenceIssue + uncharacterizedIssue + explainedGroup > 0) { // special case to not divide by zero
@@ -166,14 +183,15 @@ public class ProteinInference {
      * Returns null if no simpler group is found.
      *
      * @param identification the identification where to get the matches from.
-     * @param sharedKey the key of the group to inspect
+     * @param proteinGroupGraph the graph of the protein groups
+     * @param sharedGroup the index of the group to inspect in the graph
      * @param processedKeys map of already processed keys and their best smaller
      * key
      * @param keysToDelete list of keys to delete
      * @param shotgunProtocol the protocol containing the enzyme used
+     * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator the identification features
      * generator
-     * @param proteinInferencePreferences the protein inference preferences
      *
      * @return the best smaller group, null if none found.
      *
@@ -186,65 +204,33 @@ public class ProteinInference {
      * @throws SQLException exception thrown whenever an error occurred while
      * interacting with the back-end database
      */
-    private String getSubgroup(Identification identification, String sharedKey, ProteinMatch sharedProteinMatch, HashMap<String, String> processedKeys,
+    private String getSubgroup(Identification identification, ProteinGroupGraph proteinGroupGraph, int sharedGroup, HashMap<String, String> processedKeys,
             HashSet<String> keysToDelete, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         ProteinInferencePreferences proteinInferencePreferences = identificationParameters.getProteinInferencePreferences();
 
-        ArrayList<String> sharedAccessions;
-        if (sharedProteinMatch == null) {
-            sharedAccessions = proteinGroupCache.get(sharedKey);
-            if (sharedAccessions == null) {
-                sharedProteinMatch = identification.getProteinMatch(sharedKey, false);
-            }
-        }
-        if (sharedProteinMatch != null) {
-            sharedAccessions = sharedProteinMatch.getTheoreticProteinsAccessions();
-        } else {
-            sharedAccessions = getProteins(sharedKey);
-        }
+        String sharedKey = proteinGroupGraph.getGroupKey(sharedGroup);
         HashSet<String> candidateUnique = new HashSet<String>(1);
-        HashSet<String> sharedAccessionsAsSet = null;
-
-        for (String accession : sharedAccessions) {
-            HashSet<String> otherGroups = identification.getProteinMap().get(accession);
-            for (String uniqueKey : otherGroups) {
-                if (!uniqueKey.equals(sharedKey)) {
-                    ArrayList<String> uniqueAccessions = proteinGroupCache.get(uniqueKey);
-                    if (uniqueAccessions == null) {
-                        ProteinMatch uniqueProteinMatch = identification.getProteinMatch(uniqueKey, false);
-                        if (uniqueProteinMatch != null) {
-                            uniqueAccessions = uniqueProteinMatch.getTheoreticProteinsAccessions();
+
+        for (int uniqueGroup : proteinGroupGraph.getSubgroups(sharedGroup)) {
+            String uniqueKey = proteinGroupGraph.getGroupKey(uniqueGroup);
+            if (!keysToDelete.contains(uniqueKey)) {
+                String subGroup = uniqueKey;
+                if (proteinGroupGraph.getGroupSize(uniqueGroup) > 1) {
+                    String reducedGroup = processedKeys.get(uniqueKey);
+                    if (reducedGroup == null) {
+                        reducedGroup = getSubgroup(identification, proteinGroupGraph, uniqueGroup, processedKeys, keysToDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
+                        if (reducedGroup != null) {
+                            mergeProteinGroups(identification, uniqueKey, reducedGroup, keysToDelete);
+                            processedKeys.put(uniqueKey, reducedGroup);
+                            subGroup = reducedGroup;
                         } else {
-                            uniqueAccessions = getProteins(uniqueKey);
-                        }
-                    }
-                    if (sharedAccessions.size() >= uniqueAccessions.size()) {
-                        if (sharedAccessionsAsSet == null) {
-                            sharedAccessionsAsSet = new HashSet<String>(sharedAccessions);
-                        }
-                        if (ProteinMatch.contains(sharedAccessionsAsSet, uniqueAccessions) && !keysToDelete.contains(uniqueKey)) {
-                            String subGroup = uniqueKey;
-                            if (uniqueAccessions.size() > 1) {
-                                String reducedGroup = processedKeys.get(uniqueKey);
-                                if (reducedGroup == null) {
-                                    reducedGroup = getSubgroup(identification, uniqueKey, null, processedKeys, keysToDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
-                                    if (reducedGroup != null) {
-                                        mergeProteinGroups(identification, uniqueKey, reducedGroup, keysToDelete);
-                                        processedKeys.put(uniqueKey, reducedGroup);
-                                        subGroup = reducedGroup;
-                                    } else {
-                                        processedKeys.put(uniqueKey, uniqueKey);
-                                    }
-                                }
-                            }
-                            if (!candidateUnique.contains(subGroup)) {
-                                candidateUnique.add(subGroup);
-                            }
+                            processedKeys.put(uniqueKey, uniqueKey);
                         }
                     }
                 }
+                candidateUnique.add(subGroup);
             }
         }
 
@@ -312,17 +298,7 @@ public class ProteinInference {
                         for (String key2 : keys) {
                             if (!key2.equals(minimalKey) && !keysToDelete.contains(key2)) {
                                 keysToDelete.add(key2);
-                                for (int reason : preferenceReason.values()) {
-                                    if (reason == 1) {
-                                        enzymaticIssue++;
-                                    }
-                                    if (reason == 2) {
-                                        evidenceIssue++;
-                                    }
-                                    if (reason == 3) {
-                                        uncharacterizedIssue++;
-                                    }
-                                }
+                                countIssues(preferenceReason.values());
                             }
                         }
                         break;
@@ -360,6 +336,32 @@ public class ProteinInference {
         }
 
         keysToDelete.add(sharedGroup);
+        countExplainedGroup();
+    }
+
+    /**
+     * Counts the reasons why groups were deleted.
+     *
+     * @param reasons the reasons why groups were deleted
+     */
+    private synchronized void countIssues(Collection<Integer> reasons) {
+        for (int reason : reasons) {
+            if (reason == 1) {
+                enzymaticIssue++;
+            }
+            if (reason == 2) {
+                evidenceIssue++;
+            }
+            if (reason == 3) {
+                uncharacterizedIssue++;
+            }
+        }
+    }
+
+    /**
+     * Counts a group explained by a simpler group.
+     */
+    private synchronized void countExplainedGroup() {
         explainedGroup++;
     }
 
@@ -376,6 +378,7 @@ public class ProteinInference {
      * @param identificationFeaturesGenerator the identification feature
      * generator
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException thrown if an IOException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
@@ -385,8 +388,10 @@ public class ProteinInference {
      * occurs
      */
     public void retainBestScoringGroups(Identification identification, Metrics metrics, ProteinMap proteinMap, ShotgunProtocol shotgunProtocol,
-            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
-            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler) throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+
+        this.exceptionHandler = exceptionHandler;
 
         waitingHandler.setWaitingText("Simplifying Redundant Protein Groups. Please Wait...");
 
@@ -730,29 +735,6 @@ public class ProteinInference {
         waitingHandler.appendReport(report, true, true);
     }
 
-    /**
-     * Parses a protein description retaining only words longer than 3
-     * characters.
-     *
-     * @param proteinAccession the accession of the inspected protein
-     * @return description words longer than 3 characters
-     */
-    private ArrayList<String> parseDescription(String proteinAccession) throws IOException, IllegalArgumentException, InterruptedException, ClassNotFoundException {
-        String description = sequenceFactory.getHeader(proteinAccession).getSimpleProteinDescription();
-
-        if (description == null) {
-            return new ArrayList<String>();
-        }
-
-        ArrayList<String> result = new ArrayList<String>();
-        for (String component : description.split(" ")) {
-            if (component.length() > 3) {
-                result.add(component);
-            }
-        }
-        return result;
-    }
-
     /**
      * Checks whether a new main protein (newAccession) of the new protein match
      * (newProteinMatch) is better than another one main protein (oldAccession)
@@ -799,56 +781,31 @@ public class ProteinInference {
         }
 
         if (proteinInferencePreferences.getSimplifyGroupsEvidence()) {
-            String evidenceLevelOld = sequenceFactory.getHeader(oldAccession).getProteinEvidence();
-            String evidenceLevelNew = sequenceFactory.getHeader(newAccession).getProteinEvidence();
+            int evidenceLevelOld = getProteinHeaderIndex().getEvidence(getProteinIndex(oldAccession));
+            int evidenceLevelNew = getProteinHeaderIndex().getEvidence(getProteinIndex(newAccession));
 
             // compare protein evidence levels
-            if (evidenceLevelOld != null && evidenceLevelNew != null) {
-                try {
-                    Integer levelOld = new Integer(evidenceLevelOld);
-                    Integer levelNew = new Integer(evidenceLevelNew);
-                    if (levelNew < levelOld) {
-                        return 2;
-                    } else if (levelOld < levelNew) {
-                        return 0;
-                    }
-                } catch (NumberFormatException e) {
-                    // ignore
+            if (evidenceLevelOld >= 0 && evidenceLevelNew >= 0) {
+                if (evidenceLevelNew < evidenceLevelOld) {
+                    return 2;
+                } else if (evidenceLevelOld < evidenceLevelNew) {
+                    return 0;
                 }
             }
             // only the new match has evidence information
-            if (evidenceLevelOld == null && evidenceLevelNew != null) {
+            if (evidenceLevelOld == ProteinHeaderIndex.NO_EVIDENCE && evidenceLevelNew != ProteinHeaderIndex.NO_EVIDENCE) {
                 return 2;
             }
             // only the old match has evidence information
-            if (evidenceLevelOld != null && evidenceLevelNew == null) {
+            if (evidenceLevelOld != ProteinHeaderIndex.NO_EVIDENCE && evidenceLevelNew == ProteinHeaderIndex.NO_EVIDENCE) {
                 return 0;
             }
         }
 
         if (proteinInferencePreferences.getSimplifyGroupsUncharacterized()) {
             // Compare descriptions for keywords of uncharacterized proteins
-            String oldDescription = sequenceFactory.getHeader(oldAccession).getSimpleProteinDescription();
-            String newDescription = sequenceFactory.getHeader(newAccession).getSimpleProteinDescription();
-
-            // if the description is not set, return the accessions instead - fix for home made fasta headers
-            if (oldDescription == null || oldDescription.trim().isEmpty()) {
-                oldDescription = oldAccession;
-            }
-            if (newDescription == null || newDescription.trim().isEmpty()) {
-                newDescription = newAccession;
-            }
-
-            boolean oldUncharacterized = false, newUncharacterized = false;
-            String[] keyWords = {"Uncharacterized", "Putative"};
-            for (String keyWord : keyWords) {
-                if (newDescription.contains(keyWord)) {
-                    newUncharacterized = true;
-                }
-                if (oldDescription.contains(keyWord)) {
-                    oldUncharacterized = true;
-                }
-            }
+            boolean oldUncharacterized = getProteinHeaderIndex().isUncharacterized(getProteinIndex(oldAccession));
+            boolean newUncharacterized = getProteinHeaderIndex().isUncharacterized(getProteinIndex(newAccession));
             if (oldUncharacterized && !newUncharacterized) {
                 return 3;
             } else if (!oldUncharacterized && newUncharacterized) {
@@ -870,19 +827,17 @@ public class ProteinInference {
      */
     private boolean getSimilarity(String primaryProteinAccession, String secondaryProteinAccession) throws IOException, IllegalArgumentException, InterruptedException, ClassNotFoundException {
 
-        String geneNamePrimaryProtein = sequenceFactory.getHeader(primaryProteinAccession).getGeneName();
-        String geneNameSecondaryProtein = sequenceFactory.getHeader(secondaryProteinAccession).getGeneName();
-        boolean sameGene = false;
+        int primaryProteinIndex = getProteinIndex(primaryProteinAccession);
+        int secondaryProteinIndex = getProteinIndex(secondaryProteinAccession);
 
         // compare the gene names
-        if (geneNamePrimaryProtein != null && geneNameSecondaryProtein != null) {
-            sameGene = geneNamePrimaryProtein.equalsIgnoreCase(geneNameSecondaryProtein);
-        }
-
-        if (sameGene) {
+        if (getProteinHeaderIndex().sameGene(primaryProteinIndex, secondaryProteinIndex)) {
             return true;
         } else {
 
+            String geneNamePrimaryProtein = getProteinHeaderIndex().getGeneName(primaryProteinIndex);
+            String geneNameSecondaryProtein = getProteinHeaderIndex().getGeneName(secondaryProteinIndex);
+
             // compare gene names, similar gene names often means related proteins, like CPNE3 and CPNE2
             if (geneNamePrimaryProtein != null && geneNameSecondaryProtein != null) {
 
@@ -907,29 +862,74 @@ public class ProteinInference {
             }
 
             // compare the protein descriptions, less secure than gene names
-            ArrayList<String> primaryDescription = parseDescription(primaryProteinAccession);
-            ArrayList<String> secondaryDescription = parseDescription(secondaryProteinAccession);
+            int[] primaryDescription = getProteinHeaderIndex().getDescriptionWords(primaryProteinIndex);
+            int[] secondaryDescription = getProteinHeaderIndex().getDescriptionWords(secondaryProteinIndex);
 
-            if (primaryDescription.size() > secondaryDescription.size()) {
+            if (primaryDescription.length > secondaryDescription.length) {
                 int nMatch = 0;
-                for (String secondaryDescription1 : secondaryDescription) {
-                    if (primaryDescription.contains(secondaryDescription1)) {
+                for (int secondaryDescription1 : secondaryDescription) {
+                    if (Arrays.binarySearch(primaryDescription, secondaryDescription1) >= 0) {
                         nMatch++;
                     }
                 }
-                return nMatch >= secondaryDescription.size() / 2;
+                return nMatch >= secondaryDescription.length / 2;
             } else {
                 int nMatch = 0;
-                for (String primaryDescription1 : primaryDescription) {
-                    if (secondaryDescription.contains(primaryDescription1)) {
+                for (int primaryDescription1 : primaryDescription) {
+                    if (Arrays.binarySearch(secondaryDescription, primaryDescription1) >= 0) {
                         nMatch++;
                     }
                 }
-                return nMatch >= primaryDescription.size() / 2;
+                return nMatch >= primaryDescription.length / 2;
             }
         }
     }
 
+    /**
+     * Returns the index of a protein in the protein header index.
+     *
+     * @param accession the accession of the protein
+     *
+     * @return the index of the protein
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the FASTA index
+     */
+    private int getProteinIndex(String accession) throws IOException, InterruptedException, ClassNotFoundException {
+        Integer proteinIndex = getProteinHeaderIndex().getProteinIndex(accession);
+        if (proteinIndex == null) {
+            throw new IllegalArgumentException("Protein " + accession + " not found in " + sequenceFactory.getCurrentFastaFile().getName() + ".");
+        }
+        return proteinIndex;
+    }
+
+    /**
+     * Returns the index of the protein headers of the database. The index is
+     * only loaded when a protein header is needed, i.e. when the inference
+     * classes of groups are set or when the simplification of groups uses the
+     * protein evidence or the uncharacterized status.
+     *
+     * @return the index of the protein headers of the database
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the FASTA index
+     */
+    private synchronized ProteinHeaderIndex getProteinHeaderIndex() throws IOException, InterruptedException, ClassNotFoundException {
+        if (proteinHeaderIndex == null) {
+            // no waiting handler, the progress of the current step is kept
+            proteinHeaderIndex = ProteinHeaderIndex.getIndex(sequenceFactory, null, exceptionHandler);
+        }
+        return proteinHeaderIndex;
+    }
+
     /**
      * Returns the proteins of a group key. Uses
      * ProteinMatch.getAccessions(groupKey) after checking if the protein group
@@ -970,4 +970,121 @@ public class ProteinInference {
         proteinGroupCache.clear();
         sizeOfProteinsInCache = 10;
     }
+
+    /**
+     * Runnable simplifying the protein groups of the connected components of a
+     * protein group graph.
+     *
+     * @author Marc Vaudel
+     */
+    private class RedundantGroupsRunnable implements Runnable {
+
+        /**
+         * The connected components to process, shared by all runnables.
+         */
+        private ConcurrentLinkedQueue<ArrayList<Integer>> components;
+        /**
+         * The graph of the protein groups.
+         */
+        private ProteinGroupGraph proteinGroupGraph;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The shotgun protocol.
+         */
+        private ShotgunProtocol shotgunProtocol;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The identification features generator.
+         */
+        private IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The keys of the groups to delete found by this runnable.
+         */
+        private HashSet<String> keysToDelete = new HashSet<String>();
+
+        /**
+         * Constructor.
+         *
+         * @param components the connected components to process
+         * @param proteinGroupGraph the graph of the protein groups
+         * @param identification the identification
+         * @param shotgunProtocol the shotgun protocol
+         * @param identificationParameters the identification parameters
+         * @param identificationFeaturesGenerator the identification features
+         * generator
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public RedundantGroupsRunnable(ConcurrentLinkedQueue<ArrayList<Integer>> components, ProteinGroupGraph proteinGroupGraph, Identification identification,
+                ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.components = components;
+            this.proteinGroupGraph = proteinGroupGraph;
+            this.identification = identification;
+            this.shotgunProtocol = shotgunProtocol;
+            this.identificationParameters = identificationParameters;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ArrayList<Integer> component;
+                while ((waitingHandler == null || !waitingHandler.isRunCanceled()) && (component = components.poll()) != null) {
+                    HashMap<String, String> processedKeys = new HashMap<String, String>();
+                    for (int groupIndex : component) {
+                        if (proteinGroupGraph.getGroupSize(groupIndex) > 1) {
+                            String sharedKey = proteinGroupGraph.getGroupKey(groupIndex);
+                            if (!processedKeys.containsKey(sharedKey)) {
+                                String uniqueKey = getSubgroup(identification, proteinGroupGraph, groupIndex, processedKeys, keysToDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
+                                if (uniqueKey != null) {
+                                    mergeProteinGroups(identification, sharedKey, uniqueKey, keysToDelete);
+                                    processedKeys.put(sharedKey, uniqueKey);
+                                } else {
+                                    processedKeys.put(sharedKey, sharedKey);
+                                }
+                            }
+                        }
+                        if (waitingHandler != null) {
+                            if (waitingHandler.isRunCanceled()) {
+                                return;
+                            }
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+
+        /**
+         * Returns the keys of the groups to delete found by this runnable.
+         *
+         * @return the keys of the groups to delete
+         */
+        public HashSet<String> getKeysToDelete() {
+            return keysToDelete;
+        }
+    }
 }
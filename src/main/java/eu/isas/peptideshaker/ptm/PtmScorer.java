@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.ptm;
 
+import com.compomics.util.Util;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.PTM;
@@ -50,9 +51,11 @@ import java.math.RoundingMode;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -67,6 +70,10 @@ import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
  */
 public class PtmScorer {
 
+    /**
+     * The number of spectra per batch when scoring the PSM PTMs.
+     */
+    public static final int PSM_BATCH_SIZE = 1000;
     /**
      * The PTM factory.
      */
@@ -1430,28 +1437,58 @@ public class PtmScorer {
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-
-        HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
-            ArrayList<String> spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
+        // split the spectra of all files in batches, largest files first so that the small files fill the gaps at the end
+        final HashMap<String, ArrayList<String>> spectrumKeysPerFile = new HashMap<String, ArrayList<String>>();
+        ArrayList<String> spectrumFiles = new ArrayList<String>(identification.getSpectrumFiles());
+        for (String spectrumFileName : spectrumFiles) {
+            ArrayList<String> spectrumKeys = metrics.getOrderedSpectrumKeys(spectrumFileName);
+            if (spectrumKeys == null) {
+                spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFileName));
             }
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, null, true, null);
-            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
-                PsmPtmScorerRunnable runnable = new PsmPtmScorerRunnable(psmIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
-                pool.submit(runnable);
+            spectrumKeysPerFile.put(spectrumFileName, spectrumKeys);
+        }
+        Collections.sort(spectrumFiles, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return spectrumKeysPerFile.get(o2).size() - spectrumKeysPerFile.get(o1).size();
             }
-            if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
-                return;
+        });
+        ConcurrentLinkedQueue<PsmBatch> batches = new ConcurrentLinkedQueue<PsmBatch>();
+        HashMap<String, SpectrumFileTiming> timings = new HashMap<String, SpectrumFileTiming>(spectrumFiles.size());
+        for (String spectrumFileName : spectrumFiles) {
+            ArrayList<String> spectrumKeys = spectrumKeysPerFile.get(spectrumFileName);
+            for (int start = 0; start < spectrumKeys.size(); start += PSM_BATCH_SIZE) {
+                int end = Math.min(start + PSM_BATCH_SIZE, spectrumKeys.size());
+                batches.add(new PsmBatch(spectrumFileName, new ArrayList<String>(spectrumKeys.subList(start, end))));
             }
+            timings.put(spectrumFileName, new SpectrumFileTiming(spectrumKeys.size()));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            PsmPtmScorerRunnable runnable = new PsmPtmScorerRunnable(batches, timings, identification, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
         }
         pool.shutdown();
         if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
             throw new InterruptedException("PSM PTM scoring timed out. Please contact the developers.");
         }
+
+        if (!waitingHandler.isRunCanceled()) {
+            for (String spectrumFileName : spectrumFiles) {
+                SpectrumFileTiming timing = timings.get(spectrumFileName);
+                double seconds = timing.getElapsedTime() / 1000.0;
+                String report = "PSM PTMs of " + spectrumFileName + " scored: " + timing.getnPsms() + " PSMs in " + Util.roundDouble(seconds, 1) + " s";
+                if (seconds > 0) {
+                    report += " (" + Util.roundDouble(timing.getnPsms() / seconds, 0) + " PSMs/s)";
+                }
+                waitingHandler.appendReport(report + ".", true, true);
+            }
+        }
     }
 
     /**
@@ -2303,6 +2340,99 @@ public class PtmScorer {
         this.psmPTMMap = psmPTMMap;
     }
 
+    /**
+     * A batch of spectra of a given spectrum file.
+     */
+    private static class PsmBatch {
+
+        /**
+         * The name of the spectrum file.
+         */
+        private final String spectrumFileName;
+        /**
+         * The keys of the spectra of the batch.
+         */
+        private final ArrayList<String> spectrumKeys;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumFileName the name of the spectrum file
+         * @param spectrumKeys the keys of the spectra of the batch
+         */
+        public PsmBatch(String spectrumFileName, ArrayList<String> spectrumKeys) {
+            this.spectrumFileName = spectrumFileName;
+            this.spectrumKeys = spectrumKeys;
+        }
+    }
+
+    /**
+     * Keeps track of the time spent processing the batches of a spectrum
+     * file, from the start of the first batch to the end of the last batch.
+     */
+    private static class SpectrumFileTiming {
+
+        /**
+         * The number of PSMs in the file.
+         */
+        private final int nPsms;
+        /**
+         * The time when the first batch was started.
+         */
+        private long start = -1;
+        /**
+         * The time when the last batch was completed.
+         */
+        private long end = -1;
+
+        /**
+         * Constructor.
+         *
+         * @param nPsms the number of PSMs in the file
+         */
+        public SpectrumFileTiming(int nPsms) {
+            this.nPsms = nPsms;
+        }
+
+        /**
+         * Registers the start of a batch.
+         */
+        public synchronized void batchStarted() {
+            if (start == -1) {
+                start = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Registers the completion of a batch.
+         */
+        public synchronized void batchCompleted() {
+            end = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns the number of PSMs in the file.
+         *
+         * @return the number of PSMs in the file
+         */
+        public int getnPsms() {
+            return nPsms;
+        }
+
+        /**
+         * Returns the time elapsed between the start of the first batch and
+         * the completion of the last batch in milliseconds.
+         *
+         * @return the elapsed time in milliseconds
+         */
+        public synchronized long getElapsedTime() {
+            if (start == -1 || end == -1) {
+                return 0;
+            }
+            return end - start;
+        }
+    }
+
     /**
      * Runnable scoring PSM PTMs.
      *
@@ -2311,9 +2441,13 @@ public class PtmScorer {
     private class PsmPtmScorerRunnable implements Runnable {
 
         /**
-         * An iterator for the PSMs.
+         * The batches of spectra to process, shared by all runnables.
+         */
+        private ConcurrentLinkedQueue<PsmBatch> batches;
+        /**
+         * The timing of the spectrum files.
          */
-        private PsmIterator psmIterator;
+        private HashMap<String, SpectrumFileTiming> timings;
         /**
          * The identification.
          */
@@ -2338,16 +2472,18 @@ public class PtmScorer {
         /**
          * Constructor.
          *
-         * @param psmIterator a PSM iterator
+         * @param batches the batches of spectra to process
+         * @param timings the timing of the spectrum files
          * @param identification the identification containing the matches
          * @param identificationParameters the identification parameters
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          * @param exceptionHandler handler for exceptions
          */
-        public PsmPtmScorerRunnable(PsmIterator psmIterator, Identification identification,
+        public PsmPtmScorerRunnable(ConcurrentLinkedQueue<PsmBatch> batches, HashMap<String, SpectrumFileTiming> timings, Identification identification,
                 IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
-            this.psmIterator = psmIterator;
+            this.batches = batches;
+            this.timings = timings;
             this.identification = identification;
             this.identificationParameters = identificationParameters;
             this.waitingHandler = waitingHandler;
@@ -2357,15 +2493,22 @@ public class PtmScorer {
         @Override
         public void run() {
             try {
-                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
-                    SpectrumMatch spectrumMatch = psmIterator.next();
-                    if (spectrumMatch != null && spectrumMatch.getBestPeptideAssumption() != null) {
-                        scorePTMs(identification, spectrumMatch, identificationParameters, waitingHandler, peptideSpectrumAnnotator);
-                        ptmSiteInference(spectrumMatch, identificationParameters);
-                    }
-                    if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
-                        waitingHandler.increaseSecondaryProgressCounter();
+                PsmBatch batch;
+                while (!waitingHandler.isRunCanceled() && (batch = batches.poll()) != null) {
+                    SpectrumFileTiming timing = timings.get(batch.spectrumFileName);
+                    timing.batchStarted();
+                    PsmIterator psmIterator = identification.getPsmIterator(batch.spectrumFileName, batch.spectrumKeys, null, true, null);
+                    while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                        SpectrumMatch spectrumMatch = psmIterator.next();
+                        if (spectrumMatch != null && spectrumMatch.getBestPeptideAssumption() != null) {
+                            scorePTMs(identification, spectrumMatch, identificationParameters, waitingHandler, peptideSpectrumAnnotator);
+                            ptmSiteInference(spectrumMatch, identificationParameters);
+                        }
+                        if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
                     }
+                    timing.batchCompleted();
                 }
             } catch (Exception e) {
                 exceptionHandler.catchException(e);
@@ -18,8 +18,10 @@ import com.compomics.util.experiment.identification.spectrum_annotation.Specific
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -45,6 +47,26 @@ public class RunMzDeviation {
      * The precursor RT list.
      */
     private ArrayList<Double> precursorRTList;
+    /**
+     * The sorted precursor retention time bins.
+     */
+    private double[] rtBins;
+    /**
+     * The precursor slopes indexed by retention time bin.
+     */
+    private double[] slopes;
+    /**
+     * The precursor offsets indexed by retention time bin.
+     */
+    private double[] offsets;
+    /**
+     * The sorted fragment m/z bins indexed by retention time bin.
+     */
+    private double[][] fragmentMzBins;
+    /**
+     * The fragment errors indexed by retention time bin and m/z bin.
+     */
+    private double[][] fragmentErrors;
     /**
      * The fragments errors binned by mz and rt. error = experimental value -
      * theoretic (identification) value.
@@ -117,31 +139,13 @@ public class RunMzDeviation {
      *
      * @return the median error
      */
-    public double getPrecursorMzCorrection(Double precursorMz, Double precursorRT) {
-
-        double key1 = precursorRTList.get(0);
-        double key2 = key1;
-
-        if (precursorRT > key1) {
-            key1 = precursorRTList.get(precursorRTList.size() - 1);
-            key2 = key1;
-            if (precursorRT < key1) {
-                for (int i = 0; i < precursorRTList.size() - 1; i++) {
-                    key1 = precursorRTList.get(i);
-                    if (precursorRT == key1) {
-                        key2 = precursorRT;
-                        break;
-                    }
-                    key2 = precursorRTList.get(i + 1);
-                    if (key1 < precursorRT && precursorRT < key2) {
-                        break;
-                    }
-                }
-            }
-        }
+    public double getPrecursorMzCorrection(double precursorMz, double precursorRT) {
+
+        int bin1 = getLowerBin(rtBins, precursorRT);
+        int bin2 = getUpperBin(rtBins, bin1, precursorRT);
 
-        double grade = (precursorSlopes.get(key1) + precursorSlopes.get(key2)) / 2;
-        double offset = (precursorOffsets.get(key1) + precursorOffsets.get(key2)) / 2;
+        double grade = (slopes[bin1] + slopes[bin2]) / 2;
+        double offset = (offsets[bin1] + offsets[bin2]) / 2;
         return grade * precursorMz + offset;
     }
 
@@ -153,86 +157,77 @@ public class RunMzDeviation {
      *
      * @return the error found
      */
-    public Double getFragmentMzError(double precursorRT, double fragmentMZ) {
-
-        double rtKey1 = precursorRTList.get(0);
-        double rtKey2 = rtKey1;
-
-        if (precursorRT > rtKey1) {
-            rtKey1 = precursorRTList.get(precursorRTList.size() - 1);
-            rtKey2 = rtKey1;
-            if (precursorRT < rtKey1) {
-                for (int i = 0; i < precursorRTList.size() - 1; i++) {
-                    rtKey1 = precursorRTList.get(i);
-                    if (precursorRT == rtKey1) {
-                        rtKey2 = precursorRT;
-                        break;
-                    }
-                    rtKey2 = precursorRTList.get(i + 1);
-                    if (rtKey1 < precursorRT && precursorRT < rtKey2) {
-                        break;
-                    }
-                }
-            }
-        }
+    public double getFragmentMzError(double precursorRT, double fragmentMZ) {
 
-        ArrayList<Double> mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtKey1).keySet());
-        Collections.sort(mzList);
-        double mzKey1 = mzList.get(0);
-        double mzKey2 = mzKey1;
-
-        if (fragmentMZ > mzKey1) {
-            mzKey1 = mzList.get(mzList.size() - 1);
-            mzKey2 = mzKey1;
-            if (fragmentMZ < mzKey1) {
-                for (int i = 0; i < mzList.size() - 1; i++) {
-                    mzKey1 = mzList.get(i);
-                    if (fragmentMZ == mzKey1) {
-                        mzKey2 = fragmentMZ;
-                        break;
-                    }
-                    mzKey2 = mzList.get(i + 1);
-                    if (mzKey1 < fragmentMZ && fragmentMZ < mzKey2) {
-                        break;
-                    }
-                }
-            }
-        }
+        int rtBin1 = getLowerBin(rtBins, precursorRT);
+        int rtBin2 = getUpperBin(rtBins, rtBin1, precursorRT);
+        double rtKey1 = rtBins[rtBin1];
+        double rtKey2 = rtBins[rtBin2];
 
-        double correction11 = fragmentsRtDeviations.get(rtKey1).get(mzKey1);
-        double correction12 = fragmentsRtDeviations.get(rtKey1).get(mzKey2);
-        double correction1 = correction11 * mzKey1 / (mzKey1 + mzKey2) + correction12 * mzKey2 / (mzKey1 + mzKey2);
-
-        mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtKey2).keySet());
-        Collections.sort(mzList);
-        mzKey1 = mzList.get(0);
-        mzKey2 = mzKey1;
-
-        if (fragmentMZ > mzKey1) {
-            mzKey1 = mzList.get(mzList.size() - 1);
-            mzKey2 = mzKey1;
-            if (fragmentMZ < mzKey1) {
-                for (int i = 0; i < mzList.size() - 1; i++) {
-                    mzKey1 = mzList.get(i);
-                    if (fragmentMZ == mzKey1) {
-                        mzKey2 = fragmentMZ;
-                        break;
-                    }
-                    mzKey2 = mzList.get(i + 1);
-                    if (mzKey1 < fragmentMZ && fragmentMZ < mzKey2) {
-                        break;
-                    }
-                }
-            }
-        }
-
-        double correction21 = fragmentsRtDeviations.get(rtKey2).get(mzKey1);
-        double correction22 = fragmentsRtDeviations.get(rtKey2).get(mzKey2);
-        double correction2 = correction21 * mzKey1 / (mzKey1 + mzKey2) + correction22 * mzKey2 / (mzKey1 + mzKey2);
+        double correction1 = getFragmentMzError(rtBin1, fragmentMZ);
+        double correction2 = getFragmentMzError(rtBin2, fragmentMZ);
 
         return correction1 * rtKey1 / (rtKey1 + rtKey2) + correction2 * rtKey2 / (rtKey1 + rtKey2);
     }
 
+    /**
+     * Returns the fragment error at the given fragment m/z in the given
+     * retention time bin.
+     *
+     * @param rtBin the index of the retention time bin
+     * @param fragmentMZ the fragment m/z
+     *
+     * @return the error found
+     */
+    private double getFragmentMzError(int rtBin, double fragmentMZ) {
+
+        double[] mzBins = fragmentMzBins[rtBin];
+        double[] errors = fragmentErrors[rtBin];
+        int mzBin1 = getLowerBin(mzBins, fragmentMZ);
+        int mzBin2 = getUpperBin(mzBins, mzBin1, fragmentMZ);
+        double mzKey1 = mzBins[mzBin1];
+        double mzKey2 = mzBins[mzBin2];
+
+        return errors[mzBin1] * mzKey1 / (mzKey1 + mzKey2) + errors[mzBin2] * mzKey2 / (mzKey1 + mzKey2);
+    }
+
+    /**
+     * Returns the index of the bin at or below the given value, 0 if the value
+     * is below the first bin.
+     *
+     * @param bins the sorted bins
+     * @param value the value
+     *
+     * @return the index of the bin at or below the given value
+     */
+    private static int getLowerBin(double[] bins, double value) {
+        if (value <= bins[0]) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(bins, value);
+        if (index >= 0) {
+            return index;
+        }
+        return -index - 2;
+    }
+
+    /**
+     * Returns the index of the bin following the lower bin of a value, the
+     * lower bin itself if the value is on a bin or outside the bins.
+     *
+     * @param bins the sorted bins
+     * @param lowerBin the index of the lower bin as given by getLowerBin
+     * @param value the value
+     *
+     * @return the index of the bin above the given value
+     */
+    private static int getUpperBin(double[] bins, int lowerBin, double value) {
+        if (value <= bins[lowerBin] || lowerBin == bins.length - 1) {
+            return lowerBin;
+        }
+        return lowerBin + 1;
+    }
+
     /**
      * Recalibrate a peak list.
      *
@@ -242,12 +237,21 @@ public class RunMzDeviation {
      * @return the recalibrated peak list
      */
     public HashMap<Double, Peak> recalibratePeakList(double precursorRT, HashMap<Double, Peak> originalPeakList) {
-        HashMap<Double, Peak> recalibratedPeakList = new HashMap<Double, Peak>(originalPeakList.size());
 
-        for (double mz : originalPeakList.keySet()) {
-            double correction = getFragmentMzError(precursorRT, mz);
+        int rtBin1 = getLowerBin(rtBins, precursorRT);
+        int rtBin2 = getUpperBin(rtBins, rtBin1, precursorRT);
+        double rtKey1 = rtBins[rtBin1];
+        double rtKey2 = rtBins[rtBin2];
+        double rtWeight1 = rtKey1 / (rtKey1 + rtKey2);
+        double rtWeight2 = rtKey2 / (rtKey1 + rtKey2);
+
+        HashMap<Double, Peak> recalibratedPeakList = new HashMap<Double, Peak>(4 * originalPeakList.size() / 3 + 1);
+
+        for (Map.Entry<Double, Peak> entry : originalPeakList.entrySet()) {
+            double mz = entry.getKey();
+            double correction = getFragmentMzError(rtBin1, mz) * rtWeight1 + getFragmentMzError(rtBin2, mz) * rtWeight2;
             double newMz = mz - correction;
-            Peak peak = new Peak(newMz, originalPeakList.get(mz).intensity);
+            Peak peak = new Peak(newMz, entry.getValue().intensity);
             recalibratedPeakList.put(newMz, peak);
         }
         return recalibratedPeakList;
@@ -774,5 +778,28 @@ public class RunMzDeviation {
 
         precursorRTList = new ArrayList<Double>(precursorSlopes.keySet());
         Collections.sort(precursorRTList);
+
+        rtBins = new double[precursorRTList.size()];
+        slopes = new double[rtBins.length];
+        offsets = new double[rtBins.length];
+        fragmentMzBins = new double[rtBins.length][];
+        fragmentErrors = new double[rtBins.length][];
+
+        for (int i = 0; i < rtBins.length; i++) {
+            double rt = precursorRTList.get(i);
+            rtBins[i] = rt;
+            slopes[i] = precursorSlopes.get(rt);
+            offsets[i] = precursorOffsets.get(rt);
+            HashMap<Double, Double> mzDeviations = fragmentsRtDeviations.get(rt);
+            ArrayList<Double> mzList = mzDeviations == null ? new ArrayList<Double>(0) : new ArrayList<Double>(mzDeviations.keySet());
+            Collections.sort(mzList);
+            fragmentMzBins[i] = new double[mzList.size()];
+            fragmentErrors[i] = new double[mzList.size()];
+            for (int j = 0; j < mzList.size(); j++) {
+                double mz = mzList.get(j);
+                fragmentMzBins[i][j] = mz;
+                fragmentErrors[i][j] = mzDeviations.get(mz);
+            }
+        }
     }
 }
@@ -1,5 +1,9 @@
 package eu.isas.peptideshaker.scoring;
 
+import eu.isas.peptideshaker.parameters.CompactEncoding;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -444,4 +448,39 @@ public class PtmScoring implements Serializable {
                 return "";
         }
     }
+
+    /**
+     * Writes the scoring using the compact encoding of the PeptideShaker
+     * parameters.
+     *
+     * @param output the output to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public void write(DataOutput output) throws IOException {
+        CompactEncoding.writeString(output, ptmName);
+        CompactEncoding.writeIndexedDoubleMap(output, deltaScoresAtAA);
+        CompactEncoding.writeIndexedDoubleMap(output, probabilisticScoresAtAA);
+        CompactEncoding.writeIndexedIntegerMap(output, ptmLocationAtAA);
+    }
+
+    /**
+     * Reads a scoring written using the compact encoding of the PeptideShaker
+     * parameters.
+     *
+     * @param input the input to read from
+     *
+     * @return the scoring
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static PtmScoring read(DataInput input) throws IOException {
+        PtmScoring ptmScoring = new PtmScoring(CompactEncoding.readString(input));
+        ptmScoring.deltaScoresAtAA = CompactEncoding.readIndexedDoubleMap(input);
+        ptmScoring.probabilisticScoresAtAA = CompactEncoding.readIndexedDoubleMap(input);
+        ptmScoring.ptmLocationAtAA = CompactEncoding.readIndexedIntegerMap(input);
+        return ptmScoring;
+    }
 }
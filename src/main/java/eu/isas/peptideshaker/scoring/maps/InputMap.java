@@ -261,6 +261,45 @@ public class InputMap implements Serializable {
         targetDecoyMap.put(eValue, isDecoy);
     }
 
+    /**
+     * Adds all the entries and intermediate scores of another input map to
+     * this map. Threads filling the input map concurrently should each fill
+     * their own map and merge it using this method when done.
+     *
+     * @param otherInputMap the other input map
+     */
+    public synchronized void addAll(InputMap otherInputMap) {
+        for (Integer searchEngine : otherInputMap.inputMap.keySet()) {
+            TargetDecoyMap targetDecoyMap = createTargetDecoyInputMap(searchEngine);
+            targetDecoyMap.addAll(otherInputMap.inputMap.get(searchEngine));
+        }
+        for (Integer searchEngine : otherInputMap.inputSpecificMap.keySet()) {
+            HashMap<String, TargetDecoyMap> otherAlgorithmMap = otherInputMap.inputSpecificMap.get(searchEngine);
+            HashMap<String, TargetDecoyMap> algorithmMap = createIntermediateInputSpecificMap(searchEngine);
+            for (String spectrumFileName : otherAlgorithmMap.keySet()) {
+                TargetDecoyMap targetDecoyMap = createTargetDecoySpecificMap(spectrumFileName, algorithmMap);
+                targetDecoyMap.addAll(otherAlgorithmMap.get(spectrumFileName));
+            }
+        }
+        for (String fileName : otherInputMap.intermediateScores.keySet()) {
+            HashMap<Integer, HashMap<Integer, TargetDecoyMap>> otherAdvocateMap = otherInputMap.intermediateScores.get(fileName);
+            HashMap<Integer, HashMap<Integer, TargetDecoyMap>> advocateMap = createIntermediateScoreMap(fileName);
+            for (Integer advocateIndex : otherAdvocateMap.keySet()) {
+                HashMap<Integer, TargetDecoyMap> otherScoreMap = otherAdvocateMap.get(advocateIndex);
+                HashMap<Integer, TargetDecoyMap> scoreMap = createIntermediateScoreMap(advocateIndex, advocateMap);
+                for (Integer scoreIndex : otherScoreMap.keySet()) {
+                    TargetDecoyMap otherMap = otherScoreMap.get(scoreIndex);
+                    TargetDecoyMap targetDecoyMap = scoreMap.get(scoreIndex);
+                    if (targetDecoyMap == null) {
+                        targetDecoyMap = new TargetDecoyMap(otherMap.getMinDecoysInBin());
+                        scoreMap.put(scoreIndex, targetDecoyMap);
+                    }
+                    targetDecoyMap.addAll(otherMap);
+                }
+            }
+        }
+    }
+
     /**
      * Creates the target decoy input map for the given search engine unless already done by another thread.
      * 
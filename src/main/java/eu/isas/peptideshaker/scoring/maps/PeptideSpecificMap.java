@@ -108,10 +108,38 @@ public class PeptideSpecificMap implements Serializable {
     public void addPoint(double probabilityScore, PeptideMatch peptideMatch, SequenceMatchingPreferences sequenceMatchingPreferences)
             throws IOException, InterruptedException, SQLException, ClassNotFoundException {
         String key = getKey(peptideMatch);
-        if (!peptideMaps.containsKey(key)) {
-            peptideMaps.put(key, new TargetDecoyMap());
+        TargetDecoyMap targetDecoyMap = getMap(key);
+        targetDecoyMap.put(probabilityScore, peptideMatch.getTheoreticPeptide().isDecoy(sequenceMatchingPreferences));
+    }
+
+    /**
+     * Returns the target/decoy map for the given key, creates it if not done
+     * before.
+     *
+     * @param key the key of the map
+     *
+     * @return the corresponding target/decoy map
+     */
+    private synchronized TargetDecoyMap getMap(String key) {
+        TargetDecoyMap targetDecoyMap = peptideMaps.get(key);
+        if (targetDecoyMap == null) {
+            targetDecoyMap = new TargetDecoyMap();
+            peptideMaps.put(key, targetDecoyMap);
+        }
+        return targetDecoyMap;
+    }
+
+    /**
+     * Adds all the points of another peptide map to this map. Threads filling
+     * the map concurrently should each fill their own map and merge it using
+     * this method when done.
+     *
+     * @param otherMap the other peptide map
+     */
+    public synchronized void addAll(PeptideSpecificMap otherMap) {
+        for (String key : otherMap.peptideMaps.keySet()) {
+            getMap(key).addAll(otherMap.peptideMaps.get(key));
         }
-        peptideMaps.get(key).put(probabilityScore, peptideMatch.getTheoreticPeptide().isDecoy(sequenceMatchingPreferences));
     }
 
     /**
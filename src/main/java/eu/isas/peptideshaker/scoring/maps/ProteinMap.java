@@ -55,6 +55,17 @@ public class ProteinMap implements Serializable {
         proteinMatchMap.put(probabilityScore, isDecoy);
     }
 
+    /**
+     * Adds all the points of another protein map to this map. Threads filling
+     * the map concurrently should each fill their own map and merge it using
+     * this method when done.
+     *
+     * @param otherMap the other protein map
+     */
+    public void addAll(ProteinMap otherMap) {
+        proteinMatchMap.addAll(otherMap.getTargetDecoyMap());
+    }
+
     /**
      * Removes a point in the target/decoy map. Note: it is necessary to run
      * cleanUp() afterwards to clean up the map.
@@ -145,18 +145,48 @@ public class PsmSpecificMap implements Serializable {
             throws IOException, InterruptedException, SQLException, ClassNotFoundException {
 
         int charge = spectrumMatch.getBestPeptideAssumption().getIdentificationCharge().value;
+        String file = Spectrum.getSpectrumFile(spectrumMatch.getKey());
+        TargetDecoyMap targetDecoyMap = getFileSpecificMap(charge, file);
+        targetDecoyMap.put(probabilityScore, spectrumMatch.getBestPeptideAssumption().getPeptide().isDecoy(sequenceMatchingPreferences));
+    }
+
+    /**
+     * Returns the file specific target/decoy map at the given charge, creates
+     * it if not done before.
+     *
+     * @param charge the charge of interest
+     * @param file the spectrum file of interest
+     *
+     * @return the corresponding target/decoy map
+     */
+    private synchronized TargetDecoyMap getFileSpecificMap(int charge, String file) {
         HashMap<String, TargetDecoyMap> fileMapping = fileSpecificPsmsMaps.get(charge);
         if (fileMapping == null) {
             fileMapping = new HashMap<String, TargetDecoyMap>();
             fileSpecificPsmsMaps.put(charge, fileMapping);
         }
-        String file = Spectrum.getSpectrumFile(spectrumMatch.getKey());
         TargetDecoyMap targetDecoyMap = fileMapping.get(file);
         if (targetDecoyMap == null) {
             targetDecoyMap = new TargetDecoyMap();
             fileMapping.put(file, targetDecoyMap);
         }
-        targetDecoyMap.put(probabilityScore, spectrumMatch.getBestPeptideAssumption().getPeptide().isDecoy(sequenceMatchingPreferences));
+        return targetDecoyMap;
+    }
+
+    /**
+     * Adds all the points of another PSM map to this map. Threads filling the
+     * map concurrently should each fill their own map and merge it using this
+     * method when done.
+     *
+     * @param otherMap the other PSM map
+     */
+    public synchronized void addAll(PsmSpecificMap otherMap) {
+        for (Integer charge : otherMap.fileSpecificPsmsMaps.keySet()) {
+            HashMap<String, TargetDecoyMap> otherFileMapping = otherMap.fileSpecificPsmsMaps.get(charge);
+            for (String file : otherFileMapping.keySet()) {
+                getFileSpecificMap(charge, file).addAll(otherFileMapping.get(file));
+            }
+        }
     }
 
     /**
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.scoring.psm_scoring;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.identification.Advocate;
@@ -8,7 +9,6 @@ import com.compomics.util.experiment.identification.spectrum_assumptions.Peptide
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.SpectrumIdentificationAssumption;
 import com.compomics.util.experiment.identification.spectrum_assumptions.TagAssumption;
-import com.compomics.util.experiment.identification.matches.IonMatch;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
@@ -16,24 +16,30 @@ import com.compomics.util.experiment.identification.spectrum_annotation.spectrum
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.memory.MemoryConsumptionStatus;
-import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.experiment.identification.filtering.PeptideAssumptionFilter;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
-import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
 import com.compomics.util.preferences.IdMatchValidationPreferences;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
+import eu.isas.peptideshaker.scoring.maps.PsmSpecificMap;
+import eu.isas.peptideshaker.utils.AnnotationCache;
 import eu.isas.peptideshaker.utils.Metrics;
 import eu.isas.peptideshaker.validation.MatchesValidator;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -86,12 +92,17 @@ public class BestMatchSelection {
     }
 
     /**
-     * Fills the PSM specific map.
+     * Fills the PSM specific map. The spectra of every file are processed by
+     * the number of threads set in the processing preferences, every thread
+     * filling its own PSM map and ordered keys which are merged when the file
+     * is processed.
      *
      * @param inputMap The input map
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param shotgunProtocol information about the protocol
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      *
      * @throws java.sql.SQLException exception thrown whenever an error occurred
      * while interacting with the back-end database
@@ -104,23 +115,14 @@ public class BestMatchSelection {
      * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
      * whenever an error occurred while reading an mzML file
      */
-    public void selectBestHitAndFillPsmMap(InputMap inputMap, WaitingHandler waitingHandler, ShotgunProtocol shotgunProtocol,
-            IdentificationParameters identificationParameters) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+    public void selectBestHitAndFillPsmMap(InputMap inputMap, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
         boolean multiSE = inputMap.isMultipleAlgorithms();
-
-        PeptideAssumptionFilter peptideAssumptionFilter = identificationParameters.getPeptideAssumptionFilter();
-        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences();
-        SearchParameters searchParameters = identificationParameters.getSearchParameters();
-        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
-        IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
-
-        PeptideAssumptionFilter idFilter = identificationParameters.getPeptideAssumptionFilter();
+        int nThreads = processingPreferences.getnThreads();
 
         // Keep a map of the spectrum keys grouped by peptide
         HashMap<String, ArrayList<String>> orderedPsmMap = null;
@@ -128,423 +130,42 @@ public class BestMatchSelection {
             orderedPsmMap = new HashMap<String, ArrayList<String>>(identification.getSpectrumIdentificationMap().size());
         }
 
-        PSParameter psParameter = new PSParameter();
-
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
-            HashMap<String, ArrayList<String>> keysMap = null;
-            if (orderedPsmMap != null) {
-                keysMap = new HashMap<String, ArrayList<String>>();
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, null);
+            ArrayList<BestMatchSelectionRunnable> runnables = new ArrayList<BestMatchSelectionRunnable>(nThreads);
+            for (int i = 1; i <= nThreads && !waitingHandler.isRunCanceled(); i++) {
+                BestMatchSelectionRunnable runnable = new BestMatchSelectionRunnable(psmIterator, multiSE, orderedPsmMap != null, identificationParameters, waitingHandler, exceptionHandler);
+                runnables.add(runnable);
+                pool.submit(runnable);
+            }
+            if (waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                return;
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("PSM best hit selection timed out. Please contact the developers.");
+            }
+            AnnotationCache.getInstance().reportStatistics(waitingHandler);
+            AnnotationCache.getInstance().clear();
+            if (waitingHandler.isRunCanceled()) {
+                return;
             }
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, waitingHandler);
-
-            while (psmIterator.hasNext()) {
-
-                SpectrumMatch advocateMatch = psmIterator.next();
-                String spectrumKey = advocateMatch.getKey();
-
-                // map of the peptide first hits for this spectrum: score -> max protein count -> max search engine votes -> amino acids annotated -> min mass deviation -> peptide sequence
-                HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>> peptideAssumptions
-                        = new HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>>();
-
-                // map of the tag first hits: score -> assumptions
-                HashMap<Double, ArrayList<TagAssumption>> tagAssumptions = new HashMap<Double, ArrayList<TagAssumption>>();
-
-                HashSet<String> identifications = new HashSet<String>();
-
-                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
-
-                for (int searchEngine1 : assumptions.keySet()) {
-
-                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate1Map = assumptions.get(searchEngine1);
-
-                    ArrayList<Double> eValues1 = new ArrayList<Double>(advocate1Map.keySet());
-                    Collections.sort(eValues1);
-
-                    for (Double eValue1 : eValues1) {
-
-                        boolean bestPeptideFound = false;
-
-                        for (SpectrumIdentificationAssumption assumption1 : advocate1Map.get(eValue1)) {
-
-                            if (assumption1 instanceof PeptideAssumption) {
-
-                                PeptideAssumption peptideAssumption1 = (PeptideAssumption) assumption1;
-                                Peptide peptide1 = peptideAssumption1.getPeptide();
-                                String id = peptide1.getKey();
-
-                                if (!identifications.contains(id)) {
-
-                                    boolean filterPassed1 = true;
-                                    if (!peptideAssumptionFilter.validatePeptide(peptide1, sequenceMatchingPreferences, searchParameters.getEnzyme())
-                                            || !peptideAssumptionFilter.validateModifications(peptide1, sequenceMatchingPreferences, ptmSequenceMatchingPreferences, searchParameters.getPtmSettings())
-                                            || !peptideAssumptionFilter.validatePrecursor(peptideAssumption1, spectrumKey, spectrumFactory, searchParameters)
-                                            || !peptideAssumptionFilter.validateProteins(peptide1, sequenceMatchingPreferences)) {
-                                        filterPassed1 = false;
-                                    } else {
-                                        ArrayList<String> accessions = peptide1.getParentProteins(sequenceMatchingPreferences);
-                                        if (accessions == null || accessions.isEmpty()) {
-                                            filterPassed1 = false;
-                                        }
-                                    }
-
-                                    if (filterPassed1) {
-
-                                        bestPeptideFound = true;
-
-                                        psParameter = (PSParameter) peptideAssumption1.getUrParam(psParameter);
-                                        double p;
-
-                                        if (multiSE && sequenceFactory.concatenatedTargetDecoy()) {
-                                            p = psParameter.getSearchEngineProbability();
-                                        } else {
-                                            p = peptideAssumption1.getScore();
-                                        }
-
-                                        int nSE = 1;
-                                        int proteinMax = 1;
-                                        for (String protein : peptideAssumption1.getPeptide().getParentProteins(sequenceMatchingPreferences)) {
-                                            Integer tempCount = proteinCount.get(protein);
-                                            if (tempCount != null && tempCount > proteinMax) {
-                                                proteinMax = tempCount;
-                                            }
-                                        }
-
-                                        for (int searchEngine2 : assumptions.keySet()) {
-
-                                            if (searchEngine1 != searchEngine2) {
-
-                                                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate2Map = assumptions.get(searchEngine2);
-
-                                                boolean found = false;
-                                                ArrayList<Double> eValues2 = new ArrayList<Double>(advocate2Map.keySet());
-                                                Collections.sort(eValues2);
-
-                                                for (double eValue2 : eValues2) {
-
-                                                    for (SpectrumIdentificationAssumption assumption2 : advocate2Map.get(eValue2)) {
-
-                                                        if (assumption2 instanceof PeptideAssumption) {
-
-                                                            PeptideAssumption peptideAssumption2 = (PeptideAssumption) assumption2;
-
-                                                            if (peptideAssumption1.getPeptide().isSameSequenceAndModificationStatus(peptideAssumption2.getPeptide(),
-                                                                    sequenceMatchingPreferences)) {
-                                                                PSParameter psParameter2 = (PSParameter) peptideAssumption2.getUrParam(psParameter);
-                                                                p = p * psParameter2.getSearchEngineProbability();
-                                                                nSE++;
-                                                                found = true;
-                                                                break;
-                                                            }
-                                                        }
-                                                    }
-                                                    if (found) {
-                                                        break;
-                                                    }
-                                                }
-                                            }
-                                        }
-
-                                        identifications.add(id);
-
-                                        HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
-                                        if (pMap == null) {
-                                            pMap = new HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>(advocate1Map.size());
-                                            peptideAssumptions.put(p, pMap);
-                                        }
-
-                                        HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
-                                        if (proteinMaxMap == null) {
-                                            proteinMaxMap = new HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>(1);
-                                            pMap.put(proteinMax, proteinMaxMap);
-                                        }
-
-                                        HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
-                                        if (nSeMap == null) {
-                                            nSeMap = new HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>(1);
-                                            proteinMaxMap.put(nSE, nSeMap);
-                                            HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
-                                            nSeMap.put(-1, coverageMap);
-                                            HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                            coverageMap.put(-1.0, assumptionMap);
-                                            assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
-                                        } else {
-                                            MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
-
-                                            HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(-1);
-                                            if (coverageMap != null) {
-                                                HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
-                                                for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
-                                                    Peptide peptide = tempAssumption.getPeptide();
-                                                    SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), tempAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                                                    HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide);
-                                                    int nIons = coveredAminoAcids.size();
-                                                    nSeMap.put(nIons, coverageMap);
-                                                }
-                                                nSeMap.remove(-1);
-                                            }
-
-                                            Peptide peptide = peptideAssumption1.getPeptide();
-                                            SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), peptideAssumption1, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                                            HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide);
-                                            int nIons = coveredAminoAcids.size();
-
-                                            coverageMap = nSeMap.get(nIons);
-                                            if (coverageMap == null) {
-                                                coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
-                                                HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                                assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
-                                                coverageMap.put(-1.0, assumptionMap);
-                                                nSeMap.put(nIons, coverageMap);
-                                            } else {
-                                                HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
-                                                if (assumptionMap != null) {
-                                                    for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
-                                                        double massError = Math.abs(tempAssumption.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                                                        coverageMap.put(massError, assumptionMap);
-                                                    }
-                                                    coverageMap.remove(-1.0);
-                                                }
-
-                                                double massError = Math.abs(peptideAssumption1.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                                                assumptionMap = coverageMap.get(massError);
-                                                if (assumptionMap == null) {
-                                                    assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                                    coverageMap.put(massError, assumptionMap);
-                                                }
-                                                assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
-                                            }
-                                        }
-                                    }
-                                }
-                            } else if (assumption1 instanceof TagAssumption) {
-                                TagAssumption tagAssumption = (TagAssumption) assumption1;
-                                ArrayList<TagAssumption> assumptionList = tagAssumptions.get(eValue1);
-                                if (assumptionList == null) {
-                                    assumptionList = new ArrayList<TagAssumption>();
-                                    tagAssumptions.put(eValue1, assumptionList);
-                                }
-                                assumptionList.add(tagAssumption);
-                            }
-                        }
-                        if (bestPeptideFound) {
-                            break;
-                        }
-                    }
-                }
-
-                SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
-                if (!peptideAssumptions.isEmpty()) {
-
-                    PeptideAssumption bestPeptideAssumption = null;
-                    ArrayList<Double> ps = new ArrayList<Double>(peptideAssumptions.keySet());
-                    Collections.sort(ps);
-                    double retainedP = 0;
-
-                    for (double p : ps) {
-
-                        retainedP = p;
-                        HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
-                        ArrayList<Integer> proteinMaxs = new ArrayList<Integer>(pMap.keySet());
-                        Collections.sort(proteinMaxs, Collections.reverseOrder());
-
-                        for (int proteinMax : proteinMaxs) {
-
-                            HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
-                            ArrayList<Integer> nSEs = new ArrayList<Integer>(proteinMaxMap.keySet());
-                            Collections.sort(nSEs, Collections.reverseOrder());
-
-                            for (int nSE : nSEs) {
-
-                                HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
-                                ArrayList<Integer> coverages = new ArrayList<Integer>(nSeMap.keySet());
-                                Collections.sort(coverages, Collections.reverseOrder());
-
-                                for (Integer coverage : coverages) {
-
-                                    HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(coverage);
-                                    ArrayList<Double> minErrors = new ArrayList<Double>(coverageMap.keySet());
-                                    Collections.sort(minErrors);
-
-                                    for (double minError : minErrors) {
-
-                                        HashMap<String, PeptideAssumption> bestPeptideAssumptions = coverageMap.get(minError);
-                                        ArrayList<String> sequences = new ArrayList<String>(bestPeptideAssumptions.keySet());
-                                        Collections.sort(sequences);
-
-                                        for (String sequence : sequences) {
-                                            PeptideAssumption peptideAssumption = bestPeptideAssumptions.get(sequence);
-                                            if (idFilter.validateProteins(peptideAssumption.getPeptide(), sequenceMatchingPreferences)) {
-                                                bestPeptideAssumption = peptideAssumption;
-                                                break;
-                                            }
-                                        }
-                                        if (bestPeptideAssumption != null) {
-                                            break;
-                                        }
-                                    }
-                                    if (bestPeptideAssumption != null) {
-                                        break;
-                                    }
-                                }
-                                if (bestPeptideAssumption != null) {
-                                    break;
-                                }
-                            }
-                            if (bestPeptideAssumption != null) {
-                                break;
-                            }
-                        }
-                        if (bestPeptideAssumption != null) {
-                            break;
-                        }
-                    }
-                    if (bestPeptideAssumption != null) {
-
-                        if (multiSE) {
-
-                            // try to find the most likely modification localization based on the search engine results
-                            HashMap<PeptideAssumption, ArrayList<Double>> assumptionPEPs = new HashMap<PeptideAssumption, ArrayList<Double>>();
-                            String bestAssumptionKey = bestPeptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences);
-
-                            for (int searchEngine : assumptions.keySet()) {
-
-                                boolean found = false;
-                                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = assumptions.get(searchEngine);
-                                ArrayList<Double> eValues = new ArrayList<Double>(advocateMap.keySet());
-                                Collections.sort(eValues);
-
-                                for (double eValue : eValues) {
-                                    for (SpectrumIdentificationAssumption assumption : advocateMap.get(eValue)) {
-
-                                        if (assumption instanceof PeptideAssumption) {
-
-                                            PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
-
-                                            if (peptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences).equals(bestAssumptionKey)) {
-
-                                                found = true;
-                                                boolean found2 = false;
-
-                                                for (PeptideAssumption assumption1 : assumptionPEPs.keySet()) {
-                                                    if (assumption1.getPeptide().sameModificationsAs(peptideAssumption.getPeptide())) {
-                                                        found2 = true;
-                                                        psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                                                        ArrayList<Double> peps = assumptionPEPs.get(assumption1);
-                                                        peps.add(psParameter.getSearchEngineProbability());
-                                                        break;
-                                                    }
-                                                }
-
-                                                if (!found2) {
-                                                    ArrayList<Double> peps = new ArrayList<Double>(1);
-                                                    assumptionPEPs.put(peptideAssumption, peps);
-                                                    psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                                                    peps.add(psParameter.getSearchEngineProbability());
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                    if (found) {
-                                        break;
-                                    }
-                                }
-                            }
-
-                            Double bestSeP = null;
-                            int nSe = -1;
-
-                            for (PeptideAssumption peptideAssumption : assumptionPEPs.keySet()) {
-
-                                ArrayList<Double> peps = assumptionPEPs.get(peptideAssumption);
-                                Double sep = Collections.min(peps);
-
-                                if (bestSeP == null || bestSeP > sep) {
-                                    bestSeP = sep;
-                                    nSe = peps.size();
-                                    bestPeptideAssumption = peptideAssumption;
-                                } else if (peps.size() > nSe) {
-                                    if (sep != null && (Math.abs(sep - bestSeP) <= 1e-10)) {
-                                        nSe = peps.size();
-                                        bestPeptideAssumption = peptideAssumption;
-                                    }
-                                }
-                            }
-                        }
-
-                        // create a PeptideShaker match based on the best search engine match
-                        Peptide sePeptide = bestPeptideAssumption.getPeptide();
-                        ArrayList<String> psProteins = new ArrayList<String>(sePeptide.getParentProteins(sequenceMatchingPreferences));
-                        ArrayList<ModificationMatch> psModificationMatches = null;
-                        if (sePeptide.isModified()) {
-                            psModificationMatches = new ArrayList<ModificationMatch>(sePeptide.getNModifications());
-                            for (ModificationMatch seModMatch : sePeptide.getModificationMatches()) {
-                                psModificationMatches.add(new ModificationMatch(seModMatch.getTheoreticPtm(), seModMatch.isVariable(), seModMatch.getModificationSite()));
-                            }
-                        }
-
-                        Peptide psPeptide = new Peptide(sePeptide.getSequence(), psModificationMatches);
-                        psPeptide.setParentProteins(psProteins);
-                        PeptideAssumption psAssumption = new PeptideAssumption(psPeptide, 1, Advocate.peptideShaker.getIndex(), bestPeptideAssumption.getIdentificationCharge(), retainedP);
-
-                        spectrumMatch.setBestPeptideAssumption(psAssumption);
-
-                        if (orderedPsmMap != null) {
-                            String peptideKey = psPeptide.getMatchingKey(sequenceMatchingPreferences);
-                            ArrayList<String> spectrumKeys = keysMap.get(peptideKey);
-                            if (spectrumKeys == null) {
-                                spectrumKeys = new ArrayList<String>();
-                                keysMap.put(peptideKey, spectrumKeys);
-                            }
-                            spectrumKeys.add(spectrumKey);
-                        }
-
-                        psParameter = new PSParameter();
-                        psParameter.setSpectrumProbabilityScore(retainedP);
-
-                        PSParameter matchParameter = (PSParameter) bestPeptideAssumption.getUrParam(psParameter);
-                        psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
-                        psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
-                        psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
-
-                        matchesValidator.getPsmMap().addPoint(psParameter.getPsmProbabilityScore(), spectrumMatch, sequenceMatchingPreferences);
-                        String validationMapKey = "";
-                        if (idMatchValidationPreferences.getSeparatePsms()) {
-                            validationMapKey += psAssumption.getIdentificationCharge().value;
-                        }
-                        psParameter.setSpecificMapKey(validationMapKey);
-                        identification.addSpectrumMatchParameter(spectrumKey, psParameter);
-                        identification.updateSpectrumMatch(spectrumMatch);
-                    }
-                }
-                if (!tagAssumptions.isEmpty()) {
-                    ArrayList<Double> evalues = new ArrayList<Double>(tagAssumptions.keySet());
-                    Double bestEvalue = Collections.min(evalues);
-                    TagAssumption bestAssumption = tagAssumptions.get(bestEvalue).get(0);
-                    spectrumMatch.setBestTagAssumption(bestAssumption);
-                    identification.updateSpectrumMatch(spectrumMatch);
-                    if (spectrumMatch.getBestPeptideAssumption() == null) {
-                        psParameter = new PSParameter();
-                        if (!multiSE) {
-                            psParameter.setSpectrumProbabilityScore(bestEvalue);
+            if (orderedPsmMap != null) {
+                HashMap<String, ArrayList<String>> keysMap = new HashMap<String, ArrayList<String>>();
+                for (BestMatchSelectionRunnable runnable : runnables) {
+                    for (String peptideKey : runnable.keysMap.keySet()) {
+                        ArrayList<String> spectrumKeys = keysMap.get(peptideKey);
+                        if (spectrumKeys == null) {
+                            keysMap.put(peptideKey, runnable.keysMap.get(peptideKey));
+                        } else {
+                            spectrumKeys.addAll(runnable.keysMap.get(peptideKey));
                         }
-                        PSParameter matchParameter = (PSParameter) bestAssumption.getUrParam(psParameter);
-                        psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
-                        psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
-                        psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
-                        psParameter.setSpecificMapKey(spectrumMatch.getBestTagAssumption().getIdentificationCharge().value + "");
-                        identification.addSpectrumMatchParameter(spectrumKey, psParameter);
                     }
                 }
-                waitingHandler.increaseSecondaryProgressCounter();
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-            }
-
-            if (orderedPsmMap != null) {
                 ArrayList<String> orderedKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFileName).size());
                 for (ArrayList<String> keys : keysMap.values()) {
                     orderedKeys.addAll(keys);
@@ -635,13 +256,10 @@ public class BestMatchSelection {
 
         MSnSpectrum spectrum = (MSnSpectrum) SpectrumFactory.getInstance().getSpectrum(spectrumKey);
         int maxCoveredAminoAcids = 0;
-        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
+        AnnotationCache annotationCache = AnnotationCache.getInstance();
 
         for (PeptideAssumption peptideAssumption : firstHits) {
-            Peptide peptide = peptideAssumption.getPeptide();
-            SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), peptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-            HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide);
-            int nAas = coveredAminoAcids.size();
+            int nAas = annotationCache.getFragmentCoverage(spectrumKey, peptideAssumption, identificationParameters, spectrumAnnotator).getnAminoAcidsAnnotated();
             if (nAas > maxCoveredAminoAcids) {
                 maxCoveredAminoAcids = nAas;
                 bestPeptideAssumptions.clear();
@@ -690,4 +308,632 @@ public class BestMatchSelection {
         Collections.sort(sequences);
         return sequenceToPeptideAssumptionsMap.get(sequences.get(0));
     }
+
+    /**
+     * Runnable selecting the best hit of the spectra of an iterator.
+     *
+     * @author Marc Vaudel
+     */
+    private class BestMatchSelectionRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * Indicates whether multiple search engines were used.
+         */
+        private boolean multiSE;
+        /**
+         * The spectrum keys selected by this thread grouped by peptide key,
+         * null if not needed.
+         */
+        private HashMap<String, ArrayList<String>> keysMap = null;
+        /**
+         * The PSM map filled by this thread, merged into the PSM map of the
+         * validator when done.
+         */
+        private PsmSpecificMap threadPsmMap = new PsmSpecificMap();
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The peptide spectrum annotator.
+         */
+        private PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
+        /**
+         * The peptide first hits of the spectrum being processed.
+         */
+        private PeptideCandidates peptideCandidates = new PeptideCandidates();
+        /**
+         * PSParameter used to retrieve the match parameters.
+         */
+        private PSParameter psParameter = new PSParameter();
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator an iterator of the PSMs to process
+         * @param multiSE boolean indicating whether multiple search engines were
+         * used
+         * @param orderKeys boolean indicating whether the spectrum keys should
+         * be grouped by peptide
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public BestMatchSelectionRunnable(PsmIterator psmIterator, boolean multiSE, boolean orderKeys, IdentificationParameters identificationParameters,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.multiSE = multiSE;
+            if (orderKeys) {
+                keysMap = new HashMap<String, ArrayList<String>>();
+            }
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                    SpectrumMatch advocateMatch = psmIterator.next();
+                    selectBestHit(advocateMatch.getKey());
+                    if (!waitingHandler.isRunCanceled()) {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+                if (!waitingHandler.isRunCanceled()) {
+                    matchesValidator.getPsmMap().addAll(threadPsmMap);
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Selects the best hit of a spectrum, stores it in the spectrum match
+         * and adds it to the PSM map.
+         *
+         * @param spectrumKey the key of the spectrum
+         *
+         * @throws java.sql.SQLException exception thrown whenever an error
+         * occurred while interacting with the back-end database
+         * @throws java.io.IOException exception thrown whenever an error
+         * occurred while reading an external file
+         * @throws java.lang.ClassNotFoundException exception thrown whenever an
+         * error occurred while deserializing an object
+         * @throws java.lang.InterruptedException exception thrown whenever a
+         * threading error occurred
+         * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception
+         * thrown whenever an error occurred while reading an mzML file
+         */
+        private void selectBestHit(String spectrumKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+            PeptideAssumptionFilter peptideAssumptionFilter = identificationParameters.getPeptideAssumptionFilter();
+            SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+            SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences();
+            SearchParameters searchParameters = identificationParameters.getSearchParameters();
+            IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
+
+            peptideCandidates.clear();
+
+            // map of the tag first hits: score -> assumptions
+            HashMap<Double, ArrayList<TagAssumption>> tagAssumptions = new HashMap<Double, ArrayList<TagAssumption>>();
+
+            HashSet<String> identifications = new HashSet<String>();
+
+            HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
+
+            for (int searchEngine1 : assumptions.keySet()) {
+
+                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate1Map = assumptions.get(searchEngine1);
+
+                ArrayList<Double> eValues1 = new ArrayList<Double>(advocate1Map.keySet());
+                Collections.sort(eValues1);
+
+                for (Double eValue1 : eValues1) {
+
+                    boolean bestPeptideFound = false;
+
+                    for (SpectrumIdentificationAssumption assumption1 : advocate1Map.get(eValue1)) {
+
+                        if (assumption1 instanceof PeptideAssumption) {
+
+                            PeptideAssumption peptideAssumption1 = (PeptideAssumption) assumption1;
+                            Peptide peptide1 = peptideAssumption1.getPeptide();
+                            String id = peptide1.getKey();
+
+                            if (!identifications.contains(id)) {
+
+                                boolean filterPassed1 = true;
+                                if (!peptideAssumptionFilter.validatePeptide(peptide1, sequenceMatchingPreferences, searchParameters.getEnzyme())
+                                        || !peptideAssumptionFilter.validateModifications(peptide1, sequenceMatchingPreferences, ptmSequenceMatchingPreferences, searchParameters.getPtmSettings())
+                                        || !peptideAssumptionFilter.validatePrecursor(peptideAssumption1, spectrumKey, spectrumFactory, searchParameters)
+                                        || !peptideAssumptionFilter.validateProteins(peptide1, sequenceMatchingPreferences)) {
+                                    filterPassed1 = false;
+                                } else {
+                                    ArrayList<String> accessions = peptide1.getParentProteins(sequenceMatchingPreferences);
+                                    if (accessions == null || accessions.isEmpty()) {
+                                        filterPassed1 = false;
+                                    }
+                                }
+
+                                if (filterPassed1) {
+
+                                    bestPeptideFound = true;
+
+                                    psParameter = (PSParameter) peptideAssumption1.getUrParam(psParameter);
+                                    double p;
+
+                                    if (multiSE && sequenceFactory.concatenatedTargetDecoy()) {
+                                        p = psParameter.getSearchEngineProbability();
+                                    } else {
+                                        p = peptideAssumption1.getScore();
+                                    }
+
+                                    int nSE = 1;
+                                    int proteinMax = 1;
+                                    for (String protein : peptideAssumption1.getPeptide().getParentProteins(sequenceMatchingPreferences)) {
+                                        Integer tempCount = proteinCount.get(protein);
+                                        if (tempCount != null && tempCount > proteinMax) {
+                                            proteinMax = tempCount;
+                                        }
+                                    }
+
+                                    for (int searchEngine2 : assumptions.keySet()) {
+
+                                        if (searchEngine1 != searchEngine2) {
+
+                                            HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate2Map = assumptions.get(searchEngine2);
+
+                                            boolean found = false;
+                                            ArrayList<Double> eValues2 = new ArrayList<Double>(advocate2Map.keySet());
+                                            Collections.sort(eValues2);
+
+                                            for (double eValue2 : eValues2) {
+
+                                                for (SpectrumIdentificationAssumption assumption2 : advocate2Map.get(eValue2)) {
+
+                                                    if (assumption2 instanceof PeptideAssumption) {
+
+                                                        PeptideAssumption peptideAssumption2 = (PeptideAssumption) assumption2;
+
+                                                        if (peptideAssumption1.getPeptide().isSameSequenceAndModificationStatus(peptideAssumption2.getPeptide(),
+                                                                sequenceMatchingPreferences)) {
+                                                            PSParameter psParameter2 = (PSParameter) peptideAssumption2.getUrParam(psParameter);
+                                                            p = p * psParameter2.getSearchEngineProbability();
+                                                            nSE++;
+                                                            found = true;
+                                                            break;
+                                                        }
+                                                    }
+                                                }
+                                                if (found) {
+                                                    break;
+                                                }
+                                            }
+                                        }
+                                    }
+
+                                    identifications.add(id);
+
+                                    peptideCandidates.add(peptideAssumption1, p, proteinMax, nSE);
+                                }
+                            }
+                        } else if (assumption1 instanceof TagAssumption) {
+                            TagAssumption tagAssumption = (TagAssumption) assumption1;
+                            ArrayList<TagAssumption> assumptionList = tagAssumptions.get(eValue1);
+                            if (assumptionList == null) {
+                                assumptionList = new ArrayList<TagAssumption>();
+                                tagAssumptions.put(eValue1, assumptionList);
+                            }
+                            assumptionList.add(tagAssumption);
+                        }
+                    }
+                    if (bestPeptideFound) {
+                        break;
+                    }
+                }
+            }
+
+            SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+            if (!peptideCandidates.isEmpty()) {
+
+                int bestCandidate = getBestCandidate(spectrumKey);
+
+                if (bestCandidate != -1) {
+
+                    PeptideAssumption bestPeptideAssumption = peptideCandidates.assumptions[bestCandidate];
+                    double retainedP = peptideCandidates.scores[bestCandidate];
+
+                    if (multiSE) {
+
+                        // try to find the most likely modification localization based on the search engine results
+                        HashMap<PeptideAssumption, ArrayList<Double>> assumptionPEPs = new HashMap<PeptideAssumption, ArrayList<Double>>();
+                        String bestAssumptionKey = bestPeptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences);
+
+                        for (int searchEngine : assumptions.keySet()) {
+
+                            boolean found = false;
+                            HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = assumptions.get(searchEngine);
+                            ArrayList<Double> eValues = new ArrayList<Double>(advocateMap.keySet());
+                            Collections.sort(eValues);
+
+                            for (double eValue : eValues) {
+                                for (SpectrumIdentificationAssumption assumption : advocateMap.get(eValue)) {
+
+                                    if (assumption instanceof PeptideAssumption) {
+
+                                        PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
+
+                                        if (peptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences).equals(bestAssumptionKey)) {
+
+                                            found = true;
+                                            boolean found2 = false;
+
+                                            for (PeptideAssumption assumption1 : assumptionPEPs.keySet()) {
+                                                if (assumption1.getPeptide().sameModificationsAs(peptideAssumption.getPeptide())) {
+                                                    found2 = true;
+                                                    psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                                                    ArrayList<Double> peps = assumptionPEPs.get(assumption1);
+                                                    peps.add(psParameter.getSearchEngineProbability());
+                                                    break;
+                                                }
+                                            }
+
+                                            if (!found2) {
+                                                ArrayList<Double> peps = new ArrayList<Double>(1);
+                                                assumptionPEPs.put(peptideAssumption, peps);
+                                                psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                                                peps.add(psParameter.getSearchEngineProbability());
+                                            }
+                                        }
+                                    }
+                                }
+
+                                if (found) {
+                                    break;
+                                }
+                            }
+                        }
+
+                        Double bestSeP = null;
+                        int nSe = -1;
+
+                        for (PeptideAssumption peptideAssumption : assumptionPEPs.keySet()) {
+
+                            ArrayList<Double> peps = assumptionPEPs.get(peptideAssumption);
+                            Double sep = Collections.min(peps);
+
+                            if (bestSeP == null || bestSeP > sep) {
+                                bestSeP = sep;
+                                nSe = peps.size();
+                                bestPeptideAssumption = peptideAssumption;
+                            } else if (peps.size() > nSe) {
+                                if (sep != null && (Math.abs(sep - bestSeP) <= 1e-10)) {
+                                    nSe = peps.size();
+                                    bestPeptideAssumption = peptideAssumption;
+                                }
+                            }
+                        }
+                    }
+
+                    // create a PeptideShaker match based on the best search engine match
+                    Peptide sePeptide = bestPeptideAssumption.getPeptide();
+                    ArrayList<String> psProteins = new ArrayList<String>(sePeptide.getParentProteins(sequenceMatchingPreferences));
+                    ArrayList<ModificationMatch> psModificationMatches = null;
+                    if (sePeptide.isModified()) {
+                        psModificationMatches = new ArrayList<ModificationMatch>(sePeptide.getNModifications());
+                        for (ModificationMatch seModMatch : sePeptide.getModificationMatches()) {
+                            psModificationMatches.add(new ModificationMatch(seModMatch.getTheoreticPtm(), seModMatch.isVariable(), seModMatch.getModificationSite()));
+                        }
+                    }
+
+                    Peptide psPeptide = new Peptide(sePeptide.getSequence(), psModificationMatches);
+                    psPeptide.setParentProteins(psProteins);
+                    PeptideAssumption psAssumption = new PeptideAssumption(psPeptide, 1, Advocate.peptideShaker.getIndex(), bestPeptideAssumption.getIdentificationCharge(), retainedP);
+
+                    spectrumMatch.setBestPeptideAssumption(psAssumption);
+
+                    if (keysMap != null) {
+                        String peptideKey = psPeptide.getMatchingKey(sequenceMatchingPreferences);
+                        ArrayList<String> spectrumKeys = keysMap.get(peptideKey);
+                        if (spectrumKeys == null) {
+                            spectrumKeys = new ArrayList<String>();
+                            keysMap.put(peptideKey, spectrumKeys);
+                        }
+                        spectrumKeys.add(spectrumKey);
+                    }
+
+                    psParameter = new PSParameter();
+                    psParameter.setSpectrumProbabilityScore(retainedP);
+
+                    PSParameter matchParameter = (PSParameter) bestPeptideAssumption.getUrParam(psParameter);
+                    psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
+                    psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
+                    psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
+
+                    threadPsmMap.addPoint(psParameter.getPsmProbabilityScore(), spectrumMatch, sequenceMatchingPreferences);
+                    String validationMapKey = "";
+                    if (idMatchValidationPreferences.getSeparatePsms()) {
+                        validationMapKey += psAssumption.getIdentificationCharge().value;
+                    }
+                    psParameter.setSpecificMapKey(validationMapKey);
+                    identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+                    identification.updateSpectrumMatch(spectrumMatch);
+                }
+            }
+            if (!tagAssumptions.isEmpty()) {
+                ArrayList<Double> evalues = new ArrayList<Double>(tagAssumptions.keySet());
+                Double bestEvalue = Collections.min(evalues);
+                TagAssumption bestAssumption = tagAssumptions.get(bestEvalue).get(0);
+                spectrumMatch.setBestTagAssumption(bestAssumption);
+                identification.updateSpectrumMatch(spectrumMatch);
+                if (spectrumMatch.getBestPeptideAssumption() == null) {
+                    psParameter = new PSParameter();
+                    if (!multiSE) {
+                        psParameter.setSpectrumProbabilityScore(bestEvalue);
+                    }
+                    PSParameter matchParameter = (PSParameter) bestAssumption.getUrParam(psParameter);
+                    psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
+                    psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
+                    psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
+                    psParameter.setSpecificMapKey(spectrumMatch.getBestTagAssumption().getIdentificationCharge().value + "");
+                    identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+                }
+            }
+        }
+
+        /**
+         * Ranks the peptide candidates of a spectrum by score, protein count,
+         * search engine votes, number of amino acids annotated, mass deviation
+         * and sequence, and returns the index of the first candidate passing
+         * the protein filter. The amino acids annotated and the mass deviation
+         * are only computed for candidates tied on the previous criteria.
+         *
+         * @param spectrumKey the key of the spectrum
+         *
+         * @return the index of the best candidate, -1 if none passed the
+         * protein filter
+         *
+         * @throws java.sql.SQLException exception thrown whenever an error
+         * occurred while interacting with the back-end database
+         * @throws java.io.IOException exception thrown whenever an error
+         * occurred while reading an external file
+         * @throws java.lang.ClassNotFoundException exception thrown whenever an
+         * error occurred while deserializing an object
+         * @throws java.lang.InterruptedException exception thrown whenever a
+         * threading error occurred
+         * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception
+         * thrown whenever an error occurred while reading an mzML file
+         */
+        private int getBestCandidate(String spectrumKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+            SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+            SearchParameters searchParameters = identificationParameters.getSearchParameters();
+            AnnotationCache annotationCache = AnnotationCache.getInstance();
+            boolean tied = false;
+
+            Integer[] order = peptideCandidates.sort();
+            int size = peptideCandidates.size;
+
+            // break the ties on score, protein count and votes using the amino acids annotated
+            for (int start = 0, end; start < size; start = end) {
+                end = start + 1;
+                while (end < size && peptideCandidates.tied(order[start], order[end], 0)) {
+                    end++;
+                }
+                if (end - start > 1) {
+                    tied = true;
+                    for (int i = start; i < end; i++) {
+                        PeptideAssumption peptideAssumption = peptideCandidates.assumptions[order[i]];
+                        peptideCandidates.coverages[order[i]] = annotationCache.getFragmentCoverage(spectrumKey, peptideAssumption, identificationParameters, spectrumAnnotator).getnAminoAcidsAnnotated();
+                    }
+                }
+            }
+            if (tied) {
+                MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
+                order = peptideCandidates.sort();
+
+                // break the remaining ties using the mass deviation
+                for (int start = 0, end; start < size; start = end) {
+                    end = start + 1;
+                    while (end < size && peptideCandidates.tied(order[start], order[end], 1)) {
+                        end++;
+                    }
+                    if (end - start > 1) {
+                        for (int i = start; i < end; i++) {
+                            PeptideAssumption peptideAssumption = peptideCandidates.assumptions[order[i]];
+                            peptideCandidates.massErrors[order[i]] = Math.abs(peptideAssumption.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
+                        }
+                    }
+                }
+                order = peptideCandidates.sort();
+            }
+
+            PeptideAssumptionFilter idFilter = identificationParameters.getPeptideAssumptionFilter();
+            for (int i = 0; i < size; i++) {
+                int candidate = order[i];
+                // candidates of same rank and sequence are overwritten by the last one found
+                if (i > 0 && peptideCandidates.tied(order[i - 1], candidate, 2)) {
+                    continue;
+                }
+                if (idFilter.validateProteins(peptideCandidates.assumptions[candidate].getPeptide(), sequenceMatchingPreferences)) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The peptide first hits of a spectrum stored in arrays reused from one
+     * spectrum to the other. The candidates are ranked by increasing score,
+     * decreasing protein count, decreasing search engine votes, decreasing
+     * number of amino acids annotated, increasing mass deviation, sequence
+     * and reverse order of addition.
+     */
+    private static class PeptideCandidates implements Comparator<Integer> {
+
+        /**
+         * The number of candidates.
+         */
+        private int size = 0;
+        /**
+         * The assumptions of the candidates.
+         */
+        private PeptideAssumption[] assumptions = new PeptideAssumption[8];
+        /**
+         * The scores of the candidates.
+         */
+        private double[] scores = new double[8];
+        /**
+         * The maximal protein count of the candidates.
+         */
+        private int[] proteinMaxs = new int[8];
+        /**
+         * The number of search engines voting for the candidates.
+         */
+        private int[] nSEs = new int[8];
+        /**
+         * The number of amino acids annotated, -1 if not computed.
+         */
+        private int[] coverages = new int[8];
+        /**
+         * The absolute mass deviations, -1 if not computed.
+         */
+        private double[] massErrors = new double[8];
+        /**
+         * The sequences with modifications in lower case.
+         */
+        private String[] sequences = new String[8];
+        /**
+         * The indexes of the candidates in ranking order.
+         */
+        private Integer[] order = new Integer[8];
+
+        /**
+         * Removes all candidates.
+         */
+        public void clear() {
+            Arrays.fill(assumptions, 0, size, null);
+            Arrays.fill(sequences, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * Indicates whether no candidate was added.
+         *
+         * @return a boolean indicating whether no candidate was added
+         */
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Adds a candidate.
+         *
+         * @param peptideAssumption the peptide assumption
+         * @param score the score
+         * @param proteinMax the maximal protein count
+         * @param nSE the number of search engines voting for this peptide
+         */
+        public void add(PeptideAssumption peptideAssumption, double score, int proteinMax, int nSE) {
+            if (size == assumptions.length) {
+                int newLength = 2 * size;
+                assumptions = Arrays.copyOf(assumptions, newLength);
+                scores = Arrays.copyOf(scores, newLength);
+                proteinMaxs = Arrays.copyOf(proteinMaxs, newLength);
+                nSEs = Arrays.copyOf(nSEs, newLength);
+                coverages = Arrays.copyOf(coverages, newLength);
+                massErrors = Arrays.copyOf(massErrors, newLength);
+                sequences = Arrays.copyOf(sequences, newLength);
+                order = Arrays.copyOf(order, newLength);
+            }
+            assumptions[size] = peptideAssumption;
+            scores[size] = score;
+            proteinMaxs[size] = proteinMax;
+            nSEs[size] = nSE;
+            coverages[size] = -1;
+            massErrors[size] = -1;
+            sequences[size] = peptideAssumption.getPeptide().getSequenceWithLowerCasePtms();
+            size++;
+        }
+
+        /**
+         * Sorts the candidates according to the criteria computed so far.
+         *
+         * @return the indexes of the candidates in ranking order, only the
+         * first size indexes are set
+         */
+        public Integer[] sort() {
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, 0, size, this);
+            return order;
+        }
+
+        /**
+         * Indicates whether two candidates are tied on the criteria of the
+         * given level: 0 for score, protein count and votes, 1 for these and
+         * the number of amino acids annotated, 2 for all criteria but the
+         * order of addition.
+         *
+         * @param i the index of the first candidate
+         * @param j the index of the second candidate
+         * @param level the level of the criteria
+         *
+         * @return a boolean indicating whether the candidates are tied
+         */
+        public boolean tied(int i, int j, int level) {
+            if (Double.compare(scores[i], scores[j]) != 0 || proteinMaxs[i] != proteinMaxs[j] || nSEs[i] != nSEs[j]) {
+                return false;
+            }
+            if (level >= 1 && coverages[i] != coverages[j]) {
+                return false;
+            }
+            return level < 2 || Double.compare(massErrors[i], massErrors[j]) == 0 && sequences[i].equals(sequences[j]);
+        }
+
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            int i = o1, j = o2;
+            int result = Double.compare(scores[i], scores[j]);
+            if (result != 0) {
+                return result;
+            }
+            if (proteinMaxs[i] != proteinMaxs[j]) {
+                return proteinMaxs[i] > proteinMaxs[j] ? -1 : 1;
+            }
+            if (nSEs[i] != nSEs[j]) {
+                return nSEs[i] > nSEs[j] ? -1 : 1;
+            }
+            if (coverages[i] != coverages[j]) {
+                return coverages[i] > coverages[j] ? -1 : 1;
+            }
+            result = Double.compare(massErrors[i], massErrors[j]);
+            if (result != 0) {
+                return result;
+            }
+            result = sequences[i].compareTo(sequences[j]);
+            if (result != 0) {
+                return result;
+            }
+            return j - i;
+        }
+    }
 }
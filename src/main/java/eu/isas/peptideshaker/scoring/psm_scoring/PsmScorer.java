@@ -137,6 +137,7 @@ public class PsmScorer {
         String spectrumFileName = Spectrum.getSpectrumFile(spectrumKey);
 
         HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
+        MSnSpectrum spectrum = null;
 
         for (int advocateIndex : assumptions.keySet()) {
 
@@ -153,7 +154,9 @@ public class PsmScorer {
 
                             PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
                             PSParameter psParameter = new PSParameter();
-                            MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
+                            if (spectrum == null) {
+                                spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
+                            }
 
                             for (int scoreIndex : scoresForAdvocate) {
 
@@ -371,6 +374,11 @@ public class PsmScorer {
          * The input map
          */
         private InputMap inputMap;
+        /**
+         * The input map filled by this thread, merged into the input map when
+         * done.
+         */
+        private InputMap threadInputMap = new InputMap();
         /**
          * The protocol used
          */
@@ -420,11 +428,14 @@ public class PsmScorer {
             try {
                 while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
                     SpectrumMatch spectrumMatch = psmIterator.next();
-                    estimateIntermediateScores(identification, spectrumMatch, inputMap, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, waitingHandler);
+                    estimateIntermediateScores(identification, spectrumMatch, threadInputMap, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, waitingHandler);
                     if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
                         waitingHandler.increaseSecondaryProgressCounter();
                     }
                 }
+                if (!waitingHandler.isRunCanceled()) {
+                    inputMap.addAll(threadInputMap);
+                }
             } catch (Exception e) {
                 exceptionHandler.catchException(e);
                 waitingHandler.setRunCanceled();
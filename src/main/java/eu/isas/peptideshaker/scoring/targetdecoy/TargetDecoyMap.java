@@ -3,12 +3,15 @@ package eu.isas.peptideshaker.scoring.targetdecoy;
 import com.compomics.util.waiting.WaitingHandler;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 
 /**
- * This map contains the information of a target/decoy strategy.
+ * This map contains the information of a target/decoy strategy. Points can be
+ * added from different threads, but when many threads fill the same map it is
+ * faster to let every thread fill its own map and merge them using addAll.
  *
  * @author Marc Vaudel
  */
@@ -66,6 +69,16 @@ public class TargetDecoyMap implements Serializable {
      * The results computed on this map.
      */
     private TargetDecoyResults targetDecoyResults = new TargetDecoyResults();
+    /**
+     * The sorted scores of the map as primitive array, used for the
+     * probability lookup. Built once the probabilities are estimated, not
+     * serialized.
+     */
+    private transient double[] lookupScores = null;
+    /**
+     * The posterior error probabilities corresponding to the lookup scores.
+     */
+    private transient double[] lookupPeps = null;
 
     /**
      * Constructor.
@@ -83,6 +96,17 @@ public class TargetDecoyMap implements Serializable {
         this.minDecoysInBin = minDecoysInBin;
     }
 
+    /**
+     * Returns the number of decoy matches to include in the first bin to set
+     * the bin size.
+     *
+     * @return the number of decoy matches to include in the first bin to set
+     * the bin size
+     */
+    public Integer getMinDecoysInBin() {
+        return minDecoysInBin;
+    }
+
     /**
      * Returns the posterior error probability estimated at the given score.
      *
@@ -90,25 +114,54 @@ public class TargetDecoyMap implements Serializable {
      * @return the estimated posterior error probability
      */
     public Double getProbability(double score) {
-        TargetDecoyPoint point = hitMap.get(score);
-        if (point != null) {
-            return point.p;
-        } else if (score >= scores.get(scores.size() - 1)) {
-            return hitMap.get(scores.get(scores.size() - 1)).p;
-        } else {
-            int indexDown = 0;
-            int indexUp = scores.size() - 1;
-            int indexTemp;
-            while (indexUp - indexDown > 1) {
-                indexTemp = (indexUp - indexDown) / 2 + indexDown;
-                if (scores.get(indexTemp) > score) {
-                    indexUp = indexTemp;
-                } else {
-                    indexDown = indexTemp;
-                }
-            }
-            return (hitMap.get(scores.get(indexUp)).p + hitMap.get(scores.get(indexDown)).p) / 2;
+        double[] tempScores = lookupScores;
+        double[] tempPeps = lookupPeps;
+        if (tempScores == null || tempPeps == null) {
+            buildLookupTables();
+            tempScores = lookupScores;
+            tempPeps = lookupPeps;
+        }
+        int index = Arrays.binarySearch(tempScores, score);
+        if (index >= 0) {
+            return tempPeps[index];
         }
+        int lastIndex = tempScores.length - 1;
+        int insertionIndex = -index - 1;
+        if (insertionIndex > lastIndex) {
+            return tempPeps[lastIndex];
+        }
+        int indexDown = Math.max(insertionIndex - 1, 0);
+        int indexUp = Math.min(Math.max(insertionIndex, 1), lastIndex);
+        return (tempPeps[indexUp] + tempPeps[indexDown]) / 2;
+    }
+
+    /**
+     * Builds the primitive lookup tables used to retrieve the probabilities
+     * from the sorted scores and the hit map.
+     */
+    private synchronized void buildLookupTables() {
+        if (lookupScores != null && lookupPeps != null) {
+            return;
+        }
+        ArrayList<Double> sortedScores = getScores();
+        double[] tempScores = new double[sortedScores.size()];
+        double[] tempPeps = new double[sortedScores.size()];
+        for (int i = 0; i < sortedScores.size(); i++) {
+            Double score = sortedScores.get(i);
+            tempScores[i] = score;
+            tempPeps[i] = hitMap.get(score).p;
+        }
+        lookupPeps = tempPeps;
+        lookupScores = tempScores;
+    }
+
+    /**
+     * Clears the lookup tables, needs to be called whenever the content of
+     * the map changes.
+     */
+    private void clearLookupTables() {
+        lookupScores = null;
+        lookupPeps = null;
     }
 
     /**
@@ -137,7 +190,8 @@ public class TargetDecoyMap implements Serializable {
      * @param score The given score
      * @param isDecoy boolean indicating whether the hit is decoy
      */
-    public void put(Double score, boolean isDecoy) {
+    public synchronized void put(Double score, boolean isDecoy) {
+        clearLookupTables();
         TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
         if (targetDecoyPoint == null) {
             targetDecoyPoint = createTargetDecoyPoint(score);
@@ -160,6 +214,7 @@ public class TargetDecoyMap implements Serializable {
     public synchronized TargetDecoyPoint createTargetDecoyPoint(Double score) {
         TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
         if (targetDecoyPoint == null) {
+            clearLookupTables();
             targetDecoyPoint = new TargetDecoyPoint();
             hitMap.put(score, targetDecoyPoint);
         }
@@ -173,7 +228,8 @@ public class TargetDecoyMap implements Serializable {
      * @param score the given score
      * @param isDecoy boolean indicating whether the hit is decoy
      */
-    public void remove(Double score, boolean isDecoy) {
+    public synchronized void remove(Double score, boolean isDecoy) {
+        clearLookupTables();
         TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
         if (!isDecoy) {
             targetDecoyPoint.decreaseTarget();
@@ -197,6 +253,7 @@ public class TargetDecoyMap implements Serializable {
             }
         }
         if (removed) {
+            clearLookupTables();
             scores = null;
             nmax = null;
             windowSize = null;
@@ -261,6 +318,7 @@ public class TargetDecoyMap implements Serializable {
      */
     public void estimateProbabilities(WaitingHandler waitingHandler) {
 
+        clearLookupTables();
         if (scores == null) {
             estimateScores();
         }
@@ -325,6 +383,8 @@ public class TargetDecoyMap implements Serializable {
                 return;
             }
         }
+
+        buildLookupTables();
     }
 
     /**
@@ -396,15 +456,14 @@ public class TargetDecoyMap implements Serializable {
      *
      * @param anOtherMap another target/decoy map
      */
-    public void addAll(TargetDecoyMap anOtherMap) {
-        for (double score : anOtherMap.getScores()) {
-            for (int i = 0; i < anOtherMap.getNDecoy(score); i++) {
-                put(score, true);
-            }
-            for (int i = 0; i < anOtherMap.getNTarget(score); i++) {
-                put(score, false);
-            }
+    public synchronized void addAll(TargetDecoyMap anOtherMap) {
+        for (Double score : anOtherMap.getScores()) {
+            TargetDecoyPoint otherPoint = anOtherMap.hitMap.get(score);
+            TargetDecoyPoint targetDecoyPoint = createTargetDecoyPoint(score);
+            targetDecoyPoint.increaseDecoy(otherPoint.nDecoy);
+            targetDecoyPoint.increaseTarget(otherPoint.nTarget);
         }
+        clearLookupTables();
         scores = null;
         nmax = null;
         windowSize = null;
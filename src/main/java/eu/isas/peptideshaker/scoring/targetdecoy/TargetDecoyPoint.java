@@ -46,6 +46,24 @@ public class TargetDecoyPoint implements Serializable {
         nDecoy++;
     }
     
+    /**
+     * Increases the target counter by the given number of hits.
+     *
+     * @param nHits the number of target hits to add
+     */
+    public synchronized void increaseTarget(int nHits) {
+        nTarget += nHits;
+    }
+    
+    /**
+     * Increases the decoy counter by the given number of hits.
+     *
+     * @param nHits the number of decoy hits to add
+     */
+    public synchronized void increaseDecoy(int nHits) {
+        nDecoy += nHits;
+    }
+    
     /**
      * Decreases the target counter.
      */
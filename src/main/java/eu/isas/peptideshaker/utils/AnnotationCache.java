@@ -0,0 +1,610 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.NeutralLoss;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+
+/**
+ * Cache for the amino acids covered by fragment ions, indexed by spectrum key,
+ * peptide key and charge. The cache is shared by the threads of the different
+ * processing steps and is split in segments, each evicting its least recently
+ * used entries. It should be cleared when the processing of a spectrum file
+ * is completed.
+ *
+ * Entries are tagged with the generation of the annotation settings used to
+ * compute them and only returned for the same generation. A new generation is
+ * started when other annotation settings are used, or when the fragment ion
+ * accuracy, the high resolution annotation or the intensity limit of the
+ * settings change. Callers editing the ion types or the neutral losses of the
+ * settings in place need to call invalidate().
+ *
+ * @author Marc Vaudel
+ */
+public class AnnotationCache {
+
+    /**
+     * The instance of the cache.
+     */
+    private static final AnnotationCache instance = new AnnotationCache();
+    /**
+     * The default maximal number of entries in the cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+    /**
+     * The number of segments of the cache.
+     */
+    private static final int N_SEGMENTS = 16;
+    /**
+     * The maximal number of entries in the cache.
+     */
+    private int maxSize = DEFAULT_MAX_SIZE;
+    /**
+     * The segments of the cache, every segment holds the entries of the keys
+     * of the same hash.
+     */
+    private final Segment[] segments = new Segment[N_SEGMENTS];
+    /**
+     * The annotation settings of the current generation.
+     */
+    private volatile SettingsState settingsState = null;
+    /**
+     * The current generation of annotation settings.
+     */
+    private volatile int generation = 0;
+    /**
+     * The number of coverages found in the cache.
+     */
+    private final AtomicLong nHits = new AtomicLong();
+    /**
+     * The number of coverages computed.
+     */
+    private final AtomicLong nMisses = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    private AnnotationCache() {
+        for (int i = 0; i < N_SEGMENTS; i++) {
+            segments[i] = new Segment(getSegmentSize(maxSize));
+        }
+    }
+
+    /**
+     * Returns the instance of the cache.
+     *
+     * @return the instance of the cache
+     */
+    public static AnnotationCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the amino acids of the peptide of an assumption covered by
+     * fragment ions in the given spectrum. The annotation is computed using
+     * the given annotator if not in cache.
+     *
+     * @param spectrumKey the key of the spectrum
+     * @param peptideAssumption the peptide assumption
+     * @param identificationParameters the identification parameters
+     * @param peptideSpectrumAnnotator the spectrum annotator to use
+     *
+     * @return the amino acids covered by fragment ions
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading a file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an error
+     * occurred while reading an mzML file
+     */
+    public FragmentCoverage getFragmentCoverage(String spectrumKey, PeptideAssumption peptideAssumption, IdentificationParameters identificationParameters,
+            PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, SQLException, ClassNotFoundException, MzMLUnmarshallerException {
+
+        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
+        int currentGeneration = getGeneration(annotationPreferences);
+
+        Peptide peptide = peptideAssumption.getPeptide();
+        String key = spectrumKey + "_" + peptide.getKey() + "_" + peptideAssumption.getIdentificationCharge().value;
+        Segment segment = getSegment(key);
+        CacheEntry cacheEntry = segment.get(key);
+        if (cacheEntry != null && cacheEntry.generation == currentGeneration) {
+            nHits.incrementAndGet();
+            return cacheEntry.fragmentCoverage;
+        }
+        nMisses.incrementAndGet();
+
+        MSnSpectrum spectrum = (MSnSpectrum) SpectrumFactory.getInstance().getSpectrum(spectrumKey);
+        SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrumKey, peptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+        HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = peptideSpectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, spectrum, peptide);
+        FragmentCoverage fragmentCoverage = new FragmentCoverage(coveredAminoAcids);
+
+        if (currentGeneration == generation) {
+            segment.put(key, new CacheEntry(currentGeneration, fragmentCoverage));
+        }
+        return fragmentCoverage;
+    }
+
+    /**
+     * Returns the generation of the given annotation settings. A new
+     * generation is started if the settings differ from the ones of the
+     * current generation. The ion types and neutral losses are only compared
+     * when other settings are used.
+     *
+     * @param annotationPreferences the annotation settings
+     *
+     * @return the generation of the annotation settings
+     */
+    private int getGeneration(AnnotationSettings annotationPreferences) {
+        SettingsState state = settingsState;
+        if (state == null || !state.matches(annotationPreferences)) {
+            synchronized (this) {
+                state = settingsState;
+                if (state == null || !state.matches(annotationPreferences)) {
+                    SettingsState newState = new SettingsState(annotationPreferences);
+                    if (state == null || !state.equalsByValue(newState)) {
+                        generation++;
+                        clear();
+                    }
+                    settingsState = newState;
+                }
+                return generation;
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Starts a new generation of annotation settings and empties the cache.
+     * Needs to be called when the ion types or the neutral losses of the
+     * annotation settings are edited in place.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        settingsState = null;
+        clear();
+    }
+
+    /**
+     * Returns the segment where the entry of the given key is stored.
+     *
+     * @param key the key
+     *
+     * @return the segment of the key
+     */
+    private Segment getSegment(String key) {
+        return segments[(key.hashCode() & Integer.MAX_VALUE) % N_SEGMENTS];
+    }
+
+    /**
+     * Returns the maximal number of entries of a segment.
+     *
+     * @param maxSize the maximal number of entries in the cache
+     *
+     * @return the maximal number of entries of a segment
+     */
+    private static int getSegmentSize(int maxSize) {
+        return Math.max(1, (maxSize + N_SEGMENTS - 1) / N_SEGMENTS);
+    }
+
+    /**
+     * Empties the cache, typically when the processing of a spectrum file is
+     * completed.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the maximal number of entries in the cache.
+     *
+     * @return the maximal number of entries in the cache
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximal number of entries in the cache.
+     *
+     * @param maxSize the maximal number of entries in the cache
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        for (Segment segment : segments) {
+            segment.setMaxSize(getSegmentSize(maxSize));
+        }
+    }
+
+    /**
+     * Returns the number of coverages found in the cache since the last reset
+     * of the statistics.
+     *
+     * @return the number of coverages found in the cache
+     */
+    public long getnHits() {
+        return nHits.get();
+    }
+
+    /**
+     * Returns the number of coverages computed since the last reset of the
+     * statistics.
+     *
+     * @return the number of coverages computed
+     */
+    public long getnMisses() {
+        return nMisses.get();
+    }
+
+    /**
+     * Returns the share of coverages found in the cache since the last reset
+     * of the statistics, 0 if no coverage was requested.
+     *
+     * @return the hit rate of the cache
+     */
+    public double getHitRate() {
+        long hits = nHits.get();
+        long total = hits + nMisses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return ((double) hits) / total;
+    }
+
+    /**
+     * Resets the hit and miss counters.
+     */
+    public void resetStatistics() {
+        nHits.set(0);
+        nMisses.set(0);
+    }
+
+    /**
+     * Appends the hit rate of the cache to the report of the waiting handler
+     * and resets the statistics. Nothing is reported if no coverage was
+     * requested.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     */
+    public void reportStatistics(WaitingHandler waitingHandler) {
+        long hits = nHits.getAndSet(0);
+        long misses = nMisses.getAndSet(0);
+        if (waitingHandler != null && hits + misses > 0) {
+            double hitRate = 100.0 * hits / (hits + misses);
+            waitingHandler.appendReport("Fragment coverage cache: " + hits + " hits, " + misses + " annotations computed (" + Util.roundDouble(hitRate, 1) + "% hit rate).", true, true);
+        }
+    }
+
+    /**
+     * An entry of the cache.
+     */
+    private static class CacheEntry {
+
+        /**
+         * The generation of the annotation settings used to compute the
+         * coverage.
+         */
+        private final int generation;
+        /**
+         * The fragment coverage.
+         */
+        private final FragmentCoverage fragmentCoverage;
+
+        /**
+         * Constructor.
+         *
+         * @param generation the generation of the annotation settings used to
+         * compute the coverage
+         * @param fragmentCoverage the fragment coverage
+         */
+        public CacheEntry(int generation, FragmentCoverage fragmentCoverage) {
+            this.generation = generation;
+            this.fragmentCoverage = fragmentCoverage;
+        }
+    }
+
+    /**
+     * Segment of the cache evicting its least recently used entries from the
+     * head of an access ordered map.
+     */
+    private static class Segment {
+
+        /**
+         * The entries indexed by key, from the least to the most recently
+         * used.
+         */
+        private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+        /**
+         * The maximal number of entries in the segment.
+         */
+        private int maxSize;
+
+        /**
+         * Constructor.
+         *
+         * @param maxSize the maximal number of entries in the segment
+         */
+        public Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Returns the entry of the given key and marks it as most recently
+         * used. Null if not in cache.
+         *
+         * @param key the key
+         *
+         * @return the entry
+         */
+        public synchronized CacheEntry get(String key) {
+            return entries.get(key);
+        }
+
+        /**
+         * Adds an entry and removes the least recently used entries if the
+         * segment is full.
+         *
+         * @param key the key
+         * @param cacheEntry the entry
+         */
+        public synchronized void put(String key, CacheEntry cacheEntry) {
+            entries.put(key, cacheEntry);
+            evict();
+        }
+
+        /**
+         * Removes the least recently used entries until the size of the
+         * segment is within the maximal size.
+         */
+        private void evict() {
+            Iterator<String> iterator = entries.keySet().iterator();
+            while (entries.size() > maxSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        /**
+         * Sets the maximal number of entries in the segment.
+         *
+         * @param maxSize the maximal number of entries in the segment
+         */
+        public synchronized void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        /**
+         * Removes all entries.
+         */
+        public synchronized void clear() {
+            entries.clear();
+        }
+
+        /**
+         * Returns the number of entries in the segment.
+         *
+         * @return the number of entries in the segment
+         */
+        public synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The annotation settings of a generation. The fragment ion accuracy, the
+     * high resolution annotation and the intensity limit are copied as they
+     * can be edited in place, the ion types and neutral losses are summarized
+     * in a fingerprint computed once per settings object.
+     */
+    private static class SettingsState {
+
+        /**
+         * The annotation settings.
+         */
+        private final AnnotationSettings annotationSettings;
+        /**
+         * The fragment ion accuracy.
+         */
+        private final double fragmentIonAccuracy;
+        /**
+         * Indicates whether the annotation is high resolution.
+         */
+        private final boolean highResolutionAnnotation;
+        /**
+         * The annotation intensity limit.
+         */
+        private final double intensityLimit;
+        /**
+         * The fingerprint of the ion types and neutral losses.
+         */
+        private final String ionsFingerprint;
+
+        /**
+         * Constructor.
+         *
+         * @param annotationSettings the annotation settings
+         */
+        public SettingsState(AnnotationSettings annotationSettings) {
+            this.annotationSettings = annotationSettings;
+            fragmentIonAccuracy = annotationSettings.getFragmentIonAccuracy();
+            highResolutionAnnotation = annotationSettings.isHighResolutionAnnotation();
+            intensityLimit = annotationSettings.getAnnotationIntensityLimit();
+            ionsFingerprint = getIonsFingerprint(annotationSettings);
+        }
+
+        /**
+         * Indicates whether the given settings are the settings of this
+         * state with the same accuracy, resolution and intensity limit.
+         *
+         * @param otherSettings the annotation settings
+         *
+         * @return a boolean indicating whether the given settings match this
+         * state
+         */
+        public boolean matches(AnnotationSettings otherSettings) {
+            return otherSettings == annotationSettings
+                    && otherSettings.getFragmentIonAccuracy() == fragmentIonAccuracy
+                    && otherSettings.isHighResolutionAnnotation() == highResolutionAnnotation
+                    && otherSettings.getAnnotationIntensityLimit() == intensityLimit;
+        }
+
+        /**
+         * Indicates whether another state has the same settings values.
+         *
+         * @param otherState the other state
+         *
+         * @return a boolean indicating whether the other state has the same
+         * settings values
+         */
+        public boolean equalsByValue(SettingsState otherState) {
+            return fragmentIonAccuracy == otherState.fragmentIonAccuracy
+                    && highResolutionAnnotation == otherState.highResolutionAnnotation
+                    && intensityLimit == otherState.intensityLimit
+                    && ionsFingerprint.equals(otherState.ionsFingerprint);
+        }
+
+        /**
+         * Returns a fingerprint of the ion types and neutral losses of the
+         * annotation settings.
+         *
+         * @param annotationSettings the annotation settings
+         *
+         * @return a fingerprint of the ion types and neutral losses
+         */
+        private static String getIonsFingerprint(AnnotationSettings annotationSettings) {
+            StringBuilder fingerprint = new StringBuilder();
+            TreeMap<Ion.IonType, HashSet<Integer>> ionTypes = new TreeMap<Ion.IonType, HashSet<Integer>>(annotationSettings.getIonTypes());
+            for (Ion.IonType ionType : ionTypes.keySet()) {
+                ArrayList<Integer> subTypes = new ArrayList<Integer>(ionTypes.get(ionType));
+                Collections.sort(subTypes);
+                fingerprint.append(ionType).append(subTypes);
+            }
+            fingerprint.append('_');
+            ArrayList<String> neutralLosses = new ArrayList<String>();
+            for (NeutralLoss neutralLoss : annotationSettings.getNeutralLosses()) {
+                neutralLosses.add(neutralLoss.name);
+            }
+            Collections.sort(neutralLosses);
+            fingerprint.append(neutralLosses);
+            return fingerprint.toString();
+        }
+    }
+
+    /**
+     * The amino acids of a peptide covered by fragment ions stored as
+     * primitive arrays.
+     */
+    public static class FragmentCoverage {
+
+        /**
+         * The indexes of the amino acids covered, sorted in increasing order.
+         */
+        private final int[] aminoAcids;
+        /**
+         * The number of ions covering each amino acid.
+         */
+        private final int[] nIons;
+
+        /**
+         * Constructor.
+         *
+         * @param coveredAminoAcids the fragment ions indexed by amino acid as
+         * returned by the spectrum annotator
+         */
+        public FragmentCoverage(HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids) {
+            aminoAcids = new int[coveredAminoAcids.size()];
+            int i = 0;
+            for (Integer aa : coveredAminoAcids.keySet()) {
+                aminoAcids[i++] = aa;
+            }
+            Arrays.sort(aminoAcids);
+            nIons = new int[aminoAcids.length];
+            for (i = 0; i < aminoAcids.length; i++) {
+                ArrayList<IonMatch> ionMatches = coveredAminoAcids.get(aminoAcids[i]);
+                nIons[i] = ionMatches == null ? 0 : ionMatches.size();
+            }
+        }
+
+        /**
+         * Returns the number of amino acids annotated by the spectrum
+         * annotator.
+         *
+         * @return the number of amino acids annotated
+         */
+        public int getnAminoAcidsAnnotated() {
+            return aminoAcids.length;
+        }
+
+        /**
+         * Returns the number of amino acids covered by at least one ion
+         * between the given indexes.
+         *
+         * @param minIndex the minimal index, inclusive
+         * @param maxIndex the maximal index, inclusive
+         *
+         * @return the number of amino acids covered
+         */
+        public int getnAminoAcidsCovered(int minIndex, int maxIndex) {
+            int nCovered = 0;
+            for (int i = 0; i < aminoAcids.length; i++) {
+                if (aminoAcids[i] >= minIndex && aminoAcids[i] <= maxIndex && nIons[i] > 0) {
+                    nCovered++;
+                }
+            }
+            return nCovered;
+        }
+
+        /**
+         * Returns the number of ions covering the given amino acid.
+         *
+         * @param aa the index of the amino acid
+         *
+         * @return the number of ions covering the amino acid
+         */
+        public int getnIons(int aa) {
+            int index = Arrays.binarySearch(aminoAcids, aa);
+            return index < 0 ? 0 : nIons[index];
+        }
+    }
+}
@@ -116,6 +116,12 @@ public class CpsParent extends UserPreferencesParent {
      * The currently loaded cps file.
      */
     protected File cpsFile = null;
+    /**
+     * If true, the files already extracted from the cps file in the database
+     * folder and not modified since are not extracted again when loading the
+     * project.
+     */
+    protected boolean reuseExtractedFiles = false;
     /**
      * The name of the table to use to store PeptideShaker experiment settings.
      */
@@ -202,7 +208,7 @@ public class CpsParent extends UserPreferencesParent {
      */
     public void loadCpsFile(File dbFolder, WaitingHandler waitingHandler) throws IOException, ClassNotFoundException, SQLException, InterruptedException, ArchiveException {
 
-        CpsFileImporter cpsFileImporter = new CpsFileImporter(cpsFile, dbFolder, waitingHandler);
+        CpsFileImporter cpsFileImporter = new CpsFileImporter(cpsFile, dbFolder, waitingHandler, reuseExtractedFiles);
 
         // close any open connection to an identification database
         if (identification != null) {
@@ -801,6 +807,30 @@ public class CpsParent extends UserPreferencesParent {
         this.dbFolder = dbFolder;
     }
 
+    /**
+     * Indicates whether the files already extracted from the cps file in the
+     * database folder and not modified since should be reused when loading the
+     * project.
+     *
+     * @return a boolean indicating whether the extracted files should be
+     * reused
+     */
+    public boolean isReuseExtractedFiles() {
+        return reuseExtractedFiles;
+    }
+
+    /**
+     * Sets whether the files already extracted from the cps file in the
+     * database folder and not modified since should be reused when loading the
+     * project.
+     *
+     * @param reuseExtractedFiles a boolean indicating whether the extracted
+     * files should be reused
+     */
+    public void setReuseExtractedFiles(boolean reuseExtractedFiles) {
+        this.reuseExtractedFiles = reuseExtractedFiles;
+    }
+
     /**
      * Returns an extended HTML project report.
      *
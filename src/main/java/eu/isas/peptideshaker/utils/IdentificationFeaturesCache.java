@@ -1,8 +1,14 @@
 package eu.isas.peptideshaker.utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class caches the identification features calculated by the
@@ -109,33 +115,35 @@ public class IdentificationFeaturesCache implements Serializable {
         containsEnzymaticPeptides;
     }
     /**
-     * The number of values kept in memory for small objects.
+     * The default estimated memory in bytes allowed for every type of small
+     * objects.
      */
-    private final int smallObjectsCacheSize = 1000000;
+    public static final long DEFAULT_SMALL_OBJECTS_MEMORY = 16L * 1024 * 1024;
     /**
-     * The number of values kept in memory for big objects.
+     * The default estimated memory in bytes allowed for every type of big
+     * objects.
      */
-    private final int bigObjectsCacheSize = 1000;
+    public static final long DEFAULT_BIG_OBJECTS_MEMORY = 32L * 1024 * 1024;
     /**
-     * Separator used to concatenate strings.
+     * Estimated memory in bytes used by an entry of the cache excluding its
+     * key and value.
      */
-    private static final String cacheSeparator = "_ccs_";
+    private static final long ENTRY_OVERHEAD = 64;
     /**
-     * The cached protein matches for small objects.
+     * Estimated memory in bytes used by an object header.
      */
-    private ArrayList<String> smallObjectsInCache = new ArrayList<String>();
+    private static final long OBJECT_OVERHEAD = 16;
     /**
-     * The cached protein matches for big objects.
+     * Estimated memory in bytes used by an entry of a map stored in the
+     * cache.
      */
-    private ArrayList<String> bigObjectsInCache = new ArrayList<String>();
+    private static final long MAP_ENTRY_SIZE = 64;
     /**
-     * Mapping of the stored big objects.
+     * The least recently used caches of the different types of objects. The
+     * map is filled upon creation and not modified afterwards, every cache
+     * has its own lock.
      */
-    private HashMap<ObjectType, HashMap<String, Object>> bigObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
-    /**
-     * Mapping of the stored small objects.
-     */
-    private HashMap<ObjectType, HashMap<String, Object>> smallObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+    private HashMap<ObjectType, ObjectTypeCache> objectTypeCaches = createObjectTypeCaches();
     /**
      * The protein list.
      */
@@ -188,124 +196,28 @@ public class IdentificationFeaturesCache implements Serializable {
      *
      * @param type the object type
      */
-    public synchronized void removeObjects(ObjectType type) {
+    public void removeObjects(ObjectType type) {
         if (!readOnly) {
-            String typeKey = getTypeAsString(type);
-            ArrayList<String> toRemove = new ArrayList<String>();
-
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    bigObjectsCache.remove(type);
-                    for (String key : bigObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        bigObjectsInCache.remove(key);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    smallObjectsCache.remove(type);
-                    for (String key : smallObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        smallObjectsInCache.remove(key);
-                    }
-                    break;
+            ObjectTypeCache cache = objectTypeCaches.get(type);
+            if (cache != null) {
+                cache.clear();
             }
         }
     }
 
     /**
-     * Adds an object in the cache.
+     * Adds an object in the cache. If the memory allowed for this type of
+     * object is exceeded, the least recently used objects are removed.
      *
      * @param type the type of the object
      * @param objectKey the object key
      * @param object the object to store
      */
-    public synchronized void addObject(ObjectType type, String objectKey, Object object) {
+    public void addObject(ObjectType type, String objectKey, Object object) {
         if (!readOnly) {
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    if (!bigObjectsCache.containsKey(type)) {
-                        bigObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    Object oldValue = bigObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) { // don't add if the object was already in the cache
-                        bigObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (bigObjectsInCache.size() >= bigObjectsCacheSize && !bigObjectsInCache.isEmpty()) {
-                        String firstObjectKey = bigObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = bigObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                bigObjectsCache.remove(oldType);
-                            }
-                        }
-                        bigObjectsInCache.remove(0);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    if (!smallObjectsCache.containsKey(type)) {
-                        smallObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    oldValue = smallObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) {
-                        smallObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (smallObjectsInCache.size() >= smallObjectsCacheSize && !smallObjectsInCache.isEmpty()) {
-                        String firstObjectKey = smallObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = smallObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                smallObjectsCache.remove(oldType);
-                            }
-                        }
-                        smallObjectsInCache.remove(0);
-                    }
-                    break;
+            ObjectTypeCache cache = objectTypeCaches.get(type);
+            if (cache != null) {
+                cache.put(objectKey, object);
             }
         }
     }
@@ -318,34 +230,120 @@ public class IdentificationFeaturesCache implements Serializable {
      * @return the desired object
      */
     public Object getObject(ObjectType type, String objectKey) {
-        switch (type) {
-            case coverable_AA_p:
-            case AA_coverage:
-            case tryptic_protein:
-                HashMap<String, Object> cacheForType = bigObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            case sequence_coverage:
-            case sequence_validation_coverage:
-            case expected_coverage:
-            case spectrum_counting:
-            case number_of_spectra:
-            case number_of_validated_spectra:
-            case number_of_validated_peptides:
-            case number_of_confident_spectra:
-            case number_of_confident_peptides:
-            case max_psm_mz_for_peptides:
-            case unique_peptides:
-            case containsEnzymaticPeptides:
-                cacheForType = smallObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            default:
-                return null;
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            return cache.get(objectKey);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of times an object of the given type was found in
+     * the cache since the cache was created or loaded.
+     *
+     * @param type the type of object
+     *
+     * @return the number of cache hits
+     */
+    public long getnHits(ObjectType type) {
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            return cache.getnHits();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of times an object of the given type was not found
+     * in the cache since the cache was created or loaded.
+     *
+     * @param type the type of object
+     *
+     * @return the number of cache misses
+     */
+    public long getnMisses(ObjectType type) {
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            return cache.getnMisses();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of objects of the given type removed from the cache
+     * to free memory since the cache was created or loaded.
+     *
+     * @param type the type of object
+     *
+     * @return the number of evictions
+     */
+    public long getnEvictions(ObjectType type) {
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            return cache.getnEvictions();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of objects of the given type in the cache.
+     *
+     * @param type the type of object
+     *
+     * @return the number of objects of the given type in the cache
+     */
+    public int getnObjects(ObjectType type) {
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            return cache.size();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the estimated memory in bytes used by the objects of the given
+     * type.
+     *
+     * @param type the type of object
+     *
+     * @return the estimated memory used in bytes
+     */
+    public long getMemoryUsed(ObjectType type) {
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            return cache.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the estimated memory in bytes allowed for the objects of the
+     * given type. 0 if this type of object is not cached.
+     *
+     * @param type the type of object
+     *
+     * @return the estimated memory allowed in bytes
+     */
+    public long getMaxMemory(ObjectType type) {
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            return cache.getMaxMemory();
+        }
+        return 0;
+    }
+
+    /**
+     * Sets the estimated memory in bytes allowed for the objects of the given
+     * type. Objects are removed from the cache if needed. Types of object
+     * which are not cached are ignored.
+     *
+     * @param type the type of object
+     * @param maxMemory the estimated memory allowed in bytes
+     */
+    public void setMaxMemory(ObjectType type, long maxMemory) {
+        ObjectTypeCache cache = objectTypeCaches.get(type);
+        if (cache != null) {
+            cache.setMaxMemory(maxMemory);
         }
     }
 
@@ -535,118 +533,77 @@ public class IdentificationFeaturesCache implements Serializable {
     }
 
     /**
-     * Convenience method returning a string as key for the object of the given
-     * type identified by the given key.
+     * Creates the caches of the different types of objects.
      *
-     * @param type the type of object
-     * @param objectKey the key of the object
-     * @return the key to be used in cache
+     * @return the caches of the different types of objects
      */
-    private String getCacheKey(ObjectType type, String objectKey) {
-        return getTypeAsString(type) + cacheSeparator + objectKey;
-    }
-
-    /**
-     * Returns the object type as string.
-     *
-     * @param type the type of object
-     * @return the corresponding key
-     */
-    private String getTypeAsString(ObjectType type) {
-        switch (type) {
-            case coverable_AA_p:
-                return "coverable_AA_p";
-            case AA_coverage:
-                return "AA_coverage";
-            case sequence_coverage:
-                return "sequence_coverage";
-            case sequence_validation_coverage:
-                return "sequence_validation_coverage";
-            case expected_coverage:
-                return "expected_coverage";
-            case spectrum_counting:
-                return "spectrum_counting";
-            case number_of_spectra:
-                return "#spectra";
-            case number_of_validated_spectra:
-                return "#validated_spectra";
-            case number_of_validated_peptides:
-                return "#validated_peptides";
-            case number_of_confident_spectra:
-                return "#confident_spectra";
-            case number_of_confident_peptides:
-                return "#confident_peptides";
-            case max_psm_mz_for_peptides:
-                return "max_psm_mz_for_peptides";
-            case tryptic_protein:
-                return "tryptic_protein";
-            case unique_peptides:
-                return "unique_peptides";
-            case containsEnzymaticPeptides:
-                return "contains_enzymatic_peptides";
-            default:
-                return "default";
+    private static HashMap<ObjectType, ObjectTypeCache> createObjectTypeCaches() {
+        HashMap<ObjectType, ObjectTypeCache> result = new HashMap<ObjectType, ObjectTypeCache>(ObjectType.values().length);
+        for (ObjectType type : ObjectType.values()) {
+            switch (type) {
+                case coverable_AA_p:
+                case AA_coverage:
+                case tryptic_protein:
+                    result.put(type, new ObjectTypeCache(DEFAULT_BIG_OBJECTS_MEMORY));
+                    break;
+                case sequence_coverage:
+                case sequence_validation_coverage:
+                case expected_coverage:
+                case spectrum_counting:
+                case number_of_spectra:
+                case number_of_validated_spectra:
+                case number_of_validated_peptides:
+                case number_of_confident_spectra:
+                case number_of_confident_peptides:
+                case max_psm_mz_for_peptides:
+                case unique_peptides:
+                case containsEnzymaticPeptides:
+                    result.put(type, new ObjectTypeCache(DEFAULT_SMALL_OBJECTS_MEMORY));
+                    break;
+            }
         }
+        return result;
     }
 
     /**
-     * Convenience method returning the type of object base on the objects cache
-     * key.
-     *
-     * @param cacheKey the object cache key
-     * @return the type of object
-     */
-    private ObjectType getType(String cacheKey) {
-        String objectTypeAsString = cacheKey.split(cacheSeparator)[0];
-        if (objectTypeAsString.equals("coverable_AA_p")) {
-            return ObjectType.coverable_AA_p;
-        } else if (objectTypeAsString.equals("AA_coverage")) {
-            return ObjectType.AA_coverage;
-        } else if (objectTypeAsString.equals("sequence_coverage")) {
-            return ObjectType.sequence_coverage;
-        } else if (objectTypeAsString.equals("sequence_validation_coverage")) {
-            return ObjectType.sequence_validation_coverage;
-        } else if (objectTypeAsString.equals("expected_coverage")) {
-            return ObjectType.expected_coverage;
-        } else if (objectTypeAsString.equals("spectrum_counting")) {
-            return ObjectType.spectrum_counting;
-        } else if (objectTypeAsString.equals("#spectra")) {
-            return ObjectType.number_of_spectra;
-        } else if (objectTypeAsString.equals("#validated_spectra")) {
-            return ObjectType.number_of_validated_spectra;
-        } else if (objectTypeAsString.equals("#validated_peptides")) {
-            return ObjectType.number_of_validated_peptides;
-        } else if (objectTypeAsString.equals("#confident_spectra")) {
-            return ObjectType.number_of_confident_spectra;
-        } else if (objectTypeAsString.equals("#confident_peptides")) {
-            return ObjectType.number_of_confident_peptides;
-        } else if (objectTypeAsString.equals("max_psm_mz_for_peptides")) {
-            return ObjectType.max_psm_mz_for_peptides;
-        } else if (objectTypeAsString.equals("tryptic_protein")) {
-            return ObjectType.tryptic_protein;
-        } else if (objectTypeAsString.equals("unique_peptides")) {
-            return ObjectType.unique_peptides;
-        } else if (objectTypeAsString.equals("contains_enzymatic_peptides")) { 
-            return ObjectType.containsEnzymaticPeptides;
+     * Returns the estimated memory in bytes used by an entry of the cache.
+     *
+     * @param objectKey the key of the object
+     * @param object the object
+     *
+     * @return the estimated memory used by the entry in bytes
+     */
+    private static long getEntrySize(String objectKey, Object object) {
+        long size = ENTRY_OVERHEAD + OBJECT_OVERHEAD + 2L * objectKey.length();
+        if (object instanceof double[]) {
+            size += OBJECT_OVERHEAD + 8L * ((double[]) object).length;
+        } else if (object instanceof int[]) {
+            size += OBJECT_OVERHEAD + 4L * ((int[]) object).length;
+        } else if (object instanceof Map) {
+            size += OBJECT_OVERHEAD + MAP_ENTRY_SIZE * ((Map) object).size();
+        } else if (object instanceof Collection) {
+            size += OBJECT_OVERHEAD + OBJECT_OVERHEAD * ((Collection) object).size();
         } else {
-            return null;
+            size += OBJECT_OVERHEAD;
         }
+        return size;
     }
 
     /**
-     * Convenience method returning the object key based on the cache key.
+     * Reads the cache from a stream. Projects saved with the former cache
+     * implementation get empty caches, the features are then recomputed on
+     * demand.
+     *
+     * @param in the stream to read from
      *
-     * @param cacheKey the cache key
-     * @return the object key
+     * @throws IOException thrown if an IOException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
      */
-    private String getObjectKey(String cacheKey) {
-        StringBuilder buf = new StringBuilder();
-        String escapedString = java.util.regex.Pattern.quote(cacheKey);
-        String[] splittedKey = cacheKey.split(escapedString);
-        for (int i = 1; i < splittedKey.length; i++) {
-            buf.append(splittedKey[i]);
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (objectTypeCaches == null) {
+            objectTypeCaches = createObjectTypeCaches();
         }
-        return buf.toString();
     }
 
     /**
@@ -658,4 +615,172 @@ public class IdentificationFeaturesCache implements Serializable {
     public void setReadOnly(boolean readOnly) {
         this.readOnly = readOnly;
     }
+
+    /**
+     * Least recently used cache of the objects of a given type bounded by
+     * the estimated memory used by its entries. Eviction is done in constant
+     * time from the head of an access ordered map.
+     */
+    private static class ObjectTypeCache implements Serializable {
+
+        /**
+         * Serial number for backward compatibility.
+         */
+        static final long serialVersionUID = 4386120485930271584L;
+        /**
+         * The objects indexed by key, from the least to the most recently
+         * used.
+         */
+        private LinkedHashMap<String, Object> objects = new LinkedHashMap<String, Object>(16, 0.75f, true);
+        /**
+         * The estimated memory allowed in bytes.
+         */
+        private long maxMemory;
+        /**
+         * The estimated memory used in bytes.
+         */
+        private long memoryUsed = 0;
+        /**
+         * The number of cache hits.
+         */
+        private transient long nHits = 0;
+        /**
+         * The number of cache misses.
+         */
+        private transient long nMisses = 0;
+        /**
+         * The number of objects removed to free memory.
+         */
+        private transient long nEvictions = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param maxMemory the estimated memory allowed in bytes
+         */
+        public ObjectTypeCache(long maxMemory) {
+            this.maxMemory = maxMemory;
+        }
+
+        /**
+         * Returns the object of the given key and marks it as most recently
+         * used. Null if not in cache.
+         *
+         * @param objectKey the key of the object
+         *
+         * @return the object
+         */
+        public synchronized Object get(String objectKey) {
+            Object object = objects.get(objectKey);
+            if (object != null) {
+                nHits++;
+            } else {
+                nMisses++;
+            }
+            return object;
+        }
+
+        /**
+         * Adds an object to the cache and removes the least recently used
+         * objects if the memory allowed is exceeded.
+         *
+         * @param objectKey the key of the object
+         * @param object the object
+         */
+        public synchronized void put(String objectKey, Object object) {
+            Object oldObject = objects.put(objectKey, object);
+            if (oldObject != null) {
+                memoryUsed -= getEntrySize(objectKey, oldObject);
+            }
+            memoryUsed += getEntrySize(objectKey, object);
+            freeMemory();
+        }
+
+        /**
+         * Removes the least recently used objects until the memory used is
+         * within the allowed memory.
+         */
+        private void freeMemory() {
+            Iterator<Map.Entry<String, Object>> iterator = objects.entrySet().iterator();
+            while (memoryUsed > maxMemory && iterator.hasNext()) {
+                Map.Entry<String, Object> eldest = iterator.next();
+                memoryUsed -= getEntrySize(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+                nEvictions++;
+            }
+        }
+
+        /**
+         * Removes all objects from the cache.
+         */
+        public synchronized void clear() {
+            objects.clear();
+            memoryUsed = 0;
+        }
+
+        /**
+         * Returns the number of objects in cache.
+         *
+         * @return the number of objects in cache
+         */
+        public synchronized int size() {
+            return objects.size();
+        }
+
+        /**
+         * Returns the estimated memory used in bytes.
+         *
+         * @return the estimated memory used in bytes
+         */
+        public synchronized long getMemoryUsed() {
+            return memoryUsed;
+        }
+
+        /**
+         * Returns the estimated memory allowed in bytes.
+         *
+         * @return the estimated memory allowed in bytes
+         */
+        public synchronized long getMaxMemory() {
+            return maxMemory;
+        }
+
+        /**
+         * Sets the estimated memory allowed in bytes and removes objects if
+         * needed.
+         *
+         * @param maxMemory the estimated memory allowed in bytes
+         */
+        public synchronized void setMaxMemory(long maxMemory) {
+            this.maxMemory = maxMemory;
+            freeMemory();
+        }
+
+        /**
+         * Returns the number of cache hits.
+         *
+         * @return the number of cache hits
+         */
+        public synchronized long getnHits() {
+            return nHits;
+        }
+
+        /**
+         * Returns the number of cache misses.
+         *
+         * @return the number of cache misses
+         */
+        public synchronized long getnMisses() {
+            return nMisses;
+        }
+
+        /**
+         * Returns the number of objects removed to free memory.
+         *
+         * @return the number of objects removed to free memory
+         */
+        public synchronized long getnEvictions() {
+            return nEvictions;
+        }
+    }
 }
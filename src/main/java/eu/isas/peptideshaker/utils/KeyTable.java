@@ -0,0 +1,188 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Table of keys referenced by integer ids. Every key is stored once and
+ * collections of keys can be stored as arrays of ids. Keys are serialized in
+ * the order of their ids with the prefix shared with the previous key
+ * encoded as a length, which is compact for spectrum keys starting with the
+ * spectrum file name. The index from key to id is rebuilt on demand and can
+ * be released once the collections are built.
+ *
+ * @author Marc Vaudel
+ */
+public class KeyTable implements Serializable {
+
+    /**
+     * Serial number for backward compatibility.
+     */
+    static final long serialVersionUID = -3268719843270147389L;
+    /**
+     * The keys indexed by id.
+     */
+    private transient ArrayList<String> keys = new ArrayList<String>();
+    /**
+     * The ids indexed by key, null when released.
+     */
+    private transient HashMap<String, Integer> ids = null;
+
+    /**
+     * Constructor.
+     */
+    public KeyTable() {
+    }
+
+    /**
+     * Returns the id of a key. The key is added to the table if not present.
+     *
+     * @param key the key
+     *
+     * @return the id of the key
+     */
+    public synchronized int getId(String key) {
+        if (ids == null) {
+            buildIndex();
+        }
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = keys.size();
+            keys.add(key);
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the ids of the given keys. The keys are added to the table if
+     * not present.
+     *
+     * @param keyCollection the keys
+     *
+     * @return the ids of the keys in the iteration order of the collection
+     */
+    public synchronized int[] getIds(Collection<String> keyCollection) {
+        int[] result = new int[keyCollection.size()];
+        int i = 0;
+        for (String key : keyCollection) {
+            result[i++] = getId(key);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the key of the given id.
+     *
+     * @param id the id
+     *
+     * @return the key
+     */
+    public synchronized String getKey(int id) {
+        return keys.get(id);
+    }
+
+    /**
+     * Returns the keys of the given ids.
+     *
+     * @param keyIds the ids
+     *
+     * @return the keys in the order of the ids
+     */
+    public synchronized ArrayList<String> getKeys(int[] keyIds) {
+        ArrayList<String> result = new ArrayList<String>(keyIds.length);
+        for (int id : keyIds) {
+            result.add(keys.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of keys in the table.
+     *
+     * @return the number of keys in the table
+     */
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * Releases the index from key to id. The index is rebuilt when a key is
+     * added.
+     */
+    public synchronized void releaseIndex() {
+        ids = null;
+        keys.trimToSize();
+    }
+
+    /**
+     * Empties the table.
+     */
+    public synchronized void clear() {
+        keys = new ArrayList<String>();
+        ids = null;
+    }
+
+    /**
+     * Builds the index from key to id.
+     */
+    private void buildIndex() {
+        ids = new HashMap<String, Integer>(Math.max(16, 2 * keys.size()));
+        for (int i = 0; i < keys.size(); i++) {
+            ids.put(keys.get(i), i);
+        }
+    }
+
+    /**
+     * Writes the keys, every key is written as the length of the prefix shared
+     * with the previous key followed by the remaining characters.
+     *
+     * @param out the stream where to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the stream
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(keys.size());
+        String previousKey = "";
+        for (String key : keys) {
+            int maxPrefix = Math.min(Math.min(previousKey.length(), key.length()), 65535);
+            int prefix = 0;
+            while (prefix < maxPrefix && previousKey.charAt(prefix) == key.charAt(prefix)) {
+                prefix++;
+            }
+            out.writeShort(prefix);
+            out.writeUTF(key.substring(prefix));
+            previousKey = key;
+        }
+    }
+
+    /**
+     * Reads the keys.
+     *
+     * @param in the stream to read from
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading from the stream
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int size = in.readInt();
+        keys = new ArrayList<String>(size);
+        String previousKey = "";
+        for (int i = 0; i < size; i++) {
+            int prefix = in.readUnsignedShort();
+            String key = previousKey.substring(0, prefix) + in.readUTF();
+            keys.add(key);
+            previousKey = key;
+        }
+    }
+}
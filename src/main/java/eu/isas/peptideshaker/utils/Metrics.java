@@ -1,10 +1,13 @@
 package eu.isas.peptideshaker.utils;
 
 import com.compomics.util.math.statistics.distributions.NonSymmetricalNormalDistribution;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 /**
  * This class contains metrics from the dataset for later use.
@@ -63,6 +66,11 @@ public class Metrics implements Serializable {
      * The ordered list of protein keys as estimated during the import process.
      */
     private ArrayList<String> proteinKeys;
+    /**
+     * The table of the spectrum keys referenced by the grouped spectrum keys
+     * and the fraction PSM matches.
+     */
+    private KeyTable spectrumKeyTable;
     /**
      * The max protein key length.
      */
@@ -80,10 +88,15 @@ public class Metrics implements Serializable {
      */
     private ArrayList<String> foundModifications = null;
     /**
-     * The PSM matches for each fraction for each peptide. Key: 'fraction
-     * name'_'peptide key'. Values: arraylist of spectrum keys.
+     * The PSM matches for each fraction for each peptide of projects saved
+     * with older versions, null otherwise.
      */
     private HashMap<String, ArrayList<String>> fractionPsmMatches;
+    /**
+     * The PSM matches for each fraction for each peptide. Key: 'fraction
+     * name'_'peptide key'. Values: ids of the spectrum keys.
+     */
+    private HashMap<String, int[]> fractionPsmMatchesIds;
     /**
      * The total number of peptides per fraction.
      */
@@ -113,10 +126,15 @@ public class Metrics implements Serializable {
      */
     private NonSymmetricalNormalDistribution peptideLengthDistribution = null;
     /**
-     * Map of the spectrum keys grouped per peptide. Spectrum file name &gt;
-     * list of keys.
+     * Map of the spectrum keys grouped per peptide of projects saved with
+     * older versions, null otherwise.
      */
     private HashMap<String, ArrayList<String>> orderedSpectrumKeys;
+    /**
+     * Map of the spectrum keys grouped per peptide. Spectrum file name &gt;
+     * ids of the keys.
+     */
+    private HashMap<String, int[]> orderedSpectrumKeyIds;
     /**
      * The sum of all spectrum counting indexes.
      */
@@ -413,7 +431,7 @@ public class Metrics implements Serializable {
      * @param fractionPsmMatches the fraction PSM matches
      */
     public void setFractionPsmMatches(HashMap<String, ArrayList<String>> fractionPsmMatches) {
-        this.fractionPsmMatches = fractionPsmMatches;
+        rebuildSpectrumKeyTable(getOrderedSpectrumKeys(), fractionPsmMatches);
     }
 
     /**
@@ -423,13 +441,33 @@ public class Metrics implements Serializable {
      * @return he list of fraction PSM matches
      */
     public HashMap<String, ArrayList<String>> getFractionPsmMatches() {
-        if (fractionPsmMatches != null) {
-            return fractionPsmMatches;
+        if (fractionPsmMatchesIds != null) {
+            return getSpectrumKeys(fractionPsmMatchesIds);
         } else {
             return new HashMap<String, ArrayList<String>>();
         }
     }
 
+    /**
+     * Returns the spectrum keys of the PSMs of a peptide in a fraction, null
+     * if none.
+     *
+     * @param peptideFractionKey the key of the peptide in the fraction:
+     * 'fraction name'_'peptide key'
+     *
+     * @return the spectrum keys of the PSMs of the peptide in the fraction
+     */
+    public ArrayList<String> getFractionPsmMatches(String peptideFractionKey) {
+        if (fractionPsmMatchesIds == null) {
+            return null;
+        }
+        int[] keyIds = fractionPsmMatchesIds.get(peptideFractionKey);
+        if (keyIds == null) {
+            return null;
+        }
+        return spectrumKeyTable.getKeys(keyIds);
+    }
+
     /**
      * Set the total number of peptides per fraction.
      *
@@ -576,7 +614,29 @@ public class Metrics implements Serializable {
      * @return the grouped spectrum keys
      */
     public HashMap<String, ArrayList<String>> getOrderedSpectrumKeys() {
-        return orderedSpectrumKeys;
+        if (orderedSpectrumKeyIds == null) {
+            return null;
+        }
+        return getSpectrumKeys(orderedSpectrumKeyIds);
+    }
+
+    /**
+     * Returns the spectrum keys of a spectrum file grouped per peptide, null
+     * if not set.
+     *
+     * @param spectrumFileName the name of the spectrum file
+     *
+     * @return the grouped spectrum keys of the spectrum file
+     */
+    public ArrayList<String> getOrderedSpectrumKeys(String spectrumFileName) {
+        if (orderedSpectrumKeyIds == null) {
+            return null;
+        }
+        int[] keyIds = orderedSpectrumKeyIds.get(spectrumFileName);
+        if (keyIds == null) {
+            return null;
+        }
+        return spectrumKeyTable.getKeys(keyIds);
     }
 
     /**
@@ -585,17 +645,88 @@ public class Metrics implements Serializable {
      * @param orderedSpectrumKeys the grouped spectrum keys
      */
     public void setOrderedSpectrumKeys(HashMap<String, ArrayList<String>> orderedSpectrumKeys) {
-        this.orderedSpectrumKeys = orderedSpectrumKeys;
+        rebuildSpectrumKeyTable(orderedSpectrumKeys, getFractionPsmMatches());
     }
 
     /**
-     * Removes the grouped spectrum keys from the Metrics.
+     * Removes the grouped spectrum keys from the Metrics. The spectrum keys
+     * which are not referenced by the fraction PSM matches are removed from
+     * the spectrum key table.
      */
     public void clearSpectrumKeys() {
-        if (orderedSpectrumKeys != null) {
-            orderedSpectrumKeys.clear();
+        rebuildSpectrumKeyTable(null, getFractionPsmMatches());
+    }
+
+    /**
+     * Replaces the spectrum key table by a new table containing only the keys
+     * of the given grouped spectrum keys and fraction PSM matches.
+     *
+     * @param orderedSpectrumKeys the grouped spectrum keys, can be null
+     * @param fractionPsmMatches the fraction PSM matches, can be null
+     */
+    private void rebuildSpectrumKeyTable(HashMap<String, ArrayList<String>> orderedSpectrumKeys, HashMap<String, ArrayList<String>> fractionPsmMatches) {
+        spectrumKeyTable = null;
+        orderedSpectrumKeyIds = getSpectrumKeyIds(orderedSpectrumKeys);
+        fractionPsmMatchesIds = getSpectrumKeyIds(fractionPsmMatches);
+    }
+
+    /**
+     * Converts a map of spectrum keys into a map of ids in the spectrum key
+     * table.
+     *
+     * @param spectrumKeysMap the map of spectrum keys, can be null
+     *
+     * @return the map of ids, null if the map of spectrum keys is null
+     */
+    private HashMap<String, int[]> getSpectrumKeyIds(HashMap<String, ArrayList<String>> spectrumKeysMap) {
+        if (spectrumKeysMap == null) {
+            return null;
+        }
+        if (spectrumKeyTable == null) {
+            spectrumKeyTable = new KeyTable();
+        }
+        HashMap<String, int[]> result = new HashMap<String, int[]>(spectrumKeysMap.size());
+        for (Map.Entry<String, ArrayList<String>> entry : spectrumKeysMap.entrySet()) {
+            result.put(entry.getKey(), spectrumKeyTable.getIds(entry.getValue()));
+        }
+        spectrumKeyTable.releaseIndex();
+        return result;
+    }
+
+    /**
+     * Converts a map of ids in the spectrum key table into a map of spectrum
+     * keys.
+     *
+     * @param spectrumKeyIdsMap the map of ids
+     *
+     * @return the map of spectrum keys
+     */
+    private HashMap<String, ArrayList<String>> getSpectrumKeys(HashMap<String, int[]> spectrumKeyIdsMap) {
+        HashMap<String, ArrayList<String>> result = new HashMap<String, ArrayList<String>>(spectrumKeyIdsMap.size());
+        for (Map.Entry<String, int[]> entry : spectrumKeyIdsMap.entrySet()) {
+            result.put(entry.getKey(), spectrumKeyTable.getKeys(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the metrics and converts the key collections of projects saved
+     * with older versions.
+     *
+     * @param in the stream to read from
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading from the stream
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (orderedSpectrumKeys != null || fractionPsmMatches != null) {
+            rebuildSpectrumKeyTable(orderedSpectrumKeys, fractionPsmMatches);
+            orderedSpectrumKeys = null;
+            fractionPsmMatches = null;
         }
-        orderedSpectrumKeys = null;
     }
 
     /**
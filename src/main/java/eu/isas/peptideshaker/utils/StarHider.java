@@ -3,11 +3,8 @@ package eu.isas.peptideshaker.utils;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
-import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
-import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
-import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.gui.waiting.waitinghandlers.ProgressDialogX;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.filtering.MatchFilter;
@@ -21,7 +18,10 @@ import java.awt.Toolkit;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -36,6 +36,10 @@ import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
  */
 public class StarHider {
 
+    /**
+     * The number of matches filtered by a thread at a time.
+     */
+    private static final int BATCH_SIZE = 1000;
     /**
      * PeptideShakerGUI instance.
      */
@@ -87,43 +91,131 @@ public class StarHider {
                 try {
 
                     int nThreads = peptideShakerGUI.getProcessingPreferences().getnThreads();
-                    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-
                     Identification identification = peptideShakerGUI.getIdentification();
-                    progressDialog.setPrimaryProgressCounterIndeterminate(false);
-                    progressDialog.setMaxPrimaryProgressCounter(identification.getProteinIdentification().size());
+                    FilterPreferences filterPreferences = peptideShakerGUI.getFilterPreferences();
+
+                    // gather the keys of all matches, the PSMs of a peptide being contiguous
+                    ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+                    ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
+                    identification.loadProteinMatches(proteinKeys, progressDialog, false);
+                    identification.loadPeptideMatches(peptideKeys, progressDialog, false);
+                    HashMap<String, Integer> peptideIndexes = new HashMap<String, Integer>(peptideKeys.size());
+                    ArrayList<String> spectrumKeys = new ArrayList<String>();
+                    int[] peptidePsmsStart = new int[peptideKeys.size() + 1];
+                    for (int i = 0; i < peptideKeys.size() && !progressDialog.isRunCanceled(); i++) {
+                        String peptideKey = peptideKeys.get(i);
+                        peptideIndexes.put(peptideKey, i);
+                        peptidePsmsStart[i] = spectrumKeys.size();
+                        spectrumKeys.addAll(identification.getPeptideMatch(peptideKey).getSpectrumMatchesKeys());
+                    }
+                    peptidePsmsStart[peptideKeys.size()] = spectrumKeys.size();
 
-                    PSParameter psParameter = new PSParameter();
-                    ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-                    parameters.add(psParameter);
-                    ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, progressDialog);
-
-                    ArrayList<StarHiderRunnable> runnables = new ArrayList<StarHiderRunnable>(nThreads);
-                    for (int i = 1; i <= nThreads && !progressDialog.isRunCanceled(); i++) {
-                        StarHiderRunnable starHiderRunnable = new StarHiderRunnable(proteinMatchesIterator, progressDialog, peptideShakerGUI.getExceptionHandler());
-                        pool.submit(starHiderRunnable);
-                        runnables.add(starHiderRunnable);
+                    if (progressDialog.isRunCanceled()) {
+                        return;
                     }
+
+                    // evaluate the filters in bulk, every match is counted by the hide and star passes and when writing back its parameters
+                    int nPasses = 3;
+                    progressDialog.setPrimaryProgressCounterIndeterminate(false);
+                    progressDialog.setMaxPrimaryProgressCounter(nPasses * (proteinKeys.size() + peptideKeys.size() + spectrumKeys.size()));
+                    boolean[] psmHidden = getValidatedMatches(filterPreferences.getPsmHideFilters().values(), spectrumKeys, nThreads);
+                    boolean[] psmStarred = getValidatedMatches(filterPreferences.getPsmStarFilters().values(), spectrumKeys, nThreads);
+                    boolean[] peptideHidden = getValidatedMatches(filterPreferences.getPeptideHideFilters().values(), peptideKeys, nThreads);
+                    boolean[] peptideStarred = getValidatedMatches(filterPreferences.getPeptideStarFilters().values(), peptideKeys, nThreads);
+                    boolean[] proteinHidden = getValidatedMatches(filterPreferences.getProteinHideFilters().values(), proteinKeys, nThreads);
+                    boolean[] proteinStarred = getValidatedMatches(filterPreferences.getProteinStarFilters().values(), proteinKeys, nThreads);
+
                     if (progressDialog.isRunCanceled()) {
-                        pool.shutdownNow();
                         return;
                     }
-                    pool.shutdown();
-                    if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                        throw new InterruptedException("Hiding/Starring matches timed out. Please contact the developers.");
+
+                    // propagate the hidden status: a peptide without visible PSM and a protein without visible peptide are hidden
+                    for (int i = 0; i < peptideKeys.size(); i++) {
+                        if (!peptideHidden[i]) {
+                            boolean psmPassed = false;
+                            for (int j = peptidePsmsStart[i]; j < peptidePsmsStart[i + 1]; j++) {
+                                if (!psmHidden[j]) {
+                                    psmPassed = true;
+                                    break;
+                                }
+                            }
+                            peptideHidden[i] = !psmPassed;
+                        }
+                    }
+                    for (int i = 0; i < proteinKeys.size(); i++) {
+                        if (!proteinHidden[i]) {
+                            boolean peptidePassed = false;
+                            for (String peptideKey : identification.getProteinMatch(proteinKeys.get(i)).getPeptideMatchesKeys()) {
+                                Integer peptideIndex = peptideIndexes.get(peptideKey);
+                                if (peptideIndex != null && !peptideHidden[peptideIndex]) {
+                                    peptidePassed = true;
+                                    break;
+                                }
+                            }
+                            proteinHidden[i] = !peptidePassed;
+                        }
                     }
 
+                    // write back the parameters which changed
+                    PSParameter psParameter = new PSParameter();
+                    identification.loadSpectrumMatchParameters(spectrumKeys, psParameter, progressDialog, false);
+                    for (int i = 0; i < spectrumKeys.size() && !progressDialog.isRunCanceled(); i++) {
+                        String spectrumKey = spectrumKeys.get(i);
+                        psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+                        if (psParameter.isHidden() != psmHidden[i] || psParameter.isStarred() != psmStarred[i]) {
+                            psParameter.setHidden(psmHidden[i]);
+                            psParameter.setStarred(psmStarred[i]);
+                            identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
+                        }
+                        progressDialog.increasePrimaryProgressCounter();
+                    }
+                    identification.loadPeptideMatchParameters(peptideKeys, psParameter, progressDialog, false);
+                    for (int i = 0; i < peptideKeys.size() && !progressDialog.isRunCanceled(); i++) {
+                        String peptideKey = peptideKeys.get(i);
+                        psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+                        if (psParameter.isHidden() != peptideHidden[i] || psParameter.isStarred() != peptideStarred[i]) {
+                            psParameter.setHidden(peptideHidden[i]);
+                            psParameter.setStarred(peptideStarred[i]);
+                            identification.updatePeptideMatchParameter(peptideKey, psParameter);
+                        }
+                        progressDialog.increasePrimaryProgressCounter();
+                    }
+                    identification.loadProteinMatchParameters(proteinKeys, psParameter, progressDialog, false);
                     HashMap<String, ArrayList<Double>> fractionMW = new HashMap<String, ArrayList<Double>>();
-                    for (StarHiderRunnable starHiderRunnable : runnables) {
-                        HashMap<String, ArrayList<Double>> threadFractionMW = starHiderRunnable.getThreadFractionMW();
-                        for (String fraction : threadFractionMW.keySet()) {
-                            ArrayList<Double> mws = fractionMW.get(fraction),
-                                    threadMws = threadFractionMW.get(fraction);
-                            if (mws == null) {
-                                mws = new ArrayList<Double>(threadMws.size());
+                    double confidenceThreshold = peptideShakerGUI.getIdentificationParameters().getFractionSettings().getProteinConfidenceMwPlots();
+                    for (int i = 0; i < proteinKeys.size() && !progressDialog.isRunCanceled(); i++) {
+                        String proteinKey = proteinKeys.get(i);
+                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                        if (psParameter.isHidden() != proteinHidden[i] || psParameter.isStarred() != proteinStarred[i]) {
+                            psParameter.setHidden(proteinHidden[i]);
+                            psParameter.setStarred(proteinStarred[i]);
+                            identification.updateProteinMatchParameter(proteinKey, psParameter);
+                        }
+
+                        // update the observed fractional molecular weights per fraction
+                        ProteinMatch proteinMatch = identification.getProteinMatch(proteinKey);
+                        if (!psParameter.isHidden() && psParameter.getMatchValidationLevel().isValidated() && !proteinMatch.isDecoy()) {
+
+                            Double proteinMW = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
+
+                            for (String fraction : psParameter.getFractions()) {
+
+                                // set the fraction molecular weights
+                                if (psParameter.getFractionConfidence(fraction) > confidenceThreshold) {
+                                    ArrayList<Double> mws = fractionMW.get(fraction);
+                                    if (mws == null) {
+                                        mws = new ArrayList<Double>();
+                                        fractionMW.put(fraction, mws);
+                                    }
+                                    mws.add(proteinMW);
+                                }
                             }
-                            mws.addAll(threadMws);
                         }
+                        progressDialog.increasePrimaryProgressCounter();
+                    }
+
+                    if (progressDialog.isRunCanceled()) {
+                        return;
                     }
 
                     // set the observed fractional molecular weights per fraction
@@ -138,6 +230,57 @@ public class StarHider {
         }.start();
     }
 
+    /**
+     * Evaluates the active filters of a list on all the given matches in
+     * parallel batches. The matches and parameters needed by the filters are
+     * loaded once per batch and every filter is only evaluated on the matches
+     * not validated by a previous filter.
+     *
+     * @param filters the filters
+     * @param matchKeys the keys of the matches
+     * @param nThreads the number of threads to use
+     *
+     * @return an array indicating for every match whether it is validated by
+     * at least one active filter
+     *
+     * @throws InterruptedException thrown whenever a threading error occurs
+     * while processing the matches.
+     */
+    private boolean[] getValidatedMatches(Collection<? extends MatchFilter> filters, ArrayList<String> matchKeys, int nThreads) throws InterruptedException {
+
+        boolean[] validated = new boolean[matchKeys.size()];
+        ArrayList<MatchFilter> activeFilters = new ArrayList<MatchFilter>(filters.size());
+        for (MatchFilter matchFilter : filters) {
+            if (matchFilter.isActive()) {
+                activeFilters.add(matchFilter);
+            }
+        }
+        if (activeFilters.isEmpty()) {
+            for (int i = 0; i < matchKeys.size(); i++) {
+                progressDialog.increasePrimaryProgressCounter();
+            }
+            return validated;
+        }
+
+        ConcurrentLinkedQueue<Integer> batchesStart = new ConcurrentLinkedQueue<Integer>();
+        for (int i = 0; i < matchKeys.size(); i += BATCH_SIZE) {
+            batchesStart.add(i);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 1; i <= nThreads && !progressDialog.isRunCanceled(); i++) {
+            pool.submit(new FilterRunnable(batchesStart, activeFilters, matchKeys, validated, progressDialog, peptideShakerGUI.getExceptionHandler()));
+        }
+        if (progressDialog.isRunCanceled()) {
+            pool.shutdownNow();
+            return validated;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Hiding/Starring matches timed out. Please contact the developers.");
+        }
+        return validated;
+    }
+
     /**
      * Stars a protein match.
      *
@@ -888,28 +1031,36 @@ public class StarHider {
     }
 
     /**
-     * Runnable processing matches.
+     * Runnable evaluating filters on batches of matches.
      *
      * @author Marc Vaudel
      */
-    private class StarHiderRunnable implements Runnable {
+    private class FilterRunnable implements Runnable {
 
         /**
-         * The waiting handler.
+         * The index of the first match of the batches to process.
          */
-        private WaitingHandler waitingHandler;
+        private ConcurrentLinkedQueue<Integer> batchesStart;
         /**
-         * Handler for the exceptions.
+         * The active filters.
          */
-        private ExceptionHandler exceptionHandler;
+        private ArrayList<MatchFilter> filters;
         /**
-         * The fraction mw map for this thread
+         * The keys of all matches.
          */
-        private HashMap<String, ArrayList<Double>> threadFractionMW = new HashMap<String, ArrayList<Double>>();
+        private ArrayList<String> matchKeys;
         /**
-         * An iterator for the protein matches
+         * The validation status of all matches.
          */
-        private ProteinMatchesIterator proteinMatchesIterator;
+        private boolean[] validated;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
         /**
          * The spectrum annotator to use for this thread
          */
@@ -918,14 +1069,22 @@ public class StarHider {
         /**
          * Constructor.
          *
-         * @param proteinMatchesIterator an iterator of the protein matches to
-         * inspect
+         * @param batchesStart the index of the first match of the batches to
+         * process
+         * @param filters the active filters
+         * @param matchKeys the keys of all matches
+         * @param validated the array where to set the validation status of
+         * the matches
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          * @param exceptionHandler handler for exceptions
          */
-        public StarHiderRunnable(ProteinMatchesIterator proteinMatchesIterator, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
-            this.proteinMatchesIterator = proteinMatchesIterator;
+        public FilterRunnable(ConcurrentLinkedQueue<Integer> batchesStart, ArrayList<MatchFilter> filters, ArrayList<String> matchKeys, boolean[] validated,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.batchesStart = batchesStart;
+            this.filters = filters;
+            this.matchKeys = matchKeys;
+            this.validated = validated;
             this.waitingHandler = waitingHandler;
             this.exceptionHandler = exceptionHandler;
         }
@@ -935,119 +1094,41 @@ public class StarHider {
             try {
 
                 Identification identification = peptideShakerGUI.getIdentification();
+                Integer start;
 
-                PSParameter psParameter = new PSParameter();
+                while ((start = batchesStart.poll()) != null && !waitingHandler.isRunCanceled()) {
 
-                while (proteinMatchesIterator.hasNext() && !progressDialog.isRunCanceled()) {
+                    int end = Math.min(start + BATCH_SIZE, matchKeys.size());
+                    ArrayList<String> remainingKeys = new ArrayList<String>(matchKeys.subList(start, end));
 
-                    ProteinMatch proteinMatch = proteinMatchesIterator.next();
+                    for (MatchFilter matchFilter : filters) {
 
-                    if (proteinMatch != null) {
-
-                        String proteinKey = proteinMatch.getKey();
-
-                        if (progressDialog.isRunCanceled()) {
+                        if (remainingKeys.isEmpty() || waitingHandler.isRunCanceled()) {
                             break;
                         }
 
-                        boolean peptidePassed = false;
-
-                        for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
-
-                            if (progressDialog.isRunCanceled()) {
-                                break;
-                            }
-
-                            PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
-                            boolean psmpassed = false;
+                        HashSet<String> validatedKeys = new HashSet<String>(matchFilter.getValidatedKeys(remainingKeys, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(),
+                                peptideShakerGUI.getShotgunProtocol(), peptideShakerGUI.getIdentificationParameters(), peptideSpectrumAnnotator, waitingHandler));
 
-                            for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
-
-                                if (progressDialog.isRunCanceled()) {
-                                    break;
-                                }
-
-                                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
-
-                                if (isPsmHidden(spectrumKey, peptideSpectrumAnnotator)) {
-                                    psParameter.setHidden(true);
-                                } else {
-                                    psParameter.setHidden(false);
-                                    psmpassed = true;
-                                }
-
-                                psParameter.setStarred(isPsmStarred(spectrumKey, peptideSpectrumAnnotator));
-                                identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
-                            }
-
-                            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-
-                            if (!psmpassed) {
-                                psParameter.setHidden(true);
-                            } else if (isPeptideHidden(peptideKey)) {
-                                psParameter.setHidden(true);
-                            } else {
-                                psParameter.setHidden(false);
-                                peptidePassed = true;
-                            }
-
-                            psParameter.setStarred(isPeptideStarred(peptideKey));
-
-                            identification.updatePeptideMatchParameter(peptideKey, psParameter);
-                        }
-
-                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-
-                        if (!peptidePassed) {
-                            psParameter.setHidden(true);
-                        } else {
-                            psParameter.setHidden(isProteinHidden(proteinKey));
-                        }
-
-                        psParameter.setStarred(isProteinStarred(proteinKey));
-
-                        identification.updateProteinMatchParameter(proteinKey, psParameter);
-
-                        // update the observed fractional molecular weights per fraction
-                        if (!psParameter.isHidden() && psParameter.getMatchValidationLevel().isValidated() && !proteinMatch.isDecoy()) {
-
-                            Double proteinMW = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
-
-                            for (String fraction : psParameter.getFractions()) {
-
-                                // set the fraction molecular weights
-                                if (psParameter.getFractionConfidence(fraction) > peptideShakerGUI.getIdentificationParameters().getFractionSettings().getProteinConfidenceMwPlots()) {
-                                    if (threadFractionMW.containsKey(fraction)) {
-                                        threadFractionMW.get(fraction).add(proteinMW);
-                                    } else {
-                                        ArrayList<Double> mw = new ArrayList<Double>();
-                                        mw.add(proteinMW);
-                                        threadFractionMW.put(fraction, mw);
-                                    }
+                        if (!validatedKeys.isEmpty()) {
+                            for (int i = start; i < end; i++) {
+                                if (validatedKeys.contains(matchKeys.get(i))) {
+                                    validated[i] = true;
                                 }
                             }
+                            remainingKeys.removeAll(validatedKeys);
                         }
+                    }
 
-                        progressDialog.increasePrimaryProgressCounter();
+                    for (int i = start; i < end; i++) {
+                        waitingHandler.increasePrimaryProgressCounter();
                     }
                 }
 
             } catch (Exception e) {
                 exceptionHandler.catchException(e);
-                progressDialog.setRunCanceled();
+                waitingHandler.setRunCanceled();
             }
         }
-
-        /**
-         * Returns the map of molecular weights per fraction of the non hidden
-         * proteins found in this thread.
-         *
-         * @return the map of molecular weights per fraction of the non hidden
-         * proteins found in this thread
-         */
-        public HashMap<String, ArrayList<Double>> getThreadFractionMW() {
-            return threadFractionMW;
-        }
-
     }
 }
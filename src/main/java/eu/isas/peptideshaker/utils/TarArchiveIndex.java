@@ -0,0 +1,230 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+/**
+ * Index of the entries of a tar archive built from the entry headers only.
+ * Allows extracting single entries without reading the rest of the archive.
+ * When an entry is present multiple times, the last occurrence is indexed as
+ * it is the one obtained upon extraction of the whole archive.
+ *
+ * @author Marc Vaudel
+ */
+public class TarArchiveIndex {
+
+    /**
+     * The size of a tar block.
+     */
+    public static final int BLOCK_SIZE = 512;
+    /**
+     * The archive file.
+     */
+    private File archiveFile;
+    /**
+     * The names of the file entries in order of first appearance.
+     */
+    private ArrayList<String> entryNames = new ArrayList<String>();
+    /**
+     * The position of the data, the size and the last modification of the
+     * file entries indexed by name.
+     */
+    private HashMap<String, long[]> entries = new HashMap<String, long[]>();
+    /**
+     * The position of the end of the last entry, -1 if not found.
+     */
+    private long endOfEntries = -1;
+    /**
+     * Indicates whether the archive could be indexed.
+     */
+    private boolean supported = true;
+
+    /**
+     * Constructor. Indexes the given archive.
+     *
+     * @param archiveFile the archive file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public TarArchiveIndex(File archiveFile) throws IOException {
+        this.archiveFile = archiveFile;
+        RandomAccessFile archive = new RandomAccessFile(archiveFile, "r");
+        try {
+            byte[] header = new byte[BLOCK_SIZE];
+            long length = archive.length();
+            long position = 0;
+            String longName = null;
+            while (position + BLOCK_SIZE <= length) {
+                archive.seek(position);
+                archive.readFully(header);
+                if (isEmptyBlock(header)) {
+                    endOfEntries = position;
+                    return;
+                }
+                TarArchiveEntry entry = new TarArchiveEntry(header);
+                if (entry.isPaxHeader() || entry.isGlobalPaxHeader()) {
+                    supported = false;
+                    return;
+                }
+                long size = entry.getSize();
+                if (entry.isGNULongNameEntry()) {
+                    byte[] nameBytes = new byte[(int) size];
+                    archive.readFully(nameBytes);
+                    longName = new String(nameBytes, "UTF-8").trim();
+                } else {
+                    String name = longName != null ? longName : entry.getName();
+                    longName = null;
+                    if (entry.isFile()) {
+                        if (!entries.containsKey(name)) {
+                            entryNames.add(name);
+                        }
+                        entries.put(name, new long[]{position + BLOCK_SIZE, size, entry.getModTime().getTime()});
+                    }
+                }
+                position += BLOCK_SIZE + (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            }
+            supported = false;
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Indicates whether a tar block contains only zeros.
+     *
+     * @param block the block
+     *
+     * @return a boolean indicating whether a tar block contains only zeros
+     */
+    private static boolean isEmptyBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether the archive could be indexed. Archives using PAX
+     * headers or missing the end of archive blocks are not supported.
+     *
+     * @return a boolean indicating whether the archive could be indexed
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Returns the position of the end of the last entry, i.e. where new
+     * entries can be appended.
+     *
+     * @return the position of the end of the last entry
+     */
+    public long getEndOfEntries() {
+        return endOfEntries;
+    }
+
+    /**
+     * Returns the names of the file entries in order of first appearance.
+     *
+     * @return the names of the file entries
+     */
+    public ArrayList<String> getEntryNames() {
+        return entryNames;
+    }
+
+    /**
+     * Returns the name of the entry corresponding to a file of the given name,
+     * null if not found.
+     *
+     * @param fileName the name of the file
+     *
+     * @return the name of the corresponding entry
+     */
+    public String getEntryName(String fileName) {
+        for (String entryName : entryNames) {
+            if (entryName.equals(fileName) || entryName.endsWith("/" + fileName)) {
+                return entryName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the size of the given entry.
+     *
+     * @param entryName the name of the entry
+     *
+     * @return the size of the entry
+     */
+    public long getSize(String entryName) {
+        return entries.get(entryName)[1];
+    }
+
+    /**
+     * Returns the last modification time of the given entry as stored in the
+     * archive.
+     *
+     * @param entryName the name of the entry
+     *
+     * @return the last modification time of the entry
+     */
+    public long getLastModified(String entryName) {
+        return entries.get(entryName)[2];
+    }
+
+    /**
+     * Extracts an entry to the given file and returns the CRC32 checksum of
+     * its content. Parent folders are created if needed.
+     *
+     * @param entryName the name of the entry
+     * @param destinationFile the file where to extract the entry
+     *
+     * @return the checksum of the extracted file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     */
+    public long extract(String entryName, File destinationFile) throws IOException {
+        long[] entry = entries.get(entryName);
+        if (entry == null) {
+            throw new IllegalArgumentException("Entry " + entryName + " not found in " + archiveFile.getAbsolutePath() + ".");
+        }
+        File parentFolder = destinationFile.getParentFile();
+        if (parentFolder != null && !parentFolder.exists() && !parentFolder.mkdirs()) {
+            throw new IOException("Impossible to create folder " + parentFolder.getAbsolutePath() + ".");
+        }
+        RandomAccessFile archive = new RandomAccessFile(archiveFile, "r");
+        try {
+            FileOutputStream fos = new FileOutputStream(destinationFile);
+            try {
+                CRC32 checksum = new CRC32();
+                byte[] buffer = new byte[65536];
+                archive.seek(entry[0]);
+                long remaining = entry[1];
+                while (remaining > 0) {
+                    int nRead = archive.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (nRead < 0) {
+                        throw new IOException("Unexpected end of archive " + archiveFile.getAbsolutePath() + ".");
+                    }
+                    fos.write(buffer, 0, nRead);
+                    checksum.update(buffer, 0, nRead);
+                    remaining -= nRead;
+                }
+                return checksum.getValue();
+            } finally {
+                fos.close();
+            }
+        } finally {
+            archive.close();
+        }
+    }
+}
@@ -46,6 +46,7 @@ import eu.isas.peptideshaker.scoring.maps.ProteinMap;
 import eu.isas.peptideshaker.scoring.maps.PsmSpecificMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
+import eu.isas.peptideshaker.utils.AnnotationCache;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
 import java.io.IOException;
@@ -55,6 +56,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -68,6 +70,11 @@ import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
  */
 public class MatchesValidator {
 
+    /**
+     * The number of protein matches processed by a thread at a time when
+     * filling the protein map.
+     */
+    private static final int PROTEIN_BATCH_SIZE = 1000;
     /**
      * The PSM target decoy map.
      */
@@ -261,8 +268,6 @@ public class MatchesValidator {
                     + 2 * identification.getSpectrumIdentificationSize());
         }
 
-        HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
-
         // validate the spectrum matches
         if (inputMap != null) {
             inputMap.resetAdvocateContributions();
@@ -275,10 +280,7 @@ public class MatchesValidator {
 
             ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
 
-            ArrayList<String> spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
-            }
+            ArrayList<String> spectrumKeys = metrics.getOrderedSpectrumKeys(spectrumFileName);
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, parameters, false, waitingHandler);
 
             ArrayList<PsmValidatorRunnable> psmRunnables = new ArrayList<PsmValidatorRunnable>(processingPreferences.getnThreads());
@@ -335,10 +337,6 @@ public class MatchesValidator {
 
             pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
 
-            spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
-            }
             psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, parameters, false, waitingHandler);
 
             for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
@@ -358,6 +356,8 @@ public class MatchesValidator {
             }
 
             annotationPreferences.setIntensityLimit(intensityLimit);
+            AnnotationCache.getInstance().reportStatistics(waitingHandler);
+            AnnotationCache.getInstance().clear();
         }
 
         // validate the peptides
@@ -939,8 +939,10 @@ public class MatchesValidator {
      * validate
      * @param metrics if provided fraction information and found modifications
      * will be saved while iterating the matches
-     * @param identificationParameters the identification parameters
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler a handler for exceptions
+     * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
@@ -951,98 +953,43 @@ public class MatchesValidator {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database.
      */
-    public void fillPeptideMaps(Identification identification, Metrics metrics, WaitingHandler waitingHandler,
-            IdentificationParameters identificationParameters) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public void fillPeptideMaps(Identification identification, Metrics metrics, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Filling Peptide Maps. Please Wait...");
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getPeptideIdentification().size() * 2);
 
-        HashSet<String> foundModifications = new HashSet<String>();
-        HashMap<String, ArrayList<String>> fractionPsmMatches = new HashMap<String, ArrayList<String>>();
-
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+        parameters.add(new PSParameter());
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(null, false, parameters, waitingHandler);
-        int nFractions = identification.getSpectrumFiles().size();
-
-        while (peptideMatchesIterator.hasNext()) {
-
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
 
-            for (String modification : Peptide.getModificationFamily(peptideKey)) {
-                if (!foundModifications.contains(modification)) {
-                    foundModifications.add(modification);
-                }
-            }
-
-            double probaScore = 1;
-            HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
-
-            // get the global and fraction level peptide scores
-            for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
-
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
-                probaScore = probaScore * psParameter.getPsmProbability();
-
-                if (nFractions > 1) {
-                    String fraction = Spectrum.getSpectrumFile(spectrumKey);
-
-                    Double fractionScore = fractionScores.get(fraction);
-                    boolean change = false;
-                    if (fractionScore == null) {
-                        fractionScore = 1.0;
-                        change = true;
-                    }
-                    Double tempScore = psParameter.getPsmProbability();
-                    if (tempScore != 1.0) {
-                        fractionScore *= tempScore;
-                        change = true;
-                    }
-                    if (change) {
-                        fractionScores.put(fraction, fractionScore);
-                    }
-
-                    String fractionKey = fraction + "_" + peptideKey;
-                    ArrayList<String> spectrumMatches = fractionPsmMatches.get(fractionKey);
-                    if (spectrumMatches == null) {
-                        spectrumMatches = new ArrayList<String>(1);
-                        fractionPsmMatches.put(fractionKey, spectrumMatches);
-                    }
-                    spectrumMatches.add(spectrumKey);
-                }
-            }
-            if (nFractions == 1) {
-                String spectrumFile = identification.getSpectrumFiles().get(0);
-                fractionScores.put(spectrumFile, probaScore);
-                String fractionKey = spectrumFile + "_" + peptideKey;
-                fractionPsmMatches.put(fractionKey, new ArrayList<String>(peptideMatch.getSpectrumMatchesKeys()));
-            }
-
-            psParameter = new PSParameter();
-
-            // set the fraction scores
-            for (String fractionName : fractionScores.keySet()) {
-                psParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
-            }
-
-            // Set the global score and grouping key
-            psParameter.setPeptideProbabilityScore(probaScore);
-            String peptideValidationGroup = "";
-            if (identificationParameters.getIdValidationPreferences().getSeparatePeptides()) {
-                psParameter.setSpecificMapKey(peptideValidationGroup);
-            }
-            identification.addPeptideMatchParameter(peptideKey, psParameter);
-            peptideMap.addPoint(psParameter.getPeptideProbabilityScore(), peptideMatch, identificationParameters.getSequenceMatchingPreferences());
-
-            waitingHandler.increaseSecondaryProgressCounter();
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<PeptideMapFillerRunnable> runnables = new ArrayList<PeptideMapFillerRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            PeptideMapFillerRunnable runnable = new PeptideMapFillerRunnable(peptideMatchesIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide map filling timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
+        HashSet<String> foundModifications = new HashSet<String>();
+        HashMap<String, ArrayList<String>> fractionPsmMatches = new HashMap<String, ArrayList<String>>();
+        for (PeptideMapFillerRunnable runnable : runnables) {
+            peptideMap.addAll(runnable.getThreadPeptideMap());
+            foundModifications.addAll(runnable.getFoundModifications());
+            fractionPsmMatches.putAll(runnable.getFractionPsmMatches());
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -1062,6 +1009,8 @@ public class MatchesValidator {
      * @param identification the identification class containing the matches to
      * validate
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler a handler for exceptions
+     * @param processingPreferences the processing preferences
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
@@ -1072,48 +1021,30 @@ public class MatchesValidator {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database.
      */
-    public void attachPeptideProbabilities(Identification identification, WaitingHandler waitingHandler)
-            throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public void attachPeptideProbabilities(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            ProcessingPreferences processingPreferences) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Attaching Peptide Probabilities. Please Wait...");
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getPeptideIdentification().size());
 
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+        parameters.add(new PSParameter());
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
 
-        while (peptideMatchesIterator.hasNext()) {
-
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
-            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-
-            if (sequenceFactory.concatenatedTargetDecoy()) {
-                psParameter.setPeptideProbability(peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getPeptideProbabilityScore()));
-            } else {
-                psParameter.setPeptideProbability(1.0);
-            }
-            Set<String> fractions = psParameter.getFractions();
-            if (fractions == null) {
-                throw new IllegalArgumentException("Fractions not found for peptide " + peptideKey + ".");
-            }
-            for (String fraction : fractions) {
-                if (sequenceFactory.concatenatedTargetDecoy()) {
-                    psParameter.setFractionPEP(fraction, peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getFractionScore(fraction)));
-                } else {
-                    psParameter.setFractionPEP(fraction, 1.0);
-                }
-            }
-
-            identification.updatePeptideMatchParameter(peptideKey, psParameter);
-            waitingHandler.increaseSecondaryProgressCounter();
-
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            PeptideProbabilitiesRunnable runnable = new PeptideProbabilitiesRunnable(peptideMatchesIterator, identification, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide probabilities attachment timed out. Please contact the developers.");
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -1125,11 +1056,14 @@ public class MatchesValidator {
      * @param identification the identification class containing the matches to
      * validate
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler a handler for exceptions
+     * @param processingPreferences the processing preferences
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
      */
-    public void fillProteinMap(Identification identification, WaitingHandler waitingHandler) throws Exception {
+    public void fillProteinMap(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            ProcessingPreferences processingPreferences) throws Exception {
 
         waitingHandler.setWaitingText("Filling Protein Map. Please Wait...");
 
@@ -1138,72 +1072,35 @@ public class MatchesValidator {
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(totalProgress);
 
-        PSParameter psParameter = new PSParameter();
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, true, parameters, false, null, waitingHandler);
-        int nFractions = identification.getSpectrumFiles().size();
-
-        while (proteinMatchesIterator.hasNext()) {
-
-            ProteinMatch proteinMatch = proteinMatchesIterator.next();
-            String proteinKey = proteinMatch.getKey();
-
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
-
-            HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
-            double probaScore = 1;
-
-            if (proteinMatch == null) {
-                throw new IllegalArgumentException("Protein match " + proteinKey + " not found.");
-            }
-
-            // get the global and fraction level scores
-            for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
-
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-                probaScore = probaScore * psParameter.getPeptideProbability();
-
-                if (nFractions > 1) {
-                    for (String fraction : psParameter.getFractions()) {
-
-                        Double fractionScore = fractionScores.get(fraction);
-                        boolean change = false;
-                        if (fractionScore == null) {
-                            fractionScore = 1.0;
-                            change = true;
-                        }
-                        Double peptideScore = psParameter.getFractionPEP(fraction);
-                        if (peptideScore != 1.0) {
-                            fractionScore *= peptideScore;
-                            change = true;
-                        }
-                        if (change) {
-                            fractionScores.put(fraction, fractionScore);
-                        }
-                    }
-                }
-            }
-            if (nFractions == 1) {
-                String spectrumFile = identification.getSpectrumFiles().get(0);
-                fractionScores.put(spectrumFile, probaScore);
-            }
-
-            psParameter = new PSParameter();
-
-            // set the fraction scores
-            for (String fractionName : fractionScores.keySet()) {
-                psParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
-            }
+        // every thread takes its own batches of keys, an empty queue means that all matches were processed
+        ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+        ConcurrentLinkedQueue<ArrayList<String>> batches = new ConcurrentLinkedQueue<ArrayList<String>>();
+        for (int start = 0; start < proteinKeys.size(); start += PROTEIN_BATCH_SIZE) {
+            int end = Math.min(start + PROTEIN_BATCH_SIZE, proteinKeys.size());
+            batches.add(new ArrayList<String>(proteinKeys.subList(start, end)));
+        }
 
-            // Set the global score
-            psParameter.setProteinProbabilityScore(probaScore);
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<ProteinMapFillerRunnable> runnables = new ArrayList<ProteinMapFillerRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            ProteinMapFillerRunnable runnable = new ProteinMapFillerRunnable(batches, identification, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein map filling timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-            identification.addProteinMatchParameter(proteinKey, psParameter);
-            proteinMap.addPoint(psParameter.getProteinProbabilityScore(), proteinMatch.isDecoy());
+        for (ProteinMapFillerRunnable runnable : runnables) {
+            proteinMap.addAll(runnable.getThreadProteinMap());
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -1216,7 +1113,9 @@ public class MatchesValidator {
      * validate
      * @param metrics if provided fraction information
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler a handler for exceptions
      * @param fractionSettings the fraction settings
+     * @param processingPreferences the processing preferences
      *
      * @throws SQLException exception thrown whenever an error occurred while
      * interacting with the matches database
@@ -1229,63 +1128,51 @@ public class MatchesValidator {
      * occurred while retrieving the match or when an error is encountered while
      * reading the FASTA file
      */
-    public void attachProteinProbabilities(Identification identification, Metrics metrics, WaitingHandler waitingHandler,
-            FractionSettings fractionSettings) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public void attachProteinProbabilities(Identification identification, Metrics metrics, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            FractionSettings fractionSettings, ProcessingPreferences processingPreferences) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Attaching Protein Probabilities. Please Wait...");
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getProteinIdentification().size());
 
-        HashMap<String, ArrayList<Double>> fractionMW = new HashMap<String, ArrayList<Double>>();
-
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+        parameters.add(new PSParameter());
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
 
-        while (proteinMatchesIterator.hasNext()) {
-
-            ProteinMatch proteinMatch = proteinMatchesIterator.next();
-            String proteinKey = proteinMatch.getKey();
-            Double proteinMW = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
-
-            psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-            if (sequenceFactory.concatenatedTargetDecoy()) {
-                double proteinProbability = proteinMap.getProbability(psParameter.getProteinProbabilityScore());
-                psParameter.setProteinProbability(proteinProbability);
-            } else {
-                psParameter.setProteinProbability(1.0);
-            }
-
-            for (String fraction : psParameter.getFractions()) {
-                if (sequenceFactory.concatenatedTargetDecoy()) {
-                    psParameter.setFractionPEP(fraction, proteinMap.getProbability(psParameter.getFractionScore(fraction)));
-                } else {
-                    psParameter.setFractionPEP(fraction, 1.0);
-                }
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<ProteinProbabilitiesRunnable> runnables = new ArrayList<ProteinProbabilitiesRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            ProteinProbabilitiesRunnable runnable = new ProteinProbabilitiesRunnable(proteinMatchesIterator, identification, fractionSettings, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein probabilities attachment timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-                // set the fraction molecular weights
-                if (!proteinMatch.isDecoy() && psParameter.getFractionConfidence(fraction) > fractionSettings.getProteinConfidenceMwPlots()) {
+        if (metrics != null) {
+            // set the observed fractional molecular weights per fraction
+            HashMap<String, ArrayList<Double>> fractionMW = new HashMap<String, ArrayList<Double>>();
+            for (ProteinProbabilitiesRunnable runnable : runnables) {
+                HashMap<String, ArrayList<Double>> threadFractionMW = runnable.getFractionMW();
+                for (String fraction : threadFractionMW.keySet()) {
                     ArrayList<Double> mw = fractionMW.get(fraction);
                     if (mw == null) {
-                        mw = new ArrayList<Double>(1);
+                        mw = new ArrayList<Double>(threadFractionMW.get(fraction).size());
                         fractionMW.put(fraction, mw);
                     }
-                    mw.add(proteinMW);
+                    mw.addAll(threadFractionMW.get(fraction));
                 }
             }
-
-            identification.updateProteinMatchParameter(proteinKey, psParameter);
-            waitingHandler.increaseSecondaryProgressCounter();
-
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
-        }
-
-        if (metrics != null) {
-            // set the observed fractional molecular weights per fraction
             metrics.setObservedFractionalMassesAll(fractionMW);
         }
 
@@ -1698,8 +1585,8 @@ public class MatchesValidator {
                             ArrayList<Double> precursorIntensities = new ArrayList<Double>();
 
                             String peptideFractionKey = fractionName + "_" + peptideKey;
-                            if (metrics.getFractionPsmMatches().get(peptideFractionKey) != null) {
-                                ArrayList<String> spectrumKeys = metrics.getFractionPsmMatches().get(peptideFractionKey);
+                            ArrayList<String> spectrumKeys = metrics.getFractionPsmMatches(peptideFractionKey);
+                            if (spectrumKeys != null) {
 
                                 for (String spectrumKey : spectrumKeys) {
 
@@ -2079,4 +1966,509 @@ public class MatchesValidator {
             return totalSpectrumCounting;
         }
     }
+
+    /**
+     * Runnable filling the peptide map.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideMapFillerRunnable implements Runnable {
+
+        /**
+         * An iterator for the peptide matches.
+         */
+        private PeptideMatchesIterator peptideMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The peptide map filled by this thread.
+         */
+        private PeptideSpecificMap threadPeptideMap = new PeptideSpecificMap();
+        /**
+         * The modifications found by this thread.
+         */
+        private HashSet<String> foundModifications = new HashSet<String>();
+        /**
+         * The spectrum keys of the peptides processed by this thread indexed
+         * by fraction and peptide key.
+         */
+        private HashMap<String, ArrayList<String>> fractionPsmMatches = new HashMap<String, ArrayList<String>>();
+
+        /**
+         * Constructor.
+         *
+         * @param peptideMatchesIterator a peptide matches iterator
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideMapFillerRunnable(PeptideMatchesIterator peptideMatchesIterator, Identification identification, IdentificationParameters identificationParameters,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.peptideMatchesIterator = peptideMatchesIterator;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int nFractions = identification.getSpectrumFiles().size();
+                PSParameter psParameter = new PSParameter();
+
+                while (peptideMatchesIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+
+                    PeptideMatch peptideMatch = peptideMatchesIterator.next();
+
+                    if (peptideMatch != null) {
+
+                        String peptideKey = peptideMatch.getKey();
+
+                        foundModifications.addAll(Peptide.getModificationFamily(peptideKey));
+
+                        double probaScore = 1;
+                        HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
+
+                        // get the global and fraction level peptide scores
+                        for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
+
+                            psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+                            probaScore = probaScore * psParameter.getPsmProbability();
+
+                            if (nFractions > 1) {
+                                String fraction = Spectrum.getSpectrumFile(spectrumKey);
+
+                                Double fractionScore = fractionScores.get(fraction);
+                                boolean change = false;
+                                if (fractionScore == null) {
+                                    fractionScore = 1.0;
+                                    change = true;
+                                }
+                                Double tempScore = psParameter.getPsmProbability();
+                                if (tempScore != 1.0) {
+                                    fractionScore *= tempScore;
+                                    change = true;
+                                }
+                                if (change) {
+                                    fractionScores.put(fraction, fractionScore);
+                                }
+
+                                String fractionKey = fraction + "_" + peptideKey;
+                                ArrayList<String> spectrumMatches = fractionPsmMatches.get(fractionKey);
+                                if (spectrumMatches == null) {
+                                    spectrumMatches = new ArrayList<String>(1);
+                                    fractionPsmMatches.put(fractionKey, spectrumMatches);
+                                }
+                                spectrumMatches.add(spectrumKey);
+                            }
+                        }
+                        if (nFractions == 1) {
+                            String spectrumFile = identification.getSpectrumFiles().get(0);
+                            fractionScores.put(spectrumFile, probaScore);
+                            String fractionKey = spectrumFile + "_" + peptideKey;
+                            fractionPsmMatches.put(fractionKey, new ArrayList<String>(peptideMatch.getSpectrumMatchesKeys()));
+                        }
+
+                        PSParameter peptideParameter = new PSParameter();
+
+                        // set the fraction scores
+                        for (String fractionName : fractionScores.keySet()) {
+                            peptideParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
+                        }
+
+                        // Set the global score and grouping key
+                        peptideParameter.setPeptideProbabilityScore(probaScore);
+                        String peptideValidationGroup = "";
+                        if (identificationParameters.getIdValidationPreferences().getSeparatePeptides()) {
+                            peptideParameter.setSpecificMapKey(peptideValidationGroup);
+                        }
+                        identification.addPeptideMatchParameter(peptideKey, peptideParameter);
+                        threadPeptideMap.addPoint(peptideParameter.getPeptideProbabilityScore(), peptideMatch, identificationParameters.getSequenceMatchingPreferences());
+
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the peptide map filled by this thread.
+         *
+         * @return the peptide map filled by this thread
+         */
+        public PeptideSpecificMap getThreadPeptideMap() {
+            return threadPeptideMap;
+        }
+
+        /**
+         * Returns the modifications found by this thread.
+         *
+         * @return the modifications found by this thread
+         */
+        public HashSet<String> getFoundModifications() {
+            return foundModifications;
+        }
+
+        /**
+         * Returns the spectrum keys of the peptides processed by this thread
+         * indexed by fraction and peptide key.
+         *
+         * @return the spectrum keys of the peptides processed by this thread
+         */
+        public HashMap<String, ArrayList<String>> getFractionPsmMatches() {
+            return fractionPsmMatches;
+        }
+    }
+
+    /**
+     * Runnable attaching the peptide probabilities.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the peptide matches.
+         */
+        private PeptideMatchesIterator peptideMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideMatchesIterator a peptide matches iterator
+         * @param identification the identification containing the matches
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideProbabilitiesRunnable(PeptideMatchesIterator peptideMatchesIterator, Identification identification,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.peptideMatchesIterator = peptideMatchesIterator;
+            this.identification = identification;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter psParameter = new PSParameter();
+
+                while (peptideMatchesIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+
+                    PeptideMatch peptideMatch = peptideMatchesIterator.next();
+
+                    if (peptideMatch != null) {
+
+                        String peptideKey = peptideMatch.getKey();
+                        psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+
+                        if (sequenceFactory.concatenatedTargetDecoy()) {
+                            psParameter.setPeptideProbability(peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getPeptideProbabilityScore()));
+                        } else {
+                            psParameter.setPeptideProbability(1.0);
+                        }
+                        Set<String> fractions = psParameter.getFractions();
+                        if (fractions == null) {
+                            throw new IllegalArgumentException("Fractions not found for peptide " + peptideKey + ".");
+                        }
+                        for (String fraction : fractions) {
+                            if (sequenceFactory.concatenatedTargetDecoy()) {
+                                psParameter.setFractionPEP(fraction, peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getFractionScore(fraction)));
+                            } else {
+                                psParameter.setFractionPEP(fraction, 1.0);
+                            }
+                        }
+
+                        identification.updatePeptideMatchParameter(peptideKey, psParameter);
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable filling the protein map.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinMapFillerRunnable implements Runnable {
+
+        /**
+         * The batches of protein keys to process.
+         */
+        private ConcurrentLinkedQueue<ArrayList<String>> batches;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The protein map filled by this thread.
+         */
+        private ProteinMap threadProteinMap = new ProteinMap();
+
+        /**
+         * Constructor.
+         *
+         * @param batches the batches of protein keys to process
+         * @param identification the identification containing the matches
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ProteinMapFillerRunnable(ConcurrentLinkedQueue<ArrayList<String>> batches, Identification identification,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.batches = batches;
+            this.identification = identification;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int nFractions = identification.getSpectrumFiles().size();
+                PSParameter psParameter = new PSParameter();
+                ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+                parameters.add(new PSParameter());
+                ArrayList<String> batch;
+
+                while ((batch = batches.poll()) != null && !waitingHandler.isRunCanceled()) {
+
+                    // the iterator is used by this thread only, a null match is therefore missing from the database
+                    ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(batch, null, true, parameters, false, null, null);
+
+                    while (proteinMatchesIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+
+                        ProteinMatch proteinMatch = proteinMatchesIterator.next();
+
+                        if (proteinMatch == null) {
+                            throw new IllegalArgumentException("Protein match not found.");
+                        }
+
+                        String proteinKey = proteinMatch.getKey();
+
+                        waitingHandler.increaseSecondaryProgressCounter();
+
+                        HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
+                        double probaScore = 1;
+
+                        // get the global and fraction level scores
+                        for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
+
+                            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+                            probaScore = probaScore * psParameter.getPeptideProbability();
+
+                            if (nFractions > 1) {
+                                for (String fraction : psParameter.getFractions()) {
+
+                                    Double fractionScore = fractionScores.get(fraction);
+                                    boolean change = false;
+                                    if (fractionScore == null) {
+                                        fractionScore = 1.0;
+                                        change = true;
+                                    }
+                                    Double peptideScore = psParameter.getFractionPEP(fraction);
+                                    if (peptideScore != 1.0) {
+                                        fractionScore *= peptideScore;
+                                        change = true;
+                                    }
+                                    if (change) {
+                                        fractionScores.put(fraction, fractionScore);
+                                    }
+                                }
+                            }
+                        }
+                        if (nFractions == 1) {
+                            String spectrumFile = identification.getSpectrumFiles().get(0);
+                            fractionScores.put(spectrumFile, probaScore);
+                        }
+
+                        PSParameter proteinParameter = new PSParameter();
+
+                        // set the fraction scores
+                        for (String fractionName : fractionScores.keySet()) {
+                            proteinParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
+                        }
+
+                        // Set the global score
+                        proteinParameter.setProteinProbabilityScore(probaScore);
+
+                        identification.addProteinMatchParameter(proteinKey, proteinParameter);
+                        threadProteinMap.addPoint(proteinParameter.getProteinProbabilityScore(), proteinMatch.isDecoy());
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the protein map filled by this thread.
+         *
+         * @return the protein map filled by this thread
+         */
+        public ProteinMap getThreadProteinMap() {
+            return threadProteinMap;
+        }
+    }
+
+    /**
+     * Runnable attaching the protein probabilities.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the protein matches.
+         */
+        private ProteinMatchesIterator proteinMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The fraction settings.
+         */
+        private FractionSettings fractionSettings;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The molecular weights of the confident proteins processed by this
+         * thread indexed by fraction.
+         */
+        private HashMap<String, ArrayList<Double>> fractionMW = new HashMap<String, ArrayList<Double>>();
+
+        /**
+         * Constructor.
+         *
+         * @param proteinMatchesIterator a protein matches iterator
+         * @param identification the identification containing the matches
+         * @param fractionSettings the fraction settings
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ProteinProbabilitiesRunnable(ProteinMatchesIterator proteinMatchesIterator, Identification identification, FractionSettings fractionSettings,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinMatchesIterator = proteinMatchesIterator;
+            this.identification = identification;
+            this.fractionSettings = fractionSettings;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter psParameter = new PSParameter();
+
+                while (proteinMatchesIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+
+                    ProteinMatch proteinMatch = proteinMatchesIterator.next();
+
+                    if (proteinMatch != null) {
+
+                        String proteinKey = proteinMatch.getKey();
+                        Double proteinMW = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
+
+                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                        if (sequenceFactory.concatenatedTargetDecoy()) {
+                            double proteinProbability = proteinMap.getProbability(psParameter.getProteinProbabilityScore());
+                            psParameter.setProteinProbability(proteinProbability);
+                        } else {
+                            psParameter.setProteinProbability(1.0);
+                        }
+
+                        for (String fraction : psParameter.getFractions()) {
+                            if (sequenceFactory.concatenatedTargetDecoy()) {
+                                psParameter.setFractionPEP(fraction, proteinMap.getProbability(psParameter.getFractionScore(fraction)));
+                            } else {
+                                psParameter.setFractionPEP(fraction, 1.0);
+                            }
+
+                            // set the fraction molecular weights
+                            if (!proteinMatch.isDecoy() && psParameter.getFractionConfidence(fraction) > fractionSettings.getProteinConfidenceMwPlots()) {
+                                ArrayList<Double> mw = fractionMW.get(fraction);
+                                if (mw == null) {
+                                    mw = new ArrayList<Double>(1);
+                                    fractionMW.put(fraction, mw);
+                                }
+                                mw.add(proteinMW);
+                            }
+                        }
+
+                        identification.updateProteinMatchParameter(proteinKey, psParameter);
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the molecular weights of the confident proteins processed by
+         * this thread indexed by fraction.
+         *
+         * @return the molecular weights of the confident proteins indexed by
+         * fraction
+         */
+        public HashMap<String, ArrayList<Double>> getFractionMW() {
+            return fractionMW;
+        }
+    }
 }
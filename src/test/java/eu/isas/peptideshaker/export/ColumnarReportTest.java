@@ -0,0 +1,104 @@
+package eu.isas.peptideshaker.export;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the values written by the columnar report writer are restored
+ * exactly by the reader.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReportTest extends TestCase {
+
+    /**
+     * Tests the round trip of columns of integers, decimal numbers, mixed,
+     * empty and non-numeric values.
+     *
+     * @throws Exception thrown if an error occurs while writing or reading the
+     * report
+     */
+    public void testRoundTrip() throws Exception {
+
+        ArrayList<String> titles = new ArrayList<String>(Arrays.asList("Index", "Mixed", "Decimal", "Empty", "Text", "Repeated"));
+        ArrayList<ArrayList<String>> columns = new ArrayList<ArrayList<String>>();
+        columns.add(new ArrayList<String>(Arrays.asList("1", "2", "3", "4", "-5", "")));
+        columns.add(new ArrayList<String>(Arrays.asList("3", "-2", "1.5", "", "2.25", "0.0")));
+        columns.add(new ArrayList<String>(Arrays.asList("0.25", "", "1.0E-5", "-3.5", "100.0", "2.0")));
+        columns.add(new ArrayList<String>(Arrays.asList("", "", "", "", "", "")));
+        columns.add(new ArrayList<String>(Arrays.asList("P12345", "", "7", "1.50", "Oxidation of M(3)", "\u00e9")));
+        columns.add(new ArrayList<String>(Arrays.asList("A", "A", "B", "A", "", "A")));
+
+        File file = File.createTempFile("columnar_report_test", ColumnarReportWriter.EXTENSION);
+        try {
+            ColumnarReportWriter writer = new ColumnarReportWriter(file);
+            writer.startTable("table", titles);
+            for (int row = 0; row < columns.get(0).size(); row++) {
+                ArrayList<String> values = new ArrayList<String>(titles.size());
+                for (ArrayList<String> column : columns) {
+                    values.add(column.get(row));
+                }
+                writer.addRow(values);
+            }
+            writer.close();
+
+            ColumnarReportReader reader = new ColumnarReportReader(file);
+            try {
+                Assert.assertEquals(titles, reader.getColumnTitles("table"));
+                Assert.assertEquals(columns.get(0).size(), reader.getnRows("table"));
+                for (int i = 0; i < titles.size(); i++) {
+                    Assert.assertEquals(titles.get(i), columns.get(i), reader.getColumn("table", titles.get(i)));
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests the round trip of a column spanning multiple row groups where the
+     * type of the values differs between row groups.
+     *
+     * @throws Exception thrown if an error occurs while writing or reading the
+     * report
+     */
+    public void testRowGroups() throws Exception {
+
+        ArrayList<String> titles = new ArrayList<String>(Arrays.asList("Value"));
+        ArrayList<String> column = new ArrayList<String>();
+        for (int i = 0; i < ColumnarReportWriter.ROW_GROUP_SIZE; i++) {
+            column.add(Integer.toString(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            column.add(i % 2 == 0 ? Integer.toString(i) : i + ".5");
+        }
+
+        File file = File.createTempFile("columnar_report_test", ColumnarReportWriter.EXTENSION);
+        try {
+            ColumnarReportWriter writer = new ColumnarReportWriter(file);
+            writer.startTable("first", titles);
+            for (String value : column) {
+                writer.addRow(new ArrayList<String>(Arrays.asList(value)));
+            }
+            writer.startTable("second", titles);
+            writer.addRow(new ArrayList<String>(Arrays.asList("1.5")));
+            writer.close();
+
+            ColumnarReportReader reader = new ColumnarReportReader(file);
+            try {
+                Assert.assertEquals(Arrays.asList("first", "second"), reader.getTableNames());
+                Assert.assertEquals(column, reader.getColumn("first", "Value"));
+                Assert.assertEquals(Arrays.asList("1.5"), reader.getColumn("second", "Value"));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package eu.isas.peptideshaker.parameters;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the maps and lists written by the compact encoding are read back
+ * identical, including null and empty collections and null values.
+ *
+ * @author Marc Vaudel
+ */
+public class CompactEncodingTest extends TestCase {
+
+    /**
+     * Tests the round trip of the maps indexed by string.
+     *
+     * @throws Exception thrown if an error occurs while encoding or decoding
+     */
+    public void testStringMaps() throws Exception {
+
+        HashMap<String, Double> doubleMap = new HashMap<String, Double>();
+        doubleMap.put("f1", 0.3);
+        doubleMap.put("f2", null);
+        doubleMap.put("f3", Double.NaN);
+        HashMap<String, Integer> integerMap = new HashMap<String, Integer>();
+        integerMap.put("f1", 12);
+        integerMap.put("f2", -1);
+        HashMap<String, Boolean> booleanMap = new HashMap<String, Boolean>();
+        booleanMap.put("filterA", true);
+        booleanMap.put("filterB", false);
+        booleanMap.put("filterC", null);
+        HashMap<String, ArrayList<Double>> doubleListMap = new HashMap<String, ArrayList<Double>>();
+        doubleListMap.put("f1", new ArrayList<Double>(Arrays.asList(1.0, null, 2.5)));
+        doubleListMap.put("f2", new ArrayList<Double>());
+        doubleListMap.put("f3", null);
+        HashMap<String, ArrayList<Integer>> integerListMap = new HashMap<String, ArrayList<Integer>>();
+        integerListMap.put("Phospho", new ArrayList<Integer>(Arrays.asList(3, 5)));
+        integerListMap.put("Oxidation", null);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        CompactEncoding.writeDoubleMap(output, doubleMap);
+        CompactEncoding.writeDoubleMap(output, null);
+        CompactEncoding.writeDoubleMap(output, new HashMap<String, Double>());
+        CompactEncoding.writeIntegerMap(output, integerMap);
+        CompactEncoding.writeBooleanMap(output, booleanMap);
+        CompactEncoding.writeDoubleListMap(output, doubleListMap);
+        CompactEncoding.writeIntegerListMap(output, integerListMap);
+        CompactEncoding.writeIntegerListMap(output, null);
+        output.close();
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertEquals(doubleMap, CompactEncoding.readDoubleMap(input));
+        Assert.assertNull(CompactEncoding.readDoubleMap(input));
+        Assert.assertEquals(new HashMap<String, Double>(), CompactEncoding.readDoubleMap(input));
+        Assert.assertEquals(integerMap, CompactEncoding.readIntegerMap(input));
+        Assert.assertEquals(booleanMap, CompactEncoding.readBooleanMap(input));
+        Assert.assertEquals(doubleListMap, CompactEncoding.readDoubleListMap(input));
+        Assert.assertEquals(integerListMap, CompactEncoding.readIntegerListMap(input));
+        Assert.assertNull(CompactEncoding.readIntegerListMap(input));
+        Assert.assertEquals(-1, input.read());
+    }
+
+    /**
+     * Tests the round trip of the maps indexed by integer.
+     *
+     * @throws Exception thrown if an error occurs while encoding or decoding
+     */
+    public void testIndexedMaps() throws Exception {
+
+        HashMap<Integer, Double> doubleMap = new HashMap<Integer, Double>();
+        doubleMap.put(3, 12.5);
+        doubleMap.put(-2, null);
+        HashMap<Integer, Integer> integerMap = new HashMap<Integer, Integer>();
+        integerMap.put(0, 7);
+        integerMap.put(1000, Integer.MIN_VALUE);
+        HashMap<Integer, ArrayList<String>> stringListMap = new HashMap<Integer, ArrayList<String>>();
+        stringListMap.put(5, new ArrayList<String>(Arrays.asList("Phospho", null)));
+        stringListMap.put(7, new ArrayList<String>());
+        HashMap<Integer, ArrayList<Integer>> integerListMap = new HashMap<Integer, ArrayList<Integer>>();
+        integerListMap.put(5, new ArrayList<Integer>(Arrays.asList(5, 7)));
+        integerListMap.put(9, null);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        CompactEncoding.writeIndexedDoubleMap(output, doubleMap);
+        CompactEncoding.writeIndexedIntegerMap(output, integerMap);
+        CompactEncoding.writeIndexedIntegerMap(output, null);
+        CompactEncoding.writeIndexedStringListMap(output, stringListMap);
+        CompactEncoding.writeIndexedIntegerListMap(output, integerListMap);
+        output.close();
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertEquals(doubleMap, CompactEncoding.readIndexedDoubleMap(input));
+        Assert.assertEquals(integerMap, CompactEncoding.readIndexedIntegerMap(input));
+        Assert.assertNull(CompactEncoding.readIndexedIntegerMap(input));
+        Assert.assertEquals(stringListMap, CompactEncoding.readIndexedStringListMap(input));
+        Assert.assertEquals(integerListMap, CompactEncoding.readIndexedIntegerListMap(input));
+        Assert.assertEquals(-1, input.read());
+    }
+
+    /**
+     * Tests the round trip of the lists and strings.
+     *
+     * @throws Exception thrown if an error occurs while encoding or decoding
+     */
+    public void testListsAndStrings() throws Exception {
+
+        ArrayList<Double> doubleList = new ArrayList<Double>(Arrays.asList(0.0, -1.5, null, Double.MAX_VALUE));
+        ArrayList<Integer> integerList = new ArrayList<Integer>(Arrays.asList(1, 2, 3));
+        ArrayList<String> stringList = new ArrayList<String>(Arrays.asList("P12345", "", null, "\u00e9"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        CompactEncoding.writeDoubleList(output, doubleList);
+        CompactEncoding.writeDoubleList(output, null);
+        CompactEncoding.writeIntegerList(output, integerList);
+        CompactEncoding.writeIntegerList(output, new ArrayList<Integer>());
+        CompactEncoding.writeStringList(output, stringList);
+        CompactEncoding.writeString(output, "2");
+        CompactEncoding.writeString(output, null);
+        output.close();
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertEquals(doubleList, CompactEncoding.readDoubleList(input));
+        Assert.assertNull(CompactEncoding.readDoubleList(input));
+        Assert.assertEquals(integerList, CompactEncoding.readIntegerList(input));
+        Assert.assertEquals(new ArrayList<Integer>(), CompactEncoding.readIntegerList(input));
+        Assert.assertEquals(stringList, CompactEncoding.readStringList(input));
+        Assert.assertEquals("2", CompactEncoding.readString(input));
+        Assert.assertNull(CompactEncoding.readString(input));
+        Assert.assertEquals(-1, input.read());
+    }
+}
@@ -0,0 +1,221 @@
+package eu.isas.peptideshaker.parameters;
+
+import eu.isas.peptideshaker.scoring.MatchValidationLevel;
+import eu.isas.peptideshaker.scoring.PtmScoring;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the serialization of the PeptideShaker match parameters in their
+ * compact form and the reading of parameters serialized before the compact
+ * form was introduced.
+ *
+ * @author Marc Vaudel
+ */
+public class ParametersSerializationTest extends TestCase {
+
+    /**
+     * Tests the round trip of a PSParameter.
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    public void testPSParameterRoundTrip() throws Exception {
+
+        Object[] objects = roundTrip(getPSParameter(), new PSParameter());
+
+        checkPSParameter((PSParameter) objects[0]);
+
+        PSParameter empty = (PSParameter) objects[1];
+        Assert.assertEquals(0.0, empty.getSearchEngineProbability());
+        Assert.assertNull(empty.getAlgorithmDeltaPEP());
+        Assert.assertNull(empty.getMatchValidationLevel());
+        Assert.assertNull(empty.getSpecificMapKey());
+        Assert.assertNull(empty.getFractions());
+        Assert.assertNull(empty.getIntermediateScore(3));
+        Assert.assertFalse(empty.isHidden());
+    }
+
+    /**
+     * Tests the round trip of PSPtmScores.
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    public void testPSPtmScoresRoundTrip() throws Exception {
+
+        PSPtmScores psPtmScores = getPSPtmScores();
+        PtmScoring ptmScoring = psPtmScores.getPtmScoring("Phospho");
+        ptmScoring.setDeltaScore(3, 42.0);
+        ptmScoring.setProbabilisticScore(3, 99.5);
+        ptmScoring.setProbabilisticScore(5, 0.5);
+        ptmScoring.setSiteConfidence(3, PtmScoring.VERY_CONFIDENT);
+
+        PSPtmScores result = (PSPtmScores) roundTrip(psPtmScores)[0];
+
+        checkPSPtmScores(result);
+        PtmScoring resultScoring = result.getPtmScoring("Phospho");
+        Assert.assertEquals(42.0, resultScoring.getDeltaScore(3));
+        Assert.assertEquals(99.5, resultScoring.getProbabilisticScore(3));
+        Assert.assertEquals(0.5, resultScoring.getProbabilisticScore(5));
+        Assert.assertEquals(PtmScoring.VERY_CONFIDENT, resultScoring.getLocalizationConfidence(3));
+    }
+
+    /**
+     * Tests that parameters serialized with the field by field layout used
+     * before the compact encoding are still read.
+     *
+     * @throws Exception thrown if an error occurs while deserializing
+     */
+    public void testLegacyStream() throws Exception {
+
+        InputStream inputStream = getClass().getResourceAsStream("legacy_parameters.ser");
+        Assert.assertNotNull(inputStream);
+        ObjectInputStream input = new ObjectInputStream(inputStream);
+        try {
+            PSParameter legacyParameter = (PSParameter) input.readObject();
+            checkPSParameter(legacyParameter);
+
+            PSParameter legacyEmpty = (PSParameter) input.readObject();
+            checkEmptyLegacyPSParameter(legacyEmpty);
+
+            PSPtmScores legacyPtmScores = (PSPtmScores) input.readObject();
+            checkPSPtmScores(legacyPtmScores);
+
+            // the legacy objects are written in the compact form
+            Object[] objects = roundTrip(legacyParameter, legacyEmpty, legacyPtmScores);
+            checkPSParameter((PSParameter) objects[0]);
+            checkEmptyLegacyPSParameter((PSParameter) objects[1]);
+            checkPSPtmScores((PSPtmScores) objects[2]);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns a PSParameter with most fields set, null values included.
+     *
+     * @return a PSParameter
+     */
+    private static PSParameter getPSParameter() {
+        PSParameter psParameter = new PSParameter();
+        psParameter.setSearchEngineProbability(0.01);
+        psParameter.setAlgorithmDeltaPEP(0.5);
+        psParameter.setPsmProbability(0.02);
+        psParameter.setProteinProbabilityScore(3.5);
+        psParameter.setMatchValidationLevel(MatchValidationLevel.doubtful);
+        psParameter.setManualValidation(true);
+        psParameter.setHidden(true);
+        psParameter.setSpecificMapKey("2");
+        psParameter.setProteinInferenceClass(2);
+        psParameter.setFractionPEP("f1", 0.3);
+        psParameter.setFractionPEP("f2", null);
+        psParameter.setQcResult("filterA", true);
+        psParameter.setQcResult("filterB", false);
+        psParameter.setIntermediateScore(3, 12.5);
+        return psParameter;
+    }
+
+    /**
+     * Verifies that a PSParameter has the values set by getPSParameter.
+     *
+     * @param psParameter the PSParameter to verify
+     */
+    private static void checkPSParameter(PSParameter psParameter) {
+        Assert.assertEquals(0.01, psParameter.getSearchEngineProbability());
+        Assert.assertEquals(0.5, psParameter.getAlgorithmDeltaPEP());
+        Assert.assertEquals(0.02, psParameter.getPsmProbability());
+        Assert.assertEquals(3.5, psParameter.getProteinProbabilityScore());
+        Assert.assertEquals(MatchValidationLevel.doubtful, psParameter.getMatchValidationLevel());
+        Assert.assertEquals(Boolean.TRUE, psParameter.isManualValidation());
+        Assert.assertTrue(psParameter.isHidden());
+        Assert.assertFalse(psParameter.isStarred());
+        Assert.assertEquals("2", psParameter.getSpecificMapKey());
+        Assert.assertEquals(2, psParameter.getProteinInferenceClass());
+        Assert.assertEquals(0.3, psParameter.getFractionPEP("f1"));
+        Assert.assertNull(psParameter.getFractionPEP("f2"));
+        Assert.assertEquals(Boolean.TRUE, psParameter.isQcPassed("filterA"));
+        Assert.assertEquals(Boolean.FALSE, psParameter.isQcPassed("filterB"));
+        Assert.assertEquals(12.5, psParameter.getIntermediateScore(3));
+    }
+
+    /**
+     * Verifies the PSParameter without values of the legacy stream.
+     *
+     * @param psParameter the PSParameter to verify
+     */
+    private static void checkEmptyLegacyPSParameter(PSParameter psParameter) {
+        Assert.assertNull(psParameter.getMatchValidationLevel());
+        Assert.assertNull(psParameter.getFractions());
+        Assert.assertFalse(psParameter.isHidden());
+    }
+
+    /**
+     * Returns PSPtmScores with confident and ambiguous sites.
+     *
+     * @return PSPtmScores
+     */
+    private static PSPtmScores getPSPtmScores() {
+        PSPtmScores psPtmScores = new PSPtmScores();
+        psPtmScores.addPtmScoring("Phospho", new PtmScoring("Phospho"));
+        psPtmScores.addConfidentModificationSite("Phospho", 3);
+        HashMap<Integer, ArrayList<String>> ambiguousSites = new HashMap<Integer, ArrayList<String>>();
+        ambiguousSites.put(5, new ArrayList<String>(Arrays.asList("Phospho")));
+        ambiguousSites.put(7, new ArrayList<String>(Arrays.asList("Phospho")));
+        psPtmScores.addAmbiguousModificationSites(5, ambiguousSites);
+        return psPtmScores;
+    }
+
+    /**
+     * Verifies that PSPtmScores have the sites set by getPSPtmScores.
+     *
+     * @param psPtmScores the PSPtmScores to verify
+     */
+    private static void checkPSPtmScores(PSPtmScores psPtmScores) {
+        Assert.assertEquals(Arrays.asList("Phospho"), psPtmScores.getScoredPTMs());
+        Assert.assertEquals("Phospho", psPtmScores.getPtmScoring("Phospho").getName());
+        Assert.assertTrue(psPtmScores.isConfidentModificationSite(3, "Phospho"));
+        Assert.assertEquals(Arrays.asList(3), psPtmScores.getConfidentSitesForPtm("Phospho"));
+        Assert.assertEquals(Arrays.asList(5), psPtmScores.getRepresentativeSites());
+        HashMap<Integer, ArrayList<Integer>> ambiguousSites = psPtmScores.getAmbiguousModificationsSites("Phospho");
+        Assert.assertEquals(1, ambiguousSites.size());
+        ArrayList<Integer> secondarySites = new ArrayList<Integer>(ambiguousSites.get(5));
+        Collections.sort(secondarySites);
+        Assert.assertEquals(Arrays.asList(5, 7), secondarySites);
+    }
+
+    /**
+     * Serializes and deserializes objects.
+     *
+     * @param objects the objects to serialize
+     *
+     * @return the deserialized objects
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    private static Object[] roundTrip(Object... objects) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        for (Object object : objects) {
+            output.writeObject(object);
+        }
+        output.close();
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object[] result = new Object[objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            result[i] = input.readObject();
+        }
+        input.close();
+        return result;
+    }
+}
@@ -0,0 +1,182 @@
+package eu.isas.peptideshaker.scoring;
+
+import eu.isas.peptideshaker.scoring.maps.InputMap;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the target/decoy and input maps filled from multiple threads
+ * contain the same counts as when filled from a single thread.
+ *
+ * @author Marc Vaudel
+ */
+public class MapsConcurrencyTest extends TestCase {
+
+    /**
+     * The number of threads to use.
+     */
+    private static final int N_THREADS = 8;
+    /**
+     * The number of points added by each thread.
+     */
+    private static final int N_POINTS = 50000;
+    /**
+     * The number of distinct scores.
+     */
+    private static final int N_SCORES = 1000;
+    /**
+     * The number of algorithms in the input map.
+     */
+    private static final int N_ALGORITHMS = 3;
+    /**
+     * The number of spectrum files in the input map.
+     */
+    private static final int N_FILES = 4;
+
+    /**
+     * Tests concurrent insertions in a single target/decoy map.
+     *
+     * @throws Exception thrown if a threading issue occurs
+     */
+    public void testConcurrentPut() throws Exception {
+
+        TargetDecoyMap reference = new TargetDecoyMap();
+        for (int thread = 0; thread < N_THREADS; thread++) {
+            Random random = new Random(thread);
+            for (int i = 0; i < N_POINTS; i++) {
+                reference.put(getScore(random), random.nextBoolean());
+            }
+        }
+
+        final TargetDecoyMap sharedMap = new TargetDecoyMap();
+        ExecutorService pool = Executors.newFixedThreadPool(N_THREADS);
+        for (int thread = 0; thread < N_THREADS; thread++) {
+            final int seed = thread;
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < N_POINTS; i++) {
+                        sharedMap.put(getScore(random), random.nextBoolean());
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertSameCounts(reference, sharedMap);
+    }
+
+    /**
+     * Tests thread local target/decoy maps merged at the end.
+     *
+     * @throws Exception thrown if a threading issue occurs
+     */
+    public void testThreadLocalMerge() throws Exception {
+
+        TargetDecoyMap reference = new TargetDecoyMap();
+        for (int thread = 0; thread < N_THREADS; thread++) {
+            Random random = new Random(thread);
+            for (int i = 0; i < N_POINTS; i++) {
+                reference.put(getScore(random), random.nextBoolean());
+            }
+        }
+
+        final TargetDecoyMap sharedMap = new TargetDecoyMap();
+        ExecutorService pool = Executors.newFixedThreadPool(N_THREADS);
+        for (int thread = 0; thread < N_THREADS; thread++) {
+            final int seed = thread;
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    TargetDecoyMap threadMap = new TargetDecoyMap();
+                    for (int i = 0; i < N_POINTS; i++) {
+                        threadMap.put(getScore(random), random.nextBoolean());
+                    }
+                    sharedMap.addAll(threadMap);
+                }
+            });
+        }
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertSameCounts(reference, sharedMap);
+    }
+
+    /**
+     * Tests thread local input maps merged at the end.
+     *
+     * @throws Exception thrown if a threading issue occurs
+     */
+    public void testInputMapMerge() throws Exception {
+
+        InputMap reference = new InputMap();
+        for (int thread = 0; thread < N_THREADS; thread++) {
+            Random random = new Random(thread);
+            for (int i = 0; i < N_POINTS; i++) {
+                reference.addEntry(random.nextInt(N_ALGORITHMS), "file" + random.nextInt(N_FILES), getScore(random), random.nextBoolean());
+            }
+        }
+
+        final InputMap sharedMap = new InputMap();
+        ExecutorService pool = Executors.newFixedThreadPool(N_THREADS);
+        for (int thread = 0; thread < N_THREADS; thread++) {
+            final int seed = thread;
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    InputMap threadMap = new InputMap();
+                    for (int i = 0; i < N_POINTS; i++) {
+                        threadMap.addEntry(random.nextInt(N_ALGORITHMS), "file" + random.nextInt(N_FILES), getScore(random), random.nextBoolean());
+                    }
+                    sharedMap.addAll(threadMap);
+                }
+            });
+        }
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+
+        Assert.assertEquals(reference.getNalgorithms(), sharedMap.getNalgorithms());
+        for (int algorithm = 0; algorithm < N_ALGORITHMS; algorithm++) {
+            assertSameCounts(reference.getTargetDecoyMap(algorithm), sharedMap.getTargetDecoyMap(algorithm));
+            for (int file = 0; file < N_FILES; file++) {
+                assertSameCounts(reference.getTargetDecoyMap(algorithm, "file" + file), sharedMap.getTargetDecoyMap(algorithm, "file" + file));
+            }
+        }
+    }
+
+    /**
+     * Returns a random score among the possible scores.
+     *
+     * @param random the random generator to use
+     *
+     * @return a random score
+     */
+    private static Double getScore(Random random) {
+        return (double) random.nextInt(N_SCORES) / N_SCORES;
+    }
+
+    /**
+     * Verifies that two target/decoy maps contain the same points.
+     *
+     * @param expected the expected map
+     * @param actual the map to verify
+     */
+    private static void assertSameCounts(TargetDecoyMap expected, TargetDecoyMap actual) {
+        ArrayList<Double> expectedScores = expected.getScores();
+        Assert.assertEquals(expectedScores, actual.getScores());
+        for (double score : expectedScores) {
+            Assert.assertEquals(expected.getNTarget(score), actual.getNTarget(score));
+            Assert.assertEquals(expected.getNDecoy(score), actual.getNDecoy(score));
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package eu.isas.peptideshaker.test;
 
+import eu.isas.peptideshaker.export.ColumnarReportTest;
+import eu.isas.peptideshaker.parameters.CompactEncodingTest;
+import eu.isas.peptideshaker.parameters.ParametersSerializationTest;
 import eu.isas.peptideshaker.pride.PrideWebServiceTest;
+import eu.isas.peptideshaker.scoring.MapsConcurrencyTest;
+import eu.isas.peptideshaker.utils.KeyTableTest;
+import eu.isas.peptideshaker.utils.MetricsTest;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -19,6 +25,12 @@ public class FullSuite extends TestCase {
     public static Test suite() {
         TestSuite ts = new TestSuite("Test suite for the PeptideShaker project.");
         ts.addTest(new TestSuite(PrideWebServiceTest.class));
+        ts.addTest(new TestSuite(MapsConcurrencyTest.class));
+        ts.addTest(new TestSuite(ColumnarReportTest.class));
+        ts.addTest(new TestSuite(CompactEncodingTest.class));
+        ts.addTest(new TestSuite(ParametersSerializationTest.class));
+        ts.addTest(new TestSuite(KeyTableTest.class));
+        ts.addTest(new TestSuite(MetricsTest.class));
         return ts;
     }
 }
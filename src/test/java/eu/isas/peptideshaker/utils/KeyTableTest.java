@@ -0,0 +1,92 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the serialization of the key table.
+ *
+ * @author Marc Vaudel
+ */
+public class KeyTableTest extends TestCase {
+
+    /**
+     * Tests that the keys and their ids survive a serialization round trip,
+     * including keys sharing a prefix, empty keys and duplicates.
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    public void testRoundTrip() throws Exception {
+
+        ArrayList<String> keys = new ArrayList<String>(Arrays.asList(
+                "file_1.mgf_cus_Scan 10",
+                "file_1.mgf_cus_Scan 11",
+                "file_1.mgf_cus_Scan 1",
+                "",
+                "file_2.mgf_cus_Scan 10",
+                "file_1.mgf_cus_Scan 11",
+                "f\u00e9le_\u03b1.mgf"));
+
+        KeyTable keyTable = new KeyTable();
+        int[] ids = keyTable.getIds(keys);
+        Assert.assertEquals(6, keyTable.size());
+        Assert.assertEquals(ids[1], ids[5]);
+        keyTable.releaseIndex();
+
+        KeyTable result = roundTrip(keyTable);
+
+        Assert.assertEquals(6, result.size());
+        Assert.assertEquals(keys, result.getKeys(ids));
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals(ids[i], result.getId(keys.get(i)));
+        }
+
+        // new keys are appended after the deserialized ones
+        Assert.assertEquals(6, result.getId("file_3.mgf_cus_Scan 1"));
+        Assert.assertEquals(7, result.size());
+    }
+
+    /**
+     * Tests the round trip of an empty table.
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    public void testEmptyRoundTrip() throws Exception {
+
+        KeyTable result = roundTrip(new KeyTable());
+
+        Assert.assertEquals(0, result.size());
+        Assert.assertEquals(0, result.getId("key"));
+    }
+
+    /**
+     * Serializes and deserializes a key table.
+     *
+     * @param keyTable the key table to serialize
+     *
+     * @return the deserialized key table
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    private static KeyTable roundTrip(KeyTable keyTable) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(keyTable);
+        output.close();
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (KeyTable) input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the storage of the key collections in the metrics.
+ *
+ * @author Marc Vaudel
+ */
+public class MetricsTest extends TestCase {
+
+    /**
+     * Tests that metrics serialized with the key collections stored as lists
+     * of keys are converted when read.
+     *
+     * @throws Exception thrown if an error occurs while deserializing
+     */
+    public void testLegacyStream() throws Exception {
+
+        InputStream inputStream = getClass().getResourceAsStream("legacy_metrics.ser");
+        Assert.assertNotNull(inputStream);
+        ObjectInputStream input = new ObjectInputStream(inputStream);
+        Metrics metrics;
+        try {
+            metrics = (Metrics) input.readObject();
+        } finally {
+            input.close();
+        }
+
+        checkMetrics(metrics);
+        checkMetrics(roundTrip(metrics));
+    }
+
+    /**
+     * Tests that setting the key collections again replaces the keys of the
+     * previous collections.
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    public void testReplaceKeys() throws Exception {
+
+        Metrics metrics = new Metrics();
+        metrics.setOrderedSpectrumKeys(getMap("file_0.mgf", "file_0.mgf_cus_1", "file_0.mgf_cus_2"));
+        metrics.setFractionPsmMatches(getMap("old_PEPTIDE", "file_0.mgf_cus_2"));
+
+        metrics.setOrderedSpectrumKeys(getOrderedSpectrumKeys());
+        Assert.assertEquals(getMap("old_PEPTIDE", "file_0.mgf_cus_2"), metrics.getFractionPsmMatches());
+        metrics.setFractionPsmMatches(getFractionPsmMatches());
+
+        checkSpectrumKeys(metrics);
+        Assert.assertEquals(4, getSpectrumKeyTableSize(roundTrip(metrics)));
+
+        metrics.clearSpectrumKeys();
+        Assert.assertNull(metrics.getOrderedSpectrumKeys());
+        Assert.assertEquals(getFractionPsmMatches(), metrics.getFractionPsmMatches());
+        Assert.assertEquals(2, getSpectrumKeyTableSize(roundTrip(metrics)));
+    }
+
+    /**
+     * Verifies that metrics have the keys of the legacy stream.
+     *
+     * @param metrics the metrics to verify
+     */
+    private static void checkMetrics(Metrics metrics) {
+        Assert.assertEquals(Arrays.asList("P1", "P2_P3"), metrics.getProteinKeys());
+        checkSpectrumKeys(metrics);
+    }
+
+    /**
+     * Verifies that metrics have the spectrum keys of getOrderedSpectrumKeys
+     * and getFractionPsmMatches.
+     *
+     * @param metrics the metrics to verify
+     */
+    private static void checkSpectrumKeys(Metrics metrics) {
+        Assert.assertEquals(getOrderedSpectrumKeys(), metrics.getOrderedSpectrumKeys());
+        Assert.assertEquals(Arrays.asList("file_1.mgf_cus_1", "file_1.mgf_cus_2", "file_1.mgf_cus_3"), metrics.getOrderedSpectrumKeys("file_1.mgf"));
+        Assert.assertNull(metrics.getOrderedSpectrumKeys("file_3.mgf"));
+        Assert.assertEquals(getFractionPsmMatches(), metrics.getFractionPsmMatches());
+        Assert.assertEquals(Arrays.asList("file_1.mgf_cus_2", "file_2.mgf_cus_1"), metrics.getFractionPsmMatches("fraction_PEPTIDE"));
+        Assert.assertNull(metrics.getFractionPsmMatches("fraction_OTHER"));
+    }
+
+    /**
+     * Returns the grouped spectrum keys stored in the legacy stream.
+     *
+     * @return the grouped spectrum keys
+     */
+    private static HashMap<String, ArrayList<String>> getOrderedSpectrumKeys() {
+        HashMap<String, ArrayList<String>> result = getMap("file_1.mgf", "file_1.mgf_cus_1", "file_1.mgf_cus_2", "file_1.mgf_cus_3");
+        result.putAll(getMap("file_2.mgf", "file_2.mgf_cus_1"));
+        return result;
+    }
+
+    /**
+     * Returns the fraction PSM matches stored in the legacy stream.
+     *
+     * @return the fraction PSM matches
+     */
+    private static HashMap<String, ArrayList<String>> getFractionPsmMatches() {
+        return getMap("fraction_PEPTIDE", "file_1.mgf_cus_2", "file_2.mgf_cus_1");
+    }
+
+    /**
+     * Returns a map containing a single list of keys.
+     *
+     * @param key the key of the list
+     * @param values the values of the list
+     *
+     * @return the map
+     */
+    private static HashMap<String, ArrayList<String>> getMap(String key, String... values) {
+        HashMap<String, ArrayList<String>> result = new HashMap<String, ArrayList<String>>();
+        result.put(key, new ArrayList<String>(Arrays.asList(values)));
+        return result;
+    }
+
+    /**
+     * Returns the number of keys in the spectrum key table of the metrics.
+     *
+     * @param metrics the metrics
+     *
+     * @return the number of keys in the spectrum key table
+     *
+     * @throws Exception thrown if an error occurs while accessing the table
+     */
+    private static int getSpectrumKeyTableSize(Metrics metrics) throws Exception {
+        Field field = Metrics.class.getDeclaredField("spectrumKeyTable");
+        field.setAccessible(true);
+        return ((KeyTable) field.get(metrics)).size();
+    }
+
+    /**
+     * Serializes and deserializes metrics.
+     *
+     * @param metrics the metrics to serialize
+     *
+     * @return the deserialized metrics
+     *
+     * @throws Exception thrown if an error occurs while serializing or
+     * deserializing
+     */
+    private static Metrics roundTrip(Metrics metrics) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(metrics);
+        output.close();
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (Metrics) input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+}